@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.component.util.cache;
+
+/**
+ * A count-min sketch estimating how often each key has been used recently, with 4 bit counters packed sixteen to a long
+ *
+ * Once the number of increments reaches ten times the table size all counters are halved, so the frequencies of keys
+ * which were popular a long time ago decay
+ *
+ * Not thread safe, WeightedTinyLfuCache only uses this while holding its eviction lock
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final int MAX_COUNT = 15;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch() {
+        ensureCapacity(16);
+    }
+
+    /**
+     * Grow the table if necessary to track expectedKeys with a low error rate, counts are lost when the table grows
+     */
+    void ensureCapacity(int expectedKeys) {
+        int size = tableSizeFor(Math.max(16, expectedKeys));
+        if ( table == null || size > table.length) {
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10 * size;
+            additions = 0;
+        }
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int result = MAX_COUNT;
+        for ( int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int)((table[index] >>> ((start + i) << 2)) & 0xfL);
+            result = Math.min(result, count);
+        }
+        return result;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for ( int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if ( added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    //increment the counter at offset within the long at index, unless it is already at the maximum
+    private boolean incrementAt(int index, int offset) {
+        int shift = offset << 2;
+        long mask = 0xfL << shift;
+        if ( (table[index] & mask) != mask) {
+            table[index] += 1L << shift;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for ( int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = 1;
+        while ( size < n && size < (1 << 30)) {
+            size <<= 1;
+        }
+        return size;
+    }
+}
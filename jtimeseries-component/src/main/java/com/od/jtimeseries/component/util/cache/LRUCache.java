@@ -146,6 +146,10 @@ public class LRUCache<K,E> implements TimeSeriesCache<K,E> {
         this.cacheRemoves = cacheRemoves;
     }
 
+    //this metric is not supported for LRUCache, which does not weigh its entries
+    public void setCacheEvictedBytesCounter(Counter cacheEvictedBytes) {
+    }
+
     public void setCacheHitPercentageValueRecorder(ValueRecorder cacheHitPercentage) {
         this.calcHitRatioTask.setCacheHitPercentageValueRecorder(cacheHitPercentage);
     }
@@ -58,6 +58,10 @@ public class SoftReferencedCache<K,V> implements TimeSeriesCache<K,V> {
     public void setCacheRemovesCounter(Counter cacheRemoves) {
     }
 
+    //this metric is not supported for SoftReferencedCache
+    public void setCacheEvictedBytesCounter(Counter cacheEvictedBytes) {
+    }
+
     public void setCacheHitPercentageValueRecorder(ValueRecorder cacheHitPercentage) {
         calculateHitRatioTask.setCacheHitPercentageValueRecorder(cacheHitPercentage);
     }
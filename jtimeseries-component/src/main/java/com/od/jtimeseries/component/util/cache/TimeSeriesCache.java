@@ -34,6 +34,11 @@ public interface TimeSeriesCache<K, E> {
 
     void setCacheRemovesCounter(Counter cacheRemoves);
 
+    /**
+     * Counter incremented by the estimated size in bytes of each entry evicted, for caches which weigh their entries
+     */
+    void setCacheEvictedBytesCounter(Counter cacheEvictedBytes);
+
     void setCacheHitPercentageValueRecorder(ValueRecorder cacheHitPercentage);
 
     void setCacheRequestCounter(Counter c);
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.component.util.cache;
+
+import com.od.jtimeseries.timeseries.TimeSeries;
+
+/**
+ * Weighs a timeseries by its current item count
+ *
+ * The bytes per item depends on the SeriesStorage used by the cached series, around 56 bytes for OBJECTS storage
+ * (an item, its value and a reference) and 16 bytes for COLUMNAR storage
+ */
+public class TimeSeriesWeigher implements CacheWeigher<TimeSeries> {
+
+    public static final int OBJECT_STORAGE_BYTES_PER_ITEM = 56;
+    public static final int COLUMNAR_STORAGE_BYTES_PER_ITEM = 16;
+
+    //the series instance, its lock and listener support
+    private static final int SERIES_OVERHEAD_BYTES = 256;
+
+    private final int bytesPerItem;
+
+    public TimeSeriesWeigher() {
+        this(OBJECT_STORAGE_BYTES_PER_ITEM);
+    }
+
+    public TimeSeriesWeigher(int bytesPerItem) {
+        this.bytesPerItem = bytesPerItem;
+    }
+
+    public long getWeight(TimeSeries value) {
+        return SERIES_OVERHEAD_BYTES + (long)value.size() * bytesPerItem;
+    }
+}
@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.component.util.cache;
+
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.ValueRecorder;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.timeseries.TimeSeries;
+import com.od.jtimeseries.util.NamedExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache bounded by the estimated bytes held rather than the number of entries, so a series with 100000 items takes
+ * up as much of the cache as 10000 series of 10 items
+ *
+ * Eviction uses the W-TinyLFU policy. New entries go into a small LRU window. Entries leaving the window compete for
+ * admission to the main space with the entry the main space would evict next, and whichever has been used less often
+ * recently (according to a FrequencySketch) is evicted. A series which is read once, for example by a single chart
+ * request, cannot push out series which are read all the time. The main space is divided into a probation and a
+ * protected segment, entries used again while on probation are promoted to the protected segment.
+ *
+ * get() does not lock. Reads are recorded in lossy striped buffers, and the buffers are drained by whichever thread
+ * manages to take the eviction lock. If a buffer is full the read is not recorded, which only makes the policy
+ * slightly less accurate. put() and remove() take the eviction lock, these are comparatively rare since a series is
+ * only put when it has been read from disk. The weight of an entry is recalculated when its reads are drained, so
+ * series which grow while cached are accounted for.
+ */
+public class WeightedTinyLfuCache<K,E> implements TimeSeriesCache<K,E> {
+
+    private static final int READ_BUFFER_STRIPES = 16;
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private static final double WINDOW_PERCENT = 1;
+    private static final double PROTECTED_PERCENT_OF_MAIN = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<K, Node<K,E>> data = new ConcurrentHashMap<K, Node<K,E>>();
+    private final List<ReadBuffer<K,E>> readBuffers = createReadBuffers();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final CacheWeigher<? super E> weigher;
+
+    private final long maximumWeight;
+    private final long maximumWindowWeight;
+    private final long maximumProtectedWeight;
+
+    //guarded by evictionLock
+    private final NodeList<K,E> window = new NodeList<K,E>();
+    private final NodeList<K,E> probation = new NodeList<K,E>();
+    private final NodeList<K,E> protectedSegment = new NodeList<K,E>();
+    private long weightedSize;
+    private long windowWeight;
+    private long protectedWeight;
+
+    private Counter cacheSizeCounter = DefaultCounter.NULL_COUNTER;
+    private Counter cacheItemCount = DefaultCounter.NULL_COUNTER;
+    private Counter cacheRemoves = DefaultCounter.NULL_COUNTER;
+    private Counter cacheEvictedBytes = DefaultCounter.NULL_COUNTER;
+
+    private CalculateHitRatioTask calcHitRatioTask = new CalculateHitRatioTask();
+
+    private ScheduledExecutorService cacheExecutorService = NamedExecutors.newSingleThreadScheduledExecutor(getClass().getSimpleName());
+
+    /**
+     * Create a cache of series, weighing each series with a TimeSeriesWeigher
+     */
+    public static <K, E extends TimeSeries> WeightedTinyLfuCache<K,E> createSeriesCache(int maximumMB, int bytesPerItem) {
+        return new WeightedTinyLfuCache<K,E>(maximumMB * 1024L * 1024L, new TimeSeriesWeigher(bytesPerItem));
+    }
+
+    public WeightedTinyLfuCache(long maximumBytes, CacheWeigher<? super E> weigher) {
+        this.maximumWeight = maximumBytes;
+        this.weigher = weigher;
+        this.maximumWindowWeight = Math.max(1, (long)(maximumBytes * WINDOW_PERCENT / 100));
+        this.maximumProtectedWeight = (long)((maximumBytes - maximumWindowWeight) * PROTECTED_PERCENT_OF_MAIN / 100);
+        cacheExecutorService.scheduleWithFixedDelay(calcHitRatioTask, 60, 60, TimeUnit.SECONDS);
+    }
+
+    public E get(K key) {
+        calcHitRatioTask.incrementRequests();
+
+        E result = null;
+        Node<K,E> n = data.get(key);
+        if ( n != null) {
+            result = n.value;
+            calcHitRatioTask.incrementHits();
+            recordRead(n);
+        } else {
+            //misses count towards the frequency too, so a series which is requested often is admitted once loaded
+            recordRead(new Node<K,E>(key, null, 0));
+        }
+        return result;
+    }
+
+    public E put(K key, E value) {
+        long weight = weigher.getWeight(value);
+        try {
+            evictionLock.lock();
+            drainReadBuffers();
+            E result = null;
+            Node<K,E> n = data.get(key);
+            if ( n == null) {
+                n = new Node<K,E>(key, value, weight);
+                data.put(key, n);
+                sketch.ensureCapacity(data.size());
+                sketch.increment(key);
+                n.queue = WINDOW;
+                window.addLast(n);
+                windowWeight += weight;
+                weightedSize += weight;
+            } else {
+                result = n.value;
+                n.value = value;
+                setWeight(n, weight);
+                onAccess(n);
+            }
+            evictEntries();
+            cacheItemCount.setCount(data.size());
+            cacheSizeCounter.setCount(weightedSize);
+            return result;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public E remove(K key) {
+        try {
+            evictionLock.lock();
+            E result = null;
+            Node<K,E> n = data.remove(key);
+            if ( n != null) {
+                result = n.value;
+                unlink(n);
+                cacheItemCount.setCount(data.size());
+                cacheSizeCounter.setCount(weightedSize);
+            }
+            return result;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * For this cache the size is the estimated bytes currently held, rather than a maximum entry count
+     */
+    public void setCacheSizeCounter(Counter cacheSizeCounter) {
+        cacheSizeCounter.setCount(getWeightedSize());
+        this.cacheSizeCounter = cacheSizeCounter;
+    }
+
+    public void setCacheOccupancyCounter(Counter cacheItemCount) {
+        cacheItemCount.setCount(data.size());
+        this.cacheItemCount = cacheItemCount;
+    }
+
+    public void setCacheRemovesCounter(Counter cacheRemoves) {
+        this.cacheRemoves = cacheRemoves;
+    }
+
+    public void setCacheEvictedBytesCounter(Counter cacheEvictedBytes) {
+        this.cacheEvictedBytes = cacheEvictedBytes;
+    }
+
+    public void setCacheHitPercentageValueRecorder(ValueRecorder cacheHitPercentage) {
+        this.calcHitRatioTask.setCacheHitPercentageValueRecorder(cacheHitPercentage);
+    }
+
+    public void setCacheRequestCounter(Counter cacheRequestCounter) {
+        this.calcHitRatioTask.setCacheRequestCounter(cacheRequestCounter);
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public long getWeightedSize() {
+        try {
+            evictionLock.lock();
+            drainReadBuffers();
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    private void recordRead(Node<K,E> n) {
+        ReadBuffer<K,E> b = readBuffers.get((int)Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1));
+        int pending = b.offer(n);
+        if ( pending >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+                evictEntries();
+                cacheSizeCounter.setCount(weightedSize);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffers() {
+        for ( ReadBuffer<K,E> b : readBuffers) {
+            b.drain(this);
+        }
+    }
+
+    private List<ReadBuffer<K,E>> createReadBuffers() {
+        List<ReadBuffer<K,E>> result = new ArrayList<ReadBuffer<K,E>>(READ_BUFFER_STRIPES);
+        for ( int loop=0; loop < READ_BUFFER_STRIPES; loop++) {
+            result.add(new ReadBuffer<K,E>());
+        }
+        return result;
+    }
+
+    //called for each read recorded, holding the eviction lock
+    private void onRead(Node<K,E> n) {
+        sketch.increment(n.key);
+        if ( n.queue != Node.UNLINKED && n.value != null) {
+            setWeight(n, weigher.getWeight(n.value));
+            onAccess(n);
+        }
+    }
+
+    private void onAccess(Node<K,E> n) {
+        switch ( n.queue) {
+            case WINDOW :
+                window.moveToLast(n);
+                break;
+            case PROBATION :
+                probation.remove(n);
+                n.queue = PROTECTED;
+                protectedSegment.addLast(n);
+                protectedWeight += n.weight;
+                demoteFromProtected();
+                break;
+            case PROTECTED :
+                protectedSegment.moveToLast(n);
+                break;
+        }
+    }
+
+    private void setWeight(Node<K,E> n, long weight) {
+        long delta = weight - n.weight;
+        n.weight = weight;
+        weightedSize += delta;
+        if ( n.queue == WINDOW) {
+            windowWeight += delta;
+        } else if ( n.queue == PROTECTED) {
+            protectedWeight += delta;
+        }
+    }
+
+    private void demoteFromProtected() {
+        while ( protectedWeight > maximumProtectedWeight && protectedSegment.first() != null) {
+            Node<K,E> n = protectedSegment.removeFirst();
+            protectedWeight -= n.weight;
+            n.queue = PROBATION;
+            probation.addLast(n);
+        }
+    }
+
+    private void evictEntries() {
+        //entries leaving the window join the end of probation, from where they compete with the probation head
+        Node<K,E> candidate = null;
+        while ( windowWeight > maximumWindowWeight && window.first() != null) {
+            Node<K,E> n = window.removeFirst();
+            windowWeight -= n.weight;
+            n.queue = PROBATION;
+            probation.addLast(n);
+            if ( candidate == null) {
+                candidate = n;
+            }
+        }
+
+        while ( weightedSize > maximumWeight) {
+            Node<K,E> victim = probation.first();
+            if ( victim == null) {
+                victim = protectedSegment.first() != null ? protectedSegment.first() : window.first();
+                if ( victim == null) {
+                    break;
+                }
+                evict(victim);
+            } else if ( candidate == null) {
+                evict(victim);
+            } else if ( victim == candidate) {
+                candidate = candidate.next;
+                evict(victim);
+            } else {
+                Node<K,E> nextCandidate = candidate.next;
+                if ( admit(candidate, victim)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                    candidate = nextCandidate;
+                }
+            }
+        }
+    }
+
+    private boolean admit(Node<K,E> candidate, Node<K,E> victim) {
+        //an entry too big for the main space would just evict everything else
+        return candidate.weight <= maximumWeight - maximumWindowWeight &&
+            sketch.frequency(candidate.key) > sketch.frequency(victim.key);
+    }
+
+    private void evict(Node<K,E> n) {
+        data.remove(n.key, n);
+        unlink(n);
+        cacheRemoves.incrementCount();
+        cacheEvictedBytes.incrementCount(n.weight);
+        cacheItemCount.setCount(data.size());
+    }
+
+    private void unlink(Node<K,E> n) {
+        switch ( n.queue) {
+            case WINDOW :
+                window.remove(n);
+                windowWeight -= n.weight;
+                break;
+            case PROBATION :
+                probation.remove(n);
+                break;
+            case PROTECTED :
+                protectedSegment.remove(n);
+                protectedWeight -= n.weight;
+                break;
+        }
+        if ( n.queue != Node.UNLINKED) {
+            weightedSize -= n.weight;
+            n.queue = Node.UNLINKED;
+        }
+    }
+
+    private static class Node<K,E> {
+
+        static final int UNLINKED = -1;
+
+        final K key;
+        volatile E value;
+
+        //guarded by evictionLock
+        long weight;
+        int queue = UNLINKED;
+        Node<K,E> prev;
+        Node<K,E> next;
+
+        Node(K key, E value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * An access ordered doubly linked list of nodes, least recently used first
+     */
+    private static class NodeList<K,E> {
+
+        private Node<K,E> first;
+        private Node<K,E> last;
+
+        Node<K,E> first() {
+            return first;
+        }
+
+        void addLast(Node<K,E> n) {
+            n.prev = last;
+            n.next = null;
+            if ( last == null) {
+                first = n;
+            } else {
+                last.next = n;
+            }
+            last = n;
+        }
+
+        Node<K,E> removeFirst() {
+            Node<K,E> n = first;
+            remove(n);
+            return n;
+        }
+
+        void remove(Node<K,E> n) {
+            if ( n.prev == null) {
+                first = n.next;
+            } else {
+                n.prev.next = n.next;
+            }
+            if ( n.next == null) {
+                last = n.prev;
+            } else {
+                n.next.prev = n.prev;
+            }
+            n.prev = null;
+            n.next = null;
+        }
+
+        void moveToLast(Node<K,E> n) {
+            if ( n != last) {
+                remove(n);
+                addLast(n);
+            }
+        }
+    }
+
+    /**
+     * A bounded buffer of reads for one stripe, producers never block and reads are dropped when the buffer is full
+     */
+    private static class ReadBuffer<K,E> {
+
+        private final AtomicReferenceArray<Node<K,E>> buffer = new AtomicReferenceArray<Node<K,E>>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+        private volatile long readCount;
+
+        /**
+         * @return the number of reads waiting to be drained, after adding this one
+         */
+        int offer(Node<K,E> n) {
+            long w = writeCount.get();
+            long pending = w - readCount;
+            if ( pending < READ_BUFFER_SIZE && writeCount.compareAndSet(w, w + 1)) {
+                buffer.lazySet((int)(w & READ_BUFFER_MASK), n);
+                pending++;
+            }
+            return (int)pending;
+        }
+
+        //called holding the eviction lock
+        void drain(WeightedTinyLfuCache<K,E> cache) {
+            long r = readCount;
+            long w = writeCount.get();
+            while ( r < w) {
+                int index = (int)(r & READ_BUFFER_MASK);
+                Node<K,E> n = buffer.get(index);
+                if ( n == null) {
+                    break; //the producer has claimed the slot but not yet written it
+                }
+                buffer.lazySet(index, null);
+                cache.onRead(n);
+                r++;
+            }
+            readCount = r;
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package com.od.jtimeseries.component.util.path;
 
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Created by IntelliJ IDEA.
  * User: Nick Ebbutt
  * Date: 06/11/11
  * Time: 21:00
+ *
+ * Results are memoized, the memo is cleared if it grows beyond MAX_MEMOIZED_PATHS or the rule is changed
  */
 public class PathMapper {
 
+    private static final int MAX_MEMOIZED_PATHS = 100000;
+
     private ConcurrentHashMap<String,PathMappingResult> pathMappings = new ConcurrentHashMap<String, PathMappingResult>();
-    private PathProcessingRule rule;
+    private List<PathMappingListener> listeners = new CopyOnWriteArrayList<PathMappingListener>();
+    private volatile PathProcessingRule rule;
 
     public PathMapper() {
         this(PathProcessingRule.NULL_PROCESSING_RULE);
@@ -24,17 +31,58 @@ public class PathMapper {
         this.rule = rule;
     }
 
-    public synchronized PathMappingResult getPathMapping(String path) {
+    public PathMappingResult getPathMapping(String path) {
         PathMappingResult result = pathMappings.get(path);
         if ( result == null) {
-            result = rule.getPath(new PathMappingResult(path));
+            PathProcessingRule r = rule;
+            result = r.getPath(new PathMappingResult(path));
+            if ( pathMappings.size() >= MAX_MEMOIZED_PATHS) {
+                pathMappings.clear();
+            }
             pathMappings.put(path, result);
+
+            //don't keep a result from the old rule if the rule was replaced meanwhile
+            if ( r != rule) {
+                pathMappings.remove(path);
+            }
         }
         return result;
     }
 
-
     public synchronized void initialize() throws Exception {
         rule.initialize();
+        pathMappingsChanged();
+    }
+
+    /**
+     * Replace the rule used to map paths, the new rule is initialized before it is used
+     */
+    public synchronized void setRule(PathProcessingRule rule) throws Exception {
+        rule.initialize();
+        this.rule = rule;
+        pathMappingsChanged();
+    }
+
+    public void addPathMappingListener(PathMappingListener l) {
+        listeners.add(l);
+    }
+
+    public void removePathMappingListener(PathMappingListener l) {
+        listeners.remove(l);
+    }
+
+    private void pathMappingsChanged() {
+        pathMappings.clear();
+        for ( PathMappingListener l : listeners) {
+            l.pathMappingsChanged(this);
+        }
+    }
+
+    /**
+     * Notified when the rule changes, so mappings obtained earlier may no longer be valid
+     */
+    public static interface PathMappingListener {
+
+        void pathMappingsChanged(PathMapper pathMapper);
     }
 }
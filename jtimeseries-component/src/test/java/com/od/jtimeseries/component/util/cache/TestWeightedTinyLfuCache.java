@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.component.util.cache;
+
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import junit.framework.TestCase;
+
+public class TestWeightedTinyLfuCache extends TestCase {
+
+    private Counter sizeCounter;
+    private Counter removalCounter;
+    private Counter evictedBytesCounter;
+
+    //the weight of each value is its length
+    private CacheWeigher<String> lengthWeigher = new CacheWeigher<String>() {
+        public long getWeight(String value) {
+            return value.length();
+        }
+    };
+
+    public void testEvictsByWeight() {
+        WeightedTinyLfuCache<String, String> c = new WeightedTinyLfuCache<String, String>(1000, lengthWeigher);
+        addMetrics(c);
+        for ( int loop=0; loop < 20; loop++) {
+            c.put("key" + loop, createValue(100));
+        }
+        assertEquals(10, c.size());
+        assertEquals(1000, c.getWeightedSize());
+        assertEquals(1000, sizeCounter.getCount());
+        assertEquals(10, removalCounter.getCount());
+        assertEquals(1000, evictedBytesCounter.getCount());
+
+        //one large value takes the space of several small ones, it is admitted since it was requested before it was put
+        assertNull(c.get("large"));
+        c.put("large", createValue(500));
+        assertEquals(1000, c.getWeightedSize());
+        assertNotNull(c.get("large"));
+        assertEquals(6, c.size());
+    }
+
+    public void testFrequentlyUsedEntriesAreRetained() {
+        WeightedTinyLfuCache<String, String> c = new WeightedTinyLfuCache<String, String>(1000, lengthWeigher);
+        for ( int loop=0; loop < 10; loop++) {
+            c.put("hot" + loop, createValue(100));
+        }
+        for ( int read=0; read < 20; read++) {
+            for ( int loop=0; loop < 10; loop++) {
+                assertNotNull(c.get("hot" + loop));
+            }
+        }
+
+        //a scan of entries used only once should not push out the frequently used entries
+        for ( int loop=0; loop < 100; loop++) {
+            c.put("cold" + loop, createValue(100));
+        }
+        int retained = 0;
+        for ( int loop=0; loop < 10; loop++) {
+            if ( c.get("hot" + loop) != null) {
+                retained++;
+            }
+        }
+        assertTrue("retained " + retained, retained >= 9);
+    }
+
+    public void testWeightIsUpdatedOnRead() {
+        WeightedTinyLfuCache<String, StringBuilder> c = new WeightedTinyLfuCache<String, StringBuilder>(
+            1000,
+            new CacheWeigher<StringBuilder>() {
+                public long getWeight(StringBuilder value) {
+                    return value.length();
+                }
+            }
+        );
+        StringBuilder b = new StringBuilder("abc");
+        c.put("key", b);
+        assertEquals(3, c.getWeightedSize());
+
+        b.append("defg");
+        c.get("key");
+        assertEquals(7, c.getWeightedSize());
+    }
+
+    public void testRemove() {
+        WeightedTinyLfuCache<String, String> c = new WeightedTinyLfuCache<String, String>(1000, lengthWeigher);
+        addMetrics(c);
+        c.put("key", createValue(100));
+        assertEquals(100, c.remove("key").length());
+        assertNull(c.get("key"));
+        assertNull(c.remove("key"));
+        assertEquals(0, c.getWeightedSize());
+        assertEquals(0, removalCounter.getCount());
+    }
+
+    private void addMetrics(WeightedTinyLfuCache<String, ?> c) {
+        sizeCounter = new DefaultCounter("Size");
+        c.setCacheSizeCounter(sizeCounter);
+
+        removalCounter = new DefaultCounter("Removal");
+        c.setCacheRemovesCounter(removalCounter);
+
+        evictedBytesCounter = new DefaultCounter("EvictedBytes");
+        c.setCacheEvictedBytesCounter(evictedBytesCounter);
+    }
+
+    private String createValue(int length) {
+        StringBuilder sb = new StringBuilder();
+        for ( int loop=0; loop < length; loop++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+}
@@ -49,6 +49,20 @@ public class TestPathMapper extends TestCase{
         assertEquals(expected, result);
     }
 
+    public void testListenersAreNotifiedWhenRuleChanges() throws Exception {
+        final int[] notifications = new int[1];
+        mapper.addPathMappingListener(new PathMapper.PathMappingListener() {
+            public void pathMappingsChanged(PathMapper pathMapper) {
+                notifications[0]++;
+            }
+        });
+        assertEquals(PathMappingResult.ResultType.DENY, mapper.getPathMapping("root.child3.grandchild2").getType());
+
+        mapper.setRule(PathProcessingRule.NULL_PROCESSING_RULE);
+        assertEquals(1, notifications[0]);
+        assertEquals(PathMappingResult.ResultType.PERMIT, mapper.getPathMapping("root.child3.grandchild2").getType());
+    }
+
     private PathMappingResult getExpectedResult(String p, PathMappingResult.ResultType t) {
         return new PathMappingResult(t, p);
     }
@@ -23,11 +23,14 @@ import com.od.jtimeseries.component.jmx.JmxManagementService;
 import com.od.jtimeseries.component.managedmetric.ManagedMetricInitializer;
 import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.net.httpd.JTimeSeriesHttpd;
+import com.od.jtimeseries.net.tcp.TcpServer;
 import com.od.jtimeseries.net.udp.message.HttpServerAnnouncementMessage;
 import com.od.jtimeseries.net.udp.UdpClient;
 import com.od.jtimeseries.net.udp.UdpServer;
 import com.od.jtimeseries.server.jmx.ServerConfigJmx;
+import com.od.jtimeseries.server.message.IngestionQuotas;
 import com.od.jtimeseries.server.message.ServerSeriesUdpMessageListener;
+import com.od.jtimeseries.server.message.UdpIngestionWorkers;
 import com.od.jtimeseries.server.message.ClientAnnouncementMessageListener;
 import com.od.jtimeseries.server.serialization.TimeSeriesSerializer;
 import com.od.jtimeseries.server.summarystats.SummaryStatisticsCalculator;
@@ -60,6 +63,9 @@ public class JTimeSeriesServer extends AbstractJTimeSeriesComponent {
     private ServerConfigJmx serverConfigJmx;
     private UdpServer udpServer;
     private UdpServer udpServerForReplication;
+    private UdpIngestionWorkers udpIngestionWorkers;
+    private IngestionQuotas ingestionQuotas;
+    private TcpServer tcpServer;
     private ManagedMetricInitializer managedMetricInitializer;
     private SummaryStatisticsCalculator summaryStatisticsCalculator;
     private HtmlAdaptorServer htmlAdaptorServer;
@@ -98,6 +104,7 @@ public class JTimeSeriesServer extends AbstractJTimeSeriesComponent {
         startSummaryStats();
         startUdpServer();
         startUdpServerForReplication();
+        startTcpServer();
         startServerAnnouncementPings();
         startJmx();
         startTimeSeriesHttpServer();
@@ -115,7 +122,9 @@ public class JTimeSeriesServer extends AbstractJTimeSeriesComponent {
     private void startUdpServer() {
         if ( udpServer != null) {
             logMethods.info("Adding UDP message listeners");
-            udpServer.addUdpMessageListener(new ServerSeriesUdpMessageListener(rootContext, pathMapper));
+            ServerSeriesUdpMessageListener seriesListener = new ServerSeriesUdpMessageListener(rootContext, pathMapper, udpIngestionWorkers, ingestionQuotas);
+            udpServer.addUdpMessageListener(seriesListener);
+            udpServer.addTimeSeriesValueListener(seriesListener);
             udpServer.addUdpMessageListener(new ClientAnnouncementMessageListener(udpClient));
             logMethods.info("Starting UDP server on port " + udpServer.getPort());
             udpServer.startReceive();
@@ -126,12 +135,28 @@ public class JTimeSeriesServer extends AbstractJTimeSeriesComponent {
     private void startUdpServerForReplication() {
         if ( udpServerForReplication != null) {
             logMethods.info("Adding UDP message listeners for replication");
-            udpServerForReplication.addUdpMessageListener(new ServerSeriesUdpMessageListener(rootContext, pathMapper));
+            ServerSeriesUdpMessageListener seriesListener = new ServerSeriesUdpMessageListener(rootContext, pathMapper, udpIngestionWorkers, ingestionQuotas);
+            udpServerForReplication.addUdpMessageListener(seriesListener);
+            udpServerForReplication.addTimeSeriesValueListener(seriesListener);
             logMethods.info("Starting UDP server on port " + udpServerForReplication.getPort());
             udpServerForReplication.startReceive();
         }
     }
 
+    private void startTcpServer() {
+        if ( tcpServer != null) {
+            logMethods.info("Adding TCP message listeners");
+            //frames are acked once passed to the listener, so TCP updates are exempt from quotas and never dropped
+            ServerSeriesUdpMessageListener seriesListener = new ServerSeriesUdpMessageListener(
+                rootContext, pathMapper, udpIngestionWorkers, null, UdpIngestionWorkers.OverflowPolicy.BLOCK
+            );
+            tcpServer.addUdpMessageListener(seriesListener);
+            tcpServer.addTimeSeriesValueListener(seriesListener);
+            logMethods.info("Starting TCP server on port " + tcpServer.getPort());
+            tcpServer.startReceive();
+        }
+    }
+
     private void setupServerMetrics() {
         logMethods.info("Setting up server metrics series");
         managedMetricInitializer.initializeServerMetrics();
@@ -203,6 +228,18 @@ public class JTimeSeriesServer extends AbstractJTimeSeriesComponent {
         this.udpServerForReplication = udpServerForReplication;
     }
 
+    public void setUdpIngestionWorkers(UdpIngestionWorkers udpIngestionWorkers) {
+        this.udpIngestionWorkers = udpIngestionWorkers;
+    }
+
+    public void setIngestionQuotas(IngestionQuotas ingestionQuotas) {
+        this.ingestionQuotas = ingestionQuotas;
+    }
+
+    public void setTcpServer(TcpServer tcpServer) {
+        this.tcpServer = tcpServer;
+    }
+
     public void setManagedMetricInitializer(ManagedMetricInitializer metricInitializer) {
         this.managedMetricInitializer = metricInitializer;
     }
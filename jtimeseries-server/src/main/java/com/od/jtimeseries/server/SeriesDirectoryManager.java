@@ -20,18 +20,28 @@ package com.od.jtimeseries.server;
 
 import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.server.serialization.FileHeader;
+import com.od.jtimeseries.server.serialization.HeaderManifest;
 import com.od.jtimeseries.server.serialization.SerializationException;
 import com.od.jtimeseries.server.serialization.TimeSeriesSerializer;
-import com.od.jtimeseries.server.util.FileReaper;
+import com.od.jtimeseries.server.timeseries.RollupConfiguration;
+import com.od.jtimeseries.server.timeseries.SeriesJournal;
 import com.od.jtimeseries.component.util.path.PathMapper;
 import com.od.jtimeseries.component.util.path.PathMappingResult;
 import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.util.NamedExecutors;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 import com.od.jtimeseries.util.time.Time;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by IntelliJ IDEA.
@@ -39,69 +49,158 @@ import java.io.FilenameFilter;
  * Date: 20-May-2009
  * Time: 22:15:31
  * To change this template use File | Settings | File Templates.
+ *
+ * Series whose header is still valid in the HeaderManifest are set up before loadExistingSeries returns. The headers
+ * of any other series files are read in parallel on a pool of loader threads, and these series are set up in the
+ * background, so the server can start receiving data while the load completes. A series which receives data before
+ * it has been loaded is created from its existing file, and is skipped by the loader
+ *
+ * Once the load completes the HeaderManifest is written, and it is rewritten periodically and at shutdown so that it
+ * records the headers as they are after the series have been flushed. Each series replays its journalled items as it is
+ * created, and the SeriesJournal is told when the load completes so it can discard the files from the previous run
  */
 public class SeriesDirectoryManager {
 
     private static LogMethods logMethods = LogUtils.getLogMethods(SeriesDirectoryManager.class);
 
+    public static final String MANIFEST_FILE_NAME = "seriesHeaders.manifest";
+    private static final int DEFAULT_LOAD_THREADS = 4;
+    private static final long MANIFEST_WRITE_PERIOD_MINUTES = 10;
+
     private File seriesDirectory;
     private TimeSeriesSerializer timeseriesSerializer;
     private TimeSeriesContext rootContext;
     private PathMapper pathMapper;
-    private String seriesFileSuffix;
     private int maxFileCount;
     private int maxDiskSpaceForSeriesMb;
     private int maxSeriesFileAgeDays;
-    private int loadCount;
-    private FileReaper reaper;
+    private int loadThreads;
+    private HeaderManifest headerManifest;
+    private SeriesJournal seriesJournal = SeriesJournal.DISABLED_JOURNAL;
+    private RollupConfiguration rollupConfiguration;
+    private final AtomicInteger loadCount = new AtomicInteger();
+    private volatile CountDownLatch loadCompleteLatch = new CountDownLatch(0);
 
-    public SeriesDirectoryManager(File seriesDirectory, TimeSeriesSerializer timeseriesSerializer, TimeSeriesContext rootContext, PathMapper pathMapper, String seriesFileSuffix, int maxFileCount, int maxDiskSpaceForSeriesMb, int maxSeriesFileAgeDays) {
+    public SeriesDirectoryManager(File seriesDirectory, TimeSeriesSerializer timeseriesSerializer, TimeSeriesContext rootContext, PathMapper pathMapper, int maxFileCount, int maxDiskSpaceForSeriesMb, int maxSeriesFileAgeDays) {
+        this(seriesDirectory, timeseriesSerializer, rootContext, pathMapper, maxFileCount, maxDiskSpaceForSeriesMb, maxSeriesFileAgeDays, DEFAULT_LOAD_THREADS);
+    }
+
+    public SeriesDirectoryManager(File seriesDirectory, TimeSeriesSerializer timeseriesSerializer, TimeSeriesContext rootContext, PathMapper pathMapper, int maxFileCount, int maxDiskSpaceForSeriesMb, int maxSeriesFileAgeDays, int loadThreads) {
         this.seriesDirectory = seriesDirectory;
         this.timeseriesSerializer = timeseriesSerializer;
         this.rootContext = rootContext;
         this.pathMapper = pathMapper;
-        this.seriesFileSuffix = seriesFileSuffix;
         this.maxFileCount = maxFileCount;
         this.maxDiskSpaceForSeriesMb = maxDiskSpaceForSeriesMb;
         this.maxSeriesFileAgeDays = maxSeriesFileAgeDays;
-
-        createFileReaper(seriesDirectory, seriesFileSuffix);
-    }
-
-    private void createFileReaper(File seriesDirectory, String seriesFileSuffix) {
-        this.reaper = new FileReaper(
-            "Timeseries File Reaper",
-            seriesDirectory,
-            ".*" + seriesFileSuffix,
-            maxFileCount,
-            maxDiskSpaceForSeriesMb * 1000000,
-            Time.days(maxSeriesFileAgeDays).getLengthInMillis()
-        );
+        this.loadThreads = Math.max(1, loadThreads);
+        this.headerManifest = new HeaderManifest(new File(seriesDirectory, MANIFEST_FILE_NAME), timeseriesSerializer);
     }
 
     public void loadExistingSeries() {
         logMethods.info("Loading series from directory " + seriesDirectory);
-        File[] candidateFiles = getCandidateSeriesFiles();
-        logMethods.info("Found " + candidateFiles.length + " possible timeseries files, about to commence loading..");
+        List<File> candidateFiles = timeseriesSerializer.getSeriesFiles();
+        logMethods.info("Found " + candidateFiles.size() + " possible timeseries files, about to commence loading..");
         long startTime = System.currentTimeMillis();
+        headerManifest.load();
+
+        List<File> filesToRead = new ArrayList<File>();
         for (File f : candidateFiles) {
-            if ( ! f.isDirectory()) {
-                if ( f.canRead() ) {
-                    loadTimeSeries(f);
-                } else {
-                    logMethods.info("Cannot read time series file " + f + " - will skip loading this one");
-                }
+            FileHeader header = headerManifest.getHeader(f);
+            if ( header != null) {
+                loadTimeSeries(header);
+            } else {
+                filesToRead.add(f);
+            }
+        }
+        logMethods.info("Loaded " + loadCount + " series from header manifest in " + (System.currentTimeMillis() - startTime) +
+                " milliseconds, " + filesToRead.size() + " series headers will be read from file");
+
+        loadCompleteLatch = new CountDownLatch(filesToRead.size());
+        if ( filesToRead.size() > 0) {
+            readHeadersInBackground(filesToRead, startTime);
+        } else {
+            loadComplete();
+        }
+    }
+
+    public void setSeriesJournal(SeriesJournal seriesJournal) {
+        this.seriesJournal = seriesJournal;
+    }
+
+    public void setRollupConfiguration(RollupConfiguration rollupConfiguration) {
+        this.rollupConfiguration = rollupConfiguration;
+    }
+
+    private void loadComplete() {
+        seriesJournal.endReplay();
+        startHeaderManifestWrites();
+    }
+
+    private void startHeaderManifestWrites() {
+        writeHeaderManifest();
+        ScheduledExecutorService manifestExecutor = NamedExecutors.newSingleThreadScheduledExecutor(
+            "SeriesHeaderManifestWriter", NamedExecutors.DAEMON_THREAD_CONFIGURER
+        );
+        manifestExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                writeHeaderManifest();
             }
+        }, MANIFEST_WRITE_PERIOD_MINUTES, MANIFEST_WRITE_PERIOD_MINUTES, TimeUnit.MINUTES);
 
+        Runtime.getRuntime().addShutdownHook(new Thread("SeriesHeaderManifestShutdownWriter") {
+            public void run() {
+                writeHeaderManifest();
+            }
+        });
+    }
+
+    private void readHeadersInBackground(List<File> filesToRead, final long startTime) {
+        final ExecutorService loadExecutor = NamedExecutors.newFixedThreadPool("SeriesDirectoryLoader", loadThreads);
+        final AtomicInteger remaining = new AtomicInteger(filesToRead.size());
+        for ( final File f : filesToRead) {
+            loadExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        readHeaderAndLoad(f);
+                    } catch (Throwable t) {
+                        logMethods.error("Failed to load series file " + f, t);
+                    } finally {
+                        if ( remaining.decrementAndGet() == 0) {
+                            logMethods.info("Loaded " + loadCount + " series in " + (System.currentTimeMillis() - startTime) + " milliseconds");
+                            loadComplete();
+                            loadExecutor.shutdown();
+                        }
+                        loadCompleteLatch.countDown();
+                    }
+                }
+            });
         }
-        long loadTime = System.currentTimeMillis() - startTime;
-        logMethods.info("Loaded " + loadCount + " series in " + loadTime + " milliseconds");
+    }
 
+    /**
+     * Wait for series whose headers are being read in the background to be loaded
+     * @return true if loading completed within the timeout
+     */
+    public boolean waitForLoadToComplete(long timeoutMillis) throws InterruptedException {
+        return loadCompleteLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void loadTimeSeries(File f) {
+    public int getLoadCount() {
+        return loadCount.get();
+    }
+
+    private void readHeaderAndLoad(File f) {
+        try {
+            FileHeader header = timeseriesSerializer.readHeaderForLoad(f);
+            loadTimeSeries(header);
+        } catch (SerializationException e) {
+            logMethods.error("Failed to read series file " + f + ", this series is possibly corrupted, and will not be loaded, please remove it", e);
+        }
+    }
+
+    private void loadTimeSeries(FileHeader header) {
         try {
-            FileHeader header = timeseriesSerializer.readHeader(f);
             String path = header.getPath();
             PathMappingResult r = pathMapper.getPathMapping(path);
             if (r.getType() == PathMappingResult.ResultType.DENY) {
@@ -115,30 +214,45 @@ public class SeriesDirectoryManager {
             }
 
         } catch (SerializationException e) {
-            logMethods.error("Failed to read series file " + f + ", this series is possibly corrupted, and will not be loaded, please remove it", e);
+            logMethods.error("Failed to migrate series " + header.getPath() + ", this series will not be loaded", e);
         }
     }
 
     private void loadSeriesFile(FileHeader header) {
         //the type of time series which will be created depends on the TimeSeriesFactory set on the context
         //we are expecting FilesystemTimeSeries
-        if ( ! rootContext.contains(header.getPath())) { //this may be a server metrics series which has already been created
-            logMethods.info("Setting up series " + header.getPath() + " with current size " + header.getCurrentSeriesSize());
-            rootContext.create(header.getPath(), header.getDescription(), IdentifiableTimeSeries.class, header);
-            loadCount++;
+        try {
+            //hold the tree lock, since a series may be created concurrently when data is received for it
+            rootContext.getTreeLock().writeLock().lock();
+            if ( ! rootContext.contains(header.getPath())) { //this may be a server metrics series which has already been created
+                logMethods.info("Setting up series " + header.getPath() + " with current size " + header.getCurrentSeriesSize());
+                rootContext.create(header.getPath(), header.getDescription(), IdentifiableTimeSeries.class, header);
+                headerManifest.putHeader(header);
+                loadCount.incrementAndGet();
+            }
+        } finally {
+            rootContext.getTreeLock().writeLock().unlock();
         }
     }
 
-    private File[] getCandidateSeriesFiles() {
-        return seriesDirectory.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return name.endsWith(seriesFileSuffix);
-            }
-        });
+    private void writeHeaderManifest() {
+        try {
+            int entries = headerManifest.write();
+            logMethods.info("Wrote header manifest with " + entries + " of " + headerManifest.getHeaderCount() + " series headers");
+        } catch (IOException e) {
+            logMethods.error("Failed to write series header manifest", e);
+        }
     }
 
     public void removeOldTimeseriesFiles() {
         logMethods.info("Removing old timeseries files");
-        reaper.reap();
+        timeseriesSerializer.removeOldSeries(
+            maxFileCount,
+            maxDiskSpaceForSeriesMb * 1000000,
+            Time.days(maxSeriesFileAgeDays).getLengthInMillis()
+        );
+        if ( rollupConfiguration != null) {
+            rollupConfiguration.removeOldRollups(Time.days(maxSeriesFileAgeDays).getLengthInMillis());
+        }
     }
 }
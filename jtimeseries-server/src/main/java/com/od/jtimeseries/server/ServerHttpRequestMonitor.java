@@ -25,9 +25,18 @@ public class ServerHttpRequestMonitor implements HttpRequestMonitor {
     private static volatile Counter requestCounter = DefaultCounter.NULL_COUNTER;
     private static volatile Counter requestErrorCounter = DefaultCounter.NULL_COUNTER;
     private static volatile Counter requestInvalidCounter = DefaultCounter.NULL_COUNTER;
+    private static volatile Counter reusedConnectionRequestCounter = DefaultCounter.NULL_COUNTER;
+    private static volatile ValueRecorder requestQueueTimeValueRecorder = DefaultValueRecorder.NULL_VALUE_RECORDER;
 
     private ThreadLocal<Long> requestStartTimes = new ThreadLocal<Long>();
 
+    public void requestDispatched(long requestId, Socket mySocket, int requestsOnConnection, long queueTimeMillis) {
+        if ( requestsOnConnection > 1) {
+            reusedConnectionRequestCounter.incrementCount();
+        }
+        requestQueueTimeValueRecorder.newValue(queueTimeMillis);
+    }
+
     public void requestStarting(long requestId, Socket mySocket) {
         if (logMethods.isDebugEnabled()) logMethods.debug("Starting HTTPD request " + requestId + " from client " + mySocket.getInetAddress());
         requestCounter.incrementCount();
@@ -93,4 +102,12 @@ public class ServerHttpRequestMonitor implements HttpRequestMonitor {
     public static void setHttpRequestInvalidCounter(Counter requestInvalidCounter) {
         ServerHttpRequestMonitor.requestInvalidCounter = requestInvalidCounter;
     }
+
+    public static void setHttpReusedConnectionRequestCounter(Counter reusedConnectionRequestCounter) {
+        ServerHttpRequestMonitor.reusedConnectionRequestCounter = reusedConnectionRequestCounter;
+    }
+
+    public static void setHttpRequestQueueTimeValueRecorder(ValueRecorder requestQueueTimeValueRecorder) {
+        ServerHttpRequestMonitor.requestQueueTimeValueRecorder = requestQueueTimeValueRecorder;
+    }
 }
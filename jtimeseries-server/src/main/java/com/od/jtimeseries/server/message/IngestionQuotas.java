@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the updates and new series accepted from each source address, and the total number of series, so that one
+ * client flooding updates or new series paths cannot hold up ingestion for everyone else or grow the context tree
+ * without limit
+ *
+ * Each source has a token bucket for updates, refilled at maxUpdatesPerSecondPerSource and holding up to one second of
+ * updates, and one for new series, refilled at maxNewSeriesPerMinutePerSource and holding up to one minute of new
+ * series. A limit of zero or less is not enforced
+ *
+ * The total series count is read from the context tree at most once a second, and counted up as series are permitted
+ * in between, so a burst of new series cannot overshoot maxTotalSeries by much
+ *
+ * Rejections are logged at most once a minute for each source, and once a minute for the total series limit
+ */
+public class IngestionQuotas {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(IngestionQuotas.class);
+
+    private static final int MAX_SOURCES = 10000;
+    private static final long SERIES_COUNT_REFRESH_MILLIS = 1000;
+    private static final long LOG_INTERVAL_MILLIS = 60000;
+
+    private final TimeSeriesContext rootContext;
+    private final int maxUpdatesPerSecondPerSource;
+    private final int maxNewSeriesPerMinutePerSource;
+    private final int maxTotalSeries;
+
+    private final ConcurrentHashMap<String, SourceQuota> sourceQuotas = new ConcurrentHashMap<String, SourceQuota>();
+
+    //shared by sources beyond MAX_SOURCES, until quotas for idle sources are removed
+    private final SourceQuota overflowQuota;
+
+    private final AtomicInteger seriesCount = new AtomicInteger();
+    private final AtomicLong seriesCountTime = new AtomicLong();
+    private final AtomicLong seriesRejectedSinceLog = new AtomicLong();
+    private volatile long seriesLimitLogTime;
+
+    private volatile Counter rejectedUpdatesCounter = DefaultCounter.NULL_COUNTER;
+    private volatile Counter rejectedNewSeriesCounter = DefaultCounter.NULL_COUNTER;
+
+    /**
+     * @param maxUpdatesPerSecondPerSource, updates accepted per second from each source address, zero for no limit
+     * @param maxNewSeriesPerMinutePerSource, new series created per minute for each source address, zero for no limit
+     * @param maxTotalSeries, series in the context tree above which no new series are created, zero for no limit
+     */
+    public IngestionQuotas(TimeSeriesContext rootContext, int maxUpdatesPerSecondPerSource, int maxNewSeriesPerMinutePerSource, int maxTotalSeries) {
+        this.rootContext = rootContext;
+        this.maxUpdatesPerSecondPerSource = maxUpdatesPerSecondPerSource;
+        this.maxNewSeriesPerMinutePerSource = maxNewSeriesPerMinutePerSource;
+        this.maxTotalSeries = maxTotalSeries;
+        overflowQuota = new SourceQuota("(other sources)");
+    }
+
+    /**
+     * @return true if an update from sourceInetAddress is within its quota, otherwise the update is counted as rejected
+     */
+    public boolean isUpdatePermitted(String sourceInetAddress) {
+        boolean result = maxUpdatesPerSecondPerSource <= 0 || getSourceQuota(sourceInetAddress).tryUpdate();
+        if ( ! result) {
+            rejectedUpdatesCounter.incrementCount();
+        }
+        return result;
+    }
+
+    /**
+     * @return true if a new series may be created for path, otherwise it is counted as rejected
+     */
+    public boolean isNewSeriesPermitted(String sourceInetAddress, String path) {
+        boolean result = isWithinTotalSeriesLimit(path, sourceInetAddress) &&
+            (maxNewSeriesPerMinutePerSource <= 0 || getSourceQuota(sourceInetAddress).tryNewSeries(path));
+
+        if ( result ) {
+            seriesCount.incrementAndGet();
+        } else {
+            rejectedNewSeriesCounter.incrementCount();
+        }
+        return result;
+    }
+
+    public void setRejectedUpdatesCounter(Counter rejectedUpdatesCounter) {
+        this.rejectedUpdatesCounter = rejectedUpdatesCounter;
+    }
+
+    public void setRejectedNewSeriesCounter(Counter rejectedNewSeriesCounter) {
+        this.rejectedNewSeriesCounter = rejectedNewSeriesCounter;
+    }
+
+    private boolean isWithinTotalSeriesLimit(String path, String sourceInetAddress) {
+        boolean result = true;
+        if ( maxTotalSeries > 0) {
+            refreshSeriesCount();
+            result = seriesCount.get() < maxTotalSeries;
+            if ( ! result ) {
+                long rejected = seriesRejectedSinceLog.incrementAndGet();
+                long time = System.currentTimeMillis();
+                if ( time - seriesLimitLogTime >= LOG_INTERVAL_MILLIS) {
+                    seriesLimitLogTime = time;
+                    seriesRejectedSinceLog.set(0);
+                    logMethods.warn("Not creating series " + path + " for source " + sourceInetAddress + ", the server has " +
+                        seriesCount.get() + " series which has reached the limit of " + maxTotalSeries + ", " + rejected +
+                        " new series rejected since the last warning");
+                }
+            }
+        }
+        return result;
+    }
+
+    private void refreshSeriesCount() {
+        long time = System.currentTimeMillis();
+        long lastCountTime = seriesCountTime.get();
+        if ( time - lastCountTime >= SERIES_COUNT_REFRESH_MILLIS && seriesCountTime.compareAndSet(lastCountTime, time)) {
+            seriesCount.set(rootContext.findAll(IdentifiableTimeSeries.class).getNumberOfMatches());
+        }
+    }
+
+    private SourceQuota getSourceQuota(String sourceInetAddress) {
+        SourceQuota result = sourceQuotas.get(sourceInetAddress);
+        if ( result == null) {
+            if ( sourceQuotas.size() >= MAX_SOURCES) {
+                removeIdleSources();
+            }
+
+            if ( sourceQuotas.size() >= MAX_SOURCES) {
+                result = overflowQuota;
+            } else {
+                SourceQuota newQuota = new SourceQuota(sourceInetAddress);
+                result = sourceQuotas.putIfAbsent(sourceInetAddress, newQuota);
+                if ( result == null) {
+                    result = newQuota;
+                }
+            }
+        }
+        return result;
+    }
+
+    //a source whose buckets have filled up again has been idle, it is treated the same if it is removed and recreated
+    private void removeIdleSources() {
+        Iterator<SourceQuota> i = sourceQuotas.values().iterator();
+        while ( i.hasNext()) {
+            if ( i.next().isIdle()) {
+                i.remove();
+            }
+        }
+    }
+
+    private class SourceQuota {
+
+        private final String sourceInetAddress;
+        private final TokenBucket updates;
+        private final TokenBucket newSeries;
+        private long rejectedUpdatesSinceLog;
+        private long lastLogTime;
+
+        SourceQuota(String sourceInetAddress) {
+            this.sourceInetAddress = sourceInetAddress;
+            updates = new TokenBucket(maxUpdatesPerSecondPerSource, TimeUnit.SECONDS);
+            newSeries = new TokenBucket(maxNewSeriesPerMinutePerSource, TimeUnit.MINUTES);
+        }
+
+        synchronized boolean tryUpdate() {
+            boolean result = updates.tryAcquire();
+            if ( ! result ) {
+                rejectedUpdatesSinceLog++;
+                if ( shouldLog()) {
+                    logMethods.warn("Source " + sourceInetAddress + " exceeded its quota of " + maxUpdatesPerSecondPerSource +
+                        " updates per second, " + rejectedUpdatesSinceLog + " updates rejected since the last warning");
+                    rejectedUpdatesSinceLog = 0;
+                }
+            }
+            return result;
+        }
+
+        synchronized boolean tryNewSeries(String path) {
+            boolean result = newSeries.tryAcquire();
+            if ( ! result && shouldLog()) {
+                logMethods.warn("Not creating series " + path + ", source " + sourceInetAddress + " exceeded its quota of " +
+                    maxNewSeriesPerMinutePerSource + " new series per minute");
+            }
+            return result;
+        }
+
+        synchronized boolean isIdle() {
+            return updates.isFull() && newSeries.isFull();
+        }
+
+        private boolean shouldLog() {
+            long time = System.currentTimeMillis();
+            boolean result = time - lastLogTime >= LOG_INTERVAL_MILLIS;
+            if ( result ) {
+                lastLogTime = time;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Holds up to one period's worth of tokens, refilled continuously at tokensPerPeriod
+     * Not thread safe, used while the SourceQuota is locked
+     */
+    private static class TokenBucket {
+
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefillTime = System.nanoTime();
+
+        TokenBucket(int tokensPerPeriod, TimeUnit period) {
+            capacity = Math.max(1, tokensPerPeriod);
+            tokensPerNano = capacity / period.toNanos(1);
+            tokens = capacity;
+        }
+
+        boolean tryAcquire() {
+            refill();
+            boolean result = tokens >= 1;
+            if ( result ) {
+                tokens--;
+            }
+            return result;
+        }
+
+        boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long time = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (time - lastRefillTime) * tokensPerNano);
+            lastRefillTime = time;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.component.util.path.PathMapper;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.IdentifiableTreeEvent;
+import com.od.jtimeseries.identifiable.IdentifiableTreeListenerAdapter;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the series resolved for each path received over UDP, or the fact the path is denied by the PathMapper,
+ * so that an update for a live series does not need to map its path or look up the series in the context tree
+ *
+ * Entries for removed series are discarded when the tree remove event is received, and the whole cache is cleared
+ * when the PathMapper rule changes. Since tree events are fired asynchronously, a series may be resolved before it is
+ * removed but put into the cache after the remove event is processed - so put is given the generation read before
+ * the series was resolved, and the entry is not cached if an invalidation has happened since
+ */
+public class ResolvedSeriesCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static volatile Counter cacheHitCounter = DefaultCounter.NULL_COUNTER;
+    private static volatile Counter cacheMissCounter = DefaultCounter.NULL_COUNTER;
+
+    private final ConcurrentHashMap<String, ResolvedSeries> resolvedSeries = new ConcurrentHashMap<String, ResolvedSeries>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int maxEntries;
+
+    public ResolvedSeriesCache(TimeSeriesContext rootContext, PathMapper pathMapper) {
+        this(rootContext, pathMapper, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ResolvedSeriesCache(TimeSeriesContext rootContext, PathMapper pathMapper, int maxEntries) {
+        this.maxEntries = maxEntries;
+        rootContext.addTreeListener(new RemovedSeriesListener());
+        pathMapper.addPathMappingListener(new PathMapper.PathMappingListener() {
+            public void pathMappingsChanged(PathMapper pathMapper) {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * @return the resolved series for path, or null if path is not in the cache
+     */
+    public ResolvedSeries get(String path) {
+        ResolvedSeries result = resolvedSeries.get(path);
+        if ( result == null) {
+            cacheMissCounter.incrementCount();
+        } else {
+            cacheHitCounter.incrementCount();
+        }
+        return result;
+    }
+
+    /**
+     * @return a generation which must be read before a series is resolved, and passed to put
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    public void put(String path, ResolvedSeries series, long generationBeforeResolve) {
+        if ( resolvedSeries.size() >= maxEntries) {
+            clear();
+        }
+        resolvedSeries.put(path, series);
+
+        //the series may have been removed or the mapping changed while it was resolved
+        if ( generation.get() != generationBeforeResolve) {
+            resolvedSeries.remove(path, series);
+        }
+    }
+
+    public int size() {
+        return resolvedSeries.size();
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        resolvedSeries.clear();
+    }
+
+    private void removeSeries(Map<IdentifiableTimeSeries, Boolean> removed) {
+        generation.incrementAndGet();
+        Iterator<ResolvedSeries> i = resolvedSeries.values().iterator();
+        while ( i.hasNext()) {
+            IdentifiableTimeSeries s = i.next().getSeries();
+            if ( s != null && removed.containsKey(s)) {
+                i.remove();
+            }
+        }
+    }
+
+    public static void setCacheHitCounter(Counter cacheHitCounter) {
+        ResolvedSeriesCache.cacheHitCounter = cacheHitCounter;
+    }
+
+    public static void setCacheMissCounter(Counter cacheMissCounter) {
+        ResolvedSeriesCache.cacheMissCounter = cacheMissCounter;
+    }
+
+    private class RemovedSeriesListener extends IdentifiableTreeListenerAdapter {
+
+        public void descendantRemoved(IdentifiableTreeEvent contextTreeEvent) {
+            final Map<IdentifiableTimeSeries, Boolean> removed = new IdentityHashMap<IdentifiableTimeSeries, Boolean>();
+            contextTreeEvent.processNodesAndDescendants(new IdentifiableTreeEvent.IdentifiableProcessor<IdentifiableTimeSeries>() {
+                public void process(IdentifiableTimeSeries identifiable) {
+                    removed.put(identifiable, Boolean.TRUE);
+                }
+            }, IdentifiableTimeSeries.class);
+
+            if ( removed.size() > 0) {
+                removeSeries(removed);
+            }
+        }
+    }
+
+    /**
+     * The series for a path received over UDP, or DENIED if the PathMapper does not permit a series for the path
+     */
+    public static class ResolvedSeries {
+
+        public static final ResolvedSeries DENIED = new ResolvedSeries(null, null);
+
+        private final String mappedPath;
+        private final IdentifiableTimeSeries series;
+
+        public ResolvedSeries(String mappedPath, IdentifiableTimeSeries series) {
+            this.mappedPath = mappedPath;
+            this.series = series;
+        }
+
+        /**
+         * @return path after mapping by PathMapper, or null if denied
+         */
+        public String getMappedPath() {
+            return mappedPath;
+        }
+
+        /**
+         * @return series, or null if denied or the series could not be created
+         */
+        public IdentifiableTimeSeries getSeries() {
+            return series;
+        }
+    }
+}
@@ -28,7 +28,9 @@ import com.od.jtimeseries.component.util.path.PathMappingResult;
 import com.od.jtimeseries.source.Counter;
 import com.od.jtimeseries.source.impl.DefaultCounter;
 import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.Item;
 import com.od.jtimeseries.timeseries.TimeSeries;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.util.NamedExecutors;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
@@ -36,6 +38,7 @@ import com.od.jtimeseries.util.time.Time;
 import com.od.jtimeseries.util.time.TimePeriod;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -49,8 +52,20 @@ import java.util.concurrent.TimeUnit;
 * according to the context path and id received in the message.
 *
 * Keeps a running tally of the number of series for which data is being received, and the overall update count.
+*
+* Values decoded by the UdpServer without creating a message are received as a TimeSeriesValueListener
+*
+* The series resolved for each received path is cached, so most updates do not need to map the path or find the series
+*
+* If UdpIngestionWorkers are supplied, updates are processed by the workers rather than on the UdpServer listener thread
+*
+* If IngestionQuotas are supplied, updates from a source beyond its quota are discarded before they are passed to the
+* workers, and new series are only created within the source's new series quota and the limit on total series
+*
+* The overflow policy applied when a worker queue is full may be set for this listener, so that updates from a source
+* which must not lose them, such as the TcpServer, are never dropped, whatever the policy of the shared workers
 */
-public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListener {
+public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListener, UdpServer.TimeSeriesValueListener {
 
     private static LogMethods logMethod = LogUtils.getLogMethods(ServerSeriesUdpMessageListener.class);
 
@@ -59,39 +74,130 @@ public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListe
     private static volatile Counter updateMessagesReceivedCounter = DefaultCounter.NULL_COUNTER;
     private static volatile Counter liveSeriesCounter = DefaultCounter.NULL_COUNTER;
 
-    private final Map<String, Long> liveSeriesLastUpdateMap = new HashMap<String, Long>();
+    private final ConcurrentHashMap<String, Long> liveSeriesLastUpdateMap = new ConcurrentHashMap<String, Long>();
 
     private TimeSeriesContext rootContext;
 
     private PathMapper pathMapper;
+    private UdpIngestionWorkers ingestionWorkers;
+    private IngestionQuotas ingestionQuotas;
+    private UdpIngestionWorkers.OverflowPolicy overflowPolicy;
+    private ResolvedSeriesCache resolvedSeriesCache;
+    private UdpIngestionWorkers.IngestionHandler ingestionHandler = new IngestionHandler();
     private Set<String> loggedDeniedPaths = Collections.synchronizedSet(new HashSet<String>());
     private Set<String> loggedMigratedPaths = Collections.synchronizedSet(new HashSet<String>());
 
 
     public ServerSeriesUdpMessageListener(TimeSeriesContext rootContext, PathMapper pathMapper) {
+        this(rootContext, pathMapper, null);
+    }
+
+    /**
+     * @param ingestionWorkers, workers to process updates, or null to process updates on the thread which receives them
+     */
+    public ServerSeriesUdpMessageListener(TimeSeriesContext rootContext, PathMapper pathMapper, UdpIngestionWorkers ingestionWorkers) {
+        this(rootContext, pathMapper, ingestionWorkers, null);
+    }
+
+    /**
+     * @param ingestionQuotas, quotas to apply to each source, or null to accept all updates
+     */
+    public ServerSeriesUdpMessageListener(TimeSeriesContext rootContext, PathMapper pathMapper, UdpIngestionWorkers ingestionWorkers, IngestionQuotas ingestionQuotas) {
+        this(rootContext, pathMapper, ingestionWorkers, ingestionQuotas, ingestionWorkers == null ? null : ingestionWorkers.getOverflowPolicy());
+    }
+
+    /**
+     * @param overflowPolicy, applied when the queue of a worker is full, in place of the policy of the workers
+     */
+    public ServerSeriesUdpMessageListener(TimeSeriesContext rootContext, PathMapper pathMapper, UdpIngestionWorkers ingestionWorkers, IngestionQuotas ingestionQuotas, UdpIngestionWorkers.OverflowPolicy overflowPolicy) {
         this.rootContext = rootContext;
+        this.overflowPolicy = overflowPolicy;
         this.pathMapper = pathMapper;
+        this.ingestionWorkers = ingestionWorkers;
+        this.ingestionQuotas = ingestionQuotas;
+        this.resolvedSeriesCache = new ResolvedSeriesCache(rootContext, pathMapper);
 
         scheduleReportingAndCleanup(NamedExecutors.newSingleThreadScheduledExecutor(ServerSeriesUdpMessageListener.class.getSimpleName()));
     }
 
     public void udpMessageReceived(UdpMessage m) {
+        String path = null;
+        if ( m instanceof SeriesDescriptionMessage) {
+            path = ((SeriesDescriptionMessage)m).getSeriesPath();
+        } else if ( m instanceof TimeSeriesValueMessage) {
+            path = ((TimeSeriesValueMessage)m).getSeriesPath();
+        }
+
+        if ( path != null && isUpdatePermitted(m.getSourceInetAddress())) {
+            if ( ingestionWorkers != null) {
+                ingestionWorkers.submitMessage(ingestionHandler, path, m, overflowPolicy);
+            } else {
+                processMessage(m);
+            }
+        }
+    }
+
+    public void timeSeriesValueReceived(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+        if ( ! isUpdatePermitted(sourceInetAddress)) {
+            return;
+        }
+
+        if ( ingestionWorkers != null) {
+            ingestionWorkers.submitValue(ingestionHandler, sourceInetAddress, sourceHostname, path, timestamp, value, overflowPolicy);
+        } else {
+            processValue(sourceInetAddress, sourceHostname, path, timestamp, value);
+        }
+    }
+
+    private boolean isUpdatePermitted(String sourceInetAddress) {
+        return ingestionQuotas == null || ingestionQuotas.isUpdatePermitted(sourceInetAddress);
+    }
+
+    private void processMessage(UdpMessage m) {
         updateMessagesReceivedCounter.incrementCount();
         if ( m instanceof SeriesDescriptionMessage) {
             //create series, or just update the description
             SeriesDescriptionMessage d = (SeriesDescriptionMessage)m;
-            String path = getMappedPath(d.getSeriesPath());
-            if ( path != null) {
-                IdentifiableTimeSeries s = findOrCreateSeries(path, d.getSeriesDescription(), d.getSourceHostname(), d.getSourceInetAddress());
+            IdentifiableTimeSeries s = resolveSeries(d.getSeriesPath(), d.getSeriesDescription(), d.getSourceHostname(), d.getSourceInetAddress()).getSeries();
+            if ( s != null) {
                 s.setDescription(d.getSeriesDescription());
             }
         } else if ( m instanceof TimeSeriesValueMessage) {
             TimeSeriesValueMessage v = (TimeSeriesValueMessage)m;
-            String path = getMappedPath(v.getSeriesPath());
-            if (path != null) {
-                addItem(v, path);
+            ResolvedSeriesCache.ResolvedSeries r = resolveSeries(v.getSeriesPath(), v.getDescription(), v.getSourceHostname(), v.getSourceInetAddress());
+            addItem(r, v.getSourceHostname(), v.getSourceInetAddress(), v.getTimeSeriesItem());
+        }
+    }
+
+    private void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+        updateMessagesReceivedCounter.incrementCount();
+        ResolvedSeriesCache.ResolvedSeries r = resolveSeries(path, null, sourceHostname, sourceInetAddress);
+        addItem(r, sourceHostname, sourceInetAddress, new Item(timestamp, value));
+    }
+
+    /**
+     * @return the cached series for path, or else map the path and find or create the series
+     */
+    private ResolvedSeriesCache.ResolvedSeries resolveSeries(String path, String description, String sourceHostname, String sourceInetAddress) {
+        ResolvedSeriesCache.ResolvedSeries result = resolvedSeriesCache.get(path);
+        if ( result == null) {
+            long generation = resolvedSeriesCache.getGeneration();
+            String mappedPath = getMappedPath(path);
+            if ( mappedPath == null) {
+                result = ResolvedSeriesCache.ResolvedSeries.DENIED;
+            } else {
+                result = new ResolvedSeriesCache.ResolvedSeries(
+                    mappedPath,
+                    findOrCreateSeries(mappedPath, description, sourceHostname, sourceInetAddress)
+                );
+            }
+
+            //don't cache a failure to create the series, so it is retried with the next update
+            if ( result.getMappedPath() == null || result.getSeries() != null) {
+                resolvedSeriesCache.put(path, result, generation);
             }
         }
+        return result;
     }
 
     /**
@@ -115,18 +221,21 @@ public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListe
         return result;
     }
 
-    private void addItem(TimeSeriesValueMessage v, String path) {
-        TimeSeries s = findOrCreateSeries(path, v.getDescription(), v.getSourceHostname(), v.getSourceInetAddress());
-        updateLiveSeriesMap(v, path);
-        if ( s != null ) { //series created successfully
-            s.addItem(v.getTimeSeriesItem());
+    private void addItem(ResolvedSeriesCache.ResolvedSeries r, String sourceHostname, String sourceInetAddress, TimeSeriesItem item) {
+        TimeSeries s = r.getSeries();
+        if ( s != null ) { //series created successfully, and not denied or rejected by quotas
+            updateLiveSeriesMap(r.getMappedPath(), sourceHostname, sourceInetAddress);
+            s.addItem(item);
         }
     }
 
     private IdentifiableTimeSeries findOrCreateSeries(String path, String description, String source, String sourceInetAddress) {
         IdentifiableTimeSeries result = null;
         try {
-            result = rootContext.getOrCreateTimeSeries(path, description);
+            //if a new series is rejected the null result is not cached, so a later update may create it once within quota
+            if ( ingestionQuotas == null || rootContext.contains(path) || ingestionQuotas.isNewSeriesPermitted(sourceInetAddress, path)) {
+                result = rootContext.getOrCreateTimeSeries(path, description);
+            }
         } catch ( Throwable t) {
             logMethod.error("Error when trying to create timeseries for UDP series " + path + " from host " + source + " with address " + sourceInetAddress, t);
             logMethod.debug("Error when trying to create timeseries", t);
@@ -134,12 +243,10 @@ public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListe
         return result;
     }
 
-    private void updateLiveSeriesMap(TimeSeriesValueMessage v, String path) {
-        synchronized (liveSeriesLastUpdateMap) {
-            Long lastTimestamp = liveSeriesLastUpdateMap.get(path);
-            if ( lastTimestamp == null) {
-                liveSeriesLastUpdateMap.put(path, System.currentTimeMillis());
-                logMethod.info("Started to receive UDP updates for series " + path + " from host " + v.getSourceHostname() + " with address " + v.getSourceInetAddress());
+    private void updateLiveSeriesMap(String path, String sourceHostname, String sourceInetAddress) {
+        if ( ! liveSeriesLastUpdateMap.containsKey(path)) {
+            if ( liveSeriesLastUpdateMap.putIfAbsent(path, System.currentTimeMillis()) == null) {
+                logMethod.info("Started to receive UDP updates for series " + path + " from host " + sourceHostname + " with address " + sourceInetAddress);
             }
         }
     }
@@ -148,20 +255,18 @@ public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListe
         staleSeriesExecutor.scheduleAtFixedRate(new Runnable() {
             public void run() {
                 long currentTime = System.currentTimeMillis();
-                synchronized (liveSeriesLastUpdateMap) {
-                    Iterator<Map.Entry<String, Long>> i = liveSeriesLastUpdateMap.entrySet().iterator();
-                    while(i.hasNext()) {
-                        Map.Entry<String, Long> e = i.next();
-                        if ( currentTime - e.getValue() > STALE_SERIES_DELAY.getLengthInMillis() ) {
-                            logMethod.info("Series " + e.getKey() + " has received no updates for one hour, " +
-                                    "it is likely this series is no longer being published");
-                            i.remove();
-                        }
-                    }
-                    if ( liveSeriesCounter != null) {
-                        liveSeriesCounter.setCount(liveSeriesLastUpdateMap.size());
+                Iterator<Map.Entry<String, Long>> i = liveSeriesLastUpdateMap.entrySet().iterator();
+                while(i.hasNext()) {
+                    Map.Entry<String, Long> e = i.next();
+                    if ( currentTime - e.getValue() > STALE_SERIES_DELAY.getLengthInMillis() ) {
+                        logMethod.info("Series " + e.getKey() + " has received no updates for one hour, " +
+                                "it is likely this series is no longer being published");
+                        i.remove();
                     }
                 }
+                if ( liveSeriesCounter != null) {
+                    liveSeriesCounter.setCount(liveSeriesLastUpdateMap.size());
+                }
             }
         }, 300, 300, TimeUnit.SECONDS);
     }
@@ -174,4 +279,15 @@ public class ServerSeriesUdpMessageListener implements UdpServer.UdpMessageListe
     public static void setLiveSeriesCounter(Counter liveSeriesTotalValueRecorder) {
         ServerSeriesUdpMessageListener.liveSeriesCounter = liveSeriesTotalValueRecorder;
     }
+
+    private class IngestionHandler implements UdpIngestionWorkers.IngestionHandler {
+
+        public void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+            ServerSeriesUdpMessageListener.this.processValue(sourceInetAddress, sourceHostname, path, timestamp, value);
+        }
+
+        public void processMessage(UdpMessage m) {
+            ServerSeriesUdpMessageListener.this.processMessage(m);
+        }
+    }
 }
@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.server.timeseries.FlushScheduler;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.ValueRecorder;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.source.impl.DefaultValueRecorder;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads the processing of received UDP updates across a number of worker threads
+ *
+ * Updates are partitioned by the hash of the series path, so all the updates for a series are processed by the same
+ * worker in the order they were received. Each partition has a bounded queue. When a queue is full the overflow policy
+ * determines whether the submitting thread waits for space (BLOCK), or whether the update is dropped and counted (DROP)
+ *
+ * Updates from a UdpServer are submitted on its listener thread. UdpServer bounds the batches queued for that thread,
+ * so with BLOCK its receive threads wait in turn, and datagrams back up in the socket receive buffer, where the
+ * kernel drops them once it is full, rather than being held on the heap
+ *
+ * If a FlushScheduler is supplied, workers wait for it to have capacity before taking more updates from their queue,
+ * so when series cannot be flushed as fast as updates arrive the queues fill up and the overflow policy applies
+ *
+ * The queues hold the fields of value updates in arrays, so queueing a value does not create an object
+ */
+public class UdpIngestionWorkers {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(UdpIngestionWorkers.class);
+
+    //maximum updates a worker takes from its queue at once
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    public static enum OverflowPolicy {
+        BLOCK,
+        DROP
+    }
+
+    /**
+     * Processes updates on the worker threads
+     */
+    static interface IngestionHandler {
+
+        void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value);
+
+        void processMessage(UdpMessage m);
+    }
+
+    private final Partition[] partitions;
+    private final OverflowPolicy overflowPolicy;
+    private final FlushScheduler flushScheduler;
+    private volatile Counter droppedUpdatesCounter = DefaultCounter.NULL_COUNTER;
+
+    public UdpIngestionWorkers(int partitionCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(partitionCount, queueCapacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param flushScheduler, workers wait while this has too many bytes waiting to be written, null for no wait
+     */
+    public UdpIngestionWorkers(int partitionCount, int queueCapacity, OverflowPolicy overflowPolicy, FlushScheduler flushScheduler) {
+        this.overflowPolicy = overflowPolicy;
+        this.flushScheduler = flushScheduler;
+        partitions = new Partition[Math.max(1, partitionCount)];
+        for ( int loop=0; loop < partitions.length; loop++) {
+            partitions[loop] = new Partition(Math.max(1, queueCapacity));
+            Thread t = new Thread(new Worker(partitions[loop]), "UdpIngestionWorker-" + loop);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return number of updates waiting in the queue for partition
+     */
+    public int getQueueDepth(int partition) {
+        return partitions[partition].getQueueDepth();
+    }
+
+    /**
+     * @param latencyValueRecorder, receives the time in milliseconds the oldest update in each batch taken by a worker
+     * spent waiting in the queue
+     */
+    public void setLatencyValueRecorder(int partition, ValueRecorder latencyValueRecorder) {
+        partitions[partition].latencyValueRecorder = latencyValueRecorder;
+    }
+
+    public void setDroppedUpdatesCounter(Counter droppedUpdatesCounter) {
+        this.droppedUpdatesCounter = droppedUpdatesCounter;
+    }
+
+    void submitValue(IngestionHandler handler, String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+        submitValue(handler, sourceInetAddress, sourceHostname, path, timestamp, value, overflowPolicy);
+    }
+
+    /**
+     * @param overflowPolicy, applies to this update in place of the policy of the workers
+     */
+    void submitValue(IngestionHandler handler, String sourceInetAddress, String sourceHostname, String path, long timestamp, double value, OverflowPolicy overflowPolicy) {
+        getPartition(path).add(handler, sourceInetAddress, sourceHostname, path, timestamp, value, null, overflowPolicy);
+    }
+
+    void submitMessage(IngestionHandler handler, String path, UdpMessage message) {
+        submitMessage(handler, path, message, overflowPolicy);
+    }
+
+    void submitMessage(IngestionHandler handler, String path, UdpMessage message, OverflowPolicy overflowPolicy) {
+        getPartition(path).add(handler, null, null, null, 0, 0, message, overflowPolicy);
+    }
+
+    private Partition getPartition(String path) {
+        return partitions[(path.hashCode() & 0x7fffffff) % partitions.length];
+    }
+
+    private class Partition {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        private final IngestionHandler[] handlers;
+        private final String[] sourceInetAddresses;
+        private final String[] sourceHostnames;
+        private final String[] paths;
+        private final long[] timestamps;
+        private final double[] values;
+        private final UdpMessage[] messages;
+        private final long[] queuedTimes;
+        private int head;
+        private int count;
+
+        private volatile ValueRecorder latencyValueRecorder = DefaultValueRecorder.NULL_VALUE_RECORDER;
+
+        Partition(int capacity) {
+            handlers = new IngestionHandler[capacity];
+            sourceInetAddresses = new String[capacity];
+            sourceHostnames = new String[capacity];
+            paths = new String[capacity];
+            timestamps = new long[capacity];
+            values = new double[capacity];
+            messages = new UdpMessage[capacity];
+            queuedTimes = new long[capacity];
+        }
+
+        int getQueueDepth() {
+            try {
+                lock.lock();
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void add(IngestionHandler handler, String sourceInetAddress, String sourceHostname, String path, long timestamp, double value, UdpMessage message, OverflowPolicy overflowPolicy) {
+            try {
+                lock.lock();
+                while ( count == handlers.length) {
+                    if ( overflowPolicy == OverflowPolicy.DROP) {
+                        droppedUpdatesCounter.incrementCount();
+                        return;
+                    }
+                    notFull.awaitUninterruptibly();
+                }
+                int index = (head + count) % handlers.length;
+                handlers[index] = handler;
+                sourceInetAddresses[index] = sourceInetAddress;
+                sourceHostnames[index] = sourceHostname;
+                paths[index] = path;
+                timestamps[index] = timestamp;
+                values[index] = value;
+                messages[index] = message;
+                queuedTimes[index] = System.currentTimeMillis();
+                count++;
+                if ( count == 1) {
+                    notEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for updates and move up to DRAIN_BATCH_SIZE of them into batch
+         */
+        void drainTo(Batch batch) throws InterruptedException {
+            try {
+                lock.lock();
+                while ( count == 0) {
+                    notEmpty.await();
+                }
+                int size = Math.min(count, DRAIN_BATCH_SIZE);
+                for ( int loop=0; loop < size; loop++) {
+                    int index = (head + loop) % handlers.length;
+                    batch.handlers[loop] = handlers[index];
+                    batch.sourceInetAddresses[loop] = sourceInetAddresses[index];
+                    batch.sourceHostnames[loop] = sourceHostnames[index];
+                    batch.paths[loop] = paths[index];
+                    batch.timestamps[loop] = timestamps[index];
+                    batch.values[loop] = values[index];
+                    batch.messages[loop] = messages[index];
+                    handlers[index] = null;
+                    sourceInetAddresses[index] = null;
+                    sourceHostnames[index] = null;
+                    paths[index] = null;
+                    messages[index] = null;
+                }
+                batch.size = size;
+                batch.oldestQueuedTime = queuedTimes[head];
+                head = (head + size) % handlers.length;
+                count -= size;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Updates taken from a partition queue by a worker, reused for each batch
+     */
+    private static class Batch {
+        private final IngestionHandler[] handlers = new IngestionHandler[DRAIN_BATCH_SIZE];
+        private final String[] sourceInetAddresses = new String[DRAIN_BATCH_SIZE];
+        private final String[] sourceHostnames = new String[DRAIN_BATCH_SIZE];
+        private final String[] paths = new String[DRAIN_BATCH_SIZE];
+        private final long[] timestamps = new long[DRAIN_BATCH_SIZE];
+        private final double[] values = new double[DRAIN_BATCH_SIZE];
+        private final UdpMessage[] messages = new UdpMessage[DRAIN_BATCH_SIZE];
+        private int size;
+        private long oldestQueuedTime;
+    }
+
+    private class Worker implements Runnable {
+
+        private final Partition partition;
+        private final Batch batch = new Batch();
+
+        public Worker(Partition partition) {
+            this.partition = partition;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    if ( flushScheduler != null) {
+                        flushScheduler.waitForFlushCapacity();
+                    }
+                    partition.drainTo(batch);
+                    partition.latencyValueRecorder.newValue(System.currentTimeMillis() - batch.oldestQueuedTime);
+                    for ( int loop=0; loop < batch.size; loop++) {
+                        process(loop);
+                    }
+                } catch (InterruptedException e) {
+                    logMethods.warn("UdpIngestionWorker interrupted");
+                }
+            }
+        }
+
+        private void process(int index) {
+            try {
+                if ( batch.messages[index] != null) {
+                    batch.handlers[index].processMessage(batch.messages[index]);
+                } else {
+                    batch.handlers[index].processValue(
+                        batch.sourceInetAddresses[index],
+                        batch.sourceHostnames[index],
+                        batch.paths[index],
+                        batch.timestamps[index],
+                        batch.values[index]
+                    );
+                }
+            } catch (Throwable t) {
+                logMethods.error("Failed to process UDP update for series " + batch.paths[index], t);
+            } finally {
+                batch.handlers[index] = null;
+                batch.messages[index] = null;
+            }
+        }
+    }
+}
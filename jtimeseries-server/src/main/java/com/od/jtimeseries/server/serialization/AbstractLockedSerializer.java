@@ -2,9 +2,14 @@ package com.od.jtimeseries.server.serialization;
 
 import com.od.jtimeseries.source.Counter;
 import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -14,6 +19,11 @@ import java.io.File;
  */
 public abstract class AbstractLockedSerializer implements TimeSeriesSerializer {
 
+    private static final LogMethods logMethods = LogUtils.getLogMethods(AbstractLockedSerializer.class);
+
+    //for testing, where we create dozens of serializers
+    private static boolean shutdownHandlingDisabled;
+
     protected static volatile Counter fileAppendCounter = new DefaultCounter("dummyCounter", "");
     protected static volatile Counter fileRewriteCounter = new DefaultCounter("dummyCounter", "");
     protected static volatile Counter fileReadCounter = new DefaultCounter("dummyCounter", "");
@@ -60,6 +70,34 @@ public abstract class AbstractLockedSerializer implements TimeSeriesSerializer {
         AbstractLockedSerializer.fileBytesRead = fileBytesReadCounter;
     }
 
+    public static void setShutdownHandlingDisabled(boolean shutdownHandlingDisabled) {
+        AbstractLockedSerializer.shutdownHandlingDisabled = shutdownHandlingDisabled;
+    }
+
+    //this should ensure no files are corrupted on linux shutdown - although it most likely won't work on Windows, becuase of lack
+    //of support for SIGTERM etc. Still, I have yet to see a corrupted file on either!
+    protected void addShutdownHook() {
+        if ( ! shutdownHandlingDisabled) {
+            Runtime.getRuntime().addShutdownHook( new Thread() {
+                public void run() {
+                    logMethods.info("Shutdown Starting");
+                    shutdownNow();
+                    try {
+                        Thread.sleep(250); //just in the hope that 250ms is enough for that log statement to make it into the logs
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    logMethods.info("Shutdown complete");
+                }
+            });
+        }
+    }
+
+    /**
+     * Prevent further writes, called from the shutdown hook
+     */
+    protected abstract void shutdownNow();
+
     /**
      * Serialize the series to the file, and update the fileHeader
      */
@@ -79,17 +117,36 @@ public abstract class AbstractLockedSerializer implements TimeSeriesSerializer {
 
     protected abstract void doWriteSeries(FileHeader fileHeader, RoundRobinTimeSeries t) throws SerializationException;
 
+    public double getBytesPerItem(FileHeader header) {
+        return SerializerOperations.getBytesPerItem(header);
+    }
+
     public RoundRobinTimeSeries readSeries(FileHeader fileHeader) throws SerializationException {
+        return readSeries(fileHeader, SeriesStorage.OBJECTS);
+    }
+
+    public RoundRobinTimeSeries readSeries(FileHeader fileHeader, SeriesStorage storage) throws SerializationException {
         try {
             fileHeader.writeLock().lock();
-            return doReadSeries(fileHeader);
+            return doReadSeries(fileHeader, storage);
         } finally {
             fileHeader.writeLock().unlock();
         }
 
     }
 
-    protected abstract RoundRobinTimeSeries doReadSeries(FileHeader fileHeader) throws SerializationException;
+    protected abstract RoundRobinTimeSeries doReadSeries(FileHeader fileHeader, SeriesStorage storage) throws SerializationException;
+
+    public List<TimeSeriesItem> readItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems) throws SerializationException {
+        try {
+            fileHeader.writeLock().lock();
+            return doReadItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems);
+        } finally {
+            fileHeader.writeLock().unlock();
+        }
+    }
+
+    protected abstract List<TimeSeriesItem> doReadItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems) throws SerializationException;
 
     public FileHeader readHeader(File f) throws SerializationException {
         synchronized (readWriteLock) {
@@ -99,6 +156,13 @@ public abstract class AbstractLockedSerializer implements TimeSeriesSerializer {
 
     protected abstract FileHeader doReadHeader(File f) throws SerializationException;
 
+    /**
+     * Subclasses which can read a header without the serializer lock override this
+     */
+    public FileHeader readHeaderForLoad(File f) throws SerializationException {
+        return readHeader(f);
+    }
+
     public boolean fileExists(FileHeader fileHeader) {
         synchronized (readWriteLock) {
             return doFileExists(fileHeader);
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.source.Counter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A positionable view onto a series file which keeps a count of bytes read and written,
+ * these are added to the counters when the channel is closed
+ */
+public abstract class AuditedChannel {
+
+    private Counter bytesWrittenValueRecorder;
+    private Counter bytesReadValueRecorder;
+    protected int bytesRead;
+    protected int bytesWritten;
+
+    protected AuditedChannel(Counter bytesWrittenValueRecorder, Counter bytesReadValueRecorder) {
+        this.bytesWrittenValueRecorder = bytesWrittenValueRecorder;
+        this.bytesReadValueRecorder = bytesReadValueRecorder;
+    }
+
+    /**
+     * Write the entire ByteBuffer to channel and set ByteBuffer position back to zero
+     */
+    public abstract void writeCompletely(ByteBuffer b) throws IOException;
+
+    /**
+     * Populate the entire ByteBuffer from channel, and set ByteBuffer position back to zero
+     */
+    public abstract void readCompletely(ByteBuffer b) throws IOException;
+
+    /**
+     * @return a ByteBuffer at position zero containing the next length bytes from the channel
+     * The buffer may wrap the referenced array, or may be a view directly onto the underlying storage, in either case it is
+     * only valid until the next operation on this channel
+     */
+    public abstract ByteBuffer read(AtomicReference<byte[]> arrayToWrap, int length) throws IOException;
+
+    public abstract long size() throws IOException;
+
+    public abstract long position() throws IOException;
+
+    public abstract void position(int position) throws IOException;
+
+    public void close() throws IOException {
+        bytesWrittenValueRecorder.incrementCount(bytesWritten);
+        bytesReadValueRecorder.incrementCount(bytesRead);
+    }
+}
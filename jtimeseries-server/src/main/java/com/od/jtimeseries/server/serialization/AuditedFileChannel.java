@@ -5,6 +5,7 @@ import com.od.jtimeseries.source.Counter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by IntelliJ IDEA.
@@ -14,18 +15,13 @@ import java.nio.channels.FileChannel;
  *
  * A wrapper around FileChannel which records number of bytes written and read from the channel
  */
-public class AuditedFileChannel {
+public class AuditedFileChannel extends AuditedChannel {
 
     private FileChannel channel;
-    private Counter bytesWrittenValueRecorder;
-    private Counter bytesReadValueRecorder;
-    private int bytesRead;
-    private int bytesWritten;
 
     public AuditedFileChannel(FileChannel channel, Counter bytesWrittenValueRecorder, Counter bytesReadValueRecorder) {
+        super(bytesWrittenValueRecorder, bytesReadValueRecorder);
         this.channel = channel;
-        this.bytesWrittenValueRecorder = bytesWrittenValueRecorder;
-        this.bytesReadValueRecorder = bytesReadValueRecorder;
     }
 
     /**
@@ -62,9 +58,14 @@ public class AuditedFileChannel {
         b.position(0);
     }
 
+    public ByteBuffer read(AtomicReference<byte[]> arrayToWrap, int length) throws IOException {
+        ByteBuffer b = SerializerOperations.getByteBuffer(arrayToWrap, length);
+        readCompletely(b);
+        return b;
+    }
+
     public void close() throws IOException {
-        bytesWrittenValueRecorder.incrementCount(bytesWritten);
-        bytesReadValueRecorder.incrementCount(bytesRead);
+        super.close();
         channel.close();
     }
 
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.source.Counter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An AuditedChannel which reads and writes directly to a memory mapped series file
+ *
+ * The mapping is owned by the MappedFilePool, closing this channel does not unmap the file
+ */
+class AuditedMappedChannel extends AuditedChannel {
+
+    private final MappedByteBuffer mapping;
+    private int position;
+
+    public AuditedMappedChannel(MappedByteBuffer mapping, Counter bytesWrittenValueRecorder, Counter bytesReadValueRecorder) {
+        super(bytesWrittenValueRecorder, bytesReadValueRecorder);
+        this.mapping = mapping;
+    }
+
+    public void writeCompletely(ByteBuffer b) throws IOException {
+        checkRemaining(b.limit());
+        b.position(0);
+        mapping.position(position);
+        mapping.put(b);
+        position += b.limit();
+        bytesWritten += b.limit();
+        b.position(0);
+    }
+
+    public void readCompletely(ByteBuffer b) throws IOException {
+        checkRemaining(b.limit());
+        b.position(0);
+        b.put(getView(b.limit()));
+        position += b.limit();
+        bytesRead += b.limit();
+        b.position(0);
+    }
+
+    /**
+     * @return a view directly onto the mapped bytes, no copy is made
+     */
+    public ByteBuffer read(AtomicReference<byte[]> arrayToWrap, int length) throws IOException {
+        checkRemaining(length);
+        ByteBuffer b = getView(length);
+        position += length;
+        bytesRead += length;
+        return b;
+    }
+
+    private ByteBuffer getView(int length) {
+        mapping.limit(position + length);
+        mapping.position(position);
+        ByteBuffer result = mapping.slice();
+        mapping.clear();
+        return result;
+    }
+
+    private void checkRemaining(int length) throws IOException {
+        if ( position + length > mapping.capacity()) {
+            throw new IOException("Cannot access " + length + " bytes at position " + position + ", mapped file size is " + mapping.capacity());
+        }
+    }
+
+    public long size() throws IOException {
+        return mapping.capacity();
+    }
+
+    public long position() throws IOException {
+        return position;
+    }
+
+    public void position(int position) throws IOException {
+        this.position = position;
+    }
+}
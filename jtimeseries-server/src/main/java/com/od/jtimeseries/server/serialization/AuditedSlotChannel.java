@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.source.Counter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An AuditedChannel onto the slot within a segment file which holds one series, positions are relative to the
+ * start of the slot, and the size of the channel is the slot capacity
+ *
+ * Reads and writes use absolute positions on the segment FileChannel, which is shared by all the slots in the segment.
+ * The segment channel is owned by the SegmentedSerializer, closing this channel does not close it
+ */
+class AuditedSlotChannel extends AuditedChannel {
+
+    private final FileChannel segmentChannel;
+    private final long slotOffset;
+    private final int capacity;
+    private int position;
+
+    public AuditedSlotChannel(FileChannel segmentChannel, long slotOffset, int capacity, Counter bytesWrittenValueRecorder, Counter bytesReadValueRecorder) {
+        super(bytesWrittenValueRecorder, bytesReadValueRecorder);
+        this.segmentChannel = segmentChannel;
+        this.slotOffset = slotOffset;
+        this.capacity = capacity;
+    }
+
+    public void writeCompletely(ByteBuffer b) throws IOException {
+        checkRemaining(b.limit());
+        b.position(0);
+        while (b.hasRemaining()) {
+            segmentChannel.write(b, slotOffset + position + b.position());
+        }
+        position += b.limit();
+        bytesWritten += b.limit();
+        b.position(0);
+    }
+
+    public void readCompletely(ByteBuffer b) throws IOException {
+        checkRemaining(b.limit());
+        b.position(0);
+        int nread;
+        do {
+            nread = segmentChannel.read(b, slotOffset + position + b.position());
+        } while (nread != -1 && b.hasRemaining());
+
+        bytesRead += b.position();
+        if ( b.position() != b.limit()) {
+            throw new IOException("Failed to read whole ByteBuffer from segment file");
+        }
+        position += b.limit();
+        b.position(0);
+    }
+
+    public ByteBuffer read(AtomicReference<byte[]> arrayToWrap, int length) throws IOException {
+        ByteBuffer b = SerializerOperations.getByteBuffer(arrayToWrap, length);
+        readCompletely(b);
+        return b;
+    }
+
+    private void checkRemaining(int length) throws IOException {
+        if ( position + length > capacity) {
+            throw new IOException("Cannot access " + length + " bytes at position " + position + ", slot capacity is " + capacity);
+        }
+    }
+
+    public long size() throws IOException {
+        return capacity;
+    }
+
+    public long position() throws IOException {
+        return position;
+    }
+
+    public void position(int position) throws IOException {
+        this.position = position;
+    }
+}
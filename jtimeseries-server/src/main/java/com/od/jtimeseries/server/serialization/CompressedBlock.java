@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size block of compressed time series items, for the TSVERSION002 file format
+ *
+ * Timestamps are stored as a delta of the previous delta, using a variable length encoding, so a series which
+ * ticks at a regular interval costs one bit per timestamp. Values are stored as the XOR of the previous value's bits,
+ * storing only the meaningful bits between the leading and trailing zeros, and reusing the previous
+ * leading/trailing window where possible. This is the scheme described in Facebook's Gorilla paper.
+ *
+ * The block header holds the encoder state after the last item was written, so that further items can be appended to the
+ * block after reading only the block header from disk:
+ *
+ * 0    int     item count
+ * 4    int     bit length of the encoded data
+ * 8    long    last timestamp
+ * 16   long    last timestamp delta
+ * 24   long    last value bits
+ * 32   byte    leading zeros of last XOR window, -1 if none
+ * 33   byte    trailing zeros of last XOR window
+ * 34   byte    last partial byte of encoded data
+ * 35   unused
+ * 40   start of encoded data
+ */
+class CompressedBlock {
+
+    static final int HEADER_LENGTH = 40;
+
+    //worst case bits to encode an item, 69 bits for timestamp, 77 for value
+    static final int MAX_BITS_PER_ITEM = 146;
+
+    private final byte[] bytes;
+    private int itemCount;
+    private int bitLength;
+    private long lastTimestamp;
+    private long lastDelta;
+    private long lastValueBits;
+    private int leadingZeros = -1;
+    private int trailingZeros;
+
+    //data bytes from this index need to be written to persist the block
+    private int firstDirtyByte;
+
+    CompressedBlock(int blockSize) {
+        bytes = new byte[blockSize];
+    }
+
+    static int getDataBytes(int blockSize) {
+        return blockSize - HEADER_LENGTH;
+    }
+
+    /**
+     * Reset to an empty block
+     */
+    void clear() {
+        itemCount = 0;
+        bitLength = 0;
+        lastTimestamp = 0;
+        lastDelta = 0;
+        lastValueBits = 0;
+        leadingZeros = -1;
+        trailingZeros = 0;
+        firstDirtyByte = 0;
+    }
+
+    /**
+     * Restore the encoder state from a block header, so that items can be appended
+     */
+    void readHeader(ByteBuffer b) {
+        itemCount = b.getInt();
+        bitLength = b.getInt();
+        lastTimestamp = b.getLong();
+        lastDelta = b.getLong();
+        lastValueBits = b.getLong();
+        leadingZeros = b.get();
+        trailingZeros = b.get();
+        byte partialByte = b.get();
+        firstDirtyByte = bitLength >> 3;
+        if ( (bitLength & 7) != 0) {
+            bytes[HEADER_LENGTH + firstDirtyByte] = partialByte;
+        }
+    }
+
+    /**
+     * @return a buffer containing the block header, positioned at zero
+     */
+    ByteBuffer getHeaderBuffer() {
+        ByteBuffer b = ByteBuffer.wrap(bytes, 0, HEADER_LENGTH);
+        b.putInt(itemCount);
+        b.putInt(bitLength);
+        b.putLong(lastTimestamp);
+        b.putLong(lastDelta);
+        b.putLong(lastValueBits);
+        b.put((byte) leadingZeros);
+        b.put((byte) trailingZeros);
+        b.put((bitLength & 7) != 0 ? bytes[HEADER_LENGTH + (bitLength >> 3)] : 0);
+        b.position(0);
+        return b;
+    }
+
+    /**
+     * @return a buffer containing the data bytes changed since the block was read or last marked clean, or null if none
+     */
+    ByteBuffer getDirtyDataBuffer() {
+        int endByte = (bitLength + 7) >> 3;
+        return endByte > firstDirtyByte ?
+            ByteBuffer.wrap(bytes, HEADER_LENGTH + firstDirtyByte, endByte - firstDirtyByte).slice() :
+            null;
+    }
+
+    int getFirstDirtyByteOffset() {
+        return HEADER_LENGTH + firstDirtyByte;
+    }
+
+    void markClean() {
+        firstDirtyByte = bitLength >> 3;
+    }
+
+    boolean hasCapacity() {
+        return bitLength + MAX_BITS_PER_ITEM <= getDataBytes(bytes.length) * 8;
+    }
+
+    int getItemCount() {
+        return itemCount;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    void addItem(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if ( itemCount == 0) {
+            writeBits(timestamp, 64);
+            writeBits(valueBits, 64);
+            lastDelta = 0;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeTimestampDelta(delta - lastDelta);
+            writeValueXor(valueBits ^ lastValueBits);
+            lastDelta = delta;
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        itemCount++;
+    }
+
+    private void writeTimestampDelta(long deltaOfDelta) {
+        if ( deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if ( deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0x2, 2);
+            writeBits(deltaOfDelta + 63, 7);
+        } else if ( deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0x6, 3);
+            writeBits(deltaOfDelta + 255, 9);
+        } else if ( deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0xE, 4);
+            writeBits(deltaOfDelta + 2047, 12);
+        } else if ( deltaOfDelta >= Integer.MIN_VALUE && deltaOfDelta <= Integer.MAX_VALUE) {
+            writeBits(0x1E, 5);
+            writeBits(deltaOfDelta, 32);
+        } else {
+            writeBits(0x1F, 5);
+            writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeValueXor(long xor) {
+        if ( xor == 0) {
+            writeBits(0, 1);
+        } else {
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if ( leadingZeros != -1 && leading >= leadingZeros && trailing >= trailingZeros) {
+                //meaningful bits fit within the previous window
+                writeBits(0x2, 2);
+                writeBits(xor >>> trailingZeros, 64 - leadingZeros - trailingZeros);
+            } else {
+                int meaningfulBits = 64 - leading - trailing;
+                writeBits(0x3, 2);
+                writeBits(leading, 5);
+                writeBits(meaningfulBits - 1, 6);
+                writeBits(xor >>> trailing, meaningfulBits);
+                leadingZeros = leading;
+                trailingZeros = trailing;
+            }
+        }
+    }
+
+    //write the lowest bitCount bits of value, most significant bit first
+    private void writeBits(long value, int bitCount) {
+        while ( bitCount > 0) {
+            int index = HEADER_LENGTH + (bitLength >> 3);
+            int bitOffset = bitLength & 7;
+            if ( bitOffset == 0) {
+                bytes[index] = 0;
+            }
+            int free = 8 - bitOffset;
+            int toWrite = Math.min(free, bitCount);
+            int bits = (int)(value >>> (bitCount - toWrite)) & ((1 << toWrite) - 1);
+            bytes[index] |= bits << (free - toWrite);
+            bitLength += toWrite;
+            bitCount -= toWrite;
+        }
+    }
+
+    /**
+     * Reads the items from a block, b should be positioned at the start of the block
+     */
+    static class Reader {
+
+        private ByteBuffer b;
+        private int dataStart;
+        private int itemCount;
+        private int itemsRead;
+        private int bitPosition;
+        private long timestamp;
+        private long delta;
+        private long valueBits;
+        private int leadingZeros;
+        private int trailingZeros;
+
+        Reader(ByteBuffer b) {
+            this.b = b;
+            int blockStart = b.position();
+            this.itemCount = b.getInt(blockStart);
+            this.dataStart = blockStart + HEADER_LENGTH;
+        }
+
+        int getItemCount() {
+            return itemCount;
+        }
+
+        boolean hasNext() {
+            return itemsRead < itemCount;
+        }
+
+        /**
+         * Decode the next item, the timestamp and value are then available from getTimestamp() and getValue()
+         */
+        void next() {
+            if ( itemsRead == 0) {
+                timestamp = readBits(64);
+                valueBits = readBits(64);
+            } else {
+                delta += readTimestampDelta();
+                timestamp += delta;
+                readValue();
+            }
+            itemsRead++;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        double getValue() {
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        private long readTimestampDelta() {
+            long result;
+            if ( readBits(1) == 0) {
+                result = 0;
+            } else if ( readBits(1) == 0) {
+                result = readBits(7) - 63;
+            } else if ( readBits(1) == 0) {
+                result = readBits(9) - 255;
+            } else if ( readBits(1) == 0) {
+                result = readBits(12) - 2047;
+            } else if ( readBits(1) == 0) {
+                result = (int)readBits(32);
+            } else {
+                result = readBits(64);
+            }
+            return result;
+        }
+
+        private void readValue() {
+            if ( readBits(1) != 0) {
+                if ( readBits(1) != 0) {
+                    leadingZeros = (int)readBits(5);
+                    int meaningfulBits = (int)readBits(6) + 1;
+                    trailingZeros = 64 - leadingZeros - meaningfulBits;
+                }
+                long xor = readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+                valueBits ^= xor;
+            }
+        }
+
+        private long readBits(int bitCount) {
+            long result = 0;
+            while ( bitCount > 0) {
+                int current = b.get(dataStart + (bitPosition >> 3)) & 0xFF;
+                int bitOffset = bitPosition & 7;
+                int available = 8 - bitOffset;
+                int toRead = Math.min(available, bitCount);
+                int bits = (current >>> (available - toRead)) & ((1 << toRead) - 1);
+                result = (result << toRead) | bits;
+                bitPosition += toRead;
+                bitCount -= toRead;
+            }
+            return result;
+        }
+    }
+}
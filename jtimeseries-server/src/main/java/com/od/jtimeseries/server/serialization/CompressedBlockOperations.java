@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads and writes the body of a TSVERSION002 series file
+ *
+ * The header layout is the same as TSVERSION001, but the body is a ring of fixed size CompressedBlock rather than a
+ * ring of 16 byte items. For these files the header currentHead and currentTail are the indexes of the oldest and the
+ * newest block. The newest block is the one which is open for appends. The block size, block count and number of
+ * stored items are held in the first three of the header ints which are undefined for TSVERSION001.
+ *
+ * The block count is the number of blocks in the ring, and the file holds only these blocks. The ring starts with a
+ * single block and grows by a block at a time while appends fill it. The oldest block is dropped as soon as the
+ * remaining blocks hold at least seriesMaxLength items, after which the newest block wraps round into the space it
+ * freed, so the ring stops growing at the blocks needed to hold seriesMaxLength items as they compress. If later items
+ * compress less well, the ring is extended by moving the blocks from the head onwards up by one block.
+ *
+ * The ring never grows beyond the blocks needed to hold seriesMaxLength uncompressed items, so these files never take
+ * up more space than the TSVERSION001 equivalent. Only for pathological series which compress worse than 16 bytes per
+ * item might we have to drop the oldest block before the rest hold seriesMaxLength items.
+ */
+class CompressedBlockOperations {
+
+    static final String VERSION_STRING = "TSVERSION002";
+    static final int BLOCK_SIZE = 1024;
+
+    //offset of the block size, block count and item count fields in the header
+    static final int FORMAT_FIELDS_OFFSET = SerializerOperations.HEADER_SECTION_2_OFFSET + 20;
+
+    static final AtomicReference<byte[]> blockArray = new AtomicReference<byte[]>();
+
+    private final CompressedBlock block = new CompressedBlock(BLOCK_SIZE);
+
+    /**
+     * @return the largest number of blocks the ring may grow to, enough to hold seriesMaxLength uncompressed items
+     */
+    static int getMaxBlockCount(int seriesMaxLength, int blockSize) {
+        int dataBytes = CompressedBlock.getDataBytes(blockSize);
+        return ((seriesMaxLength * 16) + dataBytes - 1) / dataBytes + 1;
+    }
+
+    static long getBodyLength(FileHeader header) {
+        return (long)header.getBlockCount() * header.getBlockSize();
+    }
+
+    /**
+     * @return the largest the body may become when itemsToAppend are appended, assuming they compress as badly as possible
+     */
+    static long getBodyLength(FileHeader header, int itemsToAppend) {
+        int blockBits = CompressedBlock.getDataBytes(header.getBlockSize()) * 8;
+        int itemsPerBlock = Math.max(1, blockBits / CompressedBlock.MAX_BITS_PER_ITEM);
+        long bodyLength = (long)(header.getBlockCount() + (itemsToAppend + itemsPerBlock - 1) / itemsPerBlock) * header.getBlockSize();
+        return Math.min(bodyLength, getMaxBodyLength(header));
+    }
+
+    static long getMaxBodyLength(FileHeader header) {
+        int maxBlockCount = Math.max(header.getBlockCount(), getMaxBlockCount(header.getSeriesMaxLength(), header.getBlockSize()));
+        return (long)maxBlockCount * header.getBlockSize();
+    }
+
+    /**
+     * Set the header fields for an empty compressed series
+     */
+    void initializeHeader(FileHeader header, int newHeaderLength, int seriesMaxLength) {
+        header.updateFormatFields(VERSION_STRING, BLOCK_SIZE, 0, 0);
+        header.updateHeaderFields(newHeaderLength, -1, 0, seriesMaxLength, -1);
+    }
+
+    /**
+     * Read all the items stored in the blocks between head and tail, the earliest will be dropped if there are more than the max series length
+     */
+    RoundRobinTimeSeries readBody(FileHeader header, AuditedChannel c, SeriesStorage storage) throws IOException {
+        List<TimeSeriesItem> items = new ArrayList<TimeSeriesItem>(header.getStoredItemCount());
+        int head = header.getCurrentHead();
+        int tail = header.getCurrentTail();
+        if ( head != -1) {
+            if ( tail >= head) {
+                readBlocks(header, head, tail - head + 1, c, items);
+            } else {
+                readBlocks(header, head, header.getBlockCount() - head, c, items);
+                readBlocks(header, 0, tail + 1, c, items);
+            }
+        }
+        return new RoundRobinTimeSeries(items, header.getSeriesMaxLength(), storage);
+    }
+
+    /**
+     * Read the items with timestamps from startTime to endTime inclusive, reading only the blocks which may hold them
+     *
+     * @param itemsToSkip, number of the earliest items in the series to ignore, in addition to those dropped because
+     *                     the blocks hold more than the max series length
+     * @param maxItems, maximum number of items to return
+     */
+    List<TimeSeriesItem> readItemsInRange(FileHeader header, long startTime, long endTime, int itemsToSkip, int maxItems, AuditedChannel c) throws IOException {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>();
+        int head = header.getCurrentHead();
+        if ( head != -1) {
+            int blockCount = header.getBlockCount();
+            int blocksInUse = ((header.getCurrentTail() - head + blockCount) % blockCount) + 1;
+            int skip = itemsToSkip + Math.max(0, header.getStoredItemCount() - header.getSeriesMaxLength());
+
+            //skip whole blocks from the head while they only contain items to be skipped
+            int firstBlock = 0;
+            while ( skip > 0 && firstBlock < blocksInUse) {
+                int itemCount = readItemCount(header, (head + firstBlock) % blockCount, c);
+                if ( itemCount > skip) {
+                    break;
+                }
+                skip -= itemCount;
+                firstBlock++;
+            }
+
+            //binary search for the first block with a last timestamp at or after startTime, from the block headers
+            int low = firstBlock;
+            int high = blocksInUse;
+            while ( low < high) {
+                int mid = (low + high) >>> 1;
+                if ( readLastTimestamp(header, (head + mid) % blockCount, c) < startTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if ( low > firstBlock) {
+                skip = 0;
+            }
+
+            for ( int loop = low; loop < blocksInUse; loop++) {
+                long start = getBlockOffset(header, (head + loop) % blockCount);
+                c.position((int)start);
+                ByteBuffer b = c.read(blockArray, (int)Math.min(header.getBlockSize(), c.size() - start));
+                CompressedBlock.Reader r = new CompressedBlock.Reader(b);
+                while ( r.hasNext()) {
+                    r.next();
+                    if ( skip > 0) {
+                        skip--;
+                    } else if ( r.getTimestamp() > endTime) {
+                        return result;
+                    } else if ( r.getTimestamp() >= startTime) {
+                        result.add(new Item(r.getTimestamp(), r.getValue()));
+                        if ( result.size() >= maxItems) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    //read a contiguous run of blocks, the last block in the file may not have been written in full
+    private void readBlocks(FileHeader header, int firstBlock, int blocks, AuditedChannel c, List<TimeSeriesItem> items) throws IOException {
+        long start = getBlockOffset(header, firstBlock);
+        int length = (int)Math.min((long)blocks * header.getBlockSize(), c.size() - start);
+        c.position((int)start);
+        ByteBuffer b = c.read(blockArray, length);
+        for ( int loop=0; loop < blocks; loop++) {
+            b.position(loop * header.getBlockSize());
+            CompressedBlock.Reader r = new CompressedBlock.Reader(b);
+            while ( r.hasNext()) {
+                r.next();
+                items.add(new Item(r.getTimestamp(), r.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Append items to the blocks on disk, updating fileHeader in memory with the new head, tail and stored item count
+     */
+    void doAppend(FileHeader header, RoundRobinTimeSeries toAppend, AuditedChannel c) throws IOException {
+        int head = header.getCurrentHead();
+        int tail = header.getCurrentTail();
+        int blockCount = header.getBlockCount();
+        int storedItemCount = header.getStoredItemCount();
+        int seriesMaxLength = header.getSeriesMaxLength();
+        int maxBlockCount = Math.max(blockCount, getMaxBlockCount(seriesMaxLength, header.getBlockSize()));
+
+        if ( head == -1) {
+            head = 0;
+            tail = 0;
+            blockCount = Math.max(blockCount, 1);
+            block.clear();
+        } else {
+            c.position((int)getBlockOffset(header, tail));
+            block.readHeader(c.read(blockArray, CompressedBlock.HEADER_LENGTH));
+        }
+
+        long lastTimestamp = header.getMostRecentItemTimestamp();
+        for ( TimeSeriesItem i : toAppend) {
+            if ( ! block.hasCapacity()) {
+                writeBlock(header, tail, c);
+                int next = tail + 1;
+                if ( next == blockCount) {
+                    //the tail is the last block in the file, wrap round if the head has moved on, otherwise grow the ring
+                    if ( head > 0 || blockCount == maxBlockCount) {
+                        next = 0;
+                    } else {
+                        blockCount++;
+                    }
+                }
+                if ( next == head) {
+                    int headItems = readItemCount(header, head, c);
+                    if ( blockCount < maxBlockCount && storedItemCount - headItems < seriesMaxLength) {
+                        //the ring is full but would not hold enough items without the oldest block, make room for one more
+                        moveBlocksUp(header, head, blockCount, c);
+                        head++;
+                        blockCount++;
+                    } else {
+                        //ring is full, we have to lose the oldest block
+                        storedItemCount -= headItems;
+                        head = (head + 1) % blockCount;
+                    }
+                }
+                tail = next;
+                block.clear();
+            }
+            block.addItem(i.getTimestamp(), i.getValue().doubleValue());
+            storedItemCount++;
+            lastTimestamp = i.getTimestamp();
+        }
+        writeBlock(header, tail, c);
+
+        //drop the oldest blocks while the rest still hold enough items to fill the series
+        while ( head != tail) {
+            int headItems = readItemCount(header, head, c);
+            if ( storedItemCount - headItems >= seriesMaxLength) {
+                storedItemCount -= headItems;
+                head = (head + 1) % blockCount;
+            } else {
+                break;
+            }
+        }
+
+        header.updateFormatFields(VERSION_STRING, header.getBlockSize(), blockCount, storedItemCount);
+        header.updateHeaderFields(header.getHeaderLength(), head, tail, seriesMaxLength, lastTimestamp);
+    }
+
+    /**
+     * Write the block count, block size and item count fields of the header
+     */
+    void writeFormatFields(FileHeader header, AuditedChannel c) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(12);
+        b.putInt(header.getBlockSize());
+        b.putInt(header.getBlockCount());
+        b.putInt(header.getStoredItemCount());
+        c.position(FORMAT_FIELDS_OFFSET);
+        c.writeCompletely(b);
+    }
+
+    //move the blocks from firstBlock to the end of the ring up by one block, leaving firstBlock free
+    //the last block in the file may not have been written in full
+    private void moveBlocksUp(FileHeader header, int firstBlock, int blockCount, AuditedChannel c) throws IOException {
+        for ( int loop = blockCount - 1; loop >= firstBlock; loop--) {
+            long start = getBlockOffset(header, loop);
+            c.position((int)start);
+            ByteBuffer b = c.read(blockArray, (int)Math.min(header.getBlockSize(), c.size() - start));
+            c.position((int)getBlockOffset(header, loop + 1));
+            c.writeCompletely(b);
+        }
+    }
+
+    private int readItemCount(FileHeader header, int blockIndex, AuditedChannel c) throws IOException {
+        c.position((int)getBlockOffset(header, blockIndex));
+        return c.read(blockArray, 4).getInt();
+    }
+
+    private long readLastTimestamp(FileHeader header, int blockIndex, AuditedChannel c) throws IOException {
+        c.position((int)getBlockOffset(header, blockIndex) + 8);
+        return c.read(blockArray, 8).getLong();
+    }
+
+    private void writeBlock(FileHeader header, int blockIndex, AuditedChannel c) throws IOException {
+        long blockOffset = getBlockOffset(header, blockIndex);
+        ByteBuffer data = block.getDirtyDataBuffer();
+        if ( data != null) {
+            c.position((int)(blockOffset + block.getFirstDirtyByteOffset()));
+            c.writeCompletely(data);
+        }
+        c.position((int)blockOffset);
+        c.writeCompletely(block.getHeaderBuffer());
+        block.markClean();
+    }
+
+    private long getBlockOffset(FileHeader header, int blockIndex) {
+        return header.getHeaderLength() + ((long)blockIndex * header.getBlockSize());
+    }
+}
@@ -74,6 +74,19 @@ public class FileHeader extends LockingFileHeader {
 
     private volatile long mostRecentItemTimestamp = -1;
 
+    /**
+     * the version of the file format, which determines how the body is stored
+     */
+    private volatile String fileVersion = SerializerOperations.VERSION_STRING;
+
+    /**
+     * for compressed files, the size of each block, the number of blocks in the ring, and the
+     * number of items stored (currentHead and currentTail are block indexes for compressed files)
+     */
+    private volatile int blockSize;
+    private volatile int blockCount;
+    private volatile int storedItemCount;
+
     private SeriesProperties seriesProperties = new SeriesProperties();
 
     public FileHeader() {}
@@ -133,6 +146,9 @@ public class FileHeader extends LockingFileHeader {
     }
 
     protected int doGetCurrentSeriesSize() {
+        if ( isCompressed() ) {
+            return Math.min(storedItemCount, seriesMaxLength);
+        }
         return currentHead == -1 ? 0 :
             currentTail > currentHead ?
                 currentTail - currentHead :
@@ -151,6 +167,26 @@ public class FileHeader extends LockingFileHeader {
         return currentTail;
     }
 
+    protected String doGetFileVersion() {
+        return fileVersion;
+    }
+
+    protected int doGetBlockSize() {
+        return blockSize;
+    }
+
+    protected int doGetBlockCount() {
+        return blockCount;
+    }
+
+    protected int doGetStoredItemCount() {
+        return storedItemCount;
+    }
+
+    public boolean isCompressed() {
+        return CompressedBlockOperations.VERSION_STRING.equals(fileVersion);
+    }
+
     protected String doGetDescription() {
         return seriesProperties.getProperty(DESCRIPTION_KEY);
     }
@@ -189,6 +225,13 @@ public class FileHeader extends LockingFileHeader {
         this.mostRecentItemTimestamp = latestTimestamp;
     }
 
+    void doUpdateFormatFields(String fileVersion, int blockSize, int blockCount, int storedItemCount) {
+        this.fileVersion = fileVersion;
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.storedItemCount = storedItemCount;
+    }
+
     /**
      * Properties class which keeps a changed flag.
      * Can be reset with the current set of properties loaded from file header on disk
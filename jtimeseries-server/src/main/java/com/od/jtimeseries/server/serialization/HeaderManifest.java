@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A single file recording the header of each series file, so that at startup the headers of series which have not
+ * changed since the manifest was written can be restored without opening each series file
+ *
+ * Each entry records the length and last modified time of the series file along with the header. An entry is only
+ * used if the file still has the same length and last modified time, otherwise the header must be read from the file
+ * again. Only series files which exist on the filesystem can be validated, so for storage where the series files are
+ * virtual (e.g. SegmentedSerializer) the manifest is never used
+ *
+ * The manifest keeps the headers put since it was loaded. These must be the headers in use by the loaded series,
+ * which are updated as the series are flushed, so each write() records the current state of each header along with
+ * the current length and last modified time of its file. Series which have since been deleted are dropped
+ */
+public class HeaderManifest {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(HeaderManifest.class);
+
+    private static final String MANIFEST_VERSION = "TSMANIFEST001";
+
+    //a file modified within this time of being recorded might be modified again without its last modified time
+    //changing, on filesystems with a coarse timestamp resolution, so we don't record it
+    private static final long MIN_AGE_TO_RECORD_MILLIS = 2000;
+
+    private final File manifestFile;
+    private final TimeSeriesSerializer timeseriesSerializer;
+    private final Map<String, ManifestEntry> loadedEntries = new HashMap<String, ManifestEntry>();
+    private final Set<FileHeader> headers = new HashSet<FileHeader>();
+
+    public HeaderManifest(File manifestFile, TimeSeriesSerializer timeseriesSerializer) {
+        this.manifestFile = manifestFile;
+        this.timeseriesSerializer = timeseriesSerializer;
+    }
+
+    /**
+     * Load the entries from the manifest file, if the manifest is missing or cannot be read the manifest is empty
+     * and all headers will be read from the series files
+     */
+    public synchronized void load() {
+        loadedEntries.clear();
+        headers.clear();
+        if ( manifestFile.exists()) {
+            try {
+                DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+                try {
+                    String version = is.readUTF();
+                    if ( ! MANIFEST_VERSION.equals(version)) {
+                        throw new IOException("Wrong manifest version, expecting " + MANIFEST_VERSION + " but was " + version);
+                    }
+                    int count = is.readInt();
+                    for ( int loop=0; loop < count; loop++) {
+                        ManifestEntry e = ManifestEntry.read(is);
+                        loadedEntries.put(e.fileName, e);
+                    }
+                } finally {
+                    is.close();
+                }
+            } catch (IOException e) {
+                logMethods.warn("Could not read header manifest " + manifestFile + ", all series headers will be read from file", e);
+                loadedEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * @return a header restored from the manifest, or null if there is no entry for the file or the file has changed
+     */
+    public synchronized FileHeader getHeader(File seriesFile) {
+        FileHeader result = null;
+        ManifestEntry e = loadedEntries.get(seriesFile.getName());
+        if ( e != null && seriesFile.isFile() && seriesFile.length() == e.fileLength && seriesFile.lastModified() == e.lastModified) {
+            try {
+                result = e.createHeader();
+            } catch (IOException ex) {
+                logMethods.warn("Could not restore header for " + seriesFile + " from manifest", ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record the header of a loaded series, which may have been restored from the manifest or read from the series file
+     */
+    public synchronized void putHeader(FileHeader header) {
+        headers.add(header);
+    }
+
+    /**
+     * @return the number of series headers recorded, which will be written to the manifest unless their files have
+     * been deleted or have been modified too recently
+     */
+    public synchronized int getHeaderCount() {
+        return headers.size();
+    }
+
+    /**
+     * Write the current state of the recorded headers to the manifest file, replacing the old manifest
+     * @return the number of entries written
+     */
+    public synchronized int write() throws IOException {
+        List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+        for ( Iterator<FileHeader> i = headers.iterator(); i.hasNext(); ) {
+            FileHeader h = i.next();
+            File seriesFile = getSeriesFile(h);
+            if ( seriesFile == null || ! seriesFile.isFile()) {
+                i.remove();
+            } else {
+                ManifestEntry e = createEntry(seriesFile, h);
+                if ( e != null) {
+                    entries.add(e);
+                }
+            }
+        }
+
+        File tempFile = new File(manifestFile.getParentFile(), manifestFile.getName() + ".tmp");
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            os.writeUTF(MANIFEST_VERSION);
+            os.writeInt(entries.size());
+            for ( ManifestEntry e : entries) {
+                e.write(os);
+            }
+        } finally {
+            os.close();
+        }
+
+        if ( manifestFile.exists() && ! manifestFile.delete()) {
+            throw new IOException("Could not delete old header manifest " + manifestFile);
+        }
+        if ( ! tempFile.renameTo(manifestFile)) {
+            throw new IOException("Could not rename " + tempFile + " to " + manifestFile);
+        }
+        return entries.size();
+    }
+
+    //the series path may have been migrated since the header was recorded, so find the file from the header
+    private File getSeriesFile(FileHeader h) {
+        File result = null;
+        try {
+            result = timeseriesSerializer.getFile(h);
+        } catch (SerializationException e) {
+            logMethods.warn("Could not find series file for header " + h + ", it will not be written to the manifest", e);
+        }
+        return result;
+    }
+
+    //a series file is only written while its header write lock is held, so while we hold the read lock the file
+    //length and last modified time match the header, unless there are property changes still to be written
+    private ManifestEntry createEntry(File seriesFile, FileHeader h) {
+        ManifestEntry result = null;
+        try {
+            h.readLock().lock();
+            long lastModified = seriesFile.lastModified();
+            if ( System.currentTimeMillis() - lastModified > MIN_AGE_TO_RECORD_MILLIS && ! h.isPropertiesRewriteRequired()) {
+                result = new ManifestEntry(seriesFile.getName(), seriesFile.length(), lastModified, h);
+            }
+        } catch (SerializationException e) {
+            logMethods.warn("Could not write header for " + seriesFile + " to manifest", e);
+        } finally {
+            h.readLock().unlock();
+        }
+        return result;
+    }
+
+    private static class ManifestEntry {
+
+        private String fileName;
+        private long fileLength;
+        private long lastModified;
+        private String fileVersion;
+        private int headerLength;
+        private int seriesMaxLength;
+        private int currentHead;
+        private int currentTail;
+        private long mostRecentItemTimestamp;
+        private int blockSize;
+        private int blockCount;
+        private int storedItemCount;
+        private byte[] properties;
+
+        private ManifestEntry() {}
+
+        //the header read lock must be held
+        ManifestEntry(String fileName, long fileLength, long lastModified, FileHeader h) throws SerializationException {
+            this.fileName = fileName;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+            fileVersion = h.getFileVersion();
+            headerLength = h.getHeaderLength();
+            seriesMaxLength = h.getSeriesMaxLength();
+            currentHead = h.getCurrentHead();
+            currentTail = h.getCurrentTail();
+            mostRecentItemTimestamp = h.getMostRecentItemTimestamp();
+            blockSize = h.getBlockSize();
+            blockCount = h.getBlockCount();
+            storedItemCount = h.getStoredItemCount();
+            properties = h.getPropertiesAsByteArray();
+        }
+
+        FileHeader createHeader() throws IOException {
+            FileHeader h = new FileHeader();
+            h.setSeriesProperties(properties);
+            h.updateFormatFields(fileVersion, blockSize, blockCount, storedItemCount);
+            h.updateHeaderFields(headerLength, currentHead, currentTail, seriesMaxLength, mostRecentItemTimestamp);
+            return h;
+        }
+
+        void write(DataOutputStream os) throws IOException {
+            os.writeUTF(fileName);
+            os.writeLong(fileLength);
+            os.writeLong(lastModified);
+            os.writeUTF(fileVersion);
+            os.writeInt(headerLength);
+            os.writeInt(seriesMaxLength);
+            os.writeInt(currentHead);
+            os.writeInt(currentTail);
+            os.writeLong(mostRecentItemTimestamp);
+            os.writeInt(blockSize);
+            os.writeInt(blockCount);
+            os.writeInt(storedItemCount);
+            os.writeInt(properties.length);
+            os.write(properties);
+        }
+
+        static ManifestEntry read(DataInputStream is) throws IOException {
+            ManifestEntry e = new ManifestEntry();
+            e.fileName = is.readUTF();
+            e.fileLength = is.readLong();
+            e.lastModified = is.readLong();
+            e.fileVersion = is.readUTF();
+            e.headerLength = is.readInt();
+            e.seriesMaxLength = is.readInt();
+            e.currentHead = is.readInt();
+            e.currentTail = is.readInt();
+            e.mostRecentItemTimestamp = is.readLong();
+            e.blockSize = is.readInt();
+            e.blockCount = is.readInt();
+            e.storedItemCount = is.readInt();
+            e.properties = new byte[is.readInt()];
+            is.readFully(e.properties);
+            return e;
+        }
+    }
+}
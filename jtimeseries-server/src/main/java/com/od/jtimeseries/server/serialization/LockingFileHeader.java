@@ -221,6 +221,74 @@ public abstract class LockingFileHeader {
     protected abstract boolean doIsPropertiesRewriteRequired();
 
 
+    /**
+     * @return the version string of the file format, which determines how the series body is stored
+     */
+    public String getFileVersion() {
+        try {
+            headerLock.readLock().lock();
+            return doGetFileVersion();
+        } finally {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    protected abstract String doGetFileVersion();
+
+    /**
+     * @return size in bytes of each block in a compressed series body
+     */
+    public int getBlockSize() {
+        try {
+            headerLock.readLock().lock();
+            return doGetBlockSize();
+        } finally {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    protected abstract int doGetBlockSize();
+
+    /**
+     * @return number of blocks in the ring of a compressed series body
+     */
+    public int getBlockCount() {
+        try {
+            headerLock.readLock().lock();
+            return doGetBlockCount();
+        } finally {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    protected abstract int doGetBlockCount();
+
+    /**
+     * @return number of items stored in a compressed series body, which may exceed the series max length
+     */
+    public int getStoredItemCount() {
+        try {
+            headerLock.readLock().lock();
+            return doGetStoredItemCount();
+        } finally {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    protected abstract int doGetStoredItemCount();
+
+    //update the file version and the fields which describe a compressed body, should only be called from the serializer
+    void updateFormatFields(String fileVersion, int blockSize, int blockCount, int storedItemCount) {
+        try {
+            headerLock.writeLock().lock();
+            doUpdateFormatFields(fileVersion, blockSize, blockCount, storedItemCount);
+        } finally {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    abstract void doUpdateFormatFields(String fileVersion, int blockSize, int blockCount, int storedItemCount);
+
     //update header fields to match the filesystem header, should only be called from RoundRobinSerializer
     void updateHeaderFields(int newHeaderLength, int head, int tail, int seriesMaxLength, long latestTimestamp) {
         try {
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds a memory mapping for each recently used series file, so that each ring file is mapped once and reused
+ * across appends and reads.
+ *
+ * The pool is bounded by the total mapped bytes rather than the file count, the least recently used mappings are
+ * released when the bound is exceeded. This keeps the number of live mappings well under vm.max_map_count when there
+ * are tens of thousands of series.
+ *
+ * Mappings are created READ_WRITE at the size the serializer requires, which will extend the file on disk if
+ * necessary. For uncompressed files this is the full ring size (header plus maxSeriesLength items), so these always
+ * occupy their maximum size, compressed files are mapped with room for their ring of blocks to grow a little
+ *
+ * Released mappings are not unmapped explicitly, a reader or writer may still hold a view onto the buffer, and
+ * accessing an unmapped buffer would crash the JVM. The mapping is unmapped when the buffer is garbage collected, so
+ * the pool bounds the mappings held for reuse, and the live mappings can briefly exceed this until gc runs
+ */
+public class MappedFilePool {
+
+    private final long maxMappedBytes;
+    private long mappedBytes;
+
+    private final LinkedHashMap<File, MappedByteBuffer> mappings = new LinkedHashMap<File, MappedByteBuffer>(256, 0.75f, true);
+
+    public MappedFilePool(long maxMappedBytes) {
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * @return a mapping for the file which is at least requiredSize bytes, or the current file size if that is larger
+     */
+    public synchronized MappedByteBuffer getMapping(File f, long requiredSize) throws IOException {
+        MappedByteBuffer result = mappings.get(f);
+        if ( result == null || result.capacity() < requiredSize) {
+            release(f);
+            result = map(f, requiredSize);
+            mappings.put(f, result);
+            mappedBytes += result.capacity();
+            evictLeastRecentlyUsed(f);
+        }
+        return result;
+    }
+
+    /**
+     * Release the mapping for the file if it is mapped, this must be called whenever the file is to be renamed, deleted or rewritten to a
+     * different size
+     */
+    public synchronized void release(File f) {
+        MappedByteBuffer b = mappings.remove(f);
+        if ( b != null) {
+            removeMappedBytes(b);
+        }
+    }
+
+    public synchronized void releaseAll() {
+        for ( MappedByteBuffer b : mappings.values()) {
+            removeMappedBytes(b);
+        }
+        mappings.clear();
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    public synchronized int getMappedFileCount() {
+        return mappings.size();
+    }
+
+    private MappedByteBuffer map(File f, long requiredSize) throws IOException {
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel c = r.getChannel();
+            long size = Math.max(requiredSize, c.size());
+            return c.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            //the mapping remains valid after the file is closed
+            r.close();
+        }
+    }
+
+    //never evict the file we just mapped, even if it alone exceeds the max bytes
+    private void evictLeastRecentlyUsed(File justMapped) {
+        Iterator<Map.Entry<File, MappedByteBuffer>> i = mappings.entrySet().iterator();
+        while ( mappedBytes > maxMappedBytes && i.hasNext()) {
+            Map.Entry<File, MappedByteBuffer> e = i.next();
+            if ( ! e.getKey().equals(justMapped)) {
+                i.remove();
+                removeMappedBytes(e.getValue());
+            }
+        }
+    }
+
+    //the buffer is unmapped once gc finds no channel still refers to it
+    private void removeMappedBytes(MappedByteBuffer b) {
+        mappedBytes -= b.capacity();
+    }
+}
@@ -18,15 +18,21 @@
  */
 package com.od.jtimeseries.server.serialization;
 
+import com.od.jtimeseries.server.util.FileReaper;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -46,21 +52,40 @@ import java.net.URLEncoder;
  * In addition to FileHeader locking there is currently a RoundRobinSerializer internal lock for both read and write operations
  * In theory, per file locking might be sufficient, but the locking would need to be strengthened to guarantee a
  * max of one FileHeader instance per series on disk
+ *
+ * In memory mapped mode, series reads and appends go through a mapping held by a MappedFilePool, rather than opening a
+ * RandomAccessFile for each operation. Whole file rewrites and header reads still use a FileChannel, the mapping for the
+ * file is released whenever it is rewritten or moved
  */
 public class RoundRobinSerializer extends AbstractLockedSerializer {
 
     private static final LogMethods logMethods = LogUtils.getLogMethods(RoundRobinSerializer.class);    
 
-    //for testing, where we create dozens of serializers
-    private static boolean shutdownHandlingDisabled;
+    //largest append to a memory mapped compressed file in one go
+    private static final int MAPPED_APPEND_ITEMS = 256;
 
     private final File rootDirectory;
     private final String timeSeriesFileSuffix;
     private SerializerOperations serializerOperations = new SerializerOperations();
 
+    //null unless we are running in memory mapped mode
+    private final MappedFilePool mappedFilePool;
+
+    //format for new files and rewrites, existing files in another format are migrated on their next append
+    private volatile String fileVersion = SerializerOperations.VERSION_STRING;
+
     public RoundRobinSerializer(File rootDirectory, String timeSeriesFileSuffix) {
+        this(rootDirectory, timeSeriesFileSuffix, false, 0);
+    }
+
+    /**
+     * @param memoryMapped, true if series files should be memory mapped for reads and appends
+     * @param maxMappedMb, the maximum total size of mapped files, least recently used mappings are released above this
+     */
+    public RoundRobinSerializer(File rootDirectory, String timeSeriesFileSuffix, boolean memoryMapped, int maxMappedMb) {
         this.rootDirectory = rootDirectory;
         this.timeSeriesFileSuffix = timeSeriesFileSuffix;
+        this.mappedFilePool = memoryMapped ? new MappedFilePool(maxMappedMb * 1024L * 1024L) : null;
         checkRootDirectory(rootDirectory);
         addShutdownHook();
     }
@@ -76,11 +101,7 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         fileRewriteCounter.incrementCount();
         byte[] properties = fileHeader.getPropertiesAsByteArray();
         int newHeaderLength = getNewHeaderLength(fileHeader, properties);
-
-        //head == -1 is a special convention to indicate the time series is empty
-        int head = t.size() == 0 ? -1 : 0;
-        int tail = t.size();
-        fileHeader.updateHeaderFields(newHeaderLength, head, tail, t.getMaxSize(), t.getLatestTimestamp());
+        serializerOperations.initializeHeader(fileHeader, fileVersion, newHeaderLength, t);
 
         File f = getFile(fileHeader);
         AuditedFileChannel b = null;
@@ -93,8 +114,13 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
                     fileBytesRead
             );
 
+            releaseMapping(f);
             serializerOperations.writeHeader(fileHeader, properties, b);
-            serializerOperations.writeBody(t, b);
+            serializerOperations.writeBody(fileHeader, t, b);
+            if ( fileHeader.isCompressed()) {
+                //the ring of blocks starts again from one block, so a file rewritten in the compressed format may shrink
+                r.setLength(fileHeader.getHeaderLength() + SerializerOperations.getBodyLength(fileHeader));
+            }
         } catch (Throwable e) {
             logMethods.error("Failed to write time series file " + f);
             fileErrorCounter.incrementCount();
@@ -104,17 +130,21 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         }
     }
 
-    protected RoundRobinTimeSeries doReadSeries(FileHeader fileHeader) throws SerializationException {
+    protected RoundRobinTimeSeries doReadSeries(FileHeader fileHeader, SeriesStorage storage) throws SerializationException {
         fileReadCounter.incrementCount();
         synchronized (readWriteLock) {
             File f = getFile(fileHeader);
             RandomAccessFile r = null;
-            AuditedFileChannel c = null;
+            AuditedChannel c = null;
             try {
-                r = new RandomAccessFile(f, "r");
-                c = new AuditedFileChannel(r.getChannel(), fileBytesWritten, fileBytesRead);
+                if ( isMemoryMapped()) {
+                    c = createMappedChannel(f, fileHeader, 0);
+                } else {
+                    r = new RandomAccessFile(f, "r");
+                    c = new AuditedFileChannel(r.getChannel(), fileBytesWritten, fileBytesRead);
+                }
                 serializerOperations.readHeader(fileHeader, c);
-                return serializerOperations.readBody(fileHeader, c);
+                return serializerOperations.readBody(fileHeader, c, storage);
             } catch (Throwable e) {
                 fileErrorCounter.incrementCount();
                 throw new SerializationException("Failed to deserialize file " + fileHeader, e);
@@ -124,12 +154,45 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         }
     }
 
+    protected List<TimeSeriesItem> doReadItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems) throws SerializationException {
+        fileReadCounter.incrementCount();
+        synchronized (readWriteLock) {
+            File f = getFile(fileHeader);
+            RandomAccessFile r = null;
+            AuditedChannel c = null;
+            try {
+                if ( isMemoryMapped()) {
+                    c = createMappedChannel(f, fileHeader, 0);
+                } else {
+                    r = new RandomAccessFile(f, "r");
+                    c = new AuditedFileChannel(r.getChannel(), fileBytesWritten, fileBytesRead);
+                }
+                serializerOperations.readHeader(fileHeader, c);
+                return serializerOperations.readItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems, c);
+            } catch (Throwable e) {
+                fileErrorCounter.incrementCount();
+                throw new SerializationException("Failed to read items from file " + fileHeader, e);
+            } finally {
+                flushAndClose(f, c, r);
+            }
+        }
+    }
+
     protected FileHeader doReadHeader(File f) throws SerializationException {
         FileHeader h = new FileHeader();
         readHeaderImpl(h, f);
         return h;
     }
 
+    /**
+     * Each read opens its own file, so headers of series being loaded are read without the serializer lock
+     */
+    public FileHeader readHeaderForLoad(File f) throws SerializationException {
+        FileHeader h = new FileHeader();
+        readHeaderImpl(h, f);
+        return h;
+    }
+
     protected boolean doFileExists(FileHeader fileHeader) {
         boolean result = false;
         File f = null;
@@ -159,6 +222,7 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         if (dest.exists()) {
             throw new SerializationException("Cannot migrate file " + f + " to path " + dest + " which already exists");
         }
+        releaseMapping(f);
         f.renameTo(dest);
 
         //now update path in header and rewrite the header properties to reflect the new path
@@ -175,25 +239,54 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
 
     protected void doAppendToSeries(FileHeader header, RoundRobinTimeSeries l) throws SerializationException {
         fileAppendCounter.incrementCount();
+        if ( isMemoryMapped() && header.isCompressed() && l.size() > MAPPED_APPEND_ITEMS) {
+            //the mapping must have room for the ring of blocks to grow as the items are appended, appending in
+            //chunks means the file is only extended a few blocks beyond the ring at a time
+            RoundRobinTimeSeries chunk = new RoundRobinTimeSeries(MAPPED_APPEND_ITEMS);
+            for ( TimeSeriesItem i : l) {
+                chunk.addItem(i);
+                if ( chunk.size() == MAPPED_APPEND_ITEMS) {
+                    appendItems(header, chunk);
+                    chunk = new RoundRobinTimeSeries(MAPPED_APPEND_ITEMS);
+                }
+            }
+            if ( chunk.size() > 0) {
+                appendItems(header, chunk);
+            }
+        } else {
+            appendItems(header, l);
+        }
+    }
+
+    private void appendItems(FileHeader header, RoundRobinTimeSeries l) throws SerializationException {
         boolean rewriteProperties = header.isPropertiesRewriteRequired();
         if (!shutdown && ( l.size() > 0 || rewriteProperties )) {
             File file = getFile(header);
             checkFileWriteable(file);
             RandomAccessFile r = null;
-            AuditedFileChannel c = null;
+            AuditedChannel c = null;
+            //series to rewrite in full, which we do once this file is closed
+            RoundRobinTimeSeries toRewrite = null;
             try {
-                r = new RandomAccessFile(file, "rw");
-                c = new AuditedFileChannel(r.getChannel(), fileBytesWritten, fileBytesRead);
+                if ( isMemoryMapped()) {
+                    c = createMappedChannel(file, header, l.size());
+                } else {
+                    r = new RandomAccessFile(file, "rw");
+                    c = new AuditedFileChannel(r.getChannel(), fileBytesWritten, fileBytesRead);
+                }
 
-                if (rewriteProperties) {
+                if ( l.size() > 0 && ! fileVersion.equals(header.getFileVersion())) {
+                    //migrate the file to our current file version by rewriting it in full
+                    toRewrite = serializerOperations.readBody(header, c);
+                    toRewrite.addAll(l);
+                } else if (rewriteProperties) {
                     byte[] properties = header.getPropertiesAsByteArray();
                     int newHeaderLength = getNewHeaderLength(header, properties);
                     if (newHeaderLength > header.getHeaderLength()) {
                         //a rewrite is required, the new properties will not fit into the current header and it needs to expand
                         //read the series from disk, append the append items, and rewrite both the header and body
-                        RoundRobinTimeSeries s = serializerOperations.readBody(header, c);
-                        s.addAll(l);
-                        writeSeries(header, s);
+                        toRewrite = serializerOperations.readBody(header, c);
+                        toRewrite.addAll(l);
                     } else {
                         serializerOperations.doAppend(header, l, true, properties, c);
                     }
@@ -206,6 +299,10 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
             } finally {
                 flushAndClose(file, c, r);
             }
+
+            if ( toRewrite != null) {
+                writeSeries(header, toRewrite);
+            }
         }
     }
 
@@ -236,6 +333,58 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         return rootDirectory;
     }
 
+    public List<File> getSeriesFiles() {
+        File[] files = rootDirectory.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                boolean result = ! f.isDirectory() && f.getName().endsWith(timeSeriesFileSuffix);
+                if ( result && ! f.canRead()) {
+                    logMethods.info("Cannot read time series file " + f + " - will skip loading this one");
+                    result = false;
+                }
+                return result;
+            }
+        });
+        return Arrays.asList(files);
+    }
+
+    public void removeOldSeries(int maxSeriesCount, int maxCumulativeSize, long maxAgeInMillis) {
+        FileReaper reaper = new FileReaper(
+            "Timeseries File Reaper",
+            rootDirectory,
+            ".*" + timeSeriesFileSuffix,
+            maxSeriesCount,
+            maxCumulativeSize,
+            maxAgeInMillis
+        );
+        reaper.reap();
+    }
+
+    /**
+     * @param compressed, true to write new series files in the compressed TSVERSION002 format
+     * Existing files in the other format remain readable, and are migrated when items are next appended
+     */
+    public void setCompressedFormat(boolean compressed) {
+        fileVersion = compressed ? CompressedBlockOperations.VERSION_STRING : SerializerOperations.VERSION_STRING;
+    }
+
+    public boolean isMemoryMapped() {
+        return mappedFilePool != null;
+    }
+
+    /**
+     * @param itemsToAppend, the mapping must have room for the body to grow as these are appended
+     */
+    private AuditedChannel createMappedChannel(File f, FileHeader header, int itemsToAppend) throws IOException {
+        long ringSize = header.getHeaderLength() + SerializerOperations.getBodyLength(header, itemsToAppend);
+        return new AuditedMappedChannel(mappedFilePool.getMapping(f, ringSize), fileBytesWritten, fileBytesRead);
+    }
+
+    private void releaseMapping(File f) {
+        if ( isMemoryMapped()) {
+            mappedFilePool.release(f);
+        }
+    }
+
     private int getNewHeaderLength(FileHeader fileHeader, byte[] properties) {
         int headerBytesToWrite = properties.length + SerializerOperations.PROPERTIES_OFFSET;
         return fileHeader.calculateNewHeaderLength(headerBytesToWrite);
@@ -266,35 +415,19 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         }
     }
 
-    //this should ensure no files are corrupted on linux shutdown - although it most likely won't work on Windows, becuase of lack
-    //of support for SIGTERM etc. Still, I have yet to see a corrupted file on either!
-    private void addShutdownHook() {
-        if ( ! shutdownHandlingDisabled) {
-            Runtime.getRuntime().addShutdownHook( new Thread() {
-                public void run() {
-                    logMethods.info("Shutdown Starting");
-                    shutdownNow();
-                    try {
-                        Thread.sleep(250); //just in the hope that 250ms is enough for that log statement to make it into the logs
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    logMethods.info("Shutdown complete");
-                }
-            });
-        }
-    }
-
-    private void shutdownNow() {
+    protected void shutdownNow() {
         synchronized (readWriteLock) {
             shutdown = true;
+            if ( isMemoryMapped()) {
+                mappedFilePool.releaseAll();
+            }
         }
     }
 
     /**
      * Safely close a RandomAccessFile and associated channel, forcing channel changes to disk
      */
-    private void flushAndClose(File f, AuditedFileChannel c, RandomAccessFile r) {
+    private void flushAndClose(File f, AuditedChannel c, RandomAccessFile r) {
         if ( c != null) {
             try {
                 c.close();
@@ -312,8 +445,4 @@ public class RoundRobinSerializer extends AbstractLockedSerializer {
         }
     }
 
-    public static void setShutdownHandlingDisabled(boolean shutdownHandlingDisabled) {
-        RoundRobinSerializer.shutdownHandlingDisabled = shutdownHandlingDisabled;
-    }
-
 }
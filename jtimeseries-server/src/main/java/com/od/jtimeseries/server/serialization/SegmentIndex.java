@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The index for segmented series storage, mapping each series path to the slot within a segment file which holds
+ * the series header and ring
+ *
+ * The index file is an append only log of records, each record is one of:
+ * SLOT, path, segment, offset, capacity  - path is now stored in the slot, any slot the path used before is freed
+ *                                          and any path which previously used the slot is removed
+ * FREE, "", segment, offset, capacity    - the slot is free, any path which used it is removed
+ *
+ * So a new series, a series moved to a larger slot, and a series migrated to a new path are each a single SLOT record
+ * The log is replayed and compacted when the index is loaded
+ */
+class SegmentIndex {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(SegmentIndex.class);
+
+    private static final byte SLOT_RECORD = 1;
+    private static final byte FREE_RECORD = 2;
+
+    //slots are allocated in multiples of this size
+    static final int SLOT_ALIGNMENT = 4096;
+
+    private final File indexFile;
+    private final int segmentSize;
+
+    private final Map<String, Slot> slotsByPath = new HashMap<String, Slot>();
+    private final Map<Slot, String> pathsBySlot = new HashMap<Slot, String>();
+    private final SortedMap<Integer, LinkedList<Slot>> freeSlotsByCapacity = new TreeMap<Integer, LinkedList<Slot>>();
+
+    //the last segment, to which new slots are added, and the offset of the next new slot
+    private int currentSegment = -1;
+    private int nextOffset;
+
+    private DataOutputStream indexOutput;
+
+    SegmentIndex(File indexFile, int segmentSize) throws IOException {
+        this.indexFile = indexFile;
+        this.segmentSize = segmentSize;
+        if ( indexFile.exists()) {
+            replayIndex();
+        }
+        compactIndex();
+        indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    }
+
+    Slot getSlot(String path) {
+        return slotsByPath.get(path);
+    }
+
+    List<String> getPaths() {
+        return new ArrayList<String>(slotsByPath.keySet());
+    }
+
+    int getSegmentCount() {
+        return currentSegment + 1;
+    }
+
+    int getFreeSlotCount() {
+        int result = 0;
+        for ( LinkedList<Slot> l : freeSlotsByCapacity.values()) {
+            result += l.size();
+        }
+        return result;
+    }
+
+    /**
+     * @return a slot with capacity for at least requiredBytes, reusing a free slot if there is one which is not
+     * much larger than needed. The slot is not recorded in the index until setSlot is called
+     */
+    Slot allocate(long requiredBytes) {
+        int capacity = (int)(((requiredBytes + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT) * SLOT_ALIGNMENT);
+        Slot result = takeFreeSlot(capacity);
+        if ( result == null) {
+            if ( currentSegment == -1 || nextOffset + capacity > segmentSize) {
+                //a slot larger than the segment size gets a segment to itself
+                currentSegment++;
+                nextOffset = 0;
+            }
+            result = new Slot(currentSegment, nextOffset, capacity);
+            nextOffset += capacity;
+        }
+        return result;
+    }
+
+    /**
+     * Record that path is now stored in slot
+     */
+    void setSlot(String path, Slot slot) throws IOException {
+        writeRecord(SLOT_RECORD, path, slot);
+        applySlotRecord(path, slot);
+    }
+
+    /**
+     * Record that slot is free, removing the path stored in it
+     */
+    void freeSlot(Slot slot) throws IOException {
+        writeRecord(FREE_RECORD, "", slot);
+        applyFreeRecord(slot);
+    }
+
+    void close() throws IOException {
+        indexOutput.close();
+    }
+
+    private void writeRecord(byte type, String path, Slot slot) throws IOException {
+        writeRecord(indexOutput, type, path, slot);
+        indexOutput.flush();
+    }
+
+    private void writeRecord(DataOutputStream d, byte type, String path, Slot slot) throws IOException {
+        d.writeByte(type);
+        d.writeUTF(path);
+        d.writeInt(slot.getSegment());
+        d.writeInt(slot.getOffset());
+        d.writeInt(slot.getCapacity());
+    }
+
+    private void replayIndex() throws IOException {
+        DataInputStream d = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        int records = 0;
+        try {
+            while (true) {
+                byte type = d.readByte();
+                String path = d.readUTF();
+                Slot slot = new Slot(d.readInt(), d.readInt(), d.readInt());
+                if ( type == SLOT_RECORD) {
+                    applySlotRecord(path, slot);
+                } else if ( type == FREE_RECORD) {
+                    applyFreeRecord(slot);
+                } else {
+                    throw new IOException("Unknown record type " + type + " in segment index " + indexFile);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            //end of index, any partial record at the end was not completely written before a crash
+            logMethods.info("Read " + records + " records from segment index " + indexFile + " for " + slotsByPath.size() + " series");
+        } finally {
+            d.close();
+        }
+    }
+
+    private void applySlotRecord(String path, Slot slot) {
+        Slot previousSlot = slotsByPath.put(path, slot);
+        if ( previousSlot != null && ! previousSlot.equals(slot)) {
+            pathsBySlot.remove(previousSlot);
+            addFreeSlot(previousSlot);
+        }
+
+        String previousPath = pathsBySlot.put(slot, path);
+        if ( previousPath != null && ! previousPath.equals(path)) {
+            slotsByPath.remove(previousPath);
+        }
+        removeFreeSlot(slot);
+        updateAllocatedSpace(slot);
+    }
+
+    private void applyFreeRecord(Slot slot) {
+        String path = pathsBySlot.remove(slot);
+        if ( path != null) {
+            slotsByPath.remove(path);
+        }
+        addFreeSlot(slot);
+        updateAllocatedSpace(slot);
+    }
+
+    private void updateAllocatedSpace(Slot slot) {
+        if ( slot.getSegment() > currentSegment) {
+            currentSegment = slot.getSegment();
+            nextOffset = 0;
+        }
+        if ( slot.getSegment() == currentSegment) {
+            nextOffset = Math.max(nextOffset, slot.getOffset() + slot.getCapacity());
+        }
+    }
+
+    private Slot takeFreeSlot(int capacity) {
+        Slot result = null;
+        SortedMap<Integer, LinkedList<Slot>> candidates = freeSlotsByCapacity.tailMap(capacity);
+        if ( ! candidates.isEmpty() && candidates.firstKey() <= capacity * 2) {
+            result = candidates.get(candidates.firstKey()).getFirst();
+            removeFreeSlot(result);
+        }
+        return result;
+    }
+
+    private void addFreeSlot(Slot slot) {
+        LinkedList<Slot> l = freeSlotsByCapacity.get(slot.getCapacity());
+        if ( l == null) {
+            l = new LinkedList<Slot>();
+            freeSlotsByCapacity.put(slot.getCapacity(), l);
+        }
+        if ( ! l.contains(slot)) {
+            l.add(slot);
+        }
+    }
+
+    private void removeFreeSlot(Slot slot) {
+        LinkedList<Slot> l = freeSlotsByCapacity.get(slot.getCapacity());
+        if ( l != null) {
+            l.remove(slot);
+            if ( l.isEmpty()) {
+                freeSlotsByCapacity.remove(slot.getCapacity());
+            }
+        }
+    }
+
+    //rewrite the index with one record per slot, replacing the log of changes
+    private void compactIndex() throws IOException {
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        DataOutputStream d = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            for ( Map.Entry<String, Slot> e : slotsByPath.entrySet()) {
+                writeRecord(d, SLOT_RECORD, e.getKey(), e.getValue());
+            }
+            for ( LinkedList<Slot> l : freeSlotsByCapacity.values()) {
+                for ( Slot s : l) {
+                    writeRecord(d, FREE_RECORD, "", s);
+                }
+            }
+        } finally {
+            d.close();
+        }
+
+        //on Windows renameTo fails if the destination exists
+        if ( ! tempFile.renameTo(indexFile) && ! (indexFile.delete() && tempFile.renameTo(indexFile))) {
+            throw new IOException("Failed to replace segment index " + indexFile + " with compacted index " + tempFile);
+        }
+    }
+
+    /**
+     * The location and size of the space for one series within a segment file
+     */
+    static class Slot {
+
+        private final int segment;
+        private final int offset;
+        private final int capacity;
+
+        Slot(int segment, int offset, int capacity) {
+            this.segment = segment;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        int getSegment() {
+            return segment;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        int getCapacity() {
+            return capacity;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Slot slot = (Slot) o;
+            return segment == slot.segment && offset == slot.offset;
+        }
+
+        public int hashCode() {
+            return 31 * segment + offset;
+        }
+
+        public String toString() {
+            return "Slot{" +
+                    "segment=" + segment +
+                    ", offset=" + offset +
+                    ", capacity=" + capacity +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Stores many series in a few large preallocated segment files, rather than one file per series
+ *
+ * Each series occupies a slot within a segment file, which holds exactly what would otherwise be the contents of the
+ * series file - the header followed by the ring of items, in either file format. A SegmentIndex maps each series path
+ * to its slot. A slot is sized for the full ring, so appends never need more space. When a rewrite needs a larger header
+ * the series is written to a new slot and the old slot is freed for reuse.
+ *
+ * The File instances used to identify series through the TimeSeriesSerializer interface have the same names as the
+ * equivalent RoundRobinSerializer files, but these files do not exist on disk
+ *
+ * Locking is as described for RoundRobinSerializer
+ */
+public class SegmentedSerializer extends AbstractLockedSerializer {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(SegmentedSerializer.class);
+
+    static final String INDEX_FILE_NAME = "series.index";
+    static final String SEGMENT_FILE_PREFIX = "series-segment-";
+    static final String SEGMENT_FILE_SUFFIX = ".segment";
+
+    private final File rootDirectory;
+    private final String timeSeriesFileSuffix;
+    private final int segmentSize;
+    private final SegmentIndex segmentIndex;
+    private final Map<Integer, RandomAccessFile> segmentFiles = new HashMap<Integer, RandomAccessFile>();
+    private SerializerOperations serializerOperations = new SerializerOperations();
+
+    //format for new series and rewrites, existing series in another format are migrated on their next append
+    private volatile String fileVersion = SerializerOperations.VERSION_STRING;
+
+    /**
+     * @param segmentSizeMb, size of each segment file, a series which is larger than this gets a segment to itself
+     */
+    public SegmentedSerializer(File rootDirectory, String timeSeriesFileSuffix, int segmentSizeMb) throws SerializationException {
+        this.rootDirectory = rootDirectory;
+        this.timeSeriesFileSuffix = timeSeriesFileSuffix;
+        if ( segmentSizeMb < 1 || segmentSizeMb > 1024) {
+            throw new SerializationException("Segment size must be between 1 and 1024 MB");
+        }
+        this.segmentSize = segmentSizeMb * 1024 * 1024;
+        checkRootDirectory(rootDirectory);
+        try {
+            segmentIndex = new SegmentIndex(new File(rootDirectory, INDEX_FILE_NAME), segmentSize);
+        } catch (IOException e) {
+            throw new SerializationException("Failed to load segment index in " + rootDirectory, e);
+        }
+        addShutdownHook();
+    }
+
+    private void checkRootDirectory(File rootDirectory) {
+        if ( ! rootDirectory.canWrite()) {
+            logMethods.error("Timeseries Directory at " + rootDirectory.getAbsolutePath() + " does not exist or is not writable, cannot start server");
+            throw new RuntimeException("Timeseries Directory at " + rootDirectory.getAbsolutePath() + " does not exist or is not writable, cannot start server");
+        }
+    }
+
+    protected void doWriteSeries(FileHeader fileHeader, RoundRobinTimeSeries t) throws SerializationException {
+        fileRewriteCounter.incrementCount();
+        byte[] properties = fileHeader.getPropertiesAsByteArray();
+        int newHeaderLength = getNewHeaderLength(fileHeader, properties);
+        serializerOperations.initializeHeader(fileHeader, fileVersion, newHeaderLength, t);
+
+        String path = getPath(fileHeader);
+        AuditedChannel c = null;
+        try {
+            //write to a new slot if the series will not fit in the current one, the index is only updated once the
+            //new slot is written, so if we fail part way the series is still in the old slot
+            //slots do not grow, so a slot must have room for the largest body appends may grow to
+            long requiredSize = fileHeader.getHeaderLength() + SerializerOperations.getMaxBodyLength(fileHeader);
+            SegmentIndex.Slot slot = segmentIndex.getSlot(path);
+            boolean newSlot = slot == null || slot.getCapacity() < requiredSize;
+            if ( newSlot ) {
+                slot = segmentIndex.allocate(requiredSize);
+            }
+
+            c = createChannel(slot);
+            serializerOperations.writeHeader(fileHeader, properties, c);
+            serializerOperations.writeBody(fileHeader, t, c);
+
+            if ( newSlot ) {
+                segmentIndex.setSlot(path, slot);
+            }
+        } catch (Throwable e) {
+            logMethods.error("Failed to write time series " + path);
+            fileErrorCounter.incrementCount();
+            throw new SerializationException("Failed to write time series " + path, e);
+        } finally {
+            close(path, c);
+        }
+    }
+
+    protected RoundRobinTimeSeries doReadSeries(FileHeader fileHeader, SeriesStorage storage) throws SerializationException {
+        fileReadCounter.incrementCount();
+        synchronized (readWriteLock) {
+            AuditedChannel c = null;
+            try {
+                c = createChannel(getExistingSlot(fileHeader));
+                serializerOperations.readHeader(fileHeader, c);
+                return serializerOperations.readBody(fileHeader, c, storage);
+            } catch (Throwable e) {
+                fileErrorCounter.incrementCount();
+                throw new SerializationException("Failed to deserialize series " + fileHeader, e);
+            } finally {
+                close(fileHeader.getPath(), c);
+            }
+        }
+    }
+
+    protected List<TimeSeriesItem> doReadItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems) throws SerializationException {
+        fileReadCounter.incrementCount();
+        synchronized (readWriteLock) {
+            AuditedChannel c = null;
+            try {
+                c = createChannel(getExistingSlot(fileHeader));
+                serializerOperations.readHeader(fileHeader, c);
+                return serializerOperations.readItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems, c);
+            } catch (Throwable e) {
+                fileErrorCounter.incrementCount();
+                throw new SerializationException("Failed to read items from series " + fileHeader, e);
+            } finally {
+                close(fileHeader.getPath(), c);
+            }
+        }
+    }
+
+    protected FileHeader doReadHeader(File f) throws SerializationException {
+        FileHeader h = new FileHeader();
+        readHeaderImpl(h, getExistingSlot(f));
+        return h;
+    }
+
+    /**
+     * Only finding the slot and segment channel takes the serializer lock. The header is read with positional reads
+     * on the shared segment channel, which may run alongside reads and writes of other slots
+     */
+    public FileHeader readHeaderForLoad(File f) throws SerializationException {
+        FileHeader h = new FileHeader();
+        AuditedChannel c;
+        synchronized (readWriteLock) {
+            c = createHeaderChannel(h, getExistingSlot(f));
+        }
+        readHeaderImpl(h, c);
+        return h;
+    }
+
+    protected boolean doFileExists(FileHeader fileHeader) {
+        return fileHeader.getPath() != null && segmentIndex.getSlot(fileHeader.getPath()) != null;
+    }
+
+    protected void doReadHeader(FileHeader fileHeader) throws SerializationException {
+        readHeaderImpl(fileHeader, getExistingSlot(fileHeader));
+    }
+
+    protected void doMigratePath(FileHeader header, String newPath) throws SerializationException {
+        SegmentIndex.Slot slot = getExistingSlot(header);
+        if ( segmentIndex.getSlot(newPath) != null) {
+            throw new SerializationException("Cannot migrate series " + header.getPath() + " to path " + newPath + " which already exists");
+        }
+
+        try {
+            segmentIndex.setSlot(newPath, slot);
+        } catch (IOException e) {
+            fileErrorCounter.incrementCount();
+            throw new SerializationException("Failed to migrate series " + header.getPath() + " to path " + newPath, e);
+        }
+
+        //now update path in header and rewrite the header properties to reflect the new path
+        header.setPath(newPath);
+        writeHeaderProperties(header);
+    }
+
+    protected void doWriteHeaderProperties(FileHeader header) throws SerializationException {
+        if ( header.isPropertiesRewriteRequired()) {
+            //treat as an append of zero items, since append will rewrite the header portion
+            doAppendToSeries(header, new RoundRobinTimeSeries(0));
+        }
+    }
+
+    protected void doAppendToSeries(FileHeader header, RoundRobinTimeSeries l) throws SerializationException {
+        fileAppendCounter.incrementCount();
+        boolean rewriteProperties = header.isPropertiesRewriteRequired();
+        if (!shutdown && ( l.size() > 0 || rewriteProperties )) {
+            AuditedChannel c = null;
+            try {
+                c = createChannel(getExistingSlot(header));
+
+                if ( l.size() > 0 && ! fileVersion.equals(header.getFileVersion())) {
+                    //migrate the series to our current file version by rewriting it in full
+                    RoundRobinTimeSeries s = serializerOperations.readBody(header, c);
+                    s.addAll(l);
+                    writeSeries(header, s);
+                } else if (rewriteProperties) {
+                    byte[] properties = header.getPropertiesAsByteArray();
+                    int newHeaderLength = getNewHeaderLength(header, properties);
+                    if (newHeaderLength > header.getHeaderLength()) {
+                        //a rewrite is required, the new properties will not fit into the current header and it needs to expand
+                        //read the series, append the append items, and rewrite both the header and body, possibly to a new slot
+                        RoundRobinTimeSeries s = serializerOperations.readBody(header, c);
+                        s.addAll(l);
+                        writeSeries(header, s);
+                    } else {
+                        serializerOperations.doAppend(header, l, true, properties, c);
+                    }
+                } else {
+                    serializerOperations.doAppend(header, l, false, null, c);
+                }
+            } catch (Throwable e) {
+                fileErrorCounter.incrementCount();
+                throw new SerializationException("Failed to append items to series " + header, e);
+            } finally {
+                close(header.getPath(), c);
+            }
+        }
+    }
+
+    protected File doGetFile(FileHeader f) throws SerializationException {
+        return getFileName(getPath(f));
+    }
+
+    protected File doCreateFile(FileHeader fileHeader) throws SerializationException {
+        RoundRobinTimeSeries r = new RoundRobinTimeSeries(fileHeader.getSeriesMaxLength());
+        writeSeries(fileHeader, r);
+        return getFile(fileHeader);
+    }
+
+    public File getRootDirectory() {
+        return rootDirectory;
+    }
+
+    public List<File> getSeriesFiles() {
+        synchronized (readWriteLock) {
+            List<File> result = new ArrayList<File>();
+            for ( String path : segmentIndex.getPaths()) {
+                try {
+                    result.add(getFileName(path));
+                } catch (SerializationException e) {
+                    logMethods.error("Could not create file name for series " + path, e);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Free the slots of series in order of the timestamp of their most recent item
+     */
+    public void removeOldSeries(int maxSeriesCount, int maxCumulativeSize, long maxAgeInMillis) {
+        synchronized (readWriteLock) {
+            List<FileHeader> headers = new ArrayList<FileHeader>();
+            for ( String path : segmentIndex.getPaths()) {
+                try {
+                    FileHeader h = new FileHeader();
+                    readHeaderImpl(h, segmentIndex.getSlot(path));
+                    headers.add(h);
+                } catch (SerializationException e) {
+                    logMethods.error("Failed to read header for series " + path + ", will not check whether to remove it", e);
+                }
+            }
+
+            final long currentTime = System.currentTimeMillis();
+            Collections.sort(headers, new Comparator<FileHeader>() {
+                public int compare(FileHeader h1, FileHeader h2) {
+                    return ((Long)getLastUpdateTime(h2, currentTime)).compareTo(getLastUpdateTime(h1, currentTime));
+                }
+            });
+
+            long cumulativeSize = 0;
+            int seriesCount = 0, removeCount = 0;
+            for ( FileHeader h : headers) {
+                SegmentIndex.Slot slot = segmentIndex.getSlot(h.getPath());
+                cumulativeSize += slot.getCapacity();
+                long age = currentTime - getLastUpdateTime(h, currentTime);
+                boolean remove = (maxCumulativeSize > 0 && cumulativeSize > maxCumulativeSize) ||
+                                 (maxSeriesCount > 0 && seriesCount >= maxSeriesCount) ||
+                                 (maxAgeInMillis > 0 && age > maxAgeInMillis);
+                if ( remove ) {
+                    try {
+                        segmentIndex.freeSlot(slot);
+                        removeCount++;
+                    } catch (IOException e) {
+                        logMethods.error("Failed to remove series " + h.getPath(), e);
+                    }
+                    cumulativeSize -= slot.getCapacity();
+                } else {
+                    seriesCount++;
+                }
+            }
+            logMethods.info("Removed " + removeCount + " series out of " + headers.size() + " from segmented storage in " + rootDirectory);
+        }
+    }
+
+    //an empty series is treated as just updated
+    private long getLastUpdateTime(FileHeader h, long currentTime) {
+        long t = h.getMostRecentItemTimestamp();
+        return t == -1 ? currentTime : t;
+    }
+
+    /**
+     * @param compressed, true to write new series in the compressed TSVERSION002 format
+     * Existing series in the other format remain readable, and are migrated when items are next appended
+     */
+    public void setCompressedFormat(boolean compressed) {
+        fileVersion = compressed ? CompressedBlockOperations.VERSION_STRING : SerializerOperations.VERSION_STRING;
+    }
+
+    public int getSegmentCount() {
+        synchronized (readWriteLock) {
+            return segmentIndex.getSegmentCount();
+        }
+    }
+
+    /**
+     * Close the index and segment files, no further reads or writes are possible
+     */
+    public void close() {
+        shutdownNow();
+    }
+
+    protected void shutdownNow() {
+        synchronized (readWriteLock) {
+            if ( ! shutdown) {
+                shutdown = true;
+                try {
+                    segmentIndex.close();
+                } catch (IOException e) {
+                    logMethods.error("Error closing segment index", e);
+                }
+                for ( Map.Entry<Integer, RandomAccessFile> e : segmentFiles.entrySet()) {
+                    try {
+                        e.getValue().close();
+                    } catch (IOException ex) {
+                        logMethods.error("Error closing segment file " + e.getKey(), ex);
+                    }
+                }
+                segmentFiles.clear();
+            }
+        }
+    }
+
+    private AuditedChannel createChannel(SegmentIndex.Slot slot) throws IOException {
+        if ( shutdown) {
+            throw new IOException("Segment files are closed");
+        }
+        FileChannel segmentChannel = getSegmentChannel(slot.getSegment(), (long)slot.getOffset() + slot.getCapacity());
+        return new AuditedSlotChannel(segmentChannel, slot.getOffset(), slot.getCapacity(), fileBytesWritten, fileBytesRead);
+    }
+
+    //open the segment file, creating it and preallocating the space if necessary
+    private FileChannel getSegmentChannel(int segment, long requiredLength) throws IOException {
+        RandomAccessFile r = segmentFiles.get(segment);
+        if ( r == null) {
+            r = new RandomAccessFile(getSegmentFile(segment), "rw");
+            segmentFiles.put(segment, r);
+        }
+        long length = Math.max(segmentSize, requiredLength);
+        if ( r.length() < length) {
+            r.setLength(length);
+        }
+        return r.getChannel();
+    }
+
+    SegmentIndex.Slot getSlot(String path) {
+        synchronized (readWriteLock) {
+            return segmentIndex.getSlot(path);
+        }
+    }
+
+    File getSegmentFile(int segment) {
+        return new File(rootDirectory, SEGMENT_FILE_PREFIX + segment + SEGMENT_FILE_SUFFIX);
+    }
+
+    private SegmentIndex.Slot getExistingSlot(File f) throws SerializationException {
+        String path = getPath(f);
+        SegmentIndex.Slot slot = segmentIndex.getSlot(path);
+        if ( slot == null) {
+            throw new SerializationException("No series stored for path " + path + " from file " + f);
+        }
+        return slot;
+    }
+
+    private SegmentIndex.Slot getExistingSlot(FileHeader header) throws SerializationException {
+        SegmentIndex.Slot slot = segmentIndex.getSlot(getPath(header));
+        if ( slot == null) {
+            throw new SerializationException("Series for header " + header + " does not exist");
+        }
+        return slot;
+    }
+
+    private String getPath(FileHeader f) throws SerializationException {
+        String path = f.getPath();
+        if (path == null) {
+            throw new SerializationException("Cannot get series for FileHeader with null context path");
+        }
+        return path;
+    }
+
+    private File getFileName(String pathToEncode) throws SerializationException {
+        try {
+            String fileName = URLEncoder.encode(pathToEncode, "UTF-8") + timeSeriesFileSuffix;
+            return new File(rootDirectory, fileName);
+        } catch (UnsupportedEncodingException e) {
+            throw new SerializationException("Failed to encode file name", e);
+        }
+    }
+
+    private String getPath(File f) throws SerializationException {
+        String name = f.getName();
+        if ( ! name.endsWith(timeSeriesFileSuffix)) {
+            throw new SerializationException("File " + f + " is not a series file");
+        }
+        try {
+            return URLDecoder.decode(name.substring(0, name.length() - timeSeriesFileSuffix.length()), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new SerializationException("Failed to decode file name", e);
+        }
+    }
+
+    private int getNewHeaderLength(FileHeader fileHeader, byte[] properties) {
+        int headerBytesToWrite = properties.length + SerializerOperations.PROPERTIES_OFFSET;
+        return fileHeader.calculateNewHeaderLength(headerBytesToWrite);
+    }
+
+    private void readHeaderImpl(FileHeader fileHeader, SegmentIndex.Slot slot) throws SerializationException {
+        readHeaderImpl(fileHeader, createHeaderChannel(fileHeader, slot));
+    }
+
+    private AuditedChannel createHeaderChannel(FileHeader fileHeader, SegmentIndex.Slot slot) throws SerializationException {
+        try {
+            return createChannel(slot);
+        } catch (IOException e) {
+            fileErrorCounter.incrementCount();
+            throw new SerializationException("Failed to deserialize header " + fileHeader, e);
+        }
+    }
+
+    private void readHeaderImpl(FileHeader fileHeader, AuditedChannel c) throws SerializationException {
+        fileHeaderReadCounter.incrementCount();
+        try {
+            serializerOperations.readHeader(fileHeader, c);
+        } catch (Throwable e) {
+            fileErrorCounter.incrementCount();
+            throw new SerializationException("Failed to deserialize header " + fileHeader, e);
+        } finally {
+            close(fileHeader.getPath(), c);
+        }
+    }
+
+    private void close(String path, AuditedChannel c) {
+        if ( c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                logMethods.error("Error closing channel for series " + path, e);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.od.jtimeseries.server.serialization;
 import com.od.jtimeseries.timeseries.Item;
 import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
 import com.od.jtimeseries.util.numeric.DoubleNumeric;
 
 import java.io.IOException;
@@ -26,30 +27,95 @@ class SerializerOperations {
     static final int HEADER_SECTION_2_OFFSET = 20;
 
     static final AtomicReference<byte[]> byteArrayOne = new AtomicReference<byte[]>();
-    static final AtomicReference<byte[]> byteArrayTwo = new AtomicReference<byte[]>();
-    static final AtomicReference<byte[]> byteArrayThree = new AtomicReference<byte[]>();
+
+    //headers of series being loaded are read on several threads without the serializer lock
+    private static final ThreadLocal<AtomicReference<byte[]>> headerReadArray = new ThreadLocal<AtomicReference<byte[]>>() {
+        protected AtomicReference<byte[]> initialValue() {
+            return new AtomicReference<byte[]>();
+        }
+    };
+
+    //items read at a time when reading a time range, so we don't read far beyond the end of the range
+    private static final int RANGE_READ_CHUNK_ITEMS = 1024;
+
+    private final CompressedBlockOperations compressedBlockOperations = new CompressedBlockOperations();
+
+    /**
+     * @return the length of the ring which makes up the body of the file
+     */
+    static long getBodyLength(FileHeader fileHeader) {
+        return fileHeader.isCompressed() ?
+                CompressedBlockOperations.getBodyLength(fileHeader) :
+                fileHeader.getSeriesMaxLength() * 16L;
+    }
+
+    /**
+     * @return the length the body may grow to when itemsToAppend are appended, the ring of blocks in a compressed file
+     * grows as it is filled, the ring of an uncompressed file is always the max length
+     */
+    static long getBodyLength(FileHeader fileHeader, int itemsToAppend) {
+        return fileHeader.isCompressed() ?
+                CompressedBlockOperations.getBodyLength(fileHeader, itemsToAppend) :
+                fileHeader.getSeriesMaxLength() * 16L;
+    }
+
+    /**
+     * @return the length the body may grow to as items are appended
+     */
+    static long getMaxBodyLength(FileHeader fileHeader) {
+        return fileHeader.isCompressed() ?
+                CompressedBlockOperations.getMaxBodyLength(fileHeader) :
+                fileHeader.getSeriesMaxLength() * 16L;
+    }
+
+    /**
+     * @return 16 bytes for an uncompressed file, for a compressed file the bytes per item achieved by the items stored
+     */
+    static double getBytesPerItem(FileHeader fileHeader) {
+        double result = 16;
+        if ( fileHeader.isCompressed() && fileHeader.getStoredItemCount() > 0) {
+            result = Math.min(result, (double)CompressedBlockOperations.getBodyLength(fileHeader) / fileHeader.getStoredItemCount());
+        }
+        return result;
+    }
+
+    /**
+     * Set the header fields for the series t, before the series is written in the file format for fileVersion
+     */
+    void initializeHeader(FileHeader fileHeader, String fileVersion, int newHeaderLength, RoundRobinTimeSeries t) {
+        if ( CompressedBlockOperations.VERSION_STRING.equals(fileVersion)) {
+            //head, tail and item count are set when the compressed body is written
+            compressedBlockOperations.initializeHeader(fileHeader, newHeaderLength, t.getMaxSize());
+        } else {
+            //head == -1 is a special convention to indicate the time series is empty
+            int head = t.size() == 0 ? -1 : 0;
+            int tail = t.size();
+            fileHeader.updateFormatFields(VERSION_STRING, 0, 0, 0);
+            fileHeader.updateHeaderFields(newHeaderLength, head, tail, t.getMaxSize(), t.getLatestTimestamp());
+        }
+    }
 
     /**
      *
      *  Write the in memory header information to the series file, c must be at position zero
      */
-    void writeHeader(FileHeader fileHeader, byte[] properties, AuditedFileChannel c) throws IOException {
+    void writeHeader(FileHeader fileHeader, byte[] properties, AuditedChannel c) throws IOException {
         writeHeaderSectionOne(fileHeader, c);
         writeHeaderSectionTwo(fileHeader, true, properties, c);
     }
 
     //properties which are not changed in an 'append'
-    private void writeHeaderSectionOne(FileHeader fileHeader, AuditedFileChannel c) throws IOException {
+    private void writeHeaderSectionOne(FileHeader fileHeader, AuditedChannel c) throws IOException {
         c.position(0);
         ByteBuffer b = getByteBuffer(byteArrayOne, HEADER_SECTION_2_OFFSET);
-        b.put(VERSION_STRING.getBytes()); //add a version description, to support future versioning
+        b.put(fileHeader.getFileVersion().getBytes()); //add a version description, to support future versioning
         b.putInt(fileHeader.getHeaderLength());  //offset where data will start
         b.putInt(fileHeader.getSeriesMaxLength());
         c.writeCompletely(b);
     }
 
     //properties which can be changed in an 'append', the current head and tail, and optionally the properties section
-    private void writeHeaderSectionTwo(FileHeader fileHeader, boolean writeProperties, byte[] properties, AuditedFileChannel c) throws IOException {
+    private void writeHeaderSectionTwo(FileHeader fileHeader, boolean writeProperties, byte[] properties, AuditedChannel c) throws IOException {
         c.position(HEADER_SECTION_2_OFFSET);
         int toWrite = writeProperties ? (fileHeader.getHeaderLength() - HEADER_SECTION_2_OFFSET) : 16;
         ByteBuffer b = getByteBuffer(byteArrayOne, toWrite);
@@ -58,8 +124,16 @@ class SerializerOperations {
         b.putLong(fileHeader.getMostRecentItemTimestamp());
         if ( writeProperties) {
             b.putInt(properties.length);
-            //the next 32 bytes are currently undefined, left open for future use
-            for ( int loop=0; loop<8; loop++) {
+            //the next 32 bytes are undefined for TSVERSION001, left open for future use
+            //TSVERSION002 uses the first 12 bytes to describe the compressed blocks
+            int undefinedInts = 8;
+            if ( fileHeader.isCompressed()) {
+                b.putInt(fileHeader.getBlockSize());
+                b.putInt(fileHeader.getBlockCount());
+                b.putInt(fileHeader.getStoredItemCount());
+                undefinedInts = 5;
+            }
+            for ( int loop=0; loop<undefinedInts; loop++) {
                 b.putInt(-1);
             }
 
@@ -71,12 +145,28 @@ class SerializerOperations {
             b.put(padding);
         }
         c.writeCompletely(b);
+
+        if ( fileHeader.isCompressed() && ! writeProperties) {
+            compressedBlockOperations.writeFormatFields(fileHeader, c);
+        }
     }
 
     /**
      *  Write the in memory time series data to the series file, c must be at start of series data offset
      */
-    void writeBody(RoundRobinTimeSeries t, AuditedFileChannel c) throws IOException {
+    void writeBody(FileHeader fileHeader, RoundRobinTimeSeries t, AuditedChannel c) throws IOException {
+        if ( fileHeader.isCompressed()) {
+            //for compressed files, write the series as an append to an empty ring, then update the head and tail
+            if ( t.size() > 0) {
+                compressedBlockOperations.doAppend(fileHeader, t, c);
+                writeHeaderSectionTwo(fileHeader, false, null, c);
+            }
+        } else {
+            writeUncompressedBody(t, c);
+        }
+    }
+
+    private void writeUncompressedBody(RoundRobinTimeSeries t, AuditedChannel c) throws IOException {
         ByteBuffer b = getByteBuffer(byteArrayOne, t.size() * 16);
         for ( TimeSeriesItem i : t) {
             writeItem(b, i);
@@ -93,12 +183,24 @@ class SerializerOperations {
     /**
      * Read time series items from file body, c must be positioned at start of body section
      */
-    RoundRobinTimeSeries readBody(FileHeader fileHeader, AuditedFileChannel c) throws IOException {
+    RoundRobinTimeSeries readBody(FileHeader fileHeader, AuditedChannel c) throws IOException {
+        return readBody(fileHeader, c, SeriesStorage.OBJECTS);
+    }
+
+    /**
+     * Read time series items from file body into a series using the storage given, c must be positioned at start of body section
+     */
+    RoundRobinTimeSeries readBody(FileHeader fileHeader, AuditedChannel c, SeriesStorage storage) throws IOException {
+        return fileHeader.isCompressed() ?
+            compressedBlockOperations.readBody(fileHeader, c, storage) :
+            readUncompressedBody(fileHeader, c, storage);
+    }
+
+    private RoundRobinTimeSeries readUncompressedBody(FileHeader fileHeader, AuditedChannel c, SeriesStorage storage) throws IOException {
         c.position(fileHeader.getHeaderLength());
-        ByteBuffer b = getByteBuffer(byteArrayOne, (int) (c.size() - c.position()));
-        c.readCompletely(b);
+        ByteBuffer b = c.read(byteArrayOne, (int) (c.size() - c.position()));
 
-        RoundRobinTimeSeries series = new RoundRobinTimeSeries(fileHeader.getSeriesMaxLength());
+        RoundRobinTimeSeries series = new RoundRobinTimeSeries(fileHeader.getSeriesMaxLength(), storage);
         if ( fileHeader.getCurrentHead() != -1) {  //file is not empty
             int itemsRead = 0;
             List<TimeSeriesItem> tailItems = new ArrayList<TimeSeriesItem>();
@@ -125,11 +227,66 @@ class SerializerOperations {
 
             itemsToAdd.addAll(tailItems);
             //quicker to new up a series with the initial items than add each
-            series = new RoundRobinTimeSeries(itemsToAdd, fileHeader.getSeriesMaxLength());
+            series = new RoundRobinTimeSeries(itemsToAdd, fileHeader.getSeriesMaxLength(), storage);
         }
         return series;
     }
 
+    /**
+     * Read the items with timestamps from startTime to endTime inclusive, reading only the part of the body which holds them
+     *
+     * @param itemsToSkip, number of the earliest items in the series to ignore
+     * @param maxItems, maximum number of items to return
+     */
+    List<TimeSeriesItem> readItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems, AuditedChannel c) throws IOException {
+        return fileHeader.isCompressed() ?
+            compressedBlockOperations.readItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems, c) :
+            readUncompressedItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems, c);
+    }
+
+    private List<TimeSeriesItem> readUncompressedItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems, AuditedChannel c) throws IOException {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>();
+        int size = fileHeader.getCurrentSeriesSize();
+
+        //items in the ring are in timestamp order from the head, binary search for the first item at or after startTime
+        int low = Math.min(itemsToSkip, size);
+        int high = size;
+        while ( low < high) {
+            int mid = (low + high) >>> 1;
+            c.position(getItemOffset(fileHeader, mid));
+            if ( c.read(byteArrayOne, 8).getLong() < startTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        //read forward in chunks until we pass endTime, each chunk is contiguous in the file
+        int index = low;
+        while ( index < size && result.size() < maxItems) {
+            int slot = (fileHeader.getCurrentHead() + index) % fileHeader.getSeriesMaxLength();
+            int itemsToRead = Math.min(size - index, fileHeader.getSeriesMaxLength() - slot);
+            itemsToRead = Math.min(itemsToRead, Math.min(RANGE_READ_CHUNK_ITEMS, maxItems - result.size()));
+            c.position(getItemOffset(fileHeader, index));
+            ByteBuffer b = c.read(byteArrayOne, itemsToRead * 16);
+            for ( int loop=0; loop < itemsToRead; loop++) {
+                Item i = readItem(b);
+                if ( i.getTimestamp() > endTime) {
+                    return result;
+                }
+                result.add(i);
+            }
+            index += itemsToRead;
+        }
+        return result;
+    }
+
+    //offset in the file of the item at index, where index zero is the item at the head of the ring
+    private int getItemOffset(FileHeader fileHeader, int index) {
+        int slot = (fileHeader.getCurrentHead() + index) % fileHeader.getSeriesMaxLength();
+        return fileHeader.getHeaderLength() + (slot * 16);
+    }
+
     private Item readItem(ByteBuffer b) throws IOException {
         return new Item(b.getLong(), b.getDouble());
     }
@@ -138,30 +295,31 @@ class SerializerOperations {
     /**
      * Read time series header information, updating fileHeader in memory
      */
-    void readHeader(FileHeader fileHeader, AuditedFileChannel c) throws IOException {
+    void readHeader(FileHeader fileHeader, AuditedChannel c) throws IOException {
         c.position(0);
-        ByteBuffer b = getByteBuffer(byteArrayOne, MAX_LENGTH_OFFSET);
-        c.readCompletely(b);
-        b.position(0);
+        AtomicReference<byte[]> headerArray = headerReadArray.get();
+        ByteBuffer b = c.read(headerArray, MAX_LENGTH_OFFSET);
 
         byte[] versionBytes = new byte[VERSION_STRING_LENGTH];
         b.get(versionBytes);//readBytes(fileHeader, (AuditedInputStream) d, VERSION_STRING_LENGTH);
         String versionString = new String(versionBytes, "UTF-8");  //one byte per character, ASCII only
-        if ( ! versionString.equals(VERSION_STRING)) {
-            throw new IOException("Wrong timeseries file version, expecting version " + VERSION_STRING + " but was " + versionString);
+        if ( ! versionString.equals(VERSION_STRING) && ! versionString.equals(CompressedBlockOperations.VERSION_STRING)) {
+            throw new IOException("Wrong timeseries file version, expecting version " + VERSION_STRING + " or " +
+                    CompressedBlockOperations.VERSION_STRING + " but was " + versionString);
         }
         int headerLength = b.getInt();
 
-        b = getByteBuffer(byteArrayOne, headerLength - MAX_LENGTH_OFFSET);
-        c.readCompletely(b);
-        b.position(0);
+        b = c.read(headerArray, headerLength - MAX_LENGTH_OFFSET);
 
         int seriesMaxLength = b.getInt();
         int currentHead = b.getInt();
         int currentTail = b.getInt();
         long mostRecentTimestamp = b.getLong();
         int propertiesLength = b.getInt();
-        b.position(b.position() + 32); //skip the currently undefined bytes
+        int blockSize = b.getInt();
+        int blockCount = b.getInt();
+        int storedItemCount = b.getInt();
+        b.position(b.position() + 20); //skip the currently undefined bytes
 
         byte[] propertyBytes = new byte[propertiesLength];
         b.get(propertyBytes);
@@ -172,14 +330,21 @@ class SerializerOperations {
 
         //now update header in memory
         fileHeader.setSeriesProperties(propertyBytes);
+        if ( versionString.equals(CompressedBlockOperations.VERSION_STRING)) {
+            fileHeader.updateFormatFields(versionString, blockSize, blockCount, storedItemCount);
+        } else {
+            fileHeader.updateFormatFields(versionString, 0, 0, 0);
+        }
         fileHeader.updateHeaderFields(headerLength, currentHead, currentTail, seriesMaxLength, mostRecentTimestamp);
     }
 
     /**
      * Append items to filesystem, updating fileHeader in memory with new series length, head and tail offset
      */
-    void doAppend(FileHeader header, RoundRobinTimeSeries toAppend, boolean writeProperties, byte[] properties, AuditedFileChannel c) throws IOException {
-        if ( toAppend.size() > 0) {
+    void doAppend(FileHeader header, RoundRobinTimeSeries toAppend, boolean writeProperties, byte[] properties, AuditedChannel c) throws IOException {
+        if ( toAppend.size() > 0 && header.isCompressed()) {
+            compressedBlockOperations.doAppend(header, toAppend, c);
+        } else if ( toAppend.size() > 0) {
 
             //work out new size, new head and tail offsets
             int currentSize = header.getCurrentSeriesSize();
@@ -201,17 +366,16 @@ class SerializerOperations {
             int bytesToWriteAtEnd = Math.min(appendBuffer.limit(), (header.getSeriesMaxLength() - header.getCurrentTail()) * 16);
             int bytesToWriteAtStart = appendBuffer.limit() - bytesToWriteAtEnd;
 
+            //write slices of the append buffer rather than copying each section to a new buffer
             byte[] appendArray = appendBuffer.array();
             if ( bytesToWriteAtStart > 0) {
-                ByteBuffer startBuffer = getByteBuffer(byteArrayTwo, bytesToWriteAtStart);
-                startBuffer.put(appendArray, appendBuffer.limit() - startBuffer.limit(), startBuffer.limit());
+                ByteBuffer startBuffer = ByteBuffer.wrap(appendArray, bytesToWriteAtEnd, bytesToWriteAtStart).slice();
                 c.position(header.getHeaderLength());
                 c.writeCompletely(startBuffer);
             }
 
             if ( bytesToWriteAtEnd > 0 ) {
-                ByteBuffer endBuffer = getByteBuffer(byteArrayThree, bytesToWriteAtEnd);
-                endBuffer.put(appendArray, 0, endBuffer.limit());
+                ByteBuffer endBuffer = ByteBuffer.wrap(appendArray, 0, bytesToWriteAtEnd).slice();
                 c.position(header.getHeaderLength() + (header.getCurrentTail() * 16));
                 c.writeCompletely(endBuffer);
             }
@@ -235,7 +399,7 @@ class SerializerOperations {
      * Get a ByteBuffer using the referenced byte[] array
      * If the refernced array is null or is too small, use a new byte[] and update the reference
      */
-    private ByteBuffer getByteBuffer(AtomicReference<byte[]> arrayToWrap, int writableLength) {
+    static ByteBuffer getByteBuffer(AtomicReference<byte[]> arrayToWrap, int writableLength) {
         byte[] b = arrayToWrap.get();
         if ( b != null && b.length >= writableLength ) {
             return ByteBuffer.wrap(b, 0, writableLength);
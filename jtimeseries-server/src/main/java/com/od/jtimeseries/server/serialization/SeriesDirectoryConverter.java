@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.server.util.ServerDefaults;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+
+import java.io.File;
+
+/**
+ * Offline tool to convert a directory of series files, one file per series, into segmented storage for the
+ * SegmentedSerializer. The source directory is left unchanged.
+ *
+ * The server must not be running against either directory while the conversion takes place
+ *
+ * Usage: SeriesDirectoryConverter sourceDirectory targetDirectory [seriesFileSuffix] [segmentSizeMB]
+ */
+public class SeriesDirectoryConverter {
+
+    private static final int DEFAULT_SEGMENT_SIZE_MB = 64;
+
+    private final RoundRobinSerializer source;
+    private final SegmentedSerializer target;
+    private int convertedCount;
+    private int failedCount;
+
+    public SeriesDirectoryConverter(RoundRobinSerializer source, SegmentedSerializer target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Copy each series in the source to the target, keeping the file format of each series
+     */
+    public void convert() {
+        for ( File f : source.getSeriesFiles()) {
+            try {
+                FileHeader header = source.readHeader(f);
+                RoundRobinTimeSeries series = source.readSeries(header);
+                target.setCompressedFormat(header.isCompressed());
+                target.writeSeries(header, series);
+                convertedCount++;
+            } catch (SerializationException e) {
+                System.err.println("Failed to convert series file " + f + ", " + e);
+                failedCount++;
+            }
+        }
+    }
+
+    public int getConvertedCount() {
+        return convertedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public static void main(String[] args) throws SerializationException {
+        if ( args.length < 2 || args.length > 4) {
+            System.err.println("Usage: SeriesDirectoryConverter sourceDirectory targetDirectory [seriesFileSuffix] [segmentSizeMB]");
+            System.exit(1);
+        }
+
+        File sourceDirectory = new File(args[0]);
+        File targetDirectory = new File(args[1]);
+        String suffix = args.length > 2 ? args[2] : ServerDefaults.DEFAULT_TIMESERIES_SUFFIX;
+        int segmentSizeMb = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SEGMENT_SIZE_MB;
+
+        if ( new File(targetDirectory, SegmentedSerializer.INDEX_FILE_NAME).exists()) {
+            System.err.println("Target directory " + targetDirectory + " already contains segmented series storage");
+            System.exit(1);
+        }
+        targetDirectory.mkdirs();
+
+        AbstractLockedSerializer.setShutdownHandlingDisabled(true);
+        RoundRobinSerializer source = new RoundRobinSerializer(sourceDirectory, suffix);
+        SegmentedSerializer target = new SegmentedSerializer(targetDirectory, suffix, segmentSizeMb);
+
+        long startTime = System.currentTimeMillis();
+        SeriesDirectoryConverter converter = new SeriesDirectoryConverter(source, target);
+        try {
+            converter.convert();
+        } finally {
+            target.close();
+        }
+
+        System.out.println("Converted " + converter.getConvertedCount() + " series into " + target.getSegmentCount() +
+            " segments in " + (System.currentTimeMillis() - startTime) + " milliseconds, failed to convert " + converter.getFailedCount());
+    }
+}
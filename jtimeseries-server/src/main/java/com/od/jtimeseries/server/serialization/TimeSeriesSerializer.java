@@ -1,8 +1,11 @@
 package com.od.jtimeseries.server.serialization;
 
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -16,8 +19,26 @@ public interface TimeSeriesSerializer {
 
     RoundRobinTimeSeries readSeries(FileHeader fileHeader) throws SerializationException;
 
+    /**
+     * Read the series, holding its items in the storage given
+     */
+    RoundRobinTimeSeries readSeries(FileHeader fileHeader, SeriesStorage storage) throws SerializationException;
+
+    /**
+     * Read the items with timestamps from startTime to endTime inclusive, without reading the whole series
+     * @param itemsToSkip - number of the earliest items in the series to ignore
+     * @param maxItems - maximum number of items to return
+     */
+    List<TimeSeriesItem> readItemsInRange(FileHeader fileHeader, long startTime, long endTime, int itemsToSkip, int maxItems) throws SerializationException;
+
     FileHeader readHeader(File f) throws SerializationException;
 
+    /**
+     * Read the header of a series which is being loaded, so no other thread is reading or writing it yet
+     * This may be called from several threads at once, and where the storage allows, the headers are read in parallel
+     */
+    FileHeader readHeaderForLoad(File f) throws SerializationException;
+
     boolean fileExists(FileHeader fileHeader);
 
     void readHeader(FileHeader fileHeader) throws SerializationException;
@@ -36,4 +57,23 @@ public interface TimeSeriesSerializer {
      * Write to disk any changed properties in header
      */
     void writeHeaderProperties(FileHeader header) throws SerializationException;
+
+    /**
+     * @return a File for each stored series, which can be passed to readHeader(File)
+     * Depending on the storage used, these may identify a series rather than a physical file on disk
+     */
+    List<File> getSeriesFiles();
+
+    /**
+     * Delete stored series, least recently updated first, while the limits are exceeded
+     * @param maxSeriesCount - maximum number of series to keep, zero or -1 = no maximum
+     * @param maxCumulativeSize - maximum cumulative size in bytes of series to keep, zero or -1 = no maximum
+     * @param maxAgeInMillis - maximum age of a series since it was last updated, zero or -1 = no maximum
+     */
+    void removeOldSeries(int maxSeriesCount, int maxCumulativeSize, long maxAgeInMillis);
+
+    /**
+     * @return an estimate of the bytes written to store each item of the series, in the format it is stored in
+     */
+    double getBytesPerItem(FileHeader header);
 }
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.servermetrics;
+
+import com.od.jtimeseries.component.managedmetric.AbstractManagedMetric;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.server.timeseries.FlushScheduler;
+import com.od.jtimeseries.source.ValueSupplier;
+import com.od.jtimeseries.util.numeric.LongNumeric;
+import com.od.jtimeseries.util.numeric.Numeric;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+public class FlushDirtyBytesMetric extends AbstractManagedMetric {
+
+    private static final String id = "FlushDirtyBytes";
+    private String parentContextPath;
+    private FlushScheduler flushScheduler;
+    private TimePeriod timePeriod;
+
+    public FlushDirtyBytesMetric(String parentContextPath, FlushScheduler flushScheduler) {
+        this(parentContextPath, flushScheduler, DEFAULT_TIME_PERIOD_FOR_SERVER_METRICS);
+    }
+
+    public FlushDirtyBytesMetric(String parentContextPath, FlushScheduler flushScheduler, TimePeriod timePeriod) {
+        this.parentContextPath = parentContextPath;
+        this.flushScheduler = flushScheduler;
+        this.timePeriod = timePeriod;
+    }
+
+    protected String getSeriesPath() {
+        return parentContextPath + Identifiable.NAMESPACE_SEPARATOR + id;
+    }
+
+    public void doInitializeMetric(TimeSeriesContext rootContext, String path) {
+        rootContext.createTimedValueSupplierSeries(
+            path,
+            "Bytes held in write behind caches waiting to be flushed to disk",
+            new ValueSupplier() {
+                public Numeric getValue() {
+                    return LongNumeric.valueOf(flushScheduler.getDirtyBytes());
+                }
+            },
+            timePeriod
+        );
+    }
+}
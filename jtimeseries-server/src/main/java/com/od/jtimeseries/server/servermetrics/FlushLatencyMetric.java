@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.servermetrics;
+
+import com.od.jtimeseries.component.managedmetric.AbstractManagedMetric;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.server.timeseries.FlushScheduler;
+import com.od.jtimeseries.source.ValueRecorder;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MAX;
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MEDIAN;
+
+public class FlushLatencyMetric extends AbstractManagedMetric {
+
+    private static final String id = "FlushLatency";
+    private String parentContextPath;
+    private TimePeriod captureTime;
+
+    public FlushLatencyMetric(String parentContextPath) {
+        this(parentContextPath, DEFAULT_TIME_PERIOD_FOR_SERVER_METRICS);
+    }
+
+    public FlushLatencyMetric(String parentContextPath, TimePeriod captureTime) {
+        this.parentContextPath = parentContextPath;
+        this.captureTime = captureTime;
+    }
+
+    protected String getSeriesPath() {
+        return parentContextPath + Identifiable.NAMESPACE_SEPARATOR + id;
+    }
+
+    public void doInitializeMetric(TimeSeriesContext rootContext, String path) {
+        ValueRecorder v = rootContext.createValueRecorderSeries(
+                path,
+                "Time in milliseconds between the most overdue series in each flush batch becoming due and the batch being written",
+                MEDIAN(captureTime), MAX(captureTime)
+        );
+        FlushScheduler.setFlushLatencyValueRecorder(v);
+    }
+}
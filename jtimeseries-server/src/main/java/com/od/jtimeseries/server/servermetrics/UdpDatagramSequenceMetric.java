@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.servermetrics;
+
+import com.od.jtimeseries.component.managedmetric.AbstractManagedMetric;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.net.udp.UdpServer;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.util.time.Time;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+import java.util.List;
+
+import static com.od.jtimeseries.capture.function.CaptureFunctions.LATEST;
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MEAN_COUNT_OVER;
+
+/**
+ * Datagrams lost, duplicated and reordered, counted from the sequence numbers which publishers may add to datagrams,
+ * under a context named by the metric id
+ */
+public class UdpDatagramSequenceMetric extends AbstractManagedMetric {
+
+    private static final String id = "UdpSequence";
+    private String parentContextPath;
+    private List<UdpServer> udpServers;
+    private TimePeriod timePeriod;
+
+    public UdpDatagramSequenceMetric(String parentContextPath, List<UdpServer> udpServers) {
+        this(parentContextPath, DEFAULT_TIME_PERIOD_FOR_SERVER_METRICS, udpServers);
+    }
+
+    public UdpDatagramSequenceMetric(String parentContextPath, TimePeriod timePeriod, List<UdpServer> udpServers) {
+        this.parentContextPath = parentContextPath;
+        this.udpServers = udpServers;
+        this.timePeriod = timePeriod;
+    }
+
+    protected String getSeriesPath() {
+        return parentContextPath + Identifiable.NAMESPACE_SEPARATOR + id;
+    }
+
+    public void doInitializeMetric(TimeSeriesContext rootContext, String path) {
+        Counter lost = createCounter(rootContext, path, "DatagramsLost", "Number of sequence numbered datagrams which were not received");
+        Counter duplicated = createCounter(rootContext, path, "DatagramsDuplicated", "Number of sequence numbered datagrams received more than once");
+        Counter reordered = createCounter(rootContext, path, "DatagramsReordered", "Number of sequence numbered datagrams received after a later datagram from the same source");
+
+        //the overall counts across all udpServers
+        for ( UdpServer s : udpServers) {
+            s.setDatagramsLostCounter(lost);
+            s.setDatagramsDuplicatedCounter(duplicated);
+            s.setDatagramsReorderedCounter(reordered);
+        }
+    }
+
+    private Counter createCounter(TimeSeriesContext rootContext, String path, String name, String description) {
+        return rootContext.createCounterSeries(
+            path + Identifiable.NAMESPACE_SEPARATOR + name,
+            description,
+            MEAN_COUNT_OVER(Time.seconds(1), timePeriod),
+            LATEST(timePeriod)
+        );
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.servermetrics;
+
+import com.od.jtimeseries.component.managedmetric.AbstractManagedMetric;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.server.message.UdpIngestionWorkers;
+import com.od.jtimeseries.source.ValueRecorder;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MAX;
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MEDIAN;
+
+/**
+ * One series per ingestion worker partition, under a context named by the metric id
+ */
+public class UdpIngestionLatencyMetric extends AbstractManagedMetric {
+
+    private static final String id = "UdpIngestionLatency";
+    private String parentContextPath;
+    private UdpIngestionWorkers ingestionWorkers;
+    private TimePeriod captureTime;
+
+    public UdpIngestionLatencyMetric(String parentContextPath, UdpIngestionWorkers ingestionWorkers) {
+        this(parentContextPath, ingestionWorkers, DEFAULT_TIME_PERIOD_FOR_SERVER_METRICS);
+    }
+
+    public UdpIngestionLatencyMetric(String parentContextPath, UdpIngestionWorkers ingestionWorkers, TimePeriod captureTime) {
+        this.parentContextPath = parentContextPath;
+        this.ingestionWorkers = ingestionWorkers;
+        this.captureTime = captureTime;
+    }
+
+    protected String getSeriesPath() {
+        return parentContextPath + Identifiable.NAMESPACE_SEPARATOR + id;
+    }
+
+    public void doInitializeMetric(TimeSeriesContext rootContext, String path) {
+        for ( int loop=0; loop < ingestionWorkers.getPartitionCount(); loop++) {
+            ValueRecorder v = rootContext.createValueRecorderSeries(
+                path + Identifiable.NAMESPACE_SEPARATOR + "partition" + loop,
+                "Time in milliseconds the oldest update in each batch taken by ingestion worker " + loop + " waited in its queue",
+                MEDIAN(captureTime), MAX(captureTime)
+            );
+            ingestionWorkers.setLatencyValueRecorder(loop, v);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.servermetrics;
+
+import com.od.jtimeseries.component.managedmetric.AbstractManagedMetric;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.net.udp.ReplicationDestination;
+import com.od.jtimeseries.net.udp.UdpServer;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.util.time.Time;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+import static com.od.jtimeseries.capture.function.CaptureFunctions.LATEST;
+import static com.od.jtimeseries.capture.function.CaptureFunctions.MEAN_COUNT_OVER;
+
+/**
+ * Datagrams sent and dropped for each replication destination of a UdpServer, under a context named by the metric id
+ */
+public class UdpReplicationMetric extends AbstractManagedMetric {
+
+    private static final String id = "UdpReplication";
+    private String parentContextPath;
+    private UdpServer udpServer;
+    private TimePeriod timePeriod;
+
+    public UdpReplicationMetric(String parentContextPath, UdpServer udpServer) {
+        this(parentContextPath, udpServer, DEFAULT_TIME_PERIOD_FOR_SERVER_METRICS);
+    }
+
+    public UdpReplicationMetric(String parentContextPath, UdpServer udpServer, TimePeriod timePeriod) {
+        this.parentContextPath = parentContextPath;
+        this.udpServer = udpServer;
+        this.timePeriod = timePeriod;
+    }
+
+    protected String getSeriesPath() {
+        return parentContextPath + Identifiable.NAMESPACE_SEPARATOR + id;
+    }
+
+    public void doInitializeMetric(TimeSeriesContext rootContext, String path) {
+        int index = 0;
+        for ( ReplicationDestination d : udpServer.getReplicationDestinations()) {
+            String destinationPath = path + Identifiable.NAMESPACE_SEPARATOR + "destination" + index++;
+            Counter sent = rootContext.createCounterSeries(
+                destinationPath + Identifiable.NAMESPACE_SEPARATOR + "DatagramsSent",
+                "Number of datagrams replicated to " + d.getUdpClientConfig(),
+                MEAN_COUNT_OVER(Time.seconds(1), timePeriod),
+                LATEST(timePeriod)
+            );
+            d.setDatagramsSentCounter(sent);
+
+            Counter dropped = rootContext.createCounterSeries(
+                destinationPath + Identifiable.NAMESPACE_SEPARATOR + "DatagramsDropped",
+                "Number of datagrams not replicated to " + d.getUdpClientConfig() + " because too many were waiting to be sent",
+                LATEST(timePeriod),
+                MEAN_COUNT_OVER(Time.seconds(1), timePeriod)
+            );
+            d.setDatagramsDroppedCounter(dropped);
+        }
+    }
+}
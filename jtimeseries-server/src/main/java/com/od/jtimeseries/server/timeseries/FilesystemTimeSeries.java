@@ -27,7 +27,7 @@ import com.od.jtimeseries.server.serialization.TimeSeriesSerializer;
 import com.od.jtimeseries.timeseries.*;
 import com.od.jtimeseries.timeseries.impl.ProxyTimeSeriesEventHandler;
 import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
-import com.od.jtimeseries.util.NamedExecutors;
+import com.od.jtimeseries.timeseries.impl.SeriesStorage;
 import com.od.jtimeseries.util.TimeSeriesExecutorFactory;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
@@ -38,9 +38,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -58,18 +55,27 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * outnumber all other operations. Other operations (e.g. iterator) in general require the whole time series to be deserialized,
  * which is expensive, and are to be avoided where possible.
  *
+ * Write behind caches are flushed by a FlushScheduler, which may be shared by many series. Appended items may also be
+ * recorded in a SeriesJournal, so that they can be recovered if the server stops before the cache is flushed
+ *
+ * If rollups are configured, appended items are also rolled up into tiers at coarser resolutions, which are written
+ * along with the write behind cache, so long time ranges can be read without loading the series
+ *
  * TODO
  * It would almost certainly be possible to improve the local WriteBehindCache to hold inserts and removes as well as appends
  * so that the whole series to be deserialized to support these operations,
  * but I've left this for another day, I'm really expecting appends only at present
  */
-public class FilesystemTimeSeries extends IdentifiableBase implements IdentifiableTimeSeries, IndexedTimeSeries {
+public class FilesystemTimeSeries extends IdentifiableBase implements IdentifiableTimeSeries, IndexedTimeSeries, MultiResolutionTimeSeries {
 
     private static final LogMethods logMethods = LogUtils.getLogMethods(FilesystemTimeSeries.class);
-    private static ScheduledExecutorService clearCacheExecutor = NamedExecutors.newSingleThreadScheduledExecutor("FilesystemTimeSeriesClearCache");
 
     private Executor eventExecutor = TimeSeriesExecutorFactory.getExecutorForTimeSeriesEvents(this);
     private TimeSeriesSerializer timeseriesSerializer;
+    private FlushScheduler flushScheduler;
+    private SeriesJournal journal;
+    private SeriesRollups rollups;
+    private SeriesStorage seriesStorage = SeriesStorage.OBJECTS;
     private TimePeriod appendPeriod;
     private TimePeriod rewritePeriod;
     private FileHeader fileHeader;
@@ -78,7 +84,6 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
     private WriteBehindCache writeBehindCache;
     private volatile long lastTimestamp = -1;
     private volatile TimeSeriesItem lastItem;
-    private ScheduledFuture nextFlushTask;
     private volatile long modCount;
     private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
@@ -86,10 +91,18 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
      *  Create a FilesystemTimeSeries for a series which already exists on disk, passing in the FileHeader, which must have been updated to match the latest state of the file
      */
     public FilesystemTimeSeries(FileHeader fileHeader, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
+        this(fileHeader, timeseriesSerializer, timeSeriesCache, FlushScheduler.getDefaultScheduler(), appendPeriod, rewritePeriod);
+    }
+
+    public FilesystemTimeSeries(FileHeader fileHeader, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
+        this(fileHeader, timeseriesSerializer, timeSeriesCache, flushScheduler, SeriesJournal.DISABLED_JOURNAL, appendPeriod, rewritePeriod);
+    }
+
+    public FilesystemTimeSeries(FileHeader fileHeader, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, SeriesJournal journal, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
         super(fileHeader.getId(), fileHeader.getDescription());
         this.fileHeader = fileHeader;
         this.timeSeriesCache = timeSeriesCache;
-        setFields(timeseriesSerializer, appendPeriod, rewritePeriod, fileHeader);
+        setFields(timeseriesSerializer, flushScheduler, journal, appendPeriod, rewritePeriod, fileHeader);
     }
 
     /**
@@ -98,14 +111,24 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
      *  created
      */
     public FilesystemTimeSeries(String parentPath, String id, String description, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, int seriesLength, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
+        this(parentPath, id, description, timeseriesSerializer, timeSeriesCache, FlushScheduler.getDefaultScheduler(), seriesLength, appendPeriod, rewritePeriod);
+    }
+
+    public FilesystemTimeSeries(String parentPath, String id, String description, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, int seriesLength, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
+        this(parentPath, id, description, timeseriesSerializer, timeSeriesCache, flushScheduler, SeriesJournal.DISABLED_JOURNAL, seriesLength, appendPeriod, rewritePeriod);
+    }
+
+    public FilesystemTimeSeries(String parentPath, String id, String description, TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, SeriesJournal journal, int seriesLength, TimePeriod appendPeriod, TimePeriod rewritePeriod) throws SerializationException {
         super(id, description);
         this.timeSeriesCache = timeSeriesCache;
         this.fileHeader = createFileHeader(timeseriesSerializer, parentPath, seriesLength);
-        setFields(timeseriesSerializer, appendPeriod, rewritePeriod, fileHeader);
+        setFields(timeseriesSerializer, flushScheduler, journal, appendPeriod, rewritePeriod, fileHeader);
     }
 
-    private void setFields(TimeSeriesSerializer timeseriesSerializer, TimePeriod appendPeriod, TimePeriod rewritePeriod, FileHeader fileHeader) {
+    private void setFields(TimeSeriesSerializer timeseriesSerializer, FlushScheduler flushScheduler, SeriesJournal journal, TimePeriod appendPeriod, TimePeriod rewritePeriod, FileHeader fileHeader) {
         this.timeseriesSerializer = timeseriesSerializer;
+        this.flushScheduler = flushScheduler;
+        this.journal = journal;
         this.appendPeriod = appendPeriod;
         this.rewritePeriod = rewritePeriod;
         this.lastTimestamp = fileHeader.getMostRecentItemTimestamp();
@@ -144,7 +167,6 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         } finally {
             this.writeLock().unlock();
         }
-
     }
 
     public void addAll(Iterable<TimeSeriesItem> items) {
@@ -156,7 +178,6 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         } finally {
             this.writeLock().unlock();
         }
-
     }
 
     private boolean doAppend(final TimeSeriesItem i) {
@@ -167,6 +188,9 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         boolean result = false;
         if ( i.getTimestamp() >= lastTimestamp) {
             writeBehindCache.addItemForAppend(i);
+            if ( rollups != null) {
+                rollups.addItem(i);
+            }
             result = true;
             RoundRobinTimeSeries s = getRoundRobinSeries(false);
             if ( s != null) {
@@ -347,6 +371,10 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         return getId().hashCode();
     }
 
+    /**
+     * @return the modCount, without causing a load from the filesystem, so that along with getLatestTimestamp and
+     * the properties held in the FileHeader, a client's copy of the series can be validated without reading it
+     */
     public long getModCount() {
         return modCount;
     }
@@ -355,12 +383,87 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         return getRoundRobinSeries().getFirstItemAtOrBefore(timestamp);
     }
 
+    /**
+     * If the series is not in memory, read only the items required from the file rather than loading the series
+     */
     public TimeSeriesItem getFirstItemAtOrAfter(long timestamp) {
-        return getRoundRobinSeries().getFirstItemAtOrAfter(timestamp);
+        try {
+            this.readLock().lock();
+            RoundRobinTimeSeries r = getRoundRobinSeries(false);
+            TimeSeriesItem result;
+            if ( r != null) {
+                result = r.getFirstItemAtOrAfter(timestamp);
+            } else {
+                List<TimeSeriesItem> items = readItemsFromFile(timestamp, Long.MAX_VALUE, 1);
+                result = items.size() > 0 ? items.get(0) : writeBehindCache.getAppendItems().getFirstItemAtOrAfter(timestamp);
+            }
+            return result;
+        } finally {
+            this.readLock().unlock();
+        }
     }
 
+    /**
+     * If the series is not in memory, read only the items required from the file rather than loading the series
+     */
     public List<TimeSeriesItem> getItemsInRange(long startTime, long endTime) {
-        return getRoundRobinSeries().getItemsInRange(startTime, endTime);
+        try {
+            this.readLock().lock();
+            RoundRobinTimeSeries r = getRoundRobinSeries(false);
+            List<TimeSeriesItem> result;
+            if ( r != null) {
+                result = r.getItemsInRange(startTime, endTime);
+            } else {
+                //items waiting to be appended are all later than the items in the file
+                result = readItemsFromFile(startTime, endTime, Integer.MAX_VALUE);
+                result.addAll(writeBehindCache.getAppendItems().getItemsInRange(startTime, endTime));
+            }
+            return result;
+        } finally {
+            this.readLock().unlock();
+        }
+    }
+
+    public long[] getResolutions() {
+        return rollups != null ? rollups.getResolutions() : new long[0];
+    }
+
+    public long getEarliestRollupTimestamp() {
+        return rollups != null ? rollups.getEarliestTimestamp() : -1;
+    }
+
+    /**
+     * Read from the coarsest rolled up tier with a period no greater than resolution, or the raw items if there is none
+     */
+    public List<TimeSeriesItem> getItemsInRange(long startTime, long endTime, long resolution) {
+        try {
+            this.readLock().lock();
+            List<TimeSeriesItem> result = rollups != null ? rollups.getItemsInRange(startTime, endTime, resolution) : null;
+            return result != null ? result : getItemsInRange(startTime, endTime);
+        } finally {
+            this.readLock().unlock();
+        }
+    }
+
+    void setRollups(SeriesRollups rollups) {
+        this.rollups = rollups;
+    }
+
+    /**
+     * Set how the series holds its items in memory while it is deserialized
+     */
+    void setSeriesStorage(SeriesStorage seriesStorage) {
+        this.seriesStorage = seriesStorage;
+    }
+
+    //the earliest items in the file are skipped if they will be lost to round robin when the items to append are written
+    private List<TimeSeriesItem> readItemsFromFile(long startTime, long endTime, int maxItems) {
+        int itemsToSkip = Math.max(0, fileHeader.getCurrentSeriesSize() + writeBehindCache.getAppendItems().size() - getMaxSize());
+        try {
+            return timeseriesSerializer.readItemsInRange(fileHeader, startTime, endTime, itemsToSkip, maxItems);
+        } catch (SerializationException e) {
+            throw new RuntimeException("Could not load timeseries values", e);
+        }
     }
 
     //delegate property handling to FileHeader, so that properties get persisted
@@ -401,7 +504,7 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         RoundRobinTimeSeries s = isSeriesInWriteCache() ? writeBehindCache.getSeries() : timeSeriesCache.get(this);
         if ( s == null && deserializeIfRequired ) {
             try {
-                s = timeseriesSerializer.readSeries(fileHeader);
+                s = timeseriesSerializer.readSeries(fileHeader, seriesStorage);
 
                 //there may be items in our cache we need to add to
                 //bring the filesystem series into sync. We will have to call a special
@@ -448,17 +551,37 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         //there is never any point in appending more items than the max series size, so use a round robin series to store until flush
         private RoundRobinTimeSeries itemsToAppend = new RoundRobinTimeSeries(getMaxSize());
 
+        //the bytes to be written by the next flush, as last reported to the FlushScheduler
+        private long dirtyBytes;
+
+        //the earliest journal generation holding appended items which are not yet flushed
+        private int journalGeneration = SeriesJournal.NO_GENERATION;
+
         public void cacheSeriesForRewrite(RoundRobinTimeSeries roundRobinSeries) {
             this.roundRobinSeries = roundRobinSeries;
             itemsToAppend.clear(); //clear the append items list, we don't need it, we will now rewrite the whole series instead
+            updateDirtyBytes();
             scheduleFlushCacheTask(rewritePeriod.getLengthInMillis());
         }
 
         public void addItemForAppend(TimeSeriesItem timeSeriesItem) {
+            //journal even if we are going to rewrite the whole series, since the appends are still lost if we die first
+            journalGeneration = journal.append(fileHeader.getPath(), timeSeriesItem, journalGeneration);
             if ( roundRobinSeries == null) { //only if we are not already going to rewrite the whole series
                 itemsToAppend.addItem(timeSeriesItem);
                 scheduleFlushCacheTask(appendPeriod.getLengthInMillis());
             }
+            updateDirtyBytes();
+        }
+
+        //estimated from the bytes per item in the format the serializer writes the series file
+        private void updateDirtyBytes() {
+            int items = roundRobinSeries != null ? roundRobinSeries.size() : itemsToAppend.size();
+            long newDirtyBytes = (long)Math.ceil(items * timeseriesSerializer.getBytesPerItem(fileHeader));
+            if ( newDirtyBytes != dirtyBytes) {
+                flushScheduler.dirtyBytesChanged(newDirtyBytes - dirtyBytes);
+                dirtyBytes = newDirtyBytes;
+            }
         }
 
         public RoundRobinTimeSeries getAppendItems() {
@@ -488,6 +611,11 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
                     timeseriesSerializer.appendToSeries(fileHeader, itemsToAppend);
                 }
 
+                //rollups handle their own write failures, retrying at the next flush
+                if ( rollups != null) {
+                    rollups.flush();
+                }
+
                 //clear cache if no exception / write succeeded
                 //otherwise hold on to changes until we try the write again
                 clearCache();
@@ -501,6 +629,11 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         private void clearCache() {
             roundRobinSeries = null;
             itemsToAppend.clear();
+            updateDirtyBytes();
+
+            //the journalled items are now in the series file
+            journal.release(journalGeneration);
+            journalGeneration = SeriesJournal.NO_GENERATION;
         }
 
         private boolean isFlushRequired() {
@@ -522,26 +655,8 @@ public class FilesystemTimeSeries extends IdentifiableBase implements Identifiab
         }
 
         private void scheduleFlushCacheTask(long delayMillis) {
-            //cancel the next flush, and schedule a new one sooner
-            if ( nextFlushTask == null || nextFlushTask.isDone())  {
-                scheduleNewTask(delayMillis);
-            } else if ( nextFlushTask.getDelay(TimeUnit.MILLISECONDS) > delayMillis ) {
-                //bring forward by cancelling and scheduling a new task
-                nextFlushTask.cancel(false);
-                scheduleNewTask(delayMillis);
-            }
-        }
-
-        private void scheduleNewTask(long delayMillis) {
-            nextFlushTask = clearCacheExecutor.schedule(
-                new Runnable() {
-                    public void run() {
-                        writeBehindCache.flush();
-                    }
-                },
-                delayMillis,
-                TimeUnit.MILLISECONDS
-            );
+            //the scheduler will bring forward the flush if it was due later
+            flushScheduler.scheduleFlush(FilesystemTimeSeries.this, delayMillis);
         }
     }
 
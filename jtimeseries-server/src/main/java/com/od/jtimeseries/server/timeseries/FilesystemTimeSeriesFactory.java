@@ -38,30 +38,56 @@ import com.od.jtimeseries.util.time.TimePeriod;
 public class FilesystemTimeSeriesFactory extends DefaultTimeSeriesFactory {
 
     private TimeSeriesSerializer timeseriesSerializer;
+    private FlushScheduler flushScheduler;
+    private SeriesJournal journal;
+    private RollupConfiguration rollupConfiguration;
     private TimePeriod fileAppendDelay;
     private TimePeriod fileRewriteDelay;
     private int seriesLength;
     private TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache;
 
     public FilesystemTimeSeriesFactory(TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, TimePeriod fileAppendDelay, TimePeriod fileRewriteDelay, int seriesLength) {
+        this(timeseriesSerializer, timeSeriesCache, FlushScheduler.getDefaultScheduler(), fileAppendDelay, fileRewriteDelay, seriesLength);
+    }
+
+    public FilesystemTimeSeriesFactory(TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, TimePeriod fileAppendDelay, TimePeriod fileRewriteDelay, int seriesLength) {
+        this(timeseriesSerializer, timeSeriesCache, flushScheduler, SeriesJournal.DISABLED_JOURNAL, fileAppendDelay, fileRewriteDelay, seriesLength);
+    }
+
+    public FilesystemTimeSeriesFactory(TimeSeriesSerializer timeseriesSerializer, TimeSeriesCache<Identifiable,RoundRobinTimeSeries> timeSeriesCache, FlushScheduler flushScheduler, SeriesJournal journal, TimePeriod fileAppendDelay, TimePeriod fileRewriteDelay, int seriesLength) {
         this.timeseriesSerializer = timeseriesSerializer;
+        this.flushScheduler = flushScheduler;
+        this.journal = journal;
         this.timeSeriesCache = timeSeriesCache;
         this.fileAppendDelay = fileAppendDelay;
         this.fileRewriteDelay = fileRewriteDelay;
         this.seriesLength = seriesLength;
     }
 
+    /**
+     * Set the rolled up tiers to maintain for each series, by default there are none
+     */
+    public void setRollupConfiguration(RollupConfiguration rollupConfiguration) {
+        this.rollupConfiguration = rollupConfiguration;
+    }
+
     public IdentifiableTimeSeries createTimeSeries(Identifiable parent, String path, String id, String description, Class classType, Object... parameters) {
         if ( classType.isAssignableFrom(FilesystemTimeSeries.class)) {
             try {
-                IdentifiableTimeSeries result;
+                FilesystemTimeSeries result;
                 if ( parameters.length == 1 && parameters[0] instanceof FileHeader) {
                     FileHeader h = (FileHeader)parameters[0];
                     //series exists on disk already, we have a header
-                    result = new FilesystemTimeSeries(h, timeseriesSerializer, timeSeriesCache, fileAppendDelay, fileRewriteDelay);
+                    result = new FilesystemTimeSeries(h, timeseriesSerializer, timeSeriesCache, flushScheduler, journal, fileAppendDelay, fileRewriteDelay);
                 } else {
-                    result = new FilesystemTimeSeries(parent.getPath(), id, description, timeseriesSerializer, timeSeriesCache, seriesLength, fileAppendDelay, fileRewriteDelay);
+                    result = new FilesystemTimeSeries(parent.getPath(), id, description, timeseriesSerializer, timeSeriesCache, flushScheduler, journal, seriesLength, fileAppendDelay, fileRewriteDelay);
+                }
+                result.setSeriesStorage(getSeriesStorage());
+                if ( rollupConfiguration != null) {
+                    result.setRollups(rollupConfiguration.createRollups(result.getFileHeader().getPath()));
                 }
+                //any items journalled for the series in the previous run must be added before it can receive new items
+                journal.replay(result);
                 return result;
             } catch (SerializationException e) {
                 e.printStackTrace();
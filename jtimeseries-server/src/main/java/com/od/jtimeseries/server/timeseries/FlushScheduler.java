@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.source.ValueRecorder;
+import com.od.jtimeseries.source.impl.DefaultValueRecorder;
+import com.od.jtimeseries.util.NamedExecutors;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates the flushing of FilesystemTimeSeries write behind caches, in place of each series scheduling its own flush
+ *
+ * Series register the time at which they next need to be flushed. A single coordinator thread collects all the series
+ * which are due, sorts them by path so that files are written in directory order, and divides them into batches which are
+ * flushed in parallel by a pool of I/O workers. While a batch is being written the next batch accumulates, so under load
+ * flushes are naturally grouped together rather than queuing up one at a time.
+ *
+ * A global bound is placed on the bytes held in write behind caches. Once the bound is exceeded every dirty series is
+ * flushed immediately, whatever its scheduled time. Adding items to a series never waits, instead the UdpIngestionWorkers
+ * wait for the dirty bytes to fall back under the bound before they take more updates from their queues, so the
+ * ingestion overflow policy decides whether updates received meanwhile are dropped or the receive thread is blocked
+ *
+ * A series is usually already scheduled to be flushed sooner than its latest append requires, which scheduleFlush
+ * checks without taking the scheduler lock, so appends to different series do not contend. When a series is
+ * rescheduled sooner its earlier request is left in the queue, and skipped when it is polled
+ */
+public class FlushScheduler {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(FlushScheduler.class);
+
+    //wait at most this long for dirty bytes to fall below the limit, so a failing disk cannot stop ingestion forever
+    private static final long MAX_BACKPRESSURE_WAIT_MILLIS = 5000;
+
+    private static volatile ValueRecorder flushLatencyValueRecorder = new DefaultValueRecorder("dummyValueRecorder", "");
+
+    private static FlushScheduler defaultScheduler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequired = lock.newCondition();
+    private final Condition dirtyBytesBelowLimit = lock.newCondition();
+
+    private final ConcurrentHashMap<FilesystemTimeSeries, Long> flushTimes = new ConcurrentHashMap<FilesystemTimeSeries, Long>();
+    private final PriorityQueue<FlushRequest> flushQueue = new PriorityQueue<FlushRequest>();
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    private final long maxDirtyBytes;
+    private final int flushThreads;
+    private final ExecutorService flushExecutor;
+    private final Thread coordinatorThread;
+    private volatile boolean shutdown;
+
+    /**
+     * @param flushThreads, number of I/O worker threads to write series in parallel
+     * @param maxDirtyMb, bound on data held in write behind caches, zero or -1 = no maximum
+     */
+    public FlushScheduler(int flushThreads, int maxDirtyMb) {
+        this.flushThreads = Math.max(1, flushThreads);
+        this.maxDirtyBytes = maxDirtyMb > 0 ? maxDirtyMb * 1024L * 1024L : Long.MAX_VALUE;
+        this.flushExecutor = NamedExecutors.newFixedThreadPool("FilesystemTimeSeriesFlush", this.flushThreads);
+        coordinatorThread = new Thread(new FlushCoordinator(), "FilesystemTimeSeriesFlushScheduler");
+        coordinatorThread.setDaemon(true);
+        coordinatorThread.start();
+    }
+
+    /**
+     * @return a scheduler shared by series which are created without one
+     */
+    public static synchronized FlushScheduler getDefaultScheduler() {
+        if ( defaultScheduler == null) {
+            defaultScheduler = new FlushScheduler(1, -1);
+        }
+        return defaultScheduler;
+    }
+
+    public static void setFlushLatencyValueRecorder(ValueRecorder flushLatencyValueRecorder) {
+        FlushScheduler.flushLatencyValueRecorder = flushLatencyValueRecorder;
+    }
+
+    /**
+     * Schedule series to be flushed after delayMillis, unless it is already scheduled to be flushed sooner
+     */
+    void scheduleFlush(FilesystemTimeSeries series, long delayMillis) {
+        long flushTime = System.currentTimeMillis() + delayMillis;
+        //if the coordinator takes the series after we read its flush time, the flush will include the items just added
+        Long currentFlushTime = flushTimes.get(series);
+        if ( currentFlushTime == null || currentFlushTime > flushTime) {
+            try {
+                lock.lock();
+                currentFlushTime = flushTimes.get(series);
+                if ( currentFlushTime == null || currentFlushTime > flushTime) {
+                    flushTimes.put(series, flushTime);
+                    flushQueue.add(new FlushRequest(series, flushTime));
+                    flushRequired.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called when the bytes held in a series write behind cache change
+     */
+    void dirtyBytesChanged(long delta) {
+        long newDirtyBytes = dirtyBytes.addAndGet(delta);
+        if ( delta > 0 && newDirtyBytes > maxDirtyBytes) {
+            signal(flushRequired);
+        } else if ( delta < 0 && newDirtyBytes <= maxDirtyBytes) {
+            signal(dirtyBytesBelowLimit);
+        }
+    }
+
+    /**
+     * Wait while the dirty bytes are over the limit. This must not be called while holding a series lock, since the
+     * series may need to be flushed before we can proceed
+     */
+    public void waitForFlushCapacity() {
+        if ( dirtyBytes.get() > maxDirtyBytes) {
+            long waitUntil = System.currentTimeMillis() + MAX_BACKPRESSURE_WAIT_MILLIS;
+            try {
+                lock.lock();
+                long remaining;
+                while ( dirtyBytes.get() > maxDirtyBytes && (remaining = waitUntil - System.currentTimeMillis()) > 0) {
+                    dirtyBytesBelowLimit.await(remaining, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return number of series waiting to be flushed
+     */
+    public int getQueueDepth() {
+        return flushTimes.size();
+    }
+
+    /**
+     * @return bytes currently held in write behind caches
+     */
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * Stop the coordinator thread and the flush workers. Series still waiting to be flushed are not flushed
+     */
+    public void shutdown() {
+        shutdown = true;
+        signal(flushRequired);
+        flushExecutor.shutdown();
+    }
+
+    /**
+     * @return false once the coordinator thread has exited after shutdown
+     */
+    boolean isCoordinatorAlive() {
+        return coordinatorThread.isAlive();
+    }
+
+    private void signal(Condition c) {
+        try {
+            lock.lock();
+            c.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class FlushCoordinator implements Runnable {
+
+        public void run() {
+            while (! shutdown) {
+                try {
+                    List<FlushRequest> batch = waitForBatch();
+                    if ( shutdown ) {
+                        break;
+                    }
+                    long dirtyBytesBefore = dirtyBytes.get();
+                    flushBatch(batch);
+                    if ( dirtyBytes.get() > maxDirtyBytes && dirtyBytes.get() >= dirtyBytesBefore) {
+                        //flushing everything is not reducing the dirty bytes, probably writes are failing, don't spin
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException e) {
+                    logMethods.warn("Flush coordinator interrupted");
+                } catch (Throwable t) {
+                    logMethods.error("Error in flush coordinator", t);
+                }
+            }
+        }
+
+        //wait until at least one series is due, or the dirty bytes exceed the limit, and take all series which can be flushed
+        private List<FlushRequest> waitForBatch() throws InterruptedException {
+            List<FlushRequest> result = new ArrayList<FlushRequest>();
+            try {
+                lock.lock();
+                while ( result.isEmpty() && ! shutdown) {
+                    boolean flushAll = dirtyBytes.get() > maxDirtyBytes;
+                    long now = System.currentTimeMillis();
+                    while ( ! flushQueue.isEmpty() && (flushAll || flushQueue.peek().getFlushTime() <= now)) {
+                        FlushRequest r = flushQueue.poll();
+                        //skip a request replaced when the series was rescheduled sooner
+                        if ( flushTimes.remove(r.getSeries(), r.getFlushTime())) {
+                            result.add(r);
+                        }
+                    }
+
+                    if ( result.isEmpty()) {
+                        if ( flushQueue.isEmpty()) {
+                            flushRequired.await();
+                        } else {
+                            flushRequired.await(flushQueue.peek().getFlushTime() - now, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return result;
+        }
+
+        private void flushBatch(List<FlushRequest> batch) throws InterruptedException {
+            long earliestFlushTime = Long.MAX_VALUE;
+            for ( FlushRequest r : batch) {
+                earliestFlushTime = Math.min(earliestFlushTime, r.getFlushTime());
+            }
+
+            Collections.sort(batch, new Comparator<FlushRequest>() {
+                public int compare(FlushRequest o1, FlushRequest o2) {
+                    return o1.getSeries().getPath().compareTo(o2.getSeries().getPath());
+                }
+            });
+
+            //divide into contiguous runs, one for each worker, so each worker writes files in order
+            int workers = Math.min(flushThreads, batch.size());
+            int runLength = (batch.size() + workers - 1) / workers;
+            CountDownLatch latch = new CountDownLatch(workers);
+            for ( int start = 0; start < batch.size(); start += runLength) {
+                flushExecutor.execute(new FlushTask(batch.subList(start, Math.min(start + runLength, batch.size())), latch));
+            }
+            latch.await();
+
+            //how late the most overdue series in the batch was written
+            flushLatencyValueRecorder.newValue(System.currentTimeMillis() - earliestFlushTime);
+        }
+    }
+
+    private static class FlushTask implements Runnable {
+
+        private final List<FlushRequest> requests;
+        private final CountDownLatch latch;
+
+        public FlushTask(List<FlushRequest> requests, CountDownLatch latch) {
+            this.requests = requests;
+            this.latch = latch;
+        }
+
+        public void run() {
+            try {
+                for ( FlushRequest r : requests) {
+                    try {
+                        r.getSeries().flush();
+                    } catch (Throwable t) {
+                        logMethods.error("Failed to flush series " + r.getSeries().getPath(), t);
+                    }
+                }
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+
+    private static class FlushRequest implements Comparable<FlushRequest> {
+
+        private final FilesystemTimeSeries series;
+        private final long flushTime;
+
+        FlushRequest(FilesystemTimeSeries series, long flushTime) {
+            this.series = series;
+            this.flushTime = flushTime;
+        }
+
+        public FilesystemTimeSeries getSeries() {
+            return series;
+        }
+
+        public long getFlushTime() {
+            return flushTime;
+        }
+
+        public int compareTo(FlushRequest o) {
+            return flushTime < o.flushTime ? -1 : (flushTime == o.flushTime ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.server.util.FileReaper;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rolled up tiers to be maintained for each FilesystemTimeSeries
+ *
+ * Tier periods are configured as a comma separated list of durations, each a number followed by s, m, h or d,
+ * e.g. 1m,15m,1h. Each tier holds tierLength periods. An empty list disables rollups
+ *
+ * Each series has a rollup file of about 40 bytes per period held, e.g. 1.2MB for three tiers of 10080 periods.
+ * These files are not counted in the disk space limit for series files
+ */
+public class RollupConfiguration {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(RollupConfiguration.class);
+
+    private final File rollupDirectory;
+    private final long[] periods;
+    private final int tierLength;
+
+    public RollupConfiguration(File rollupDirectory, String tierPeriods, int tierLength) {
+        this.rollupDirectory = rollupDirectory;
+        this.periods = parsePeriods(tierPeriods);
+        this.tierLength = Math.max(1, tierLength);
+        if ( periods.length > 0) {
+            rollupDirectory.mkdirs();
+            logMethods.info("Series will be rolled up in tiers with periods " + Arrays.toString(periods) + " millis, " + tierLength + " periods per tier");
+        }
+    }
+
+    public boolean isEnabled() {
+        return periods.length > 0;
+    }
+
+    /**
+     * Delete rollup files which have not been written within the max age, the series they belong to will have been
+     * deleted for the same reason, or will no longer be rolled up
+     */
+    public void removeOldRollups(long maxAgeInMillis) {
+        if ( isEnabled() ) {
+            FileReaper reaper = new FileReaper(
+                "Rollup File Reaper",
+                rollupDirectory,
+                ".*\\" + SeriesRollups.ROLLUP_FILE_SUFFIX,
+                0,
+                0,
+                maxAgeInMillis
+            );
+            reaper.reap();
+        }
+    }
+
+    /**
+     * @return the rollups for the series at path, or null if rollups are disabled
+     */
+    SeriesRollups createRollups(String path) {
+        return isEnabled() ? new SeriesRollups(rollupDirectory, path, periods, tierLength) : null;
+    }
+
+    static long[] parsePeriods(String tierPeriods) {
+        List<Long> result = new ArrayList<Long>();
+        for ( String s : tierPeriods.split(",")) {
+            s = s.trim();
+            if ( s.length() > 0) {
+                long multiplier;
+                switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+                    case 's' : multiplier = 1000L; break;
+                    case 'm' : multiplier = 60 * 1000L; break;
+                    case 'h' : multiplier = 60 * 60 * 1000L; break;
+                    case 'd' : multiplier = 24 * 60 * 60 * 1000L; break;
+                    default : throw new IllegalArgumentException("Rollup tier period " + s + " should end with s, m, h or d");
+                }
+                result.add(Long.parseLong(s.substring(0, s.length() - 1).trim()) * multiplier);
+            }
+        }
+
+        long[] periods = new long[result.size()];
+        for ( int loop=0; loop < periods.length; loop++) {
+            periods[loop] = result.get(loop);
+        }
+        Arrays.sort(periods);
+        return periods;
+    }
+}
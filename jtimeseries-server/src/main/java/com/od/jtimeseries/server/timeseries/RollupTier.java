@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One rolled up tier of a series, holding the min, max, sum and count of the items in each period in a fixed size
+ * ring. The tiers of a series share one rollup file, in which each tier has a region of its own at a fixed offset
+ *
+ * Items are added to the open period as they are appended to the series. When an item arrives for a later period the
+ * open period is closed and waits to be written to the ring at the next flush. The open period is stored in the region
+ * header so it can be continued after a restart. Items earlier than the open period (inserts) are not rolled up
+ *
+ * SeriesRollups opens the file and serializes access to its tiers
+ */
+class RollupTier {
+
+    private static final int ROLLUP_VERSION = 0x54535232; //TSR2
+
+    //version, period, capacity, head, count, then the open period start, min, max, sum, count
+    private static final int HEADER_LENGTH = 64;
+
+    //start, min, max, sum, count
+    private static final int RECORD_LENGTH = 40;
+
+    private final long period;
+    private final int capacity;
+    private final long offset;
+    private int head;
+    private int count;
+
+    private long openStart = -1;
+    private double openMin;
+    private double openMax;
+    private double openSum;
+    private long openCount;
+
+    private final List<RollupItem> closedPeriods = new ArrayList<RollupItem>();
+    private boolean dirty;
+
+    /**
+     * @param offset, position of the region for this tier in the rollup file
+     */
+    RollupTier(long period, int capacity, long offset) {
+        this.period = period;
+        this.capacity = capacity;
+        this.offset = offset;
+    }
+
+    /**
+     * @return length of the region in the rollup file for a tier with this capacity
+     */
+    static long getRegionLength(int capacity) {
+        return HEADER_LENGTH + (long)capacity * RECORD_LENGTH;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void addItem(TimeSeriesItem i) {
+        long periodStart = i.getTimestamp() - (i.getTimestamp() % period);
+        if ( periodStart >= openStart) {
+            if ( periodStart > openStart) {
+                closeOpenPeriod();
+                openStart = periodStart;
+            }
+            double value = i.doubleValue();
+            if ( ! Double.isNaN(value)) {
+                openMin = openCount == 0 ? value : Math.min(openMin, value);
+                openMax = openCount == 0 ? value : Math.max(openMax, value);
+                openSum += value;
+                openCount++;
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Write closed periods to the ring, and the open period to the region header
+     */
+    void flush(RandomAccessFile f) throws IOException {
+        if ( closedPeriods.size() > 0) {
+            ByteBuffer b = ByteBuffer.allocate(RECORD_LENGTH);
+            for ( RollupItem r : closedPeriods) {
+                int slot = (head + count) % capacity;
+                if ( count == capacity) {
+                    head = (head + 1) % capacity;
+                } else {
+                    count++;
+                }
+                b.clear();
+                writeRecord(b, r.getTimestamp(), r.getMin(), r.getMax(), r.getSum(), r.getCount());
+                f.seek(getSlotPosition(slot));
+                f.write(b.array());
+            }
+        }
+        f.seek(offset);
+        f.write(createHeader().array());
+        closedPeriods.clear();
+        dirty = false;
+    }
+
+    /**
+     * @param f, the rollup file, or null if it does not exist
+     * @return the periods which start within the time range, including those not yet written and the open period
+     */
+    List<TimeSeriesItem> getItemsInRange(RandomAccessFile f, long startTime, long endTime) throws IOException {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>();
+        if ( count > 0) {
+            byte[] records = new byte[count * RECORD_LENGTH];
+            //the ring may wrap, in which case read the part from head to the end of the region first
+            int firstPart = Math.min(count, capacity - head);
+            f.seek(getSlotPosition(head));
+            f.readFully(records, 0, firstPart * RECORD_LENGTH);
+            if ( firstPart < count) {
+                f.seek(getSlotPosition(0));
+                f.readFully(records, firstPart * RECORD_LENGTH, (count - firstPart) * RECORD_LENGTH);
+            }
+
+            ByteBuffer b = ByteBuffer.wrap(records);
+            for ( int loop=0; loop < count; loop++) {
+                addIfInRange(result, new RollupItem(b.getLong(), b.getDouble(), b.getDouble(), b.getDouble(), b.getLong()), startTime, endTime);
+            }
+        }
+
+        for ( RollupItem r : closedPeriods) {
+            addIfInRange(result, r, startTime, endTime);
+        }
+        if ( openStart != -1) {
+            addIfInRange(result, new RollupItem(openStart, openMin, openMax, openSum, openCount), startTime, endTime);
+        }
+        return result;
+    }
+
+    /**
+     * @param f, the rollup file, or null if it does not exist
+     * @return start of the earliest period held by the tier, or -1 if the tier is empty
+     */
+    long getEarliestTimestamp(RandomAccessFile f) throws IOException {
+        long result;
+        if ( count > 0) {
+            f.seek(getSlotPosition(head));
+            result = f.readLong();
+        } else if ( closedPeriods.size() > 0) {
+            result = closedPeriods.get(0).getTimestamp();
+        } else {
+            result = openStart;
+        }
+        return result;
+    }
+
+    private long getSlotPosition(int slot) {
+        return offset + HEADER_LENGTH + (long)slot * RECORD_LENGTH;
+    }
+
+    private void addIfInRange(List<TimeSeriesItem> result, RollupItem r, long startTime, long endTime) {
+        if ( r.getTimestamp() >= startTime && r.getTimestamp() <= endTime) {
+            result.add(r);
+        }
+    }
+
+    private void closeOpenPeriod() {
+        if ( openStart != -1) {
+            closedPeriods.add(new RollupItem(openStart, openMin, openMax, openSum, openCount));
+        }
+        openMin = openMax = openSum = 0;
+        openCount = 0;
+    }
+
+    /**
+     * Read the region header, if the file holds the region for this tier
+     *
+     * @return false if the region was written for a tier with a different period or capacity
+     */
+    boolean readHeader(RandomAccessFile f) throws IOException {
+        boolean result = true;
+        if ( f.length() >= offset + HEADER_LENGTH) {
+            byte[] header = new byte[HEADER_LENGTH];
+            f.seek(offset);
+            f.readFully(header);
+            ByteBuffer b = ByteBuffer.wrap(header);
+            int version = b.getInt();
+            if ( version != ROLLUP_VERSION) {
+                throw new IOException("Rollup tier " + period + " has an unknown version " + version);
+            }
+            result = b.getLong() == period && b.getInt() == capacity;
+            if ( result ) {
+                head = b.getInt();
+                count = b.getInt();
+                openStart = b.getLong();
+                openMin = b.getDouble();
+                openMax = b.getDouble();
+                openSum = b.getDouble();
+                openCount = b.getLong();
+            }
+        }
+        return result;
+    }
+
+    private ByteBuffer createHeader() {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH);
+        b.putInt(ROLLUP_VERSION);
+        b.putLong(period);
+        b.putInt(capacity);
+        b.putInt(head);
+        b.putInt(count);
+        writeRecord(b, openStart, openMin, openMax, openSum, openCount);
+        return b;
+    }
+
+    private void writeRecord(ByteBuffer b, long start, double min, double max, double sum, long itemCount) {
+        b.putLong(start);
+        b.putDouble(min);
+        b.putDouble(max);
+        b.putDouble(sum);
+        b.putLong(itemCount);
+    }
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.util.NamedExecutors;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append only journal shared by all FilesystemTimeSeries, which records the items appended to each series so that
+ * items held in write behind caches can be recovered if the server dies before they are flushed
+ *
+ * Items are encoded into a buffer and written sequentially to the current journal file. Every syncInterval the buffer
+ * is written out and the file is forced to disk, so many appends share a single fsync, and at most syncInterval of
+ * appends can be lost.
+ *
+ * The journal is made up of a series of files, each a generation. When the current file exceeds the maximum size a new
+ * generation is started. Each series holds the generation of the oldest journal file which contains items it has not
+ * yet flushed, and releases it once the flush succeeds. A journal file is deleted once no series holds it or an
+ * earlier generation, so the journal is truncated as flush cycles complete.
+ *
+ * At startup the journal files from the previous run are read into memory. Each series is replayed as it is created,
+ * before it can receive new items, so the server need not wait for all the series to load before it starts to receive.
+ * Items at or before the most recent timestamp already written to the series file are skipped. Once the series are
+ * loaded, endReplay() discards the items for series which were not loaded and deletes the files from the previous run.
+ * Only appends are journalled, other changes to a series are rewritten after the fileRewriteDelay as before
+ */
+public class SeriesJournal {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(SeriesJournal.class);
+
+    public static final int NO_GENERATION = -1;
+
+    /**
+     * A journal which records nothing, for series which are not journalled
+     */
+    public static final SeriesJournal DISABLED_JOURNAL = new SeriesJournal();
+
+    private static final String JOURNAL_VERSION = "TSJOURNAL001";
+    private static final String JOURNAL_FILE_PREFIX = "seriesJournal.";
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    //length and crc
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private final File journalDirectory;
+    private final boolean enabled;
+    private final long maxFileBytes;
+    private final Object syncLock = new Object();
+    private final TreeMap<Integer, Integer> heldGenerations = new TreeMap<Integer, Integer>();
+    private final List<File> filesToReplay = new ArrayList<File>();
+
+    //items read from the journal files of the previous run, by series path, until each series is replayed
+    private final Map<String, List<TimeSeriesItem>> itemsToReplay = new HashMap<String, List<TimeSeriesItem>>();
+    private int replayedCount;
+
+    private ByteBuffer buffer;
+    private int generation;
+    private File currentFile;
+    private FileChannel channel;
+    private long currentFileBytes;
+    private ScheduledExecutorService syncExecutor;
+
+    private SeriesJournal() {
+        this.journalDirectory = null;
+        this.enabled = false;
+        this.maxFileBytes = 0;
+    }
+
+    /**
+     * @param journalDirectory, directory for the journal files, which should not be shared with another journal
+     * @param enabled, if false the journal records nothing and there is nothing to replay
+     * @param syncIntervalMillis, interval at which journalled items are written and forced to disk
+     * @param maxFileMB, size at which a new journal file is started
+     */
+    public SeriesJournal(File journalDirectory, boolean enabled, long syncIntervalMillis, int maxFileMB) throws IOException {
+        this.journalDirectory = journalDirectory;
+        this.enabled = enabled;
+        this.maxFileBytes = Math.max(1, maxFileMB) * 1024L * 1024L;
+        if ( enabled ) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            journalDirectory.mkdirs();
+            findFilesToReplay();
+            readFilesToReplay();
+            startNewGeneration();
+            syncExecutor = NamedExecutors.newSingleThreadScheduledExecutor("SeriesJournalSync");
+            syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (Throwable t) {
+                        logMethods.error("Failed to sync series journal " + currentFile, t);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+            addShutdownHook();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record an item appended to a series
+     *
+     * @param heldGeneration, the journal generation already held by the caller, or NO_GENERATION
+     * @return the generation the caller must hold until the item is flushed to the series file, this is heldGeneration
+     * if the caller already held a generation, otherwise the current generation
+     */
+    public int append(String path, TimeSeriesItem item, int heldGeneration) {
+        int result = heldGeneration;
+        if ( enabled ) {
+            try {
+                //encode the record before taking the journal lock, so appends to different series only contend to copy it
+                byte[] record = encodeRecord(path, item);
+                synchronized (this) {
+                    if ( buffer.remaining() < record.length) {
+                        writeBuffer();
+                    }
+                    if ( buffer.remaining() < record.length) {
+                        throw new IOException("Path too long to journal, " + path);
+                    }
+                    buffer.put(record);
+
+                    if ( heldGeneration == NO_GENERATION) {
+                        result = generation;
+                        hold(generation);
+                    }
+                }
+            } catch (IOException e) {
+                logMethods.error("Failed to journal item for series " + path, e);
+            }
+        }
+        return result;
+    }
+
+    private byte[] encodeRecord(String path, TimeSeriesItem item) throws IOException {
+        byte[] pathBytes = path.getBytes("UTF-8");
+        int payloadLength = 4 + pathBytes.length + 16;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payloadLength);
+        record.position(RECORD_HEADER_LENGTH);
+        record.putInt(pathBytes.length);
+        record.put(pathBytes);
+        record.putLong(item.getTimestamp());
+        record.putDouble(item.doubleValue());
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_LENGTH, payloadLength);
+        record.putInt(0, payloadLength);
+        record.putInt(4, (int)crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Called once all the items a series journalled since it last flushed have been written to the series file
+     */
+    public synchronized void release(int heldGeneration) {
+        if ( heldGeneration != NO_GENERATION) {
+            Integer count = heldGenerations.get(heldGeneration);
+            if ( count != null) {
+                if ( count == 1) {
+                    heldGenerations.remove(heldGeneration);
+                } else {
+                    heldGenerations.put(heldGeneration, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the items journalled in the previous run to a series, this must be called as the series is created and
+     * before it receives new items, otherwise journalled items could become inserts
+     *
+     * @return number of items replayed
+     */
+    public int replay(FilesystemTimeSeries s) {
+        int replayed = 0;
+        List<TimeSeriesItem> items;
+        synchronized (this) {
+            items = itemsToReplay.remove(s.getFileHeader().getPath());
+        }
+        if ( items != null) {
+            //items up to this timestamp were written to the series file before the server stopped
+            long persisted = s.getFileHeader().getMostRecentItemTimestamp();
+            for ( TimeSeriesItem i : items) {
+                if ( i.getTimestamp() > persisted) {
+                    s.addItem(i);
+                    replayed++;
+                }
+            }
+            synchronized (this) {
+                replayedCount += replayed;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Called once the existing series are loaded, the items journalled for series which were not loaded are discarded,
+     * and the journal files from the previous run are deleted once the replayed items are synced to the current file
+     */
+    public void endReplay() {
+        if ( enabled ) {
+            synchronized (this) {
+                int discarded = 0;
+                for ( List<TimeSeriesItem> l : itemsToReplay.values()) {
+                    discarded += l.size();
+                }
+                itemsToReplay.clear();
+                logMethods.info("Replayed " + replayedCount + " items from " + filesToReplay.size() + " journal files, " +
+                    discarded + " items were journalled for series which were not loaded");
+            }
+
+            //the replayed items are now journalled again in the current generation
+            try {
+                sync();
+            } catch (IOException e) {
+                logMethods.error("Failed to sync series journal after replay", e);
+            }
+            synchronized (this) {
+                for ( File f : filesToReplay) {
+                    if ( ! f.delete()) {
+                        logMethods.warn("Could not delete replayed journal file " + f);
+                    }
+                }
+                filesToReplay.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered items to the journal file and force them to disk, starting a new journal file if the current
+     * one is full, and delete journal files which are no longer held
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            FileChannel channelToForce;
+            synchronized (this) {
+                writeBuffer();
+                channelToForce = channel;
+            }
+
+            //other threads can continue to append while we wait for the disk
+            channelToForce.force(false);
+
+            synchronized (this) {
+                if ( currentFileBytes > maxFileBytes) {
+                    startNewGeneration();
+                }
+                deleteReleasedFiles();
+            }
+        }
+    }
+
+    /**
+     * Stop syncing the journal, after writing any buffered items to the journal file
+     */
+    public void close() throws IOException {
+        if ( enabled ) {
+            syncExecutor.shutdown();
+            sync();
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return number of journal files, including the current file
+     */
+    public synchronized int getJournalFileCount() {
+        return getJournalFiles().size();
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    private void hold(int g) {
+        Integer count = heldGenerations.get(g);
+        heldGenerations.put(g, count == null ? 1 : count + 1);
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        try {
+            while ( buffer.hasRemaining()) {
+                currentFileBytes += channel.write(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void startNewGeneration() throws IOException {
+        if ( channel != null) {
+            writeBuffer();
+            channel.force(false);
+            channel.close();
+        }
+        generation++;
+        currentFile = getJournalFile(generation);
+        channel = new RandomAccessFile(currentFile, "rw").getChannel();
+        channel.truncate(0);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new DataOutputStream(bos).writeUTF(JOURNAL_VERSION);
+        channel.write(ByteBuffer.wrap(bos.toByteArray()));
+        currentFileBytes = channel.position();
+    }
+
+    //a file can be deleted once there is no series holding that or an earlier generation
+    private void deleteReleasedFiles() {
+        int earliestHeld = heldGenerations.isEmpty() ? generation : Math.min(heldGenerations.firstKey(), generation);
+        for ( Map.Entry<Integer, File> e : getJournalFiles().entrySet()) {
+            if ( e.getKey() < earliestHeld && ! filesToReplay.contains(e.getValue())) {
+                if ( ! e.getValue().delete()) {
+                    logMethods.warn("Could not delete journal file " + e.getValue());
+                }
+            }
+        }
+    }
+
+    private void readFilesToReplay() {
+        int read = 0;
+        for ( File f : filesToReplay) {
+            try {
+                read += readFile(f);
+            } catch (IOException e) {
+                logMethods.error("Failed to read journal file " + f, e);
+            }
+        }
+        logMethods.info("Read " + read + " items for " + itemsToReplay.size() + " series from " + filesToReplay.size() + " journal files");
+    }
+
+    private void findFilesToReplay() {
+        SortedMap<Integer, File> files = getJournalFiles();
+        filesToReplay.addAll(files.values());
+        generation = files.isEmpty() ? 0 : files.lastKey();
+    }
+
+    private SortedMap<Integer, File> getJournalFiles() {
+        SortedMap<Integer, File> result = new TreeMap<Integer, File>();
+        File[] files = journalDirectory.listFiles();
+        if ( files != null) {
+            for ( File f : files) {
+                String name = f.getName();
+                if ( name.startsWith(JOURNAL_FILE_PREFIX) && name.endsWith(JOURNAL_FILE_SUFFIX)) {
+                    try {
+                        result.put(Integer.parseInt(name.substring(JOURNAL_FILE_PREFIX.length(), name.length() - JOURNAL_FILE_SUFFIX.length())), f);
+                    } catch (NumberFormatException e) {
+                        logMethods.warn("Ignoring file with unexpected name in journal directory " + f);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private File getJournalFile(int g) {
+        return new File(journalDirectory, JOURNAL_FILE_PREFIX + g + JOURNAL_FILE_SUFFIX);
+    }
+
+    //records are read until the end of the file or the first incomplete or corrupt record, which is where the process died
+    private int readFile(File f) throws IOException {
+        int read = 0;
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            String version = is.readUTF();
+            if ( ! JOURNAL_VERSION.equals(version)) {
+                throw new IOException("Wrong journal version, expecting " + JOURNAL_VERSION + " but was " + version);
+            }
+
+            CRC32 recordCrc = new CRC32();
+            byte[] payload = new byte[256];
+            while (true) {
+                int payloadLength;
+                int expectedCrc;
+                try {
+                    payloadLength = is.readInt();
+                    expectedCrc = is.readInt();
+                    if ( payloadLength < 20 || payloadLength > BUFFER_SIZE) {
+                        logMethods.warn("Journal file " + f + " has a corrupt record, read of this file stopped");
+                        break;
+                    }
+                    if ( payload.length < payloadLength) {
+                        payload = new byte[payloadLength];
+                    }
+                    is.readFully(payload, 0, payloadLength);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                recordCrc.reset();
+                recordCrc.update(payload, 0, payloadLength);
+                if ( (int)recordCrc.getValue() != expectedCrc) {
+                    logMethods.warn("Journal file " + f + " has a record with a bad checksum, read of this file stopped");
+                    break;
+                }
+
+                ByteBuffer b = ByteBuffer.wrap(payload, 0, payloadLength);
+                byte[] pathBytes = new byte[b.getInt()];
+                b.get(pathBytes);
+                String path = new String(pathBytes, "UTF-8");
+                List<TimeSeriesItem> items = itemsToReplay.get(path);
+                if ( items == null) {
+                    items = new ArrayList<TimeSeriesItem>();
+                    itemsToReplay.put(path, items);
+                }
+                items.add(new Item(b.getLong(), b.getDouble()));
+                read++;
+            }
+        } finally {
+            is.close();
+        }
+        return read;
+    }
+
+    private void addShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    sync();
+                } catch (Throwable t) {
+                    logMethods.error("Failed to sync series journal on shutdown", t);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The rolled up tiers for one FilesystemTimeSeries, which share a single rollup file
+ *
+ * Tiers are maintained from the items appended to the series, and written when the series write behind cache is flushed,
+ * opening the file once for all the tiers. A file written with a different tier configuration is replaced
+ *
+ * The file headers are not read until the rollups are first used
+ */
+class SeriesRollups {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(SeriesRollups.class);
+
+    public static final String ROLLUP_FILE_SUFFIX = ".rollup";
+
+    private final String path;
+    private final File file;
+    private final RollupTier[] tiers;
+    private final long[] resolutions;
+    private boolean headersRead;
+
+    /**
+     * @param periods, the period of each tier in millis, finest first
+     */
+    SeriesRollups(File rollupDirectory, String path, long[] periods, int tierLength) {
+        this.path = path;
+        this.file = new File(rollupDirectory, path + ROLLUP_FILE_SUFFIX);
+        this.resolutions = periods.clone();
+        tiers = new RollupTier[periods.length];
+        long offset = 0;
+        for ( int loop=0; loop < periods.length; loop++) {
+            tiers[loop] = new RollupTier(periods[loop], tierLength, offset);
+            offset += RollupTier.getRegionLength(tierLength);
+        }
+    }
+
+    long[] getResolutions() {
+        return resolutions.clone();
+    }
+
+    synchronized void addItem(TimeSeriesItem i) {
+        try {
+            readHeadersIfRequired();
+            for ( RollupTier t : tiers) {
+                t.addItem(i);
+            }
+        } catch (IOException e) {
+            logMethods.error("Failed to read rollup file " + file + " for series " + path, e);
+        }
+    }
+
+    /**
+     * If the file cannot be written the tiers keep their closed periods, which are written at the next flush
+     */
+    synchronized void flush() {
+        if ( isDirty()) {
+            try {
+                RandomAccessFile f = new RandomAccessFile(file, "rw");
+                try {
+                    for ( RollupTier t : tiers) {
+                        if ( t.isDirty()) {
+                            t.flush(f);
+                        }
+                    }
+                } finally {
+                    f.close();
+                }
+            } catch (IOException e) {
+                logMethods.error("Failed to write rollup file " + file + " for series " + path, e);
+            }
+        }
+    }
+
+    /**
+     * @return items from the coarsest tier with a period no greater than resolution, or null if there is no such tier
+     */
+    synchronized List<TimeSeriesItem> getItemsInRange(long startTime, long endTime, long resolution) {
+        List<TimeSeriesItem> result = null;
+        for ( int loop = tiers.length - 1; loop >= 0; loop--) {
+            if ( tiers[loop].getPeriod() <= resolution) {
+                try {
+                    readHeadersIfRequired();
+                    RandomAccessFile f = openForRead();
+                    try {
+                        result = tiers[loop].getItemsInRange(f, startTime, endTime);
+                    } finally {
+                        close(f);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read rollup tier " + tiers[loop].getPeriod() + " for series " + path, e);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return start of the earliest period in the coarsest tier, which covers the longest time, or -1 if it is empty
+     */
+    synchronized long getEarliestTimestamp() {
+        long result = -1;
+        if ( tiers.length > 0) {
+            try {
+                readHeadersIfRequired();
+                RandomAccessFile f = openForRead();
+                try {
+                    result = tiers[tiers.length - 1].getEarliestTimestamp(f);
+                } finally {
+                    close(f);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read rollup file " + file + " for series " + path, e);
+            }
+        }
+        return result;
+    }
+
+    private boolean isDirty() {
+        boolean result = false;
+        for ( RollupTier t : tiers) {
+            result |= t.isDirty();
+        }
+        return result;
+    }
+
+    private void readHeadersIfRequired() throws IOException {
+        if ( ! headersRead && file.exists()) {
+            boolean matches = true;
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+            try {
+                for ( int loop=0; loop < tiers.length && matches; loop++) {
+                    matches = tiers[loop].readHeader(f);
+                }
+            } finally {
+                f.close();
+            }
+
+            if ( ! matches) {
+                logMethods.warn("Rollup file " + file + " was written with different rollup tiers, it will be replaced");
+                for ( int loop=0; loop < tiers.length; loop++) {
+                    tiers[loop] = new RollupTier(tiers[loop].getPeriod(), tiers[loop].getCapacity(), tiers[loop].getOffset());
+                }
+                if ( ! file.delete()) {
+                    throw new IOException("Could not delete rollup file " + file);
+                }
+            }
+        }
+        headersRead = true;
+    }
+
+    private RandomAccessFile openForRead() throws IOException {
+        return file.exists() ? new RandomAccessFile(file, "r") : null;
+    }
+
+    private void close(RandomAccessFile f) throws IOException {
+        if ( f != null) {
+            f.close();
+        }
+    }
+}
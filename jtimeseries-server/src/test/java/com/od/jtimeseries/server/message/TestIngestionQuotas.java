@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.component.util.path.PathMapper;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import junit.framework.TestCase;
+
+public class TestIngestionQuotas extends TestCase {
+
+    private TimeSeriesContext rootContext;
+    private Counter rejectedUpdates;
+    private Counter rejectedSeries;
+
+    public void setUp() {
+        rootContext = new SeriesContext();
+        rejectedUpdates = new DefaultCounter("RejectedUpdates");
+        rejectedSeries = new DefaultCounter("RejectedSeries");
+    }
+
+    public void testUpdatesBeyondQuotaAreRejectedForThatSourceOnly() {
+        IngestionQuotas quotas = createQuotas(10, 0, 0);
+        for ( int loop=0; loop < 10; loop++) {
+            assertTrue(quotas.isUpdatePermitted("10.0.0.1"));
+        }
+        assertFalse(quotas.isUpdatePermitted("10.0.0.1"));
+        assertTrue(quotas.isUpdatePermitted("10.0.0.2"));
+        assertEquals(1, rejectedUpdates.getCount());
+    }
+
+    public void testUpdateQuotaIsRefilled() throws InterruptedException {
+        IngestionQuotas quotas = createQuotas(10, 0, 0);
+        for ( int loop=0; loop < 10; loop++) {
+            quotas.isUpdatePermitted("10.0.0.1");
+        }
+        assertFalse(quotas.isUpdatePermitted("10.0.0.1"));
+        Thread.sleep(250);
+        assertTrue(quotas.isUpdatePermitted("10.0.0.1"));
+    }
+
+    public void testNoLimitWhenQuotaIsZero() {
+        IngestionQuotas quotas = createQuotas(0, 0, 0);
+        for ( int loop=0; loop < 10000; loop++) {
+            assertTrue(quotas.isUpdatePermitted("10.0.0.1"));
+            assertTrue(quotas.isNewSeriesPermitted("10.0.0.1", "test.series" + loop));
+        }
+        assertEquals(0, rejectedUpdates.getCount());
+        assertEquals(0, rejectedSeries.getCount());
+    }
+
+    public void testNewSeriesBeyondQuotaAreRejected() {
+        IngestionQuotas quotas = createQuotas(0, 5, 0);
+        for ( int loop=0; loop < 5; loop++) {
+            assertTrue(quotas.isNewSeriesPermitted("10.0.0.1", "test.series" + loop));
+        }
+        assertFalse(quotas.isNewSeriesPermitted("10.0.0.1", "test.series5"));
+        assertTrue(quotas.isNewSeriesPermitted("10.0.0.2", "test.series5"));
+        assertEquals(1, rejectedSeries.getCount());
+    }
+
+    public void testNewSeriesAreRejectedAtTotalSeriesLimit() {
+        rootContext.createTimeSeries("test.existing1", "existing");
+        rootContext.createTimeSeries("test.existing2", "existing");
+        IngestionQuotas quotas = createQuotas(0, 0, 4);
+        assertTrue(quotas.isNewSeriesPermitted("10.0.0.1", "test.series1"));
+        assertTrue(quotas.isNewSeriesPermitted("10.0.0.2", "test.series2"));
+        assertFalse(quotas.isNewSeriesPermitted("10.0.0.3", "test.series3"));
+        assertEquals(1, rejectedSeries.getCount());
+    }
+
+    public void testListenerDoesNotCreateSeriesBeyondQuota() throws InterruptedException {
+        IngestionQuotas quotas = createQuotas(3, 1, 0);
+        ServerSeriesUdpMessageListener listener = new ServerSeriesUdpMessageListener(rootContext, new PathMapper(), null, quotas);
+        listener.timeSeriesValueReceived("10.0.0.1", "host", "test.series1", 1, 1);
+        listener.timeSeriesValueReceived("10.0.0.1", "host", "test.series2", 1, 1);
+        listener.timeSeriesValueReceived("10.0.0.1", "host", "test.series1", 2, 2);
+        listener.timeSeriesValueReceived("10.0.0.1", "host", "test.series1", 3, 3);
+
+        assertTrue(rootContext.contains("test.series1"));
+        assertFalse(rootContext.contains("test.series2"));
+        assertEquals(2, rootContext.getTimeSeries("test.series1").size());
+        assertEquals(1, rejectedUpdates.getCount());
+        assertEquals(1, rejectedSeries.getCount());
+    }
+
+    private IngestionQuotas createQuotas(int maxUpdatesPerSecond, int maxNewSeriesPerMinute, int maxTotalSeries) {
+        IngestionQuotas quotas = new IngestionQuotas(rootContext, maxUpdatesPerSecond, maxNewSeriesPerMinute, maxTotalSeries);
+        quotas.setRejectedUpdatesCounter(rejectedUpdates);
+        quotas.setRejectedNewSeriesCounter(rejectedSeries);
+        return quotas;
+    }
+}
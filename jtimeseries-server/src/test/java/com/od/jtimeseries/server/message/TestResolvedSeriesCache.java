@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.component.util.path.PathMapper;
+import com.od.jtimeseries.component.util.path.PathProcessingRule;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import junit.framework.TestCase;
+
+public class TestResolvedSeriesCache extends TestCase {
+
+    private TimeSeriesContext rootContext;
+    private PathMapper pathMapper;
+    private ResolvedSeriesCache cache;
+
+    public void setUp() {
+        rootContext = new SeriesContext();
+        pathMapper = new PathMapper();
+        cache = new ResolvedSeriesCache(rootContext, pathMapper);
+    }
+
+    public void tearDown() {
+        ResolvedSeriesCache.setCacheHitCounter(DefaultCounter.NULL_COUNTER);
+        ResolvedSeriesCache.setCacheMissCounter(DefaultCounter.NULL_COUNTER);
+    }
+
+    public void testHitsAndMissesAreCounted() {
+        Counter hits = new DefaultCounter("Hits");
+        Counter misses = new DefaultCounter("Misses");
+        ResolvedSeriesCache.setCacheHitCounter(hits);
+        ResolvedSeriesCache.setCacheMissCounter(misses);
+
+        assertNull(cache.get("test.denied"));
+        cache.put("test.denied", ResolvedSeriesCache.ResolvedSeries.DENIED, cache.getGeneration());
+        assertSame(ResolvedSeriesCache.ResolvedSeries.DENIED, cache.get("test.denied"));
+        assertSame(ResolvedSeriesCache.ResolvedSeries.DENIED, cache.get("test.denied"));
+        assertEquals(2, hits.getCount());
+        assertEquals(1, misses.getCount());
+    }
+
+    public void testEntryIsRemovedWhenSeriesIsRemoved() throws InterruptedException {
+        putSeries("test.series1");
+        putSeries("test.series2");
+        rootContext.remove("test.series1");
+
+        //tree events are fired asynchronously
+        long endTime = System.currentTimeMillis() + 5000;
+        while ( cache.size() == 2 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertNull(cache.get("test.series1"));
+        assertNotNull(cache.get("test.series2"));
+    }
+
+    public void testCacheIsClearedWhenPathMapperRuleChanges() throws Exception {
+        putSeries("test.series1");
+        pathMapper.setRule(PathProcessingRule.NULL_PROCESSING_RULE);
+        assertEquals(0, cache.size());
+    }
+
+    public void testEntryIsNotCachedIfInvalidatedWhileResolving() {
+        long generation = cache.getGeneration();
+        IdentifiableTimeSeries s = rootContext.getOrCreateTimeSeries("test.series1", "");
+        cache.clear();
+        cache.put("test.series1", new ResolvedSeriesCache.ResolvedSeries("test.series1", s), generation);
+        assertNull(cache.get("test.series1"));
+    }
+
+    private void putSeries(String path) {
+        long generation = cache.getGeneration();
+        IdentifiableTimeSeries s = rootContext.getOrCreateTimeSeries(path, "");
+        cache.put(path, new ResolvedSeriesCache.ResolvedSeries(path, s), generation);
+        assertSame(s, cache.get(path).getSeries());
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.message;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestUdpIngestionWorkers extends TestCase {
+
+    public void testValuesForEachSeriesAreProcessedInOrder() throws InterruptedException {
+        UdpIngestionWorkers workers = new UdpIngestionWorkers(4, 16, UdpIngestionWorkers.OverflowPolicy.BLOCK);
+        final int seriesCount = 20;
+        final int valuesPerSeries = 500;
+        final CountDownLatch latch = new CountDownLatch(seriesCount * valuesPerSeries);
+        final Map<String, List<Long>> received = new HashMap<String, List<Long>>();
+
+        UdpIngestionWorkers.IngestionHandler handler = new NoOpHandler() {
+            public void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+                synchronized (received) {
+                    List<Long> l = received.get(path);
+                    if ( l == null) {
+                        l = new ArrayList<Long>();
+                        received.put(path, l);
+                    }
+                    l.add(timestamp);
+                }
+                latch.countDown();
+            }
+        };
+
+        for ( int v=0; v < valuesPerSeries; v++) {
+            for ( int s=0; s < seriesCount; s++) {
+                workers.submitValue(handler, "127.0.0.1", "localhost", "context.series" + s, v, v);
+            }
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        assertEquals(seriesCount, received.size());
+        for ( List<Long> l : received.values()) {
+            assertEquals(valuesPerSeries, l.size());
+            for ( int v=0; v < valuesPerSeries; v++) {
+                assertEquals(v, l.get(v).longValue());
+            }
+        }
+    }
+
+    public void testUpdatesAreDroppedWhenQueueIsFull() throws InterruptedException {
+        UdpIngestionWorkers workers = new UdpIngestionWorkers(1, 4, UdpIngestionWorkers.OverflowPolicy.DROP);
+        Counter dropped = new DefaultCounter("Dropped");
+        workers.setDroppedUpdatesCounter(dropped);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        UdpIngestionWorkers.IngestionHandler handler = new NoOpHandler() {
+            public void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        //the worker takes the first value and blocks, four more fill the queue and the last two are dropped
+        workers.submitValue(handler, "127.0.0.1", "localhost", "series", 0, 0);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for ( int loop=1; loop < 7; loop++) {
+            workers.submitValue(handler, "127.0.0.1", "localhost", "series", loop, loop);
+        }
+        assertEquals(4, workers.getQueueDepth(0));
+        assertEquals(2, dropped.getCount());
+        release.countDown();
+    }
+
+    public void testUpdatesSubmittedWithBlockAreNotDropped() throws InterruptedException {
+        final UdpIngestionWorkers workers = new UdpIngestionWorkers(1, 4, UdpIngestionWorkers.OverflowPolicy.DROP);
+        Counter dropped = new DefaultCounter("Dropped");
+        workers.setDroppedUpdatesCounter(dropped);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch processed = new CountDownLatch(7);
+        final UdpIngestionWorkers.IngestionHandler handler = new NoOpHandler() {
+            public void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                processed.countDown();
+            }
+        };
+
+        workers.submitValue(handler, "127.0.0.1", "localhost", "series", 0, 0, UdpIngestionWorkers.OverflowPolicy.BLOCK);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread submitter = new Thread() {
+            public void run() {
+                for ( int loop=1; loop < 7; loop++) {
+                    workers.submitValue(handler, "127.0.0.1", "localhost", "series", loop, loop, UdpIngestionWorkers.OverflowPolicy.BLOCK);
+                }
+            }
+        };
+        submitter.start();
+
+        //the submitter waits once the queue is full, rather than dropping
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+        assertEquals(4, workers.getQueueDepth(0));
+
+        release.countDown();
+        assertTrue(processed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, dropped.getCount());
+    }
+
+    private static class NoOpHandler implements UdpIngestionWorkers.IngestionHandler {
+
+        public void processValue(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+        }
+
+        public void processMessage(UdpMessage m) {
+        }
+    }
+}
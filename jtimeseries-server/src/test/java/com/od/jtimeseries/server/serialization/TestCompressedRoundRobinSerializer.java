@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.server.util.ServerDefaults;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+
+import java.io.File;
+
+/**
+ * Run the serializer tests again using the compressed TSVERSION002 format
+ */
+public class TestCompressedRoundRobinSerializer extends TestRoundRobinSerializer {
+
+    protected TimeSeriesSerializer createSerializer() throws SerializationException {
+        return createCompressedSerializer();
+    }
+
+    private RoundRobinSerializer createCompressedSerializer() throws SerializationException {
+        RoundRobinSerializer s = new RoundRobinSerializer(createTestDirectory(), ServerDefaults.DEFAULT_TIMESERIES_SUFFIX);
+        s.setCompressedFormat(true);
+        return s;
+    }
+
+    private RoundRobinSerializer createMappedCompressedSerializer() throws SerializationException {
+        RoundRobinSerializer s = new RoundRobinSerializer(createTestDirectory(), ServerDefaults.DEFAULT_TIMESERIES_SUFFIX, true, 1);
+        s.setCompressedFormat(true);
+        return s;
+    }
+
+    //for compressed files head and tail are block indexes, so check the series size instead
+    public void testAppend() throws SerializationException {
+        RoundRobinTimeSeries l = new RoundRobinTimeSeries(7);
+        l.addItem(createItemForTimestamp(5));
+        l.addItem(createItemForTimestamp(6));
+        getSerializer().appendToSeries(getFileHeader(), l);
+        assertEquals(6, getFileHeader().getCurrentSeriesSize());
+
+        getSerializer().readHeader(getFileHeader());
+        assertTrue(getFileHeader().isCompressed());
+        assertEquals(6, getFileHeader().getCurrentSeriesSize());
+        assertEquals(6, getSerializer().readSeries(getFileHeader()).getLatestTimestamp());
+    }
+
+    public void testAppend2() throws SerializationException {
+        RoundRobinTimeSeries expected = new RoundRobinTimeSeries(7);
+        for ( int loop=1; loop <= 4; loop++) {
+            expected.addItem(createItemForTimestamp(loop));
+        }
+
+        //enough appends to fill several blocks and wrap the ring, with a mix of regular and irregular timestamps and values
+        long timestamp = 4;
+        for ( int loop=0; loop < 100; loop++) {
+            RoundRobinTimeSeries l = new RoundRobinTimeSeries(7);
+            for ( int item=0; item < 50; item++) {
+                timestamp += item % 10 == 0 ? 1 + (long)(Math.random() * 100000) : 1000;
+                Item i = new Item(timestamp, item % 3 == 0 ? Math.random() : (double)(loop % 5));
+                l.addItem(i);
+                expected.addItem(i);
+            }
+            getSerializer().appendToSeries(getFileHeader(), l);
+            assertEquals(7, getFileHeader().getCurrentSeriesSize());
+        }
+        assertEquals(expected, getSerializer().readSeries(getFileHeader()));
+    }
+
+    public void testMigrationFromUncompressedFormat() throws SerializationException {
+        FileHeader header = new FileHeader("test.migrate", "test migration", 100);
+        TimeSeriesSerializer uncompressed = createTestSerializer();
+        uncompressed.createFile(header);
+        uncompressed.getFile(header).deleteOnExit();
+
+        RoundRobinTimeSeries expected = new RoundRobinTimeSeries(100);
+        for ( int loop=0; loop < 10; loop++) {
+            expected.addItem(createItemForTimestamp(loop));
+        }
+        uncompressed.appendToSeries(header, expected);
+
+        //the compressed serializer can read the old format, and migrates the file on the next append
+        TimeSeriesSerializer compressed = createCompressedSerializer();
+        FileHeader compressedHeader = compressed.readHeader(uncompressed.getFile(header));
+        assertFalse(compressedHeader.isCompressed());
+        assertEquals(expected, compressed.readSeries(compressedHeader));
+
+        RoundRobinTimeSeries l = new RoundRobinTimeSeries(100);
+        l.addItem(createItemForTimestamp(10));
+        expected.addItem(createItemForTimestamp(10));
+        compressed.appendToSeries(compressedHeader, l);
+
+        FileHeader reread = compressed.readHeader(uncompressed.getFile(header));
+        assertTrue(reread.isCompressed());
+        assertEquals(11, reread.getCurrentSeriesSize());
+        assertEquals(expected, compressed.readSeries(reread));
+    }
+
+    public void testReadItemsInRangeAcrossBlocks() throws SerializationException {
+        FileHeader header = new FileHeader("test.range", "test range", 2000);
+        getSerializer().createFile(header);
+        getSerializer().getFile(header).deleteOnExit();
+
+        //enough items to wrap the ring of blocks, so there are items stored beyond the series max length
+        for ( int loop=0; loop < 10; loop++) {
+            RoundRobinTimeSeries l = new RoundRobinTimeSeries(2000);
+            for ( int item=0; item < 500; item++) {
+                long timestamp = (loop * 500 + item) * 1000L;
+                l.addItem(new Item(timestamp, item % 7 == 0 ? Math.random() : (double)item));
+            }
+            getSerializer().appendToSeries(header, l);
+        }
+
+        RoundRobinTimeSeries d = getSerializer().readSeries(header);
+        assertEquals(2000, d.size());
+        assertTrue(header.getStoredItemCount() > 2000);
+        assertEquals(d.getItemsInRange(0, Long.MAX_VALUE), getSerializer().readItemsInRange(header, 0, Long.MAX_VALUE, 0, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(3500000, 3700500), getSerializer().readItemsInRange(header, 3500000, 3700500, 0, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(4990000, Long.MAX_VALUE), getSerializer().readItemsInRange(header, 4990000, Long.MAX_VALUE, 0, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(d.getItem(1500).getTimestamp(), Long.MAX_VALUE), getSerializer().readItemsInRange(header, 0, Long.MAX_VALUE, 1500, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(d.getItem(10).getTimestamp(), d.getItem(12).getTimestamp()), getSerializer().readItemsInRange(header, 0, Long.MAX_VALUE, 10, 3));
+    }
+
+    public void testCompressedFileIsSmallerThanUncompressed() throws SerializationException {
+        RoundRobinTimeSeries items = new RoundRobinTimeSeries(10000);
+        for ( int loop=0; loop < 10000; loop++) {
+            items.addItem(new Item(loop * 1000L, (double)(loop % 10)));
+        }
+
+        FileHeader uncompressedHeader = new FileHeader("test.uncompressed.size", "test uncompressed size", 10000);
+        long uncompressedLength = appendAndGetFileLength(createTestSerializer(), uncompressedHeader, items);
+
+        FileHeader compressedHeader = new FileHeader("test.compressed.size", "test compressed size", 10000);
+        long compressedLength = appendAndGetFileLength(createCompressedSerializer(), compressedHeader, items);
+        assertTrue(compressedLength * 4 < uncompressedLength);
+
+        FileHeader mappedHeader = new FileHeader("test.mapped.size", "test mapped size", 10000);
+        long mappedLength = appendAndGetFileLength(createMappedCompressedSerializer(), mappedHeader, items);
+        assertTrue(mappedLength * 4 < uncompressedLength);
+    }
+
+    private long appendAndGetFileLength(TimeSeriesSerializer s, FileHeader header, RoundRobinTimeSeries items) throws SerializationException {
+        s.createFile(header);
+        File f = s.getFile(header);
+        f.deleteOnExit();
+        s.appendToSeries(header, items);
+        assertEquals(items, s.readSeries(header));
+        return f.length();
+    }
+
+    public void testRingGrowsWhenItemsCompressLessWell() throws SerializationException {
+        testRingGrowsWhenItemsCompressLessWell(createCompressedSerializer(), "test.grow");
+        testRingGrowsWhenItemsCompressLessWell(createMappedCompressedSerializer(), "test.grow.mapped");
+    }
+
+    private void testRingGrowsWhenItemsCompressLessWell(TimeSeriesSerializer s, String path) throws SerializationException {
+        FileHeader header = new FileHeader(path, "test ring grows", 2000);
+        s.createFile(header);
+        s.getFile(header).deleteOnExit();
+
+        //regular items fill only a few blocks, so the ring wraps while it is small
+        RoundRobinTimeSeries expected = new RoundRobinTimeSeries(2000);
+        long timestamp = 0;
+        for ( int loop=0; loop < 5; loop++) {
+            RoundRobinTimeSeries l = new RoundRobinTimeSeries(2000);
+            for ( int item=0; item < 1000; item++) {
+                timestamp += 1000;
+                l.addItem(new Item(timestamp, 10d));
+            }
+            expected.addAll(l);
+            s.appendToSeries(header, l);
+        }
+        int wrappedBlockCount = header.getBlockCount();
+        assertTrue(wrappedBlockCount < CompressedBlockOperations.getMaxBlockCount(2000, header.getBlockSize()));
+
+        //items which compress badly need more blocks to hold the series max length
+        for ( int loop=0; loop < 4; loop++) {
+            RoundRobinTimeSeries l = new RoundRobinTimeSeries(2000);
+            for ( int item=0; item < 500; item++) {
+                timestamp += 1 + (long)(Math.random() * 100000);
+                l.addItem(new Item(timestamp, Math.random()));
+            }
+            expected.addAll(l);
+            s.appendToSeries(header, l);
+            assertEquals(expected, s.readSeries(header));
+        }
+        assertTrue(header.getBlockCount() > wrappedBlockCount);
+        assertEquals(2000, header.getCurrentSeriesSize());
+    }
+
+    public void testRegularSeriesCompresses() {
+        CompressedBlock b = new CompressedBlock(CompressedBlockOperations.BLOCK_SIZE);
+        int items = 0;
+        while ( b.hasCapacity()) {
+            b.addItem(items * 1000L, 10);
+            items++;
+        }
+        //16 bytes per item uncompressed
+        assertTrue(items > (CompressedBlock.getDataBytes(CompressedBlockOperations.BLOCK_SIZE) / 16) * 5);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.server.util.ServerDefaults;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class TestHeaderManifest extends TestCase {
+
+    private RoundRobinSerializer serializer;
+    private File manifestFile;
+    private FileHeader fileHeader;
+    private File seriesFile;
+
+    public void setUp() throws SerializationException {
+        RoundRobinSerializer.setShutdownHandlingDisabled(true);
+        File directory = new File(System.getProperty("java.io.tmpdir"), "testmanifest");
+        directory.mkdir();
+        for ( File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.deleteOnExit();
+        serializer = new RoundRobinSerializer(directory, ServerDefaults.DEFAULT_TIMESERIES_SUFFIX);
+        manifestFile = new File(directory, "test.manifest");
+        manifestFile.deleteOnExit();
+
+        fileHeader = new FileHeader("test.manifest.series", "test series", 100);
+        fileHeader.setSeriesProperty("testProperty", "testValue");
+        RoundRobinTimeSeries s = new RoundRobinTimeSeries(100);
+        for ( int loop=0; loop < 10; loop++) {
+            s.addItem(new Item(loop, loop));
+        }
+        serializer.writeSeries(fileHeader, s);
+        seriesFile = serializer.getFile(fileHeader);
+        seriesFile.deleteOnExit();
+
+        //files modified very recently are not recorded
+        seriesFile.setLastModified(System.currentTimeMillis() - 60000);
+    }
+
+    public void testHeaderIsRestoredFromManifest() throws Exception {
+        writeManifest();
+
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        FileHeader h = m.getHeader(seriesFile);
+        assertNotNull(h);
+        assertEquals(fileHeader.getPath(), h.getPath());
+        assertEquals(fileHeader.getDescription(), h.getDescription());
+        assertEquals(fileHeader.getCurrentHead(), h.getCurrentHead());
+        assertEquals(fileHeader.getCurrentTail(), h.getCurrentTail());
+        assertEquals(fileHeader.getSeriesMaxLength(), h.getSeriesMaxLength());
+        assertEquals(fileHeader.getMostRecentItemTimestamp(), h.getMostRecentItemTimestamp());
+        assertEquals(fileHeader.getHeaderLength(), h.getHeaderLength());
+        assertEquals("testValue", h.getSeriesProperty("testProperty"));
+        assertEquals(serializer.readSeries(fileHeader), serializer.readSeries(h));
+    }
+
+    public void testChangedFileIsNotRestored() throws Exception {
+        writeManifest();
+        seriesFile.setLastModified(seriesFile.lastModified() + 1000);
+
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        assertNull(m.getHeader(seriesFile));
+    }
+
+    public void testManifestRecordsHeaderChangesSinceLoad() throws Exception {
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        FileHeader loadedHeader = serializer.readHeader(seriesFile);
+        m.putHeader(loadedHeader);
+
+        RoundRobinTimeSeries s = new RoundRobinTimeSeries(100);
+        s.addItem(new Item(10, 10));
+        serializer.appendToSeries(loadedHeader, s);
+        seriesFile.setLastModified(System.currentTimeMillis() - 60000);
+        assertEquals(1, m.write());
+
+        m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        FileHeader h = m.getHeader(seriesFile);
+        assertNotNull(h);
+        assertEquals(11, h.getCurrentSeriesSize());
+        assertEquals(10, h.getMostRecentItemTimestamp());
+        assertEquals(serializer.readSeries(fileHeader), serializer.readSeries(h));
+    }
+
+    public void testDeletedSeriesIsDropped() throws Exception {
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        m.putHeader(fileHeader);
+        seriesFile.delete();
+        assertEquals(0, m.write());
+        assertEquals(0, m.getHeaderCount());
+    }
+
+    public void testRecentlyModifiedFileIsNotRecorded() throws Exception {
+        seriesFile.setLastModified(System.currentTimeMillis());
+        writeManifest();
+
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        assertNull(m.getHeader(seriesFile));
+    }
+
+    private void writeManifest() throws Exception {
+        HeaderManifest m = new HeaderManifest(manifestFile, serializer);
+        m.load();
+        m.putHeader(serializer.readHeader(seriesFile));
+        m.write();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.server.util.ServerDefaults;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+
+import java.io.File;
+
+/**
+ * Run the serializer tests again with memory mapping enabled
+ */
+public class TestMemoryMappedRoundRobinSerializer extends TestRoundRobinSerializer {
+
+    protected TimeSeriesSerializer createSerializer() throws SerializationException {
+        return new RoundRobinSerializer(createTestDirectory(), ServerDefaults.DEFAULT_TIMESERIES_SUFFIX, true, 1);
+    }
+
+    public void testMappedAndUnmappedSerializersShareFileFormat() throws SerializationException {
+        FileHeader header = new FileHeader("test.mapped", "test mapped series", 5);
+        TimeSeriesSerializer mapped = createSerializer();
+        mapped.createFile(header);
+        mapped.getFile(header).deleteOnExit();
+
+        RoundRobinTimeSeries toAppend = new RoundRobinTimeSeries(5);
+        for ( int loop=0; loop < 7; loop++) {
+            toAppend.addItem(new Item(loop, (double)loop));
+        }
+        mapped.appendToSeries(header, toAppend);
+
+        FileHeader unmappedHeader = new FileHeader("test.mapped", "test mapped series", 5);
+        TimeSeriesSerializer unmapped = createTestSerializer();
+        unmapped.readHeader(unmappedHeader);
+        assertEquals(header.getCurrentHead(), unmappedHeader.getCurrentHead());
+        assertEquals(toAppend, unmapped.readSeries(unmappedHeader));
+    }
+
+    public void testMappingsAreEvictedAboveMaxMappedBytes() throws Exception {
+        MappedFilePool pool = new MappedFilePool(3000);
+        File dir = createTestDirectory();
+        File f1 = new File(dir, "mapTest1");
+        File f2 = new File(dir, "mapTest2");
+        f1.deleteOnExit();
+        f2.deleteOnExit();
+
+        pool.getMapping(f1, 2000);
+        assertEquals(1, pool.getMappedFileCount());
+        pool.getMapping(f2, 2000);
+        assertEquals(1, pool.getMappedFileCount());
+        assertEquals(2000, pool.getMappedBytes());
+        pool.releaseAll();
+        assertEquals(0, pool.getMappedBytes());
+    }
+}
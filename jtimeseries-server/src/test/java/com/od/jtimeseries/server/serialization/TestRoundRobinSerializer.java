@@ -32,7 +32,7 @@ public class TestRoundRobinSerializer extends TestCase {
 
     public void setUp() throws SerializationException {
         RoundRobinSerializer.setShutdownHandlingDisabled(true);        
-        serializer = createTestSerializer();
+        serializer = createSerializer();
         RoundRobinTimeSeries r = createTestSeries();
         serializer.writeSeries(fileHeader, r);
 
@@ -132,6 +132,28 @@ public class TestRoundRobinSerializer extends TestCase {
         assertEquals(c, d);
     }
 
+    public void testReadItemsInRange() throws SerializationException {
+        //the append series is the same length as the ring, so it holds the latest 7 items
+        RoundRobinTimeSeries l = new RoundRobinTimeSeries(7);
+        for ( int loop=5; loop <= 20; loop++) {
+            addNewItemsForTimestamps(l, loop);
+        }
+        serializer.appendToSeries(fileHeader, l);
+
+        //series has wrapped around, and holds items 14 to 20
+        RoundRobinTimeSeries d = serializer.readSeries(fileHeader);
+        assertEquals(14, d.getEarliestTimestamp());
+        assertEquals(d.getItemsInRange(15, 18), serializer.readItemsInRange(fileHeader, 15, 18, 0, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(0, 100), serializer.readItemsInRange(fileHeader, 0, 100, 0, Integer.MAX_VALUE));
+        assertEquals(0, serializer.readItemsInRange(fileHeader, 21, 100, 0, Integer.MAX_VALUE).size());
+        assertEquals(0, serializer.readItemsInRange(fileHeader, 0, 13, 0, Integer.MAX_VALUE).size());
+
+        //skip the earliest two items, and limit the number of items read
+        assertEquals(d.getItemsInRange(16, 100), serializer.readItemsInRange(fileHeader, 0, 100, 2, Integer.MAX_VALUE));
+        assertEquals(d.getItemsInRange(17, 18), serializer.readItemsInRange(fileHeader, 17, 100, 0, 2));
+        assertEquals(0, serializer.readItemsInRange(fileHeader, 0, 100, 7, Integer.MAX_VALUE).size());
+    }
+
     public void testFilesystemTimeSeries() throws SerializationException {
         TimeSeriesContext c = new SeriesContext().createContext("test");
         FilesystemTimeSeries series = new FilesystemTimeSeries(
@@ -200,6 +222,9 @@ public class TestRoundRobinSerializer extends TestCase {
             fail("Should fail to migrate to a path for which a file exists already");
         } catch (SerializationException s) {
         }
+
+        //remove the migrated file so the test can be rerun within the same vm
+        serializer.getFile(fileHeader).delete();
     }
 
     private RoundRobinTimeSeries createTestSeries() {
@@ -208,7 +233,23 @@ public class TestRoundRobinSerializer extends TestCase {
         return r;
     }
 
+    protected TimeSeriesSerializer getSerializer() {
+        return serializer;
+    }
+
+    protected FileHeader getFileHeader() {
+        return fileHeader;
+    }
+
+    protected TimeSeriesSerializer createSerializer() throws SerializationException {
+        return createTestSerializer();
+    }
+
     public static TimeSeriesSerializer createTestSerializer() throws SerializationException {
+        return new RoundRobinSerializer(createTestDirectory(), ServerDefaults.DEFAULT_TIMESERIES_SUFFIX);
+    }
+
+    public static File createTestDirectory() throws SerializationException {
         File tmpDir = new File(System.getProperty("java.io.tmpdir"), "testtimeseries");
         if ( ! tmpDir.isDirectory()) {
             if ( ! tmpDir.mkdir() ) {
@@ -217,7 +258,7 @@ public class TestRoundRobinSerializer extends TestCase {
             }
         }
         tmpDir.deleteOnExit();
-        return new RoundRobinSerializer(tmpDir, ServerDefaults.DEFAULT_TIMESERIES_SUFFIX);
+        return tmpDir;
     }
 
     private void addNewItemsForTimestamps(TimeSeries s, long... timestampsForItems) {
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.serialization;
+
+import com.od.jtimeseries.server.util.ServerDefaults;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.impl.RoundRobinTimeSeries;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Run the serializer tests again using segmented storage, plus tests for the segment index
+ */
+public class TestSegmentedSerializer extends TestRoundRobinSerializer {
+
+    private SegmentedSerializer segmentedSerializer;
+
+    protected TimeSeriesSerializer createSerializer() throws SerializationException {
+        File directory = createSegmentDirectory("testsegments");
+        segmentedSerializer = new SegmentedSerializer(directory, ServerDefaults.DEFAULT_TIMESERIES_SUFFIX, 1);
+        return segmentedSerializer;
+    }
+
+    public void tearDown() {
+        segmentedSerializer.close();
+    }
+
+    public void testSeriesShareSegmentFiles() throws SerializationException {
+        for ( int loop=0; loop < 100; loop++) {
+            FileHeader h = new FileHeader("test.series" + loop, "test series", 1000);
+            segmentedSerializer.createFile(h);
+            segmentedSerializer.appendToSeries(h, createSeries(1000, loop, 10));
+        }
+
+        //each series takes a 20KB slot, so 1MB segments hold 51 series
+        assertEquals(2, segmentedSerializer.getSegmentCount());
+        assertEquals(101, segmentedSerializer.getSeriesFiles().size());
+
+        //the index and the two segments, no series files
+        File[] files = segmentedSerializer.getRootDirectory().listFiles();
+        assertEquals(3, files.length);
+    }
+
+    public void testIndexIsReloaded() throws SerializationException {
+        FileHeader h = new FileHeader("test.reload", "test series", 10);
+        segmentedSerializer.createFile(h);
+        RoundRobinTimeSeries s = createSeries(10, 0, 15);
+        segmentedSerializer.appendToSeries(h, s);
+        segmentedSerializer.migratePath(h, "test.reload.migrated");
+        segmentedSerializer.close();
+
+        segmentedSerializer = new SegmentedSerializer(segmentedSerializer.getRootDirectory(), ServerDefaults.DEFAULT_TIMESERIES_SUFFIX, 1);
+        List<File> files = segmentedSerializer.getSeriesFiles();
+        assertEquals(2, files.size());
+        assertFalse(segmentedSerializer.fileExists(new FileHeader("test.reload", "test series", 10)));
+
+        FileHeader reloaded = segmentedSerializer.readHeader(new File(segmentedSerializer.getRootDirectory(), "test.reload.migrated" + ServerDefaults.DEFAULT_TIMESERIES_SUFFIX));
+        assertEquals("test.reload.migrated", reloaded.getPath());
+        assertEquals(s, segmentedSerializer.readSeries(reloaded));
+    }
+
+    public void testLargerHeaderMovesSeriesToNewSlot() throws SerializationException {
+        FileHeader h = new FileHeader("test.header", "test series", 10);
+        segmentedSerializer.createFile(h);
+        RoundRobinTimeSeries s = createSeries(10, 0, 5);
+        segmentedSerializer.appendToSeries(h, s);
+        SegmentIndex.Slot originalSlot = getSlot(h);
+
+        StringBuilder sb = new StringBuilder();
+        for ( int loop=0; loop < 1000; loop++) {
+            sb.append("x");
+        }
+        for ( int loop=0; loop < 5; loop++) {
+            h.setSeriesProperty("property" + loop, sb.toString());
+        }
+        segmentedSerializer.writeHeaderProperties(h);
+        assertFalse(originalSlot.equals(getSlot(h)));
+
+        //the original slot is free, and is reused for the next series of that size
+        FileHeader h2 = new FileHeader("test.header2", "test series", 10);
+        segmentedSerializer.createFile(h2);
+        assertEquals(originalSlot, getSlot(h2));
+
+        segmentedSerializer.readHeader(h);
+        assertEquals(sb.toString(), h.getSeriesProperty("property4"));
+        assertEquals(s, segmentedSerializer.readSeries(h));
+    }
+
+    public void testRemoveOldSeries() throws SerializationException {
+        long now = System.currentTimeMillis();
+        for ( int loop=0; loop < 3; loop++) {
+            FileHeader h = new FileHeader("test.remove" + loop, "test series", 10);
+            segmentedSerializer.createFile(h);
+            RoundRobinTimeSeries s = new RoundRobinTimeSeries(10);
+            s.addItem(new Item(now - (loop * 10000), loop));
+            segmentedSerializer.appendToSeries(h, s);
+        }
+
+        //the series from setUp has timestamps 1 to 4, so is oldest
+        segmentedSerializer.removeOldSeries(0, 0, 15000);
+        assertEquals(2, segmentedSerializer.getSeriesFiles().size());
+        assertFalse(segmentedSerializer.fileExists(getFileHeader()));
+
+        segmentedSerializer.removeOldSeries(1, 0, 0);
+        assertEquals(1, segmentedSerializer.getSeriesFiles().size());
+        assertTrue(segmentedSerializer.fileExists(new FileHeader("test.remove0", "test series", 10)));
+    }
+
+    public void testConvertSeriesDirectory() throws SerializationException {
+        File sourceDirectory = createSegmentDirectory("testconvertsource");
+        RoundRobinSerializer source = new RoundRobinSerializer(sourceDirectory, ServerDefaults.DEFAULT_TIMESERIES_SUFFIX);
+        source.setCompressedFormat(true);
+        FileHeader compressed = new FileHeader("test.compressed", "test series", 50);
+        source.writeSeries(compressed, createSeries(50, 0, 60));
+        source.setCompressedFormat(false);
+        FileHeader uncompressed = new FileHeader("test.uncompressed", "test series", 50);
+        source.writeSeries(uncompressed, createSeries(50, 1, 20));
+
+        SeriesDirectoryConverter converter = new SeriesDirectoryConverter(source, segmentedSerializer);
+        converter.convert();
+        assertEquals(2, converter.getConvertedCount());
+        assertEquals(0, converter.getFailedCount());
+
+        FileHeader h = new FileHeader("test.compressed", "test series", 50);
+        segmentedSerializer.readHeader(h);
+        assertTrue(h.isCompressed());
+        assertEquals(createSeries(50, 0, 60), segmentedSerializer.readSeries(h));
+
+        h = new FileHeader("test.uncompressed", "test series", 50);
+        segmentedSerializer.readHeader(h);
+        assertFalse(h.isCompressed());
+        assertEquals(createSeries(50, 1, 20), segmentedSerializer.readSeries(h));
+    }
+
+    private SegmentIndex.Slot getSlot(FileHeader h) {
+        return segmentedSerializer.getSlot(h.getPath());
+    }
+
+    private RoundRobinTimeSeries createSeries(int maxLength, int seed, int items) {
+        RoundRobinTimeSeries s = new RoundRobinTimeSeries(maxLength);
+        for ( int loop=0; loop < items; loop++) {
+            s.addItem(new Item(loop * 1000, (double)(loop * seed)));
+        }
+        return s;
+    }
+
+    private File createSegmentDirectory(String name) {
+        File directory = new File(System.getProperty("java.io.tmpdir"), name);
+        directory.mkdir();
+        for ( File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -3,13 +3,20 @@ package com.od.jtimeseries.server.timeseries;
 import com.od.jtimeseries.component.util.cache.LRUCache;
 import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.NanoHTTPD;
+import com.od.jtimeseries.net.httpd.handler.SeriesHandler;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
 import com.od.jtimeseries.server.serialization.*;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.impl.TimeSeriesTestUtils;
+import com.od.jtimeseries.timeseries.util.SeriesUtils;
 import com.od.jtimeseries.util.time.Time;
 import junit.framework.TestCase;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * Created by IntelliJ IDEA.
@@ -182,6 +189,65 @@ public class TestFilesystemTimeSeries extends TestCase {
         assertFalse(series.isSeriesCollected());
     }
 
+    @Test
+    public void testRangeReadsDoNotLoadSeries() throws SerializationException {
+        TimeSeriesContext c = new SeriesContext().createContext("test");
+        FilesystemTimeSeries series = new FilesystemTimeSeries(
+            c.getPath(),
+            "id" + (int)(Math.random() * 100000000),
+            "description", timeseriesSerializer,
+            new LRUCache(),
+            3,
+            Time.seconds(10),
+            Time.seconds(10)
+        );
+        c.addChild(series);
+
+        for ( int loop=1; loop <= 4; loop++) {
+            series.addItem(TimeSeriesTestUtils.createItemWithTimestamp(loop));
+        }
+        series.triggerGarbageCollection();
+        series.flush();
+
+        //item 5 is in the append list, item 2 on disk will be lost when it is written
+        series.addItem(TimeSeriesTestUtils.createItemWithTimestamp(5));
+        assertTrue(series.isSeriesCollected());
+
+        List<TimeSeriesItem> items = series.getItemsInRange(0, 100);
+        assertEquals(3, items.size());
+        assertEquals(3, items.get(0).getTimestamp());
+        assertEquals(5, items.get(2).getTimestamp());
+        assertEquals(4, series.getFirstItemAtOrAfter(4).getTimestamp());
+        assertEquals(5, series.getFirstItemAtOrAfter(5).getTimestamp());
+        assertNull(series.getFirstItemAtOrAfter(6));
+        assertEquals(2, SeriesUtils.getSubSeries(4, series).size());
+        assertTrue(series.isSeriesCollected());
+    }
+
+    @Test
+    public void testConditionalSeriesRequestDoesNotLoadSeries() throws SerializationException {
+        SeriesContext rootContext = new SeriesContext();
+        TimeSeriesContext c = rootContext.createContext("test");
+        FilesystemTimeSeries series = new FilesystemTimeSeries(
+            c.getPath(), "series", "description", timeseriesSerializer, new LRUCache(), 10, Time.seconds(10), Time.seconds(10)
+        );
+        c.addChild(series);
+        timeseriesSerializer.getFile(series.getFileHeader()).deleteOnExit();
+        series.addItem(TimeSeriesTestUtils.createItemWithTimestamp(1));
+
+        SeriesHandler handler = new SeriesHandler(rootContext);
+        String uri = "/test/series" + SeriesHandler.SERIES_POSTFIX;
+        NanoHttpResponse response = handler.createResponse(uri, "GET", new Properties(), new Properties());
+        series.triggerGarbageCollection();
+        series.flush();
+
+        Properties header = new Properties();
+        header.put("if-none-match", response.header.getProperty("ETag"));
+        response = handler.createResponse(uri, "GET", header, new Properties());
+        assertEquals(NanoHTTPD.HTTP_NOT_MODIFIED, response.status);
+        assertTrue(series.isSeriesCollected());
+    }
+
     @Test
     public void testLastModifiedTimestamp() throws Exception {
         FilesystemTimeSeries series = getTimeSeriesInstance();
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.component.util.cache.LRUCache;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.server.serialization.RoundRobinSerializer;
+import com.od.jtimeseries.server.serialization.TestRoundRobinSerializer;
+import com.od.jtimeseries.server.serialization.TimeSeriesSerializer;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.util.time.Time;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestFlushScheduler extends TestCase {
+
+    private TimeSeriesSerializer timeseriesSerializer;
+    private TimeSeriesContext context;
+    private List<FlushScheduler> schedulers = new ArrayList<FlushScheduler>();
+
+    public void setUp() throws Exception {
+        RoundRobinSerializer.setShutdownHandlingDisabled(true);
+        timeseriesSerializer = TestRoundRobinSerializer.createTestSerializer();
+        context = new SeriesContext().createContext("test");
+    }
+
+    public void tearDown() {
+        for ( FlushScheduler s : schedulers) {
+            s.shutdown();
+        }
+    }
+
+    public void testDueSeriesAreFlushedTogether() throws Exception {
+        FlushScheduler scheduler = createScheduler(2, -1);
+        List<FilesystemTimeSeries> series = new ArrayList<FilesystemTimeSeries>();
+        for ( int loop=0; loop < 10; loop++) {
+            FilesystemTimeSeries s = createSeries(scheduler, 100);
+            s.addItem(new Item(1, loop));
+            series.add(s);
+        }
+        assertEquals(10, scheduler.getQueueDepth());
+        assertEquals(160, scheduler.getDirtyBytes());
+
+        waitForFlush(scheduler);
+        for ( FilesystemTimeSeries s : series) {
+            assertEquals(1, s.getFileHeader().getCurrentSeriesSize());
+            assertEquals(0, s.getCacheAppendListSize());
+        }
+    }
+
+    public void testSeriesIsFlushedEarlyWhenDirtyBytesExceedLimit() throws Exception {
+        //1MB limit is 65536 items at 16 bytes per item, the flush delay is far longer than the test
+        FlushScheduler scheduler = createScheduler(1, 1);
+        FilesystemTimeSeries s = createSeries(scheduler, 3600000);
+        for ( int loop=0; loop < 70000; loop++) {
+            s.addItem(new Item(loop, loop));
+        }
+
+        assertEquals(70000, s.size());
+
+        //adding items does not wait for the flush, but the series is written without waiting for the delay
+        scheduler.waitForFlushCapacity();
+        assertTrue(scheduler.getDirtyBytes() <= 1024 * 1024);
+        assertTrue(s.getFileHeader().getCurrentSeriesSize() >= 65536);
+    }
+
+    public void testDirtyBytesAreEstimatedFromSerializer() throws Exception {
+        FlushScheduler scheduler = createScheduler(1, -1);
+        RoundRobinSerializer compressed = (RoundRobinSerializer)TestRoundRobinSerializer.createTestSerializer();
+        compressed.setCompressedFormat(true);
+        timeseriesSerializer = compressed;
+
+        //once items are stored the compression achieved is known
+        FilesystemTimeSeries s = createSeries(scheduler, 3600000);
+        for ( int loop=0; loop < 10000; loop++) {
+            s.addItem(new Item(loop * 1000L, 1));
+        }
+        s.flush();
+        assertEquals(0, scheduler.getDirtyBytes());
+        for ( int loop=10000; loop < 20000; loop++) {
+            s.addItem(new Item(loop * 1000L, 1));
+        }
+        assertTrue(scheduler.getDirtyBytes() > 0);
+        assertTrue(scheduler.getDirtyBytes() < 10000 * 4);
+    }
+
+    public void testSeriesRescheduledSoonerIsFlushedAtTheSoonerTime() throws Exception {
+        FlushScheduler scheduler = createScheduler(1, -1);
+        FilesystemTimeSeries s = createSeries(scheduler, 3600000);
+        s.addItem(new Item(1, 1));
+
+        //a later flush time leaves the scheduled flush alone, a sooner one replaces it
+        scheduler.scheduleFlush(s, 7200000);
+        assertEquals(1, scheduler.getQueueDepth());
+        scheduler.scheduleFlush(s, 0);
+
+        //the replaced request is still queued, but is not counted once the series is flushed
+        waitForFlush(scheduler);
+        assertEquals(1, s.getFileHeader().getCurrentSeriesSize());
+    }
+
+    public void testShutdownStopsCoordinatorThread() throws Exception {
+        FlushScheduler scheduler = createScheduler(1, -1);
+        assertTrue(scheduler.isCoordinatorAlive());
+        scheduler.shutdown();
+
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while ( scheduler.isCoordinatorAlive() && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(20);
+        }
+        assertFalse(scheduler.isCoordinatorAlive());
+    }
+
+    private FlushScheduler createScheduler(int flushThreads, int maxDirtyMb) {
+        FlushScheduler scheduler = new FlushScheduler(flushThreads, maxDirtyMb);
+        schedulers.add(scheduler);
+        return scheduler;
+    }
+
+    private void waitForFlush(FlushScheduler scheduler) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while ( scheduler.getDirtyBytes() > 0 && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, scheduler.getDirtyBytes());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    private FilesystemTimeSeries createSeries(FlushScheduler scheduler, long delayMillis) throws Exception {
+        FilesystemTimeSeries s = new FilesystemTimeSeries(
+                context.getPath(),
+                "id" + (int)(Math.random() * 100000000),
+                "description",
+                timeseriesSerializer,
+                new LRUCache(),
+                scheduler,
+                100000,
+                Time.milliseconds(delayMillis),
+                Time.milliseconds(delayMillis));
+        context.addChild(s);
+        timeseriesSerializer.getFile(s.getFileHeader()).deleteOnExit();
+        return s;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.component.util.cache.LRUCache;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.server.serialization.FileHeader;
+import com.od.jtimeseries.server.serialization.RoundRobinSerializer;
+import com.od.jtimeseries.server.serialization.TestRoundRobinSerializer;
+import com.od.jtimeseries.server.serialization.TimeSeriesSerializer;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.impl.TimeSeriesTestUtils;
+import com.od.jtimeseries.util.time.Time;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class TestSeriesJournal extends TestCase {
+
+    private TimeSeriesSerializer timeseriesSerializer;
+    private File journalDirectory;
+
+    public void setUp() throws Exception {
+        RoundRobinSerializer.setShutdownHandlingDisabled(true);
+        timeseriesSerializer = TestRoundRobinSerializer.createTestSerializer();
+        journalDirectory = new File(System.getProperty("java.io.tmpdir"), "testjournal");
+        journalDirectory.mkdir();
+        for ( File f : journalDirectory.listFiles()) {
+            f.delete();
+        }
+        journalDirectory.deleteOnExit();
+    }
+
+    public void testItemsReplayedIntoNewSeries() throws Exception {
+        SeriesJournal journal = createJournal();
+        TimeSeriesContext rootContext = new SeriesContext();
+        FilesystemTimeSeries series = createSeries(rootContext, journal, "journalled" + (int)(Math.random() * 100000000));
+        for ( int loop=1; loop <= 5; loop++) {
+            series.addItem(TimeSeriesTestUtils.createItemWithTimestamp(loop));
+        }
+        series.flush();
+        for ( int loop=6; loop <= 8; loop++) {
+            series.addItem(new Item(loop, (double)loop));
+        }
+
+        //the last three items are only in the write behind cache and the journal when we stop
+        journal.close();
+        String path = series.getFileHeader().getPath();
+        FileHeader header = new FileHeader(path, "description", 10000);
+        timeseriesSerializer.readHeader(header);
+        assertEquals(5, header.getCurrentSeriesSize());
+
+        //the factory replays the journalled items as the series is created
+        SeriesJournal restartedJournal = createJournal();
+        FilesystemTimeSeriesFactory factory = new FilesystemTimeSeriesFactory(
+            timeseriesSerializer, new LRUCache(), FlushScheduler.getDefaultScheduler(), restartedJournal, Time.seconds(10), Time.seconds(10), 10000
+        );
+        TimeSeriesContext restartedContext = new SeriesContext().createContext("test");
+        FilesystemTimeSeries restarted = (FilesystemTimeSeries)factory.createTimeSeries(
+            restartedContext, path, series.getId(), "description", IdentifiableTimeSeries.class, header
+        );
+        assertEquals(8, restarted.size());
+        assertEquals(new Item(8, 8d), restarted.getLatestItem());
+
+        //the replayed items are journalled again, so the journal from the previous run is no longer required
+        assertEquals(2, restartedJournal.getJournalFileCount());
+        restartedJournal.endReplay();
+        assertEquals(1, restartedJournal.getJournalFileCount());
+        restarted.flush();
+        restartedJournal.close();
+    }
+
+    public void testJournalFileDeletedOnceFlushed() throws Exception {
+        SeriesJournal journal = createJournal();
+        FilesystemTimeSeries series = createSeries(new SeriesContext(), journal, "truncated" + (int)(Math.random() * 100000000));
+
+        //enough items to start a new journal file
+        for ( int loop=0; loop < 30000; loop++) {
+            series.addItem(TimeSeriesTestUtils.createItemWithTimestamp(loop));
+        }
+        journal.sync();
+        assertEquals(2, journal.getJournalFileCount());
+
+        //the series holds the first journal file until it flushes
+        journal.sync();
+        assertEquals(2, journal.getJournalFileCount());
+        series.flush();
+        journal.sync();
+        assertEquals(1, journal.getJournalFileCount());
+        journal.close();
+    }
+
+    private SeriesJournal createJournal() throws Exception {
+        return new SeriesJournal(journalDirectory, true, 60000, 1);
+    }
+
+    private FilesystemTimeSeries createSeries(TimeSeriesContext rootContext, SeriesJournal journal, String id) throws Exception {
+        TimeSeriesContext context = rootContext.createContext("test");
+        FilesystemTimeSeries s = new FilesystemTimeSeries(
+            context.getPath(), id, "description", timeseriesSerializer, new LRUCache(), FlushScheduler.getDefaultScheduler(),
+            journal, 10000, Time.seconds(10), Time.seconds(10)
+        );
+        context.addChild(s);
+        timeseriesSerializer.getFile(s.getFileHeader()).deleteOnExit();
+        return s;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.server.timeseries;
+
+import com.od.jtimeseries.component.util.cache.LRUCache;
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.server.serialization.RoundRobinSerializer;
+import com.od.jtimeseries.server.serialization.TestRoundRobinSerializer;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.util.time.Time;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestSeriesRollups extends TestCase {
+
+    private static final long MINUTE = 60000;
+    private static final long[] PERIODS = new long[] { MINUTE, 15 * MINUTE };
+
+    private File rollupDirectory;
+    private FilesystemTimeSeries series;
+
+    public void setUp() throws Exception {
+        RoundRobinSerializer.setShutdownHandlingDisabled(true);
+        rollupDirectory = new File(System.getProperty("java.io.tmpdir"), "testrollups");
+        rollupDirectory.mkdir();
+        for ( File f : rollupDirectory.listFiles()) {
+            f.delete();
+        }
+        rollupDirectory.deleteOnExit();
+
+        TimeSeriesContext context = new SeriesContext().createContext("test");
+        series = new FilesystemTimeSeries(
+            context.getPath(), "rollup" + (int)(Math.random() * 100000000), "description",
+            TestRoundRobinSerializer.createTestSerializer(), new LRUCache(), 100, Time.seconds(10), Time.seconds(10)
+        );
+        series.setRollups(createRollups());
+        context.addChild(series);
+    }
+
+    public void testParsePeriods() {
+        assertTrue(Arrays.equals(new long[] { 30000, MINUTE, 60 * MINUTE, 24 * 60 * MINUTE}, RollupConfiguration.parsePeriods("1h, 1d,30s,1m")));
+        assertEquals(0, RollupConfiguration.parsePeriods("").length);
+    }
+
+    public void testItemsRolledUpAndPersisted() throws Exception {
+        //one item every 10 seconds for an hour, more than the raw series can hold
+        for ( int loop=0; loop < 360; loop++) {
+            series.addItem(new Item(loop * 10000L, (double)(loop % 6)));
+        }
+        series.flush();
+        assertEquals(100, series.size());
+
+        List<TimeSeriesItem> minutes = series.getItemsInRange(0, Long.MAX_VALUE, MINUTE);
+        assertEquals(60, minutes.size());
+        assertEquals(new RollupItem(0, 0, 5, 15, 6), minutes.get(0));
+        assertEquals(2.5d, minutes.get(59).doubleValue());
+
+        //coarsest tier which still satisfies the resolution
+        assertEquals(4, series.getItemsInRange(0, Long.MAX_VALUE, 20 * MINUTE).size());
+        assertEquals(2, series.getItemsInRange(15 * MINUTE, 30 * MINUTE, Long.MAX_VALUE).size());
+
+        //finer than any tier, so the raw items
+        assertEquals(100, series.getItemsInRange(0, Long.MAX_VALUE, 1000).size());
+
+        //the closed periods are in the ring, the open period in the region header
+        SeriesRollups reloaded = createRollups();
+        assertEquals(minutes, reloaded.getItemsInRange(0, Long.MAX_VALUE, MINUTE));
+        reloaded.addItem(new Item(3599000, 10d));
+        assertEquals(new RollupItem(59 * MINUTE, 0, 10, 25, 7), reloaded.getItemsInRange(59 * MINUTE, Long.MAX_VALUE, MINUTE).get(0));
+    }
+
+    public void testRingWraps() throws Exception {
+        SeriesRollups rollups = new SeriesRollups(rollupDirectory, "test.wrap", PERIODS, 10);
+        for ( int loop=0; loop <= 25; loop++) {
+            rollups.addItem(new Item(loop * MINUTE, (double)loop));
+        }
+        rollups.flush();
+
+        List<TimeSeriesItem> items = new SeriesRollups(rollupDirectory, "test.wrap", PERIODS, 10).getItemsInRange(0, Long.MAX_VALUE, MINUTE);
+        //ten closed periods in the ring, and the open period
+        assertEquals(11, items.size());
+        assertEquals(15 * MINUTE, items.get(0).getTimestamp());
+        assertEquals(25 * MINUTE, items.get(10).getTimestamp());
+    }
+
+    public void testEarliestTimestampFromCoarsestTier() throws Exception {
+        SeriesRollups rollups = new SeriesRollups(rollupDirectory, "test.earliest", PERIODS, 10);
+        assertEquals(-1, rollups.getEarliestTimestamp());
+        for ( int loop=20; loop <= 40; loop++) {
+            rollups.addItem(new Item(loop * MINUTE, (double)loop));
+        }
+        assertEquals(15 * MINUTE, rollups.getEarliestTimestamp());
+        rollups.flush();
+        assertEquals(15 * MINUTE, new SeriesRollups(rollupDirectory, "test.earliest", PERIODS, 10).getEarliestTimestamp());
+    }
+
+    public void testFileForDifferentTiersIsReplaced() throws Exception {
+        SeriesRollups rollups = new SeriesRollups(rollupDirectory, "test.replaced", PERIODS, 10);
+        for ( int loop=0; loop <= 5; loop++) {
+            rollups.addItem(new Item(loop * MINUTE, (double)loop));
+        }
+        rollups.flush();
+
+        SeriesRollups changed = new SeriesRollups(rollupDirectory, "test.replaced", PERIODS, 20);
+        assertEquals(0, changed.getItemsInRange(0, Long.MAX_VALUE, MINUTE).size());
+        changed.addItem(new Item(6 * MINUTE, 6d));
+        changed.flush();
+        assertEquals(1, new SeriesRollups(rollupDirectory, "test.replaced", PERIODS, 20).getItemsInRange(0, Long.MAX_VALUE, MINUTE).size());
+    }
+
+    private SeriesRollups createRollups() {
+        return new SeriesRollups(rollupDirectory, series.getFileHeader().getPath(), PERIODS, 1000);
+    }
+}
@@ -19,6 +19,8 @@
 package com.od.jtimeseries.ui.timeseries;
 
 import com.od.jtimeseries.context.ContextProperties;
+import com.od.jtimeseries.net.httpd.format.BinarySeriesReader;
+import com.od.jtimeseries.net.httpd.format.SeriesFormat;
 import com.od.jtimeseries.net.httpd.xml.AttributeName;
 import com.od.jtimeseries.net.httpd.xml.ElementName;
 import com.od.jtimeseries.timeseries.Item;
@@ -29,10 +31,14 @@ import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.io.BufferedInputStream;
+import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by IntelliJ IDEA.
@@ -40,6 +46,8 @@ import java.util.Properties;
 * Date: 31-May-2009
 * Time: 15:30:14
 * To change this template use File | Settings | File Templates.
+*
+* Requests the binary series format, gzipped, falling back to parsing xml from servers which do not support it
 */
 public class DownloadRemoteTimeSeriesDataQuery extends AbstractRemoteQuery {
 
@@ -51,6 +59,39 @@ public class DownloadRemoteTimeSeriesDataQuery extends AbstractRemoteQuery {
         this.destinationSeries = destinationSeries;
     }
 
+    protected void readQueryResponse() throws Exception {
+        URLConnection connection = getQueryUrl().openConnection();
+        connection.setRequestProperty("Accept", SeriesFormat.binary.getMimeType() + ", " + SeriesFormat.xml.getMimeType() + ";q=0.5");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        InputStream is = connection.getInputStream();
+        try {
+            if ( "gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                is = new GZIPInputStream(is);
+            }
+
+            String contentType = connection.getContentType();
+            if ( contentType != null && contentType.startsWith(SeriesFormat.binary.getMimeType())) {
+                readBinaryResponse(new BufferedInputStream(is));
+            } else {
+                parseXmlResponse(is);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private void readBinaryResponse(InputStream is) throws Exception {
+        BinarySeriesReader reader = new BinarySeriesReader(is);
+        destinationSeries.updateSummaryStats(ContextProperties.createSummaryStatsProperties(reader.readHeader()));
+
+        TimeSeriesItem i;
+        while ( (i = reader.readItem()) != null) {
+            addTimeSeriesItemIfNew(i.getTimestamp(), i.doubleValue());
+        }
+        destinationSeries.addAll(itemsToAdd);  //add all in one transaction, avoid firing multiple events
+        itemsToAdd.clear();
+    }
+
     public ContentHandler getContentHandler() {
         return new DefaultHandler(){
             public void startElement (String uri, String localName, String qName, Attributes attributes) {
@@ -81,14 +122,11 @@ public class DownloadRemoteTimeSeriesDataQuery extends AbstractRemoteQuery {
         String value = attributes.getValue(AttributeName.value.name());
 
         if ( timestamp != null && value != null ) {
-            addTimeSeriesItemIfNew(timestamp, value);
+            addTimeSeriesItemIfNew(Long.parseLong(timestamp), value.equals("?") ? Double.NaN : Double.parseDouble(value));
         }
     }
 
-    private void addTimeSeriesItemIfNew(String timestamp, String value) {
-        long longTimestamp = Long.parseLong(timestamp);
-        double doubleValue = value.equals("?") ? Double.NaN : Double.parseDouble(value);
-
+    private void addTimeSeriesItemIfNew(long longTimestamp, double doubleValue) {
         //only add latest items
         if ( destinationSeries.size() == 0 || longTimestamp > destinationSeries.getLatestTimestamp()) {
             TimeSeriesItem newItem = new Item(longTimestamp, doubleValue);
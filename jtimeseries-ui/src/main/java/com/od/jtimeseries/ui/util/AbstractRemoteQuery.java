@@ -21,10 +21,12 @@ package com.od.jtimeseries.ui.util;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.XMLReaderFactory;
 
+import java.io.InputStream;
 import java.net.URL;
 
 /**
@@ -50,6 +52,33 @@ public abstract class AbstractRemoteQuery {
     public void runQuery() throws Exception {
         long time = System.currentTimeMillis();
         doBeforeRun();
+        readQueryResponse();
+        long timeTaken = System.currentTimeMillis() - time;
+        LocalJmxMetrics.getInstance().getQueryTimesRecorder().newValue(timeTaken);
+        LocalJmxMetrics.getInstance().getQueryCounter().incrementCount();
+        if (logMethods.isDebugEnabled()) logMethods.debug(getClass().getName() + " query took " + timeTaken + " millis");
+    }
+
+    protected void doBeforeRun() {
+    }
+
+    /**
+     * Fetch the query url and parse the xml response, subclasses may override to request other formats
+     */
+    protected void readQueryResponse() throws Exception {
+        createParser().parse(url.toString());
+    }
+
+    /**
+     * Parse an xml response already opened by a subclass
+     */
+    protected void parseXmlResponse(InputStream is) throws Exception {
+        InputSource source = new InputSource(is);
+        source.setSystemId(url.toString());
+        createParser().parse(source);
+    }
+
+    private XMLReader createParser() throws SAXException {
         XMLReader parser = XMLReaderFactory.createXMLReader();
         String id    = "http://apache.org/xml/properties/input-buffer-size";
         Object value = 20000000;
@@ -60,14 +89,7 @@ public abstract class AbstractRemoteQuery {
             System.err.println("could not set parser property");
         }
         parser.setContentHandler(getContentHandler());
-        parser.parse(url.toString());
-        long timeTaken = System.currentTimeMillis() - time;
-        LocalJmxMetrics.getInstance().getQueryTimesRecorder().newValue(timeTaken);
-        LocalJmxMetrics.getInstance().getQueryCounter().incrementCount();
-        if (logMethods.isDebugEnabled()) logMethods.debug(getClass().getName() + " query took " + timeTaken + " millis");
-    }
-
-    protected void doBeforeRun() {
+        return parser;
     }
 
     public abstract ContentHandler getContentHandler();
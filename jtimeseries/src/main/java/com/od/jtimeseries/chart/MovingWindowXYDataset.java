@@ -1,6 +1,8 @@
 package com.od.jtimeseries.chart;
 
 import com.od.jtimeseries.timeseries.*;
+import com.od.jtimeseries.timeseries.downsample.DownsampleMode;
+import com.od.jtimeseries.timeseries.downsample.Downsampler;
 import com.od.jtimeseries.timeseries.impl.DefaultTimeSeries;
 import com.od.jtimeseries.timeseries.impl.WeakReferenceTimeSeriesListener;
 import com.od.jtimeseries.timeseries.util.SeriesUtils;
@@ -49,6 +51,8 @@ public class MovingWindowXYDataset<E extends TimeSeries> extends AbstractXYDatas
     private volatile Future movingWindowRefreshTask;
     private long currentStartTime = -1;
     private long currentEndTime = -1;
+    private volatile DownsampleMode downsampleMode = DownsampleMode.lttb;
+    private volatile int maxPoints = -1;
 
     public MovingWindowXYDataset() {
         this(TimeSource.OPEN_START_TIME, TimeSource.OPEN_END_TIME, false);
@@ -79,6 +83,16 @@ public class MovingWindowXYDataset<E extends TimeSeries> extends AbstractXYDatas
         refresh(true);
     }
 
+    /**
+     * Downsample each series to at most maxPoints items within the window, or pass -1 to chart every item.
+     * While downsampling, a snapshot is rebuilt rather than appended to whenever its series changes
+     */
+    public void setDownsampling(DownsampleMode mode, int maxPoints) {
+        this.downsampleMode = mode;
+        this.maxPoints = maxPoints;
+        refresh(true);
+    }
+
     public void startMovingWindow(TimePeriod timePeriod) {
         stopMovingWindow();
         MoveWindowTask t = new MoveWindowTask(this);
@@ -200,9 +214,9 @@ public class MovingWindowXYDataset<E extends TimeSeries> extends AbstractXYDatas
                         rebuildSnapshot = true;
                     }
 
-                    if ( rebuildSnapshot || forceRebuild) {  //we need to rebuild completely
+                    if ( rebuildSnapshot || forceRebuild || maxPoints != -1) {  //we need to rebuild completely
 //                        System.out.println("rebuild for " + key);
-                        snapshotData = new DefaultTimeSeries(SeriesUtils.getItemsInRange(currentStartTime, currentEndTime, sourceSeries));
+                        snapshotData = new DefaultTimeSeries(getItemsInWindow());
                         lastIndexFromSource = SeriesUtils.getIndexOfFirstItemAtOrBefore(currentEndTime, sourceSeries);
                         modified = true;
                     } else {  //source series changes since the last refresh didn't affect our current snapshot, we can simply remove and append
@@ -219,6 +233,17 @@ public class MovingWindowXYDataset<E extends TimeSeries> extends AbstractXYDatas
             return modified;
         }
 
+        private List<TimeSeriesItem> getItemsInWindow() {
+            List<TimeSeriesItem> result;
+            if ( maxPoints == -1) {
+                result = SeriesUtils.getItemsInRange(currentStartTime, currentEndTime, sourceSeries);
+            } else {
+                //the series' own getItemsInRange, which some series can answer without reading every item
+                result = Downsampler.downsample(sourceSeries.getItemsInRange(currentStartTime, currentEndTime), maxPoints, downsampleMode);
+            }
+            return result;
+        }
+
         private boolean hasSourceSeriesBeenUpdated() {
             return modCountOnLastRefresh != sourceSeries.getModCount();
         }
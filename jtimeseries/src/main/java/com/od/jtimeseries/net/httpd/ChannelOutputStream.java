@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Lets a request processing thread write a response as a stream to a non-blocking channel, waiting for the channel
+ * to become writable when the socket send buffer is full. The connection's own selector thread is not involved,
+ * so a slow client holds up only the thread writing its response
+ *
+ * Closing the stream does not close the channel, which stays open for further requests on a keep-alive connection
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+    private final long writeTimeoutMillis;
+    private Selector writeSelector;
+
+    ChannelOutputStream(SocketChannel channel, long writeTimeoutMillis) {
+        this.channel = channel;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while ( buffer.hasRemaining()) {
+            if ( channel.write(buffer) == 0) {
+                waitUntilWritable();
+            }
+        }
+    }
+
+    private void waitUntilWritable() throws IOException {
+        //only needed once the send buffer fills, which most responses never do
+        if ( writeSelector == null) {
+            writeSelector = Selector.open();
+        }
+
+        SelectionKey key = channel.register(writeSelector, SelectionKey.OP_WRITE);
+        try {
+            if ( writeSelector.select(writeTimeoutMillis) == 0) {
+                throw new IOException("Timed out after " + writeTimeoutMillis + " millis writing HTTP response to " + channel.socket().getInetAddress());
+            }
+        } finally {
+            key.cancel();
+            writeSelector.selectNow();  //deregister the channel so it can be registered again
+        }
+    }
+
+    public void close() throws IOException {
+        if ( writeSelector != null) {
+            writeSelector.close();
+            writeSelector = null;
+        }
+    }
+}
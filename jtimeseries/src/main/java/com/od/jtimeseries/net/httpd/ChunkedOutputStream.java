@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a response body with HTTP/1.1 chunked transfer encoding, for responses which do not know their length
+ * up front. Writes are buffered so that small writes by a response do not each become a chunk
+ *
+ * Closing the stream ends the body but does not close the underlying stream, which belongs to the connection
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private boolean finished;
+
+    ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.buffer = new byte[chunkSize];
+    }
+
+    public void write(int b) throws IOException {
+        if ( count == buffer.length) {
+            writeBufferedChunk();
+        }
+        buffer[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if ( len >= buffer.length) {
+            writeBufferedChunk();
+            writeChunk(b, off, len);
+        } else {
+            if ( len > buffer.length - count) {
+                writeBufferedChunk();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    public void flush() throws IOException {
+        writeBufferedChunk();
+        out.flush();
+    }
+
+    /**
+     * Write any buffered data and the last chunk which ends the body
+     */
+    public void finish() throws IOException {
+        if ( ! finished) {
+            writeBufferedChunk();
+            out.write(LAST_CHUNK);
+            finished = true;
+        }
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.flush();
+    }
+
+    private void writeBufferedChunk() throws IOException {
+        writeChunk(buffer, 0, count);
+        count = 0;
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        //a zero length chunk would end the body
+        if ( len > 0) {
+            if ( finished ) {
+                throw new IOException("Cannot write to a chunked response body after the last chunk");
+            }
+            out.write(Integer.toHexString(len).getBytes("ISO-8859-1"));
+            out.write(CRLF);
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+    }
+}
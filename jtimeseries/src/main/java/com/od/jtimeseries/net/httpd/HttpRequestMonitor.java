@@ -18,6 +18,8 @@ public interface HttpRequestMonitor {
 
     public static final HttpRequestMonitor DUMMY_REQUEST_MONITOR = new HttpRequestMonitor() {
 
+        public void requestDispatched(long requestId, Socket mySocket, int requestsOnConnection, long queueTimeMillis) {}
+
         public void requestStarting(long requestId, Socket clientSocket) {}
 
         public void servingRequest(long requestId, Socket mySocket, String uri, String method, Properties header, Properties params) {}
@@ -29,6 +31,15 @@ public interface HttpRequestMonitor {
         public void invalidRequest(long requestId, Socket mySocket, String httpErrorType) {}
     };
 
+    /**
+     * Called before requestStarting, once a thread is available to process the request
+     *
+     * @param requestsOnConnection, requests received on the client connection including this one, more than one when a
+     *                              keep-alive connection is reused
+     * @param queueTimeMillis, time from the request being read until a thread was available to process it
+     */
+    void requestDispatched(long requestId, Socket mySocket, int requestsOnConnection, long queueTimeMillis);
+
     void requestStarting(long requestId, Socket mySocket);
 
     void servingRequest(long requestId, Socket mySocket, String uri, String method, Properties header, Properties params);
@@ -34,8 +34,14 @@ import java.util.Properties;
  */
 public class JTimeSeriesHttpd extends NanoHTTPD {
 
+    private static final int DEFAULT_MAX_REQUEST_BYTES = 65536;
+    private static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
     private int port;
     private volatile HandlerFactory handlerFactory;
+    private int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+    private int idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private NioHttpServer server;
 
     /**
     * Starts a HTTP server to given port.<p>
@@ -55,6 +61,42 @@ public class JTimeSeriesHttpd extends NanoHTTPD {
         return port;
     }
 
+    /**
+     * @param maxRequestBytes, requests with headers and body larger than this are rejected with 413
+     */
+    public void setMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * @param idleTimeoutMillis, keep-alive connections are closed once idle for this long waiting for a request
+     */
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Start serving requests with a selector thread and keep-alive connections, instead of NanoHTTPD's
+     * thread per connection accept loop
+     */
+    public synchronized void start() throws IOException {
+        if ( server == null) {
+            server = new NioHttpServer(this, port, maxRequestBytes, idleTimeoutMillis);
+            server.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if ( server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    public synchronized int getConnectionCount() {
+        return server == null ? 0 : server.getConnectionCount();
+    }
+
     public NanoHttpResponse serve( String uri, String method, Properties header, Properties parms ) {
         HttpHandler handler = handlerFactory.getHandler(uri, method, header, parms );
         if ( handler != null) {
@@ -75,7 +75,7 @@ import java.util.concurrent.atomic.AtomicLong;
 public class NanoHTTPD {
 
     private static LogMethods logMethods = LogUtils.getLogMethods(NanoHTTPD.class);
-    private static AtomicLong lastRequestId = new AtomicLong();
+    static AtomicLong lastRequestId = new AtomicLong();
     private volatile HttpRequestMonitor requestMonitor = HttpRequestMonitor.DUMMY_REQUEST_MONITOR;
 
     // ==================================================
@@ -118,9 +118,11 @@ public class NanoHTTPD {
     public static final String
             HTTP_OK = "200 OK",
             HTTP_REDIRECT = "301 Moved Permanently",
+            HTTP_NOT_MODIFIED = "304 Not Modified",
             HTTP_FORBIDDEN = "403 Forbidden",
             HTTP_NOTFOUND = "404 Not Found",
             HTTP_BADREQUEST = "400 Bad Request",
+            HTTP_REQUEST_TOO_LARGE = "413 Request Entity Too Large",
             HTTP_INTERNALERROR = "500 Internal Server Error",
             HTTP_NOTIMPLEMENTED = "501 Not Implemented";
 
@@ -213,6 +215,7 @@ public class NanoHTTPD {
 
         private boolean responseSent = false;
         private NanoHttpResponse response = new NanoHttpResponse(HTTP_INTERNALERROR, "NoResponseCreated");
+        private final long acceptTime = System.currentTimeMillis();
 
         public HTTPSession(Socket s) {
             mySocket = s;
@@ -223,6 +226,8 @@ public class NanoHTTPD {
         public void run() {
             long requestId = lastRequestId.incrementAndGet();
             try {
+                //one request per connection, so the connection is never reused
+                requestMonitor.requestDispatched(requestId, mySocket, 1, System.currentTimeMillis() - acceptTime);
 
                 //process the request, catching HttpProcessingException for expected errors and Throwable for all other
                 processRequest(requestId);
@@ -247,7 +252,7 @@ public class NanoHTTPD {
                     logMethods.warn("Failed to close client socket, perhaps it was already closed?" + mySocket, t);
                 }
 
-                if ( ! HTTP_OK.equals(response.status)) {
+                if ( ! isSuccessStatus(response.status)) {
                     requestMonitor.invalidRequest(requestId, mySocket, response.status);
                 }
                 requestMonitor.finishedRequest(requestId, mySocket);
@@ -334,53 +339,6 @@ public class NanoHTTPD {
             }
         }
 
-        /**
-         * Decodes the percent encoding scheme. <br/>
-         * For example: "an+example%20string" -> "an example string"
-         */
-        private String decodePercent(String str) throws HttpProcessingException {
-            try {
-                StringBuffer sb = new StringBuffer();
-                for (int i = 0; i < str.length(); i++) {
-                    char c = str.charAt(i);
-                    switch (c) {
-                        case '+':
-                            sb.append(' ');
-                            break;
-                        case '%':
-                            sb.append((char) Integer.parseInt(str.substring(i + 1, i + 3), 16));
-                            i += 2;
-                            break;
-                        default:
-                            sb.append(c);
-                            break;
-                    }
-                }
-                return new String(sb.toString().getBytes());
-            } catch (Exception e) {
-                throw new HttpProcessingException(HTTP_BADREQUEST, "BAD REQUEST: Bad percent-encoding.");
-            }
-        }
-
-        /**
-         * Decodes parameters in percent-encoded URI-format
-         * ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
-         * adds them to given Properties.
-         */
-        private void decodeParms(String parms, Properties p) throws HttpProcessingException {
-            if (parms == null)
-                return;
-
-            StringTokenizer st = new StringTokenizer(parms, "&");
-            while (st.hasMoreTokens()) {
-                String e = st.nextToken();
-                int sep = e.indexOf('=');
-                if (sep >= 0)
-                    p.put(decodePercent(e.substring(0, sep)).trim(),
-                            decodePercent(e.substring(sep + 1)));
-            }
-        }
-
         /**
          * Sends an error message as a TextResponse
          */
@@ -427,28 +385,74 @@ public class NanoHTTPD {
         }
 
         private Socket mySocket;
+    }
 
+    /**
+     * Decodes the percent encoding scheme. <br/>
+     * For example: "an+example%20string" -> "an example string"
+     */
+    static String decodePercent(String str) throws HttpProcessingException {
+        try {
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                switch (c) {
+                    case '+':
+                        sb.append(' ');
+                        break;
+                    case '%':
+                        sb.append((char) Integer.parseInt(str.substring(i + 1, i + 3), 16));
+                        i += 2;
+                        break;
+                    default:
+                        sb.append(c);
+                        break;
+                }
+            }
+            return new String(sb.toString().getBytes());
+        } catch (Exception e) {
+            throw new HttpProcessingException(HTTP_BADREQUEST, "BAD REQUEST: Bad percent-encoding.");
+        }
+    }
 
-        /**
-         * An exception raised with a http error type and description
-         */
-        private class HttpProcessingException extends Exception {
+    /**
+     * Decodes parameters in percent-encoded URI-format
+     * ( e.g. "name=Jack%20Daniels&pass=Single%20Malt" ) and
+     * adds them to given Properties.
+     */
+    static void decodeParms(String parms, Properties p) throws HttpProcessingException {
+        if (parms == null)
+            return;
 
-            private String httpErrorType;
-            private String errorDescription;
+        StringTokenizer st = new StringTokenizer(parms, "&");
+        while (st.hasMoreTokens()) {
+            String e = st.nextToken();
+            int sep = e.indexOf('=');
+            if (sep >= 0)
+                p.put(decodePercent(e.substring(0, sep)).trim(),
+                        decodePercent(e.substring(sep + 1)));
+        }
+    }
 
-            public HttpProcessingException(String httpErrorType, String errorDescription) {
-                this.httpErrorType = httpErrorType;
-                this.errorDescription = errorDescription;
-            }
+    /**
+     * An exception raised with a http error type and description
+     */
+    static class HttpProcessingException extends Exception {
 
-            public String getHttpErrorType() {
-                return httpErrorType;
-            }
+        private String httpErrorType;
+        private String errorDescription;
 
-            public String getErrorDescription() {
-                return errorDescription;
-            }
+        public HttpProcessingException(String httpErrorType, String errorDescription) {
+            this.httpErrorType = httpErrorType;
+            this.errorDescription = errorDescription;
+        }
+
+        public String getHttpErrorType() {
+            return httpErrorType;
+        }
+
+        public String getErrorDescription() {
+            return errorDescription;
         }
     }
 
@@ -617,6 +621,10 @@ public class NanoHTTPD {
         this.requestMonitor = requestMonitor;
     }
 
+    HttpRequestMonitor getRequestMonitor() {
+        return requestMonitor;
+    }
+
     /**
      * Hashtable mapping (String)FILENAME_EXTENSION -> (String)MIME_TYPE
      */
@@ -647,7 +655,7 @@ public class NanoHTTPD {
     /**
      * GMT date formatter
      */
-    private static ThreadLocal<SimpleDateFormat> gmtFrmt = new ThreadLocal<SimpleDateFormat>() {
+    static ThreadLocal<SimpleDateFormat> gmtFrmt = new ThreadLocal<SimpleDateFormat>() {
         public SimpleDateFormat initialValue() {
             SimpleDateFormat s = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
             s.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -655,6 +663,15 @@ public class NanoHTTPD {
         }
     };
 
+    public static String formatHttpDate(Date date) {
+        return gmtFrmt.get().format(date);
+    }
+
+    //a 304 answers a conditional request successfully, it is not an invalid request
+    static boolean isSuccessStatus(String status) {
+        return HTTP_OK.equals(status) || HTTP_NOT_MODIFIED.equals(status);
+    }
+
     /**
      * The distribution licence
      */
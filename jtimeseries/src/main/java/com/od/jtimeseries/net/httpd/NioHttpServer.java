@@ -0,0 +1,659 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd;
+
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.net.httpd.response.TextResponse;
+import com.od.jtimeseries.util.TimeSeriesExecutorFactory;
+import com.od.jtimeseries.util.logging.LimitedErrorLogger;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.od.jtimeseries.net.httpd.NanoHTTPD.*;
+
+/**
+ * Accepts HTTP connections and reads requests on a single selector thread, passing each complete request to the
+ * httpd query executor to be served by NanoHTTPD.serve(), so that threads are only held while a request is processed,
+ * rather than for the life of a connection
+ *
+ * Connections are kept alive for HTTP/1.1 clients unless they send Connection: close, and for HTTP/1.0 clients which
+ * send Connection: keep-alive, if the response sets a Content-Length. Responses which do not set a Content-Length are
+ * sent chunked to HTTP/1.1 clients, apart from 304 Not Modified, which has no body. Pipelined requests are served one
+ * at a time in the order received, a connection is not read while one of its requests is being processed, and the
+ * next buffered request is dispatched when the response is complete
+ *
+ * A request whose headers and body exceed maxRequestBytes is answered with 413 and the connection closed. Connections
+ * waiting for a request are closed once idle for idleTimeoutMillis
+ */
+class NioHttpServer {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(NioHttpServer.class);
+
+    private static final int INITIAL_READ_BUFFER_BYTES = 4096;
+    private static final int IDLE_CHECK_INTERVAL_MILLIS = 1000;
+    private static final int WRITE_TIMEOUT_MILLIS = 60000;
+    private static final int RESPONSE_BUFFER_BYTES = 8192;
+    private static final byte[] HEADER_END = new byte[] { '\r', '\n', '\r', '\n' };
+
+    private final LimitedErrorLogger limitedLogger = new LimitedErrorLogger(logMethods, 10, 100);
+    private final ConcurrentLinkedQueue<Connection> connectionsToResume = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final NanoHTTPD httpd;
+    private final int port;
+    private final int maxRequestBytes;
+    private final int idleTimeoutMillis;
+    private volatile boolean stopping;
+    private Executor executor;
+    private Selector selector;
+    private Thread selectorThread;
+
+    NioHttpServer(NanoHTTPD httpd, int port, int maxRequestBytes, int idleTimeoutMillis) {
+        this.httpd = httpd;
+        this.port = port;
+        this.maxRequestBytes = maxRequestBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    synchronized void start() throws IOException {
+        if ( selector == null) {
+            executor = TimeSeriesExecutorFactory.getHttpdQueryExecutor(httpd);
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                selector = Selector.open();
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                serverChannel.close();
+                selector = null;
+                throw e;
+            }
+            selectorThread = new SelectorThread(serverChannel);
+            selectorThread.start();
+        }
+    }
+
+    /**
+     * Stop the selector thread and wait for it to close the server channel, so that the port can be bound again by
+     * a server started afterwards
+     */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            stopping = true;
+            if ( selector != null) {
+                selector.wakeup();
+            }
+            t = selectorThread;
+        }
+
+        //not while holding the lock, which closeAll takes when the selector thread exits
+        if ( t != null && t != Thread.currentThread()) {
+            boolean interrupted = false;
+            while ( t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private class SelectorThread extends Thread {
+
+        private final ServerSocketChannel serverChannel;
+        private long lastIdleCheckTime = System.currentTimeMillis();
+
+        public SelectorThread(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+            setName("JTimeSeriesHttpdSelector");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (! stopping) {
+                    selector.select(IDLE_CHECK_INTERVAL_MILLIS);
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while ( i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        processKey(key);
+                    }
+                    resumeConnections();
+                    closeIdleConnections();
+                }
+            } catch (Throwable t) {
+                logMethods.error("HTTP server selector thread failed", t);
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void processKey(SelectionKey key) {
+            Connection c = (Connection)key.attachment();
+            try {
+                if ( key.isValid() && key.isAcceptable()) {
+                    accept();
+                } else if ( key.isValid() && key.isReadable()) {
+                    c.read();
+                }
+            } catch (Throwable t) {
+                limitedLogger.logError("Error reading HTTP request from " + c + ", closing connection", t);
+                if ( c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if ( channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection c = new Connection(channel);
+                c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                connectionCount.incrementAndGet();
+            }
+        }
+
+        //connections whose response is complete, with no further request buffered, wait for the next request
+        private void resumeConnections() {
+            Connection c;
+            while ( (c = connectionsToResume.poll()) != null) {
+                if ( c.key.isValid()) {
+                    c.lastReadTime = System.currentTimeMillis();
+                    c.waitingForRequest = true;
+                    c.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        private void closeIdleConnections() {
+            long time = System.currentTimeMillis();
+            if ( time - lastIdleCheckTime >= IDLE_CHECK_INTERVAL_MILLIS) {
+                lastIdleCheckTime = time;
+                for ( SelectionKey key : selector.keys()) {
+                    Connection c = (Connection)key.attachment();
+                    if ( c != null && c.waitingForRequest && time - c.lastReadTime > idleTimeoutMillis) {
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        private void closeAll() {
+            for ( SelectionKey key : selector.keys()) {
+                Connection c = (Connection)key.attachment();
+                if ( c != null) {
+                    c.close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                logMethods.warn("Failed to close HTTP server channel", e);
+            }
+            synchronized (NioHttpServer.this) {
+                selector = null;
+                selectorThread = null;
+                stopping = false;
+            }
+        }
+    }
+
+    /**
+     * A client connection. The selector thread reads requests while waitingForRequest, otherwise the connection
+     * belongs to the executor thread processing its current request, until it is dispatched again or passed back to
+     * the selector thread through connectionsToResume
+     */
+    private class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_BYTES);
+        private SelectionKey key;
+        private int requestCount;
+
+        //used by the selector thread
+        private boolean waitingForRequest = true;
+        private long lastReadTime = System.currentTimeMillis();
+
+        //the request to process, set before each dispatch
+        private HttpRequest request;
+        private HttpProcessingException requestError;
+        private long dispatchTime;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if ( ! readBuffer.hasRemaining()) {
+                growReadBuffer();
+            }
+
+            if ( channel.read(readBuffer) == -1) {
+                close();
+            } else {
+                lastReadTime = System.currentTimeMillis();
+                if ( readRequest() ) {
+                    waitingForRequest = false;
+                    key.interestOps(0);
+                    dispatch();
+                }
+            }
+        }
+
+        private void growReadBuffer() {
+            int capacity = Math.min(readBuffer.capacity() * 2, maxRequestBytes);
+            if ( capacity > readBuffer.capacity()) {
+                ByteBuffer b = ByteBuffer.allocate(capacity);
+                readBuffer.flip();
+                b.put(readBuffer);
+                readBuffer = b;
+            }
+        }
+
+        /**
+         * @return true if a request, or an error for an invalid request, is ready to dispatch
+         */
+        private boolean readRequest() {
+            try {
+                request = parseRequest();
+            } catch (HttpProcessingException e) {
+                requestError = e;
+            }
+            return request != null || requestError != null;
+        }
+
+        private void dispatch() {
+            dispatchTime = System.currentTimeMillis();
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                limitedLogger.logError("HTTP request from " + this + " rejected by executor, closing connection", e);
+                close();
+            }
+        }
+
+        public void run() {
+            boolean keepAlive = false;
+            try {
+                if ( requestError != null) {
+                    sendErrorAndClose(requestError);
+                } else {
+                    keepAlive = serveRequest(request);
+                }
+            } catch (Throwable t) {
+                limitedLogger.logError("Error processing HTTP request from " + this, t);
+            } finally {
+                request = null;
+                requestError = null;
+                if ( keepAlive && ! stopping) {
+                    responseComplete();
+                } else {
+                    close();
+                }
+            }
+        }
+
+        private void responseComplete() {
+            //a pipelined request may already be buffered
+            if ( readRequest() ) {
+                dispatch();
+            } else {
+                connectionsToResume.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * @return true if the connection should be kept open for another request
+         */
+        private boolean serveRequest(HttpRequest request) {
+            long requestId = lastRequestId.incrementAndGet();
+            Socket socket = channel.socket();
+            HttpRequestMonitor requestMonitor = httpd.getRequestMonitor();
+            requestCount++;
+            requestMonitor.requestDispatched(requestId, socket, requestCount, System.currentTimeMillis() - dispatchTime);
+            requestMonitor.requestStarting(requestId, socket);
+
+            ResponseWriter writer = new ResponseWriter(request);
+            String status = HTTP_INTERNALERROR;
+            try {
+                requestMonitor.servingRequest(requestId, socket, request.uri, request.method, request.header, request.params);
+                NanoHttpResponse response = httpd.serve(request.uri, request.method, request.header, request.params);
+                if (response == null) {
+                    throw new HttpProcessingException(HTTP_INTERNALERROR, "No response for HTTP request");
+                }
+                status = response.status;
+                writer.sendResponse(response);
+            } catch ( HttpProcessingException e) {
+                status = e.getHttpErrorType();
+                sendError(writer, e.getHttpErrorType(), e.getErrorDescription());
+            } catch (Throwable t) {
+                requestMonitor.exceptionDuringProcessing(requestId, socket, t);
+                status = HTTP_INTERNALERROR;
+                sendError(writer, HTTP_INTERNALERROR, "Unhandled exception processing HTTP Request");
+            } finally {
+                if ( ! isSuccessStatus(status)) {
+                    requestMonitor.invalidRequest(requestId, socket, status);
+                }
+                requestMonitor.finishedRequest(requestId, socket);
+            }
+            return writer.isComplete() && writer.isKeepAlive();
+        }
+
+        private void sendErrorAndClose(HttpProcessingException e) {
+            long requestId = lastRequestId.incrementAndGet();
+            Socket socket = channel.socket();
+            HttpRequestMonitor requestMonitor = httpd.getRequestMonitor();
+            requestCount++;
+            requestMonitor.requestDispatched(requestId, socket, requestCount, System.currentTimeMillis() - dispatchTime);
+            requestMonitor.requestStarting(requestId, socket);
+            try {
+                HttpRequest closeRequest = new HttpRequest();
+                closeRequest.keepAlive = false;
+                sendError(new ResponseWriter(closeRequest), e.getHttpErrorType(), e.getErrorDescription());
+            } finally {
+                requestMonitor.invalidRequest(requestId, socket, e.getHttpErrorType());
+                requestMonitor.finishedRequest(requestId, socket);
+            }
+        }
+
+        private void sendError(ResponseWriter writer, String status, String message) {
+            if ( writer.isStarted()) {
+                writer.setKeepAlive(false);  //part of the response was sent, the client can only tell it is incomplete if we close
+            } else {
+                try {
+                    writer.sendResponse(new TextResponse(status, MIME_PLAINTEXT, message));
+                } catch (Exception x) {
+                    logMethods.warn("Failed to send error response to client, perhaps the connection is already closed", x);
+                }
+            }
+        }
+
+        /**
+         * Parse a request from the read buffer, removing it from the buffer
+         *
+         * @return the request, or null if the complete request has not been received yet
+         */
+        private HttpRequest parseRequest() throws HttpProcessingException {
+            byte[] data = readBuffer.array();
+            int length = readBuffer.position();
+            int headerEnd = indexOfHeaderEnd(data, length);
+            if ( headerEnd == -1) {
+                if ( length >= maxRequestBytes) {
+                    throw new HttpProcessingException(HTTP_REQUEST_TOO_LARGE, "Request headers exceed " + maxRequestBytes + " bytes");
+                }
+                return null;
+            }
+
+            HttpRequest result = new HttpRequest();
+            StringTokenizer lines = new StringTokenizer(toString(data, 0, headerEnd), "\r\n");
+            if ( ! lines.hasMoreTokens()) {
+                throw new HttpProcessingException(HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+
+            StringTokenizer st = new StringTokenizer(lines.nextToken());
+            result.method = st.nextToken();
+            if (!st.hasMoreTokens()) {
+                throw new HttpProcessingException(HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
+            String uri = st.nextToken();
+            String version = st.hasMoreTokens() ? st.nextToken() : "HTTP/1.0";
+
+            while (lines.hasMoreTokens()) {
+                String line = lines.nextToken();
+                int p = line.indexOf(':');
+                if ( p > 0) {
+                    result.header.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+                }
+            }
+
+            if ( result.header.getProperty("transfer-encoding") != null) {
+                throw new HttpProcessingException(HTTP_NOTIMPLEMENTED, "Chunked request bodies are not supported");
+            }
+
+            int contentLength = 0;
+            String contentLengthHeader = result.header.getProperty("content-length");
+            if ( contentLengthHeader != null) {
+                try {
+                    contentLength = Integer.parseInt(contentLengthHeader);
+                } catch (NumberFormatException e) {
+                    throw new HttpProcessingException(HTTP_BADREQUEST, "BAD REQUEST: Invalid Content-Length " + contentLengthHeader);
+                }
+            }
+
+            if ( contentLength < 0 || (long)headerEnd + contentLength > maxRequestBytes) {
+                throw new HttpProcessingException(HTTP_REQUEST_TOO_LARGE, "Request exceeds " + maxRequestBytes + " bytes");
+            }
+
+            int requestEnd = headerEnd + contentLength;
+            if ( length < requestEnd) {
+                return null;
+            }
+
+            // Decode parameters from the URI, and from the body of a POST
+            int qmi = uri.indexOf('?');
+            if (qmi >= 0) {
+                decodeParms(uri.substring(qmi + 1), result.params);
+                result.uri = decodePercent(uri.substring(0, qmi));
+            } else {
+                result.uri = decodePercent(uri);
+            }
+
+            if (result.method.equalsIgnoreCase("POST")) {
+                decodeParms(toString(data, headerEnd, contentLength).trim(), result.params);
+            }
+
+            result.keepAlive = isKeepAliveRequested(version, result.header.getProperty("connection"));
+            result.http11 = ! "HTTP/1.0".equals(version);
+
+            //remove the request, leaving any pipelined requests which follow it
+            readBuffer.flip();
+            readBuffer.position(requestEnd);
+            readBuffer.compact();
+            return result;
+        }
+
+        private boolean isKeepAliveRequested(String version, String connectionHeader) {
+            String connection = connectionHeader == null ? "" : connectionHeader.toLowerCase();
+            return "HTTP/1.0".equals(version) ?
+                connection.contains("keep-alive") :
+                ! connection.contains("close");
+        }
+
+        private int indexOfHeaderEnd(byte[] data, int length) {
+            int result = -1;
+            for ( int index = 0; index <= length - HEADER_END.length; index++) {
+                if ( data[index] == '\r' && data[index + 1] == '\n' && data[index + 2] == '\r' && data[index + 3] == '\n') {
+                    result = index + HEADER_END.length;
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private String toString(byte[] data, int offset, int length) {
+            try {
+                return new String(data, offset, length, "ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            if ( closed.compareAndSet(false, true)) {
+                connectionCount.decrementAndGet();
+                if ( key != null) {
+                    key.cancel();
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logMethods.warn("Failed to close HTTP connection " + this, e);
+                }
+            }
+        }
+
+        /**
+         * Writes one response to the connection, choosing between Content-Length and chunked encoding
+         */
+        private class ResponseWriter {
+
+            private final HttpRequest request;
+            private boolean keepAlive;
+            private boolean started;
+            private boolean complete;
+
+            ResponseWriter(HttpRequest request) {
+                this.request = request;
+                this.keepAlive = request.keepAlive;
+            }
+
+            void sendResponse(NanoHttpResponse response) throws IOException {
+                if (response.status == null)
+                    throw new Error("sendResponse(): Status can't be null.");
+
+                boolean hasContentLength = getHeaderIgnoreCase(response.header, "Content-Length") != null;
+                boolean hasBody = ! HTTP_NOT_MODIFIED.equals(response.status);
+                boolean chunked = request.http11 && ! hasContentLength && hasBody;
+                keepAlive &= chunked || hasContentLength || ! hasBody;
+
+                StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(response.status).append("\r\n");
+                if (response.mimeType != null) {
+                    sb.append("Content-Type: ").append(response.mimeType).append("\r\n");
+                }
+
+                if (response.header.getProperty("Date") == null) {
+                    sb.append("Date: ").append(gmtFrmt.get().format(new Date())).append("\r\n");
+                }
+
+                Enumeration<?> e = response.header.keys();
+                while (e.hasMoreElements()) {
+                    String key = (String) e.nextElement();
+                    sb.append(key).append(": ").append(response.header.getProperty(key)).append("\r\n");
+                }
+
+                if ( chunked ) {
+                    sb.append("Transfer-Encoding: chunked\r\n");
+                }
+                sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+                sb.append("\r\n");
+
+                ChannelOutputStream channelOut = new ChannelOutputStream(channel, WRITE_TIMEOUT_MILLIS);
+                try {
+                    started = true;
+                    OutputStream out = new BufferedOutputStream(channelOut, RESPONSE_BUFFER_BYTES);
+                    out.write(sb.toString().getBytes("ISO-8859-1"));
+
+                    OutputStream bodyOut = chunked ? new ChunkedOutputStream(out, RESPONSE_BUFFER_BYTES) : out;
+                    PrintWriter pw = new PrintWriter(bodyOut);
+                    if ( hasBody && ! "HEAD".equalsIgnoreCase(request.method)) {
+                        response.writeResponseBody(bodyOut, pw);
+                    }
+                    pw.flush();
+                    if ( chunked ) {
+                        ((ChunkedOutputStream)bodyOut).finish();
+                    }
+                    out.flush();
+                    complete = ! pw.checkError();
+                } finally {
+                    channelOut.close();
+                }
+            }
+
+            private String getHeaderIgnoreCase(Properties header, String name) {
+                String result = null;
+                Enumeration<?> e = header.keys();
+                while (e.hasMoreElements() && result == null) {
+                    String key = (String) e.nextElement();
+                    if ( key.equalsIgnoreCase(name)) {
+                        result = header.getProperty(key);
+                    }
+                }
+                return result;
+            }
+
+            boolean isStarted() {
+                return started;
+            }
+
+            boolean isComplete() {
+                return complete;
+            }
+
+            boolean isKeepAlive() {
+                return keepAlive;
+            }
+
+            void setKeepAlive(boolean keepAlive) {
+                this.keepAlive = keepAlive;
+            }
+        }
+
+        public String toString() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+
+    private static class HttpRequest {
+        private String method = "GET";
+        private String uri;
+        private Properties header = new Properties();
+        private Properties params = new Properties();
+        private boolean keepAlive;
+        private boolean http11;
+    }
+}
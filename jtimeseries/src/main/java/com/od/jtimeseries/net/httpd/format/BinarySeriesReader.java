@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.format;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.od.jtimeseries.net.httpd.format.BinarySeriesWriter.*;
+
+/**
+ * Reads series items written by BinarySeriesWriter
+ */
+public class BinarySeriesReader {
+
+    private final DataInputStream in;
+    private long previousTimestamp;
+    private boolean ended;
+
+    /**
+     * @param in, should be buffered, the reader makes many small reads
+     */
+    public BinarySeriesReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * @return the summary stats, in the form of ContextProperties.getSummaryStatsStringRepresentation
+     */
+    public String readHeader() throws IOException {
+        int magic = in.readInt();
+        if ( magic != MAGIC) {
+            throw new IOException("Not a binary series, magic was " + Integer.toHexString(magic));
+        }
+        int version = in.readUnsignedByte();
+        if ( version != VERSION) {
+            throw new IOException("Unsupported binary series version " + version);
+        }
+        return in.readUTF();
+    }
+
+    /**
+     * @return the next item, or null once all the items have been read
+     */
+    public TimeSeriesItem readItem() throws IOException {
+        TimeSeriesItem result = null;
+        if ( ! ended ) {
+            int recordType = in.readUnsignedByte();
+            switch (recordType) {
+                case END:
+                    ended = true;
+                    break;
+                case ITEM:
+                    result = new Item(readTimestamp(), in.readDouble());
+                    break;
+                case ROLLUP_ITEM:
+                    long timestamp = readTimestamp();
+                    double min = in.readDouble();
+                    double max = in.readDouble();
+                    double sum = in.readDouble();
+                    result = new RollupItem(timestamp, min, max, sum, readVarLong());
+                    break;
+                default:
+                    throw new IOException("Unknown binary series record type " + recordType);
+            }
+        }
+        return result;
+    }
+
+    private long readTimestamp() throws IOException {
+        long zigZag = readVarLong();
+        previousTimestamp += (zigZag >>> 1) ^ -(zigZag & 1);
+        return previousTimestamp;
+    }
+
+    private long readVarLong() throws IOException {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            if ( shift > 63) {
+                throw new IOException("Invalid variable length long in binary series");
+            }
+            b = in.readUnsignedByte();
+            result |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while ( (b & 0x80) != 0);
+        return result;
+    }
+}
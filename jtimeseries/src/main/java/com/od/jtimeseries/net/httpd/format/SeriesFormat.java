@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.format;
+
+import com.od.jtimeseries.net.httpd.xml.HttpParameterName;
+
+import java.util.Properties;
+
+/**
+ * Formats in which a .series request can return its items, chosen by the format parameter if present,
+ * otherwise by the first supported type in the Accept header, defaulting to xml
+ */
+public enum SeriesFormat {
+
+    xml("text/xml"),
+    binary("application/x-jtimeseries-series"),
+    csv("text/csv"),
+    json("application/json");
+
+    private final String mimeType;
+
+    SeriesFormat(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return format requested, or null if the format parameter does not name a supported format
+     */
+    public static SeriesFormat getRequestedFormat(Properties header, Properties parms) {
+        SeriesFormat result = null;
+        String formatParameter = parms.getProperty(HttpParameterName.format.name());
+        if ( formatParameter != null) {
+            for ( SeriesFormat f : values()) {
+                if ( f.name().equalsIgnoreCase(formatParameter)) {
+                    result = f;
+                    break;
+                }
+            }
+        } else {
+            result = getAcceptedFormat(header.getProperty("accept"));
+        }
+        return result;
+    }
+
+    private static SeriesFormat getAcceptedFormat(String acceptHeader) {
+        SeriesFormat result = xml;
+        if ( acceptHeader != null) {
+            int firstIndex = Integer.MAX_VALUE;
+            for ( SeriesFormat f : values()) {
+                int index = acceptHeader.indexOf(f.mimeType);
+                if ( index != -1 && index < firstIndex) {
+                    firstIndex = index;
+                    result = f;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the Accept-Encoding header lists gzip
+     */
+    public static boolean isGzipAccepted(Properties header) {
+        String acceptEncoding = header.getProperty("accept-encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+}
@@ -34,8 +34,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import java.util.Properties;
 
 /**
@@ -46,9 +48,12 @@ import java.util.Properties;
  */
 public abstract class AbstractHandler implements HttpHandler {
 
+    //values are read back by clients with Double.parseDouble, so the format must not depend on the default locale
     private static final ThreadLocal<DecimalFormat> decimalFormat = new ThreadLocal<DecimalFormat>() {
         protected DecimalFormat initialValue() {
-            return new DecimalFormat("#.##################");
+            DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.US);
+            symbols.setInfinity("Infinity");
+            return new DecimalFormat("#.##################", symbols);
         }
     };
 
@@ -201,6 +206,23 @@ public abstract class AbstractHandler implements HttpHandler {
         pw.write("\" ");
     }
 
+    /**
+     * Write a nextPage element if a paged walk stopped before the last matching series. The offset is only
+     * known once the walk is complete, so this follows the series elements
+     */
+    protected void writeNextPage(PrintWriter pw, SeriesTreeWalker walker) {
+        int nextPageOffset = walker.getNextPageOffset();
+        if ( nextPageOffset != -1) {
+            pw.write("\n<");
+            pw.write(ElementName.nextPage.toString());
+            pw.write(" ");
+            pw.write(AttributeName.nextPageOffset.toString());
+            pw.write("=\"");
+            pw.write(String.valueOf(nextPageOffset));
+            pw.write("\"/>");
+        }
+    }
+
     protected SimpleDateFormat getDateFormatter() {
         return simpleDateFormat.get();
     }
@@ -23,7 +23,13 @@ import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.net.httpd.NanoHTTPD;
 import com.od.jtimeseries.net.httpd.response.InputStreamResponse;
 import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.net.httpd.xml.HttpParameterName;
 import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.MultiResolutionTimeSeries;
+import com.od.jtimeseries.timeseries.TimeSeries;
+import com.od.jtimeseries.timeseries.downsample.DownsampleMode;
+import com.od.jtimeseries.timeseries.downsample.Downsampler;
+import com.od.jtimeseries.timeseries.impl.DefaultTimeSeries;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 
@@ -39,6 +45,14 @@ import java.util.Properties;
  * User: Nick Ebbutt
  * Date: 02-Jan-2009
  * Time: 11:55:55
+ *
+ * For series which maintain rolled up tiers, the chart is drawn from the coarsest tier which still gives a point for
+ * each pixel of the chart width, unless a resolution parameter in milliseconds is supplied
+ *
+ * Charts carry an ETag, and are not redrawn for a request with If-None-Match listing the current ETag
+ *
+ * Series are downsampled to the min and max in each pair of pixels across the chart, which keeps the line's envelope,
+ * unless other maxPoints or bucketMode parameters are supplied
  */
 public class ChartPngHandler extends AbstractHandler {
     public static final String CHART_PNG_POSTFIX = "-chart.png";
@@ -57,12 +71,12 @@ public class ChartPngHandler extends AbstractHandler {
         if ( requestContext == null) {
             result = createNotFoundResponse(uri);
         } else {
-            result = createChartResponse(uri, params, requestContext);
+            result = createChartResponse(uri, header, params, requestContext);
         }
         return result;
     }
 
-    private NanoHttpResponse createChartResponse(String uri, Properties params, TimeSeriesContext requestContext) {
+    private NanoHttpResponse createChartResponse(String uri, Properties header, Properties params, TimeSeriesContext requestContext) {
         NanoHttpResponse result;
         String idToken = getLastUriToken(uri);
         idToken = idToken.substring(0, idToken.length() - CHART_PNG_POSTFIX.length());
@@ -71,16 +85,33 @@ public class ChartPngHandler extends AbstractHandler {
         if ( h == null) {
             result = createNotFoundResponse(uri);
         } else {
-            result = createImageResponse(params, h);
+            result = createImageResponse(header, params, h);
         }
         return result;
     }
 
-    private NanoHttpResponse createImageResponse(Properties params, IdentifiableTimeSeries h) {
+    private NanoHttpResponse createImageResponse(Properties header, Properties params, IdentifiableTimeSeries h) {
+        NanoHttpResponse result;
+        SeriesValidator validator = new SeriesValidator(h, "png");
+        if ( validator.isMatchedBy(header)) {
+            result = validator.createNotModifiedResponse();
+        } else {
+            result = createPngResponse(params, h);
+            validator.addHeaders(result);
+        }
+        return result;
+    }
+
+    private NanoHttpResponse createPngResponse(Properties params, IdentifiableTimeSeries h) {
         NanoHttpResponse result;
 
-        MovingWindowXYDataset<IdentifiableTimeSeries> xyDataset = new MovingWindowXYDataset<IdentifiableTimeSeries>();
-        xyDataset.addTimeSeries(h.getId(), h);
+        int width = Math.min(getIntegerParameter(params, "width", 500), MAX_HORIZONTAL_RESOLUTION);
+        int height = Math.min(getIntegerParameter(params, "height", 300), MAX_VERTICAL_RESOLUTION);
+
+        int maxPoints = Math.max(Downsampler.MIN_POINTS, getIntegerParameter(params, HttpParameterName.maxPoints.name(), width * 2));
+        MovingWindowXYDataset<TimeSeries> xyDataset = new MovingWindowXYDataset<TimeSeries>();
+        xyDataset.setDownsampling(getBucketMode(params), maxPoints);
+        xyDataset.addTimeSeries(h.getId(), getSeriesToChart(params, h, width));
 
         JFreeChart chart = ChartFactory.createTimeSeriesChart(
                 h.getId(),
@@ -92,9 +123,6 @@ public class ChartPngHandler extends AbstractHandler {
                 false
         );
 
-        int width = Math.min(getIntegerParameter(params, "width", 500), MAX_HORIZONTAL_RESOLUTION);
-        int height = Math.min(getIntegerParameter(params, "height", 300), MAX_VERTICAL_RESOLUTION);
-
         BufferedImage bi = chart.createBufferedImage(width,height);
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
@@ -111,6 +139,32 @@ public class ChartPngHandler extends AbstractHandler {
         return result;
     }
 
+    private TimeSeries getSeriesToChart(Properties params, IdentifiableTimeSeries h, int width) {
+        TimeSeries result = h;
+        if ( h instanceof MultiResolutionTimeSeries && ((MultiResolutionTimeSeries)h).getResolutions().length > 0) {
+            MultiResolutionTimeSeries m = (MultiResolutionTimeSeries)h;
+            long resolution;
+            String resolutionParam = params.getProperty(HttpParameterName.resolution.name());
+            if ( resolutionParam != null) {
+                resolution = Long.valueOf(resolutionParam);
+            } else {
+                //the coarsest tier covers the longest time, use this to find the time span to fit to the chart width
+                long earliest = m.getEarliestRollupTimestamp();
+                resolution = earliest == -1 ? 0 : (h.getLatestTimestamp() - earliest) / width;
+            }
+
+            if ( resolution > 0) {
+                result = new DefaultTimeSeries(m.getItemsInRange(0, Long.MAX_VALUE, resolution));
+            }
+        }
+        return result;
+    }
+
+    private DownsampleMode getBucketMode(Properties params) {
+        DownsampleMode result = DownsampleMode.getMode(params.getProperty(HttpParameterName.bucketMode.name()));
+        return result == null ? DownsampleMode.minMax : result;
+    }
+
     private int getIntegerParameter(Properties params, String paramName, int defaultValue) {
         int integerResult = defaultValue;
         String widthParam = params.getProperty(paramName);
@@ -21,20 +21,30 @@ package com.od.jtimeseries.net.httpd.handler;
 import com.od.jtimeseries.context.ContextProperties;
 import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.net.httpd.NanoHTTPD;
+import com.od.jtimeseries.net.httpd.format.BinarySeriesWriter;
+import com.od.jtimeseries.net.httpd.format.SeriesFormat;
 import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.net.httpd.response.TextResponse;
 import com.od.jtimeseries.net.httpd.xml.AttributeName;
 import com.od.jtimeseries.net.httpd.xml.ElementName;
 import com.od.jtimeseries.net.httpd.xml.HttpParameterName;
 import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.MultiResolutionTimeSeries;
+import com.od.jtimeseries.timeseries.RollupItem;
 import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.timeseries.downsample.DownsampleMode;
+import com.od.jtimeseries.timeseries.downsample.Downsampler;
 import com.od.jtimeseries.timeseries.util.SeriesUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by IntelliJ IDEA.
@@ -42,12 +52,27 @@ import java.util.Properties;
  * Date: 04-Jan-2009
  * Time: 13:47:08
  * To change this template use File | Settings | File Templates.
+ *
+ * If a resolution parameter is supplied, in milliseconds, and the series maintains rolled up tiers, items are read from
+ * the coarsest tier with a period no greater than the resolution. Rolled up items have min, max and count attributes
+ *
+ * Items are returned as xml unless another SeriesFormat is requested with the format parameter or the Accept header.
+ * The binary format is much more compact, csv and json are provided for other clients. Any format is gzipped
+ * if the client lists gzip in Accept-Encoding
+ *
+ * A maxPoints parameter downsamples the items in one pass to at most maxPoints, by the DownsampleMode named in the
+ * bucketMode parameter, lttb by default. Items downsampled by mean are rolled up items
+ *
+ * Responses carry an ETag, and a request with If-None-Match listing the current ETag is answered with 304 Not Modified
+ * without the series items being read. The summary stats are part of the ETag, since they change without the series
  */
 public class SeriesHandler extends AbstractHandler {
 
     public static final String SERIES_POSTFIX = ".series";
     public final static String SERIES_XSL_RESOURCE = System.getProperty("JTimeSeriesSeriesXslResource", "series.xsl");
 
+    private static final int OUTPUT_BUFFER_BYTES = 8192;
+
     public SeriesHandler(TimeSeriesContext rootContext) {
         super(rootContext);
     }
@@ -58,12 +83,12 @@ public class SeriesHandler extends AbstractHandler {
         if ( context == null) {
             result = createNotFoundResponse(uri);
         } else {
-            result = createSeriesResponse(uri, parms, context);
+            result = createSeriesResponse(uri, header, parms, context);
         }
         return result;
     }
 
-    private NanoHttpResponse createSeriesResponse(String uri, Properties parms, TimeSeriesContext context) {
+    private NanoHttpResponse createSeriesResponse(String uri, Properties header, Properties parms, TimeSeriesContext context) {
         NanoHttpResponse result;
         String lastToken = getLastUriToken(uri);
         String seriesId = lastToken.substring(0, lastToken.length() - SERIES_POSTFIX.length() );
@@ -80,35 +105,241 @@ public class SeriesHandler extends AbstractHandler {
             statsOnly = Boolean.valueOf(parms.getProperty(HttpParameterName.statsOnly.name()));
         }
 
+        long resolution = -1;
+        if ( parms.containsKey(HttpParameterName.resolution.name())) {
+            resolution = Long.valueOf(parms.getProperty(HttpParameterName.resolution.name()));
+        }
+
+        int maxPoints = -1;
+        if ( parms.containsKey(HttpParameterName.maxPoints.name())) {
+            maxPoints = Integer.valueOf(parms.getProperty(HttpParameterName.maxPoints.name()));
+        }
+
+        DownsampleMode bucketMode = DownsampleMode.lttb;
+        if ( parms.containsKey(HttpParameterName.bucketMode.name())) {
+            bucketMode = DownsampleMode.getMode(parms.getProperty(HttpParameterName.bucketMode.name()));
+        }
+
+        SeriesFormat format = SeriesFormat.getRequestedFormat(header, parms);
+
         if ( timeSeries == null) {
             result = createNotFoundResponse(uri);
+        } else if ( format == null) {
+            result = new TextResponse(NanoHTTPD.HTTP_BADREQUEST, NanoHTTPD.MIME_PLAINTEXT, "Unsupported series format " +
+                parms.getProperty(HttpParameterName.format.name()) + ", use one of xml, binary, csv or json");
+        } else if ( bucketMode == null) {
+            result = new TextResponse(NanoHTTPD.HTTP_BADREQUEST, NanoHTTPD.MIME_PLAINTEXT, "Unsupported bucket mode " +
+                parms.getProperty(HttpParameterName.bucketMode.name()) + ", use one of lttb, minMax or mean");
+        } else if ( maxPoints != -1 && maxPoints < Downsampler.MIN_POINTS) {
+            result = new TextResponse(NanoHTTPD.HTTP_BADREQUEST, NanoHTTPD.MIME_PLAINTEXT, "maxPoints must be at least " + Downsampler.MIN_POINTS);
         } else {
-            result = new SeriesResponse(context, timeSeries, lastTimestamp, statsOnly);
+            ItemsQuery query = new ItemsQuery(lastTimestamp, resolution, maxPoints, bucketMode);
+            boolean gzip = SeriesFormat.isGzipAccepted(header);
+            SeriesValidator validator = new SeriesValidator(timeSeries, getRepresentation(timeSeries, format, gzip));
+            if ( validator.isMatchedBy(header)) {
+                result = validator.createNotModifiedResponse();
+                result.addHeader("Vary", "Accept, Accept-Encoding");
+            } else {
+                result = new SeriesResponse(context, timeSeries, statsOnly, query, format, gzip);
+                validator.addHeaders(result);
+            }
         }
         return result;
     }
 
+    private String getRepresentation(IdentifiableTimeSeries timeSeries, SeriesFormat format, boolean gzip) {
+        String summaryStats = ContextProperties.getSummaryStatsStringRepresentation(timeSeries.getProperties());
+        return format.name() + "-" + Integer.toHexString(summaryStats.hashCode()) + (gzip ? "-gzip" : "");
+    }
+
     private class SeriesResponse extends NanoHttpResponse {
 
         private final TimeSeriesContext context;
         private final IdentifiableTimeSeries timeSeries;
-        private final long lastTimestamp;
         private final boolean statsOnly;
+        private final ItemsQuery query;
+        private final SeriesFormat format;
+        private final boolean gzip;
 
-        public SeriesResponse(TimeSeriesContext context, IdentifiableTimeSeries timeSeries, long lastTimestamp, boolean statsOnly) {
-            super(NanoHTTPD.HTTP_OK, "text/xml");
+        public SeriesResponse(TimeSeriesContext context, IdentifiableTimeSeries timeSeries, boolean statsOnly, ItemsQuery query, SeriesFormat format, boolean gzip) {
+            super(NanoHTTPD.HTTP_OK, format.getMimeType());
             this.context = context;
             this.timeSeries = timeSeries;
-            this.lastTimestamp = lastTimestamp;
             this.statsOnly = statsOnly;
+            this.query = query;
+            this.format = format;
+            this.gzip = gzip;
+            addHeader("Vary", "Accept, Accept-Encoding");
+            if ( gzip ) {
+                addHeader("Content-Encoding", "gzip");
+            }
         }
 
         public void writeResponseBody(OutputStream out, PrintWriter pw) {
-            writeTimeSeriesResponse(pw, context, timeSeries, lastTimestamp, statsOnly);
+            try {
+                if ( gzip ) {
+                    GZIPOutputStream gzipOut = new GZIPOutputStream(out, OUTPUT_BUFFER_BYTES);
+                    writeSeries(gzipOut, new PrintWriter(gzipOut));
+                    gzipOut.finish();
+                } else {
+                    writeSeries(out, pw);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write series " + timeSeries.getPath(), e);
+            }
+        }
+
+        private void writeSeries(OutputStream out, PrintWriter pw) throws IOException {
+            switch (format) {
+                case binary :
+                    BufferedOutputStream bos = new BufferedOutputStream(out, OUTPUT_BUFFER_BYTES);
+                    writeBinarySeries(bos, timeSeries, statsOnly, query);
+                    bos.flush();
+                    break;
+                case csv :
+                    writeCsvSeries(pw, timeSeries, statsOnly, query);
+                    break;
+                case json :
+                    writeJsonSeries(pw, timeSeries, statsOnly, query);
+                    break;
+                default :
+                    writeTimeSeriesResponse(pw, context, timeSeries, statsOnly, query);
+            }
+            pw.flush();
+        }
+    }
+
+    private void writeBinarySeries(OutputStream out, IdentifiableTimeSeries timeSeries, boolean statsOnly, ItemsQuery query) throws IOException {
+        BinarySeriesWriter writer = new BinarySeriesWriter(out);
+        writer.writeHeader(ContextProperties.getSummaryStatsStringRepresentation(timeSeries.getProperties()));
+        if ( ! statsOnly ) {
+            for ( TimeSeriesItem i : query.getItems(timeSeries)) {
+                writer.writeItem(i);
+            }
         }
+        writer.writeEnd();
     }
 
-    private void writeTimeSeriesResponse(PrintWriter pw, TimeSeriesContext context, IdentifiableTimeSeries timeSeries, long lastTimestamp, boolean statsOnly) {
+    private void writeCsvSeries(PrintWriter pw, IdentifiableTimeSeries timeSeries, boolean statsOnly, ItemsQuery query) {
+        boolean rollups = query.isRollupResult(timeSeries);
+        pw.write(AttributeName.timestamp.toString());
+        pw.write(",");
+        pw.write(AttributeName.value.toString());
+        if ( rollups ) {
+            pw.write(",");
+            pw.write(AttributeName.min.toString());
+            pw.write(",");
+            pw.write(AttributeName.max.toString());
+            pw.write(",");
+            pw.write(AttributeName.count.toString());
+        }
+        pw.write("\n");
+
+        if ( ! statsOnly ) {
+            for ( TimeSeriesItem i : query.getItems(timeSeries)) {
+                pw.write(String.valueOf(i.getTimestamp()));
+                pw.write(",");
+                writeDoubleValueOrNaN(pw, i.doubleValue());
+                if ( i instanceof RollupItem) {
+                    RollupItem r = (RollupItem)i;
+                    pw.write(",");
+                    writeDoubleValueOrNaN(pw, r.getMin());
+                    pw.write(",");
+                    writeDoubleValueOrNaN(pw, r.getMax());
+                    pw.write(",");
+                    pw.write(String.valueOf(r.getCount()));
+                } else if ( rollups ) {
+                    pw.write(",,,");
+                }
+                pw.write("\n");
+            }
+        }
+    }
+
+    private void writeJsonSeries(PrintWriter pw, IdentifiableTimeSeries timeSeries, boolean statsOnly, ItemsQuery query) {
+        pw.write("{\"");
+        pw.write(AttributeName.parentPath.toString());
+        pw.write("\":");
+        writeJsonString(pw, timeSeries.getParentPath());
+        pw.write(",\"");
+        pw.write(AttributeName.id.toString());
+        pw.write("\":");
+        writeJsonString(pw, timeSeries.getId());
+        pw.write(",\"");
+        pw.write(AttributeName.description.toString());
+        pw.write("\":");
+        writeJsonString(pw, timeSeries.getDescription());
+
+        pw.write(",\"");
+        pw.write(AttributeName.summaryStats.toString());
+        pw.write("\":{");
+        Properties properties = timeSeries.getProperties();
+        boolean first = true;
+        for (String p : ContextProperties.getSummaryStatsPropertyNames(properties)) {
+            if ( ! first ) {
+                pw.write(",");
+            }
+            writeJsonString(pw, ContextProperties.parseStatisticName(p));
+            pw.write(":");
+            writeJsonString(pw, properties.getProperty(p));
+            first = false;
+        }
+        pw.write("}");
+
+        //items are arrays of timestamp and value, or timestamp, value, min, max and count for rolled up items
+        if ( ! statsOnly ) {
+            pw.write(",\"seriesItems\":[");
+            first = true;
+            for ( TimeSeriesItem i : query.getItems(timeSeries)) {
+                pw.write(first ? "\n[" : ",\n[");
+                pw.write(String.valueOf(i.getTimestamp()));
+                pw.write(",");
+                writeJsonNumber(pw, i.doubleValue());
+                if ( i instanceof RollupItem) {
+                    RollupItem r = (RollupItem)i;
+                    pw.write(",");
+                    writeJsonNumber(pw, r.getMin());
+                    pw.write(",");
+                    writeJsonNumber(pw, r.getMax());
+                    pw.write(",");
+                    pw.write(String.valueOf(r.getCount()));
+                }
+                pw.write("]");
+                first = false;
+            }
+            pw.write("\n]");
+        }
+        pw.write("}");
+    }
+
+    //json has no NaN
+    private void writeJsonNumber(PrintWriter pw, double value) {
+        pw.write(Double.isNaN(value) || Double.isInfinite(value) ? "null" : getDecimalFormatter().format(value));
+    }
+
+    private void writeJsonString(PrintWriter pw, String s) {
+        pw.write("\"");
+        for ( int loop=0; loop < s.length(); loop++) {
+            char c = s.charAt(loop);
+            switch (c) {
+                case '"' :
+                    pw.write("\\\"");
+                    break;
+                case '\\' :
+                    pw.write("\\\\");
+                    break;
+                default :
+                    if ( c < 0x20) {
+                        pw.write(String.format("\\u%04x", (int)c));
+                    } else {
+                        pw.write(c);
+                    }
+            }
+        }
+        pw.write("\"");
+    }
+
+    private void writeTimeSeriesResponse(PrintWriter pw, TimeSeriesContext context, IdentifiableTimeSeries timeSeries, boolean statsOnly, ItemsQuery query) {
         pw.write("<?xml version=\"1.0\"?>");
         pw.write("\n<?xml-stylesheet type=\"text/xsl\" href=\"/");
         pw.write(SERIES_XSL_RESOURCE);
@@ -123,7 +354,7 @@ public class SeriesHandler extends AbstractHandler {
         //does not require a timeseries to be deserialized, which would be required for seriesItems
         if ( ! statsOnly ) {
             pw.write("\n<seriesItems>");
-            appendTimeSeriesItems(timeSeries, pw, lastTimestamp);
+            appendTimeSeriesItems(query.getItems(timeSeries), pw);
             pw.write("\n</seriesItems>");
         }
         pw.write("\n</timeSeries>");
@@ -141,8 +372,7 @@ public class SeriesHandler extends AbstractHandler {
         }
     }
 
-    private void appendTimeSeriesItems(IdentifiableTimeSeries timeSeries, PrintWriter pw, long lastTimestamp) {
-        Collection<TimeSeriesItem> seriesItems = SeriesUtils.getSubSeries(lastTimestamp + 1, timeSeries);  //we require anything more recent than last timestamp
+    private void appendTimeSeriesItems(Collection<TimeSeriesItem> seriesItems, PrintWriter pw) {
         Date d = new Date();
         for ( TimeSeriesItem h : seriesItems) {
             pw.write("\n<");
@@ -157,8 +387,70 @@ public class SeriesHandler extends AbstractHandler {
             pw.write("=\"");
             writeDoubleValueOrNaN(pw, h.doubleValue());
             pw.write("\" ");
+            if ( h instanceof RollupItem) {
+                appendRollupAttributes(pw, (RollupItem)h);
+            }
             pw.write("/>");
         }
     }
 
+    private void appendRollupAttributes(PrintWriter pw, RollupItem r) {
+        pw.write(AttributeName.min.toString());
+        pw.write("=\"");
+        writeDoubleValueOrNaN(pw, r.getMin());
+        pw.write("\" ");
+        pw.write(AttributeName.max.toString());
+        pw.write("=\"");
+        writeDoubleValueOrNaN(pw, r.getMax());
+        pw.write("\" ");
+        pw.write(AttributeName.count.toString());
+        pw.write("=\"");
+        pw.write(String.valueOf(r.getCount()));
+        pw.write("\" ");
+    }
+
+    /**
+     * Which items a request wants, anything more recent than lastTimestamp, from a rollup tier if a resolution is
+     * given, downsampled to maxPoints if given
+     */
+    private static class ItemsQuery {
+
+        private final long lastTimestamp;
+        private final long resolution;
+        private final int maxPoints;
+        private final DownsampleMode bucketMode;
+
+        ItemsQuery(long lastTimestamp, long resolution, int maxPoints, DownsampleMode bucketMode) {
+            this.lastTimestamp = lastTimestamp;
+            this.resolution = resolution;
+            this.maxPoints = maxPoints;
+            this.bucketMode = bucketMode;
+        }
+
+        Collection<TimeSeriesItem> getItems(IdentifiableTimeSeries timeSeries) {
+            Collection<TimeSeriesItem> result;
+            if ( isRollupQuery(timeSeries)) {
+                result = ((MultiResolutionTimeSeries)timeSeries).getItemsInRange(lastTimestamp + 1, Long.MAX_VALUE, resolution);
+            } else {
+                result = SeriesUtils.getSubSeries(lastTimestamp + 1, timeSeries);
+            }
+
+            if ( maxPoints > 0) {
+                result = Downsampler.downsample(result, maxPoints, bucketMode);
+            }
+            return result;
+        }
+
+        /**
+         * @return true if items may be rolled up, from a rollup tier or by mean downsampling
+         */
+        boolean isRollupResult(IdentifiableTimeSeries timeSeries) {
+            return isRollupQuery(timeSeries) || (maxPoints > 0 && bucketMode == DownsampleMode.mean);
+        }
+
+        private boolean isRollupQuery(IdentifiableTimeSeries timeSeries) {
+            return resolution > 0 && timeSeries instanceof MultiResolutionTimeSeries;
+        }
+    }
+
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.handler;
+
+import com.od.jtimeseries.identifiable.FindCriteria;
+import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.net.httpd.xml.HttpParameterName;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+
+import java.util.Properties;
+
+/**
+ * Walks the series under a context depth first, in id order, passing each series matching the path prefix and
+ * criteria to a visitor, so that a handler can write each series as it is found rather than collecting every match
+ * with findAll first. Only the children of the contexts on the current path are held, copied one level at a time
+ * by getChildren(), so the tree lock is not held while the response is written
+ *
+ * Contexts outside the path prefix are not visited. Matches before pageOffset are skipped, and the walk stops once
+ * pageSize series have been visited, after which getNextPageOffset gives the offset of the next page
+ */
+class SeriesTreeWalker {
+
+    //FindCriteria.FIND_ALL is raw, this avoids an unchecked conversion for each use
+    static final FindCriteria<IdentifiableTimeSeries> FIND_ALL_SERIES = new FindCriteria<IdentifiableTimeSeries>() {
+        public boolean matchesCriteria(IdentifiableTimeSeries identifiable) {
+            return true;
+        }
+    };
+
+    private final String pathPrefix;
+    private final FindCriteria<IdentifiableTimeSeries> criteria;
+    private final int pageOffset;
+    private final int pageSize;
+    private int matchCount;
+    private boolean morePages;
+
+    SeriesTreeWalker(Properties params, FindCriteria<IdentifiableTimeSeries> criteria) {
+        this(
+            params.getProperty(HttpParameterName.pathPrefix.name(), ""),
+            criteria,
+            getIntParameter(params, HttpParameterName.pageOffset, 0),
+            getIntParameter(params, HttpParameterName.pageSize, Integer.MAX_VALUE)
+        );
+    }
+
+    /**
+     * @param pathPrefix, only series whose path starts with this are visited
+     * @param pageSize, maximum number of series to visit
+     */
+    SeriesTreeWalker(String pathPrefix, FindCriteria<IdentifiableTimeSeries> criteria, int pageOffset, int pageSize) {
+        this.pathPrefix = pathPrefix;
+        this.criteria = criteria;
+        this.pageOffset = Math.max(0, pageOffset);
+        this.pageSize = pageSize <= 0 ? Integer.MAX_VALUE : pageSize;
+    }
+
+    void walk(Identifiable context, SeriesVisitor visitor) {
+        for ( Identifiable child : context.getChildren()) {
+            if ( morePages ) {
+                break;
+            }
+
+            String path = child.getPath();
+            if ( path.startsWith(pathPrefix) ) {
+                if ( child instanceof IdentifiableTimeSeries && criteria.matchesCriteria((IdentifiableTimeSeries)child)) {
+                    visitIfInPage((IdentifiableTimeSeries) child, visitor);
+                }
+                walk(child, visitor);
+            } else if ( pathPrefix.startsWith(path + Identifiable.NAMESPACE_SEPARATOR)) {
+                walk(child, visitor);  //matching series may be further down
+            }
+        }
+    }
+
+    private void visitIfInPage(IdentifiableTimeSeries s, SeriesVisitor visitor) {
+        if ( matchCount - pageOffset >= pageSize) {
+            morePages = true;
+        } else {
+            if ( matchCount >= pageOffset) {
+                visitor.visit(s);
+            }
+            matchCount++;
+        }
+    }
+
+    /**
+     * @return the pageOffset for the next page, or -1 if the walk found no more matching series
+     */
+    int getNextPageOffset() {
+        return morePages ? matchCount : -1;
+    }
+
+    private static int getIntParameter(Properties params, HttpParameterName name, int defaultValue) {
+        int result = defaultValue;
+        String value = params.getProperty(name.name());
+        if ( value != null) {
+            try {
+                result = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                //use the default
+            }
+        }
+        return result;
+    }
+
+    interface SeriesVisitor {
+        void visit(IdentifiableTimeSeries s);
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.handler;
+
+import com.od.jtimeseries.net.httpd.NanoHTTPD;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * ETag and Last-Modified validators for a response generated from a series, so that a client polling a series which
+ * has not changed can be answered with 304 Not Modified rather than the whole response
+ *
+ * The ETag is made from the series modCount and latest timestamp. Neither requires the series items to be read, so a
+ * FilesystemTimeSeries can be validated without being deserialized. Some series increment their modCount when events
+ * are fired asynchronously, so a change may not be seen until the client's next request
+ */
+class SeriesValidator {
+
+    //mod counts start again when the server restarts, so an etag from an earlier server must never match
+    private static final String SERVER_INSTANCE = Long.toString(System.currentTimeMillis(), 36);
+
+    private final String eTag;
+    private final long lastModified;
+
+    /**
+     * @param representation, distinguishes responses from the same uri and series which differ in other ways,
+     *                        e.g. by format or content encoding
+     */
+    SeriesValidator(IdentifiableTimeSeries s, String representation) {
+        long latestTimestamp = s.getLatestTimestamp();
+        this.eTag = "\"" + SERVER_INSTANCE + "-" +
+            Integer.toHexString(System.identityHashCode(s)) + "-" +
+            Long.toHexString(s.getModCount()) + "-" +
+            Long.toHexString(latestTimestamp) + "-" +
+            representation + "\"";
+        //Last-Modified may not be in the future
+        this.lastModified = Math.min(latestTimestamp, System.currentTimeMillis());
+    }
+
+    String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return true if the If-None-Match header lists the current etag, in which case the client's copy is current
+     */
+    boolean isMatchedBy(Properties header) {
+        boolean result = false;
+        String ifNoneMatch = header.getProperty("if-none-match");
+        if ( ifNoneMatch != null) {
+            for ( String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ( tag.startsWith("W/")) {
+                    tag = tag.substring(2);  //If-None-Match uses the weak comparison
+                }
+                if ( tag.equals("*") || tag.equals(eTag)) {
+                    result = true;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    void addHeaders(NanoHttpResponse response) {
+        response.addHeader("ETag", eTag);
+        //clients may keep the response, but should revalidate it before use
+        response.addHeader("Cache-Control", "no-cache");
+        if ( lastModified > 0) {
+            response.addHeader("Last-Modified", NanoHTTPD.formatHttpDate(new Date(lastModified)));
+        }
+    }
+
+    NanoHttpResponse createNotModifiedResponse() {
+        NanoHttpResponse result = new NanoHttpResponse(NanoHTTPD.HTTP_NOT_MODIFIED, null);
+        addHeaders(result);
+        return result;
+    }
+}
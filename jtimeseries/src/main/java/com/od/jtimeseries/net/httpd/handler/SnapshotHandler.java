@@ -2,7 +2,6 @@ package com.od.jtimeseries.net.httpd.handler;
 
 import com.od.jtimeseries.context.TimeSeriesContext;
 import com.od.jtimeseries.identifiable.FindCriteria;
-import com.od.jtimeseries.identifiable.QueryResult;
 import com.od.jtimeseries.net.httpd.NanoHTTPD;
 import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
 import com.od.jtimeseries.net.httpd.xml.AttributeName;
@@ -24,6 +23,9 @@ import java.util.Properties;
  * Time: 19:41
  *
  * A snapshot of the latest values from all timeseries under a given tree node
+ *
+ * The snapshot is written as the tree is walked, and supports the same pathPrefix, pageOffset and pageSize
+ * parameters as the series index
  */
 public class SnapshotHandler extends AbstractHandler {
 
@@ -33,7 +35,7 @@ public class SnapshotHandler extends AbstractHandler {
    private FindCriteria<IdentifiableTimeSeries> findCriteria;
 
    public SnapshotHandler(TimeSeriesContext rootContext) {
-       this(rootContext, FindCriteria.FIND_ALL);
+       this(rootContext, SeriesTreeWalker.FIND_ALL_SERIES);
    }
 
    public SnapshotHandler(TimeSeriesContext rootContext, FindCriteria<IdentifiableTimeSeries> findCriteria) {
@@ -47,34 +49,36 @@ public class SnapshotHandler extends AbstractHandler {
        if ( context == null) {
            result = createNotFoundResponse(uri);
        } else {
-           setSearchCriteria(params);
-           result = new SeriesSnapshotResponse(context);
+           result = new SeriesSnapshotResponse(context, new SeriesTreeWalker(params, getSearchCriteria(params)));
        }
        return result;
    }
 
-    private void setSearchCriteria(Properties params) {
+    //criteria for this request only, findCriteria is shared by all requests
+    private FindCriteria<IdentifiableTimeSeries> getSearchCriteria(Properties params) {
+        FindCriteria<IdentifiableTimeSeries> result = findCriteria;
         if ( params.containsKey(HttpParameterName.substringSearch.name())) {
             //wrap the existing criteria and delegate to it, to perform and extra substring search
             String substring = params.get(HttpParameterName.substringSearch.name()).toString();
-            findCriteria = new FindBySubstringSearchCriteria(findCriteria, substring);
+            result = new FindBySubstringSearchCriteria(findCriteria, substring);
         }
+        return result;
     }
 
-    private void writeSnapshotResponse(PrintWriter pw, TimeSeriesContext context) {
+    private void writeSnapshotResponse(final PrintWriter pw, TimeSeriesContext context, SeriesTreeWalker walker) {
        pw.write("<?xml version=\"1.0\"?>");
        pw.write("\n<?xml-stylesheet type=\"text/xsl\" href=\"/");
        pw.write(SNAPSHOT_XSL_RESOURCE);
        pw.write("\"?>");
        pw.write("\n<timeSeries>");
-
-       //find all timeseries whcih we want to include in the index
-       QueryResult<IdentifiableTimeSeries> series = context.findAll(
-           IdentifiableTimeSeries.class, findCriteria
-       );
-       for (IdentifiableTimeSeries t : series.getAllMatches()) {
-           appendSeriesSnapshot(pw, t);
-       }
+       pw.flush();  //start the response before walking the tree
+
+       walker.walk(context, new SeriesTreeWalker.SeriesVisitor() {
+           public void visit(IdentifiableTimeSeries s) {
+               appendSeriesSnapshot(pw, s);
+           }
+       });
+       writeNextPage(pw, walker);
        pw.write("\n</timeSeries>");
    }
 
@@ -110,14 +114,16 @@ public class SnapshotHandler extends AbstractHandler {
     private class SeriesSnapshotResponse extends NanoHttpResponse {
 
        private TimeSeriesContext context;
+       private SeriesTreeWalker walker;
 
-       public SeriesSnapshotResponse(TimeSeriesContext context) {
+       public SeriesSnapshotResponse(TimeSeriesContext context, SeriesTreeWalker walker) {
            super(NanoHTTPD.HTTP_OK, "text/xml");
            this.context = context;
+           this.walker = walker;
        }
 
        public void writeResponseBody(OutputStream out, PrintWriter pw) {
-           writeSnapshotResponse(pw, context);
+           writeSnapshotResponse(pw, context, walker);
        }
    }
 
@@ -33,6 +33,10 @@ import java.util.Properties;
  * Date: 24-May-2009
  * Time: 01:08:12
  * To change this template use File | Settings | File Templates.
+ *
+ * Series are written as the tree is walked, so the response streams to the client and memory used does not grow with
+ * the number of series. The pathPrefix parameter limits the index to series whose path starts with the prefix, and
+ * pageOffset and pageSize return one page of the index, followed by a nextPage element if there are more series
  */
 public class TimeSeriesIndexHandler extends AbstractHandler {
 
@@ -49,34 +53,41 @@ public class TimeSeriesIndexHandler extends AbstractHandler {
         if ( context == null) {
             result = createNotFoundResponse(uri);
         } else {
-            result = new IndexResponse(context);
+            result = new IndexResponse(context, new SeriesTreeWalker(parms, SeriesTreeWalker.FIND_ALL_SERIES));
         }
         return result;
     }
 
-    private void writeIndexResponse(PrintWriter pw, TimeSeriesContext context) {
+    private void writeIndexResponse(final PrintWriter pw, TimeSeriesContext context, SeriesTreeWalker walker) {
         pw.write("<?xml version=\"1.0\"?>");
         pw.write("\n<?xml-stylesheet type=\"text/xsl\" href=\"/");
         pw.write(INDEX_XSL_RESOURCE);
         pw.write("\"?>");
         pw.write("\n<timeSeries>");
-        for (IdentifiableTimeSeries t : context.findAllTimeSeries().getAllMatches()) {
-            appendSeries(pw, createUrlForIdentifiable(t.getParent()), t);
-        }
+        pw.flush();  //start the response before walking the tree
+
+        walker.walk(context, new SeriesTreeWalker.SeriesVisitor() {
+            public void visit(IdentifiableTimeSeries s) {
+                appendSeries(pw, createUrlForIdentifiable(s.getParent()), s);
+            }
+        });
+        writeNextPage(pw, walker);
         pw.write("\n</timeSeries>");
     }
 
     private class IndexResponse extends NanoHttpResponse {
 
         private TimeSeriesContext context;
+        private SeriesTreeWalker walker;
 
-        public IndexResponse(TimeSeriesContext context) {
+        public IndexResponse(TimeSeriesContext context, SeriesTreeWalker walker) {
             super(NanoHTTPD.HTTP_OK, "text/xml");
             this.context = context;
+            this.walker = walker;
         }
 
         public void writeResponseBody(OutputStream out, PrintWriter pw) {
-            writeIndexResponse(pw, context);
+            writeIndexResponse(pw, context, walker);
         }
     }
 
@@ -38,5 +38,9 @@ public enum AttributeName {
     summaryStats,
     latestItemTimestamp,
     latestItemValue,
-    datetime
+    datetime,
+    min,
+    max,
+    count,
+    nextPageOffset
 }
@@ -27,5 +27,6 @@ package com.od.jtimeseries.net.httpd.xml;
 public enum ElementName {
     seriesItem,
     context,
-    series
+    series,
+    nextPage
 }
@@ -27,5 +27,12 @@ package com.od.jtimeseries.net.httpd.xml;
 public enum HttpParameterName {
     statsOnly,
     moreRecentThanTimestamp,
-    substringSearch
+    substringSearch,
+    resolution,
+    format,
+    pathPrefix,
+    pageOffset,
+    pageSize,
+    maxPoints,
+    bucketMode
 }
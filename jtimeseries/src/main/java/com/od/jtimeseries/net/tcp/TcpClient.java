@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.tcp;
+
+import com.od.jtimeseries.net.udp.MessageBatchTransport;
+import com.od.jtimeseries.util.logging.LimitedErrorLogger;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends batches of JavaIO encoded messages to a TcpServer as length prefixed frames, for use by a UdpPublisher
+ * in place of a UdpClient
+ *
+ * Frames are kept until the server acknowledges them. When maxUnackedFrames are waiting, sending blocks until an
+ * ack arrives, for up to sendTimeoutMillis, after which the frame is dropped. If the connection fails the client
+ * reconnects and first resends the frames which were not acknowledged, so a frame is only lost if the client gives up
+ * waiting to send it
+ *
+ * Each frame has a sequence number, and each connection starts with a hello giving the client id and the sequence of
+ * the first frame to be sent. The server skips resent frames which it had already received before the connection
+ * failed, so the items in them are not appended twice
+ */
+public class TcpClient implements MessageBatchTransport {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(TcpClient.class);
+
+    private static final int DEFAULT_MAX_FRAME_BYTES = 65536;
+    private static final int DEFAULT_MAX_UNACKED_FRAMES = 64;
+    private static final int DEFAULT_SEND_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int RECONNECT_WAIT_MILLIS = 1000;
+
+    private final LimitedErrorLogger limitedLogger = new LimitedErrorLogger(logMethods, 5, 100);
+    private final String host;
+    private final int port;
+    private final int maxFrameBytes;
+    private final int maxUnackedFrames;
+    private int sendTimeoutMillis = DEFAULT_SEND_TIMEOUT_MILLIS;
+
+    private final long clientId = new Random().nextLong();
+    private final LinkedList<byte[]> unackedFrames = new LinkedList<byte[]>();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+    private Socket socket;
+    private DataOutputStream outputStream;
+    private long firstUnackedSequence;  //the sequence of the first of the unackedFrames
+    private long lastConnectAttempt;
+
+    public TcpClient(String host, int port) {
+        this(host, port, DEFAULT_MAX_FRAME_BYTES, DEFAULT_MAX_UNACKED_FRAMES);
+    }
+
+    public TcpClient(String host, int port, int maxFrameBytes, int maxUnackedFrames) {
+        this.host = host;
+        this.port = port;
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxUnackedFrames = maxUnackedFrames;
+    }
+
+    public void setSendTimeoutMillis(int sendTimeoutMillis) {
+        this.sendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxFrameBytes;
+    }
+
+    public synchronized void sendBatch(byte[] data, int length) {
+        long endTime = System.currentTimeMillis() + sendTimeoutMillis;
+        connectIfRequired();
+        while ( unackedFrames.size() >= maxUnackedFrames && System.currentTimeMillis() < endTime) {
+            try {
+                wait(Math.min(RECONNECT_WAIT_MILLIS, Math.max(1, endTime - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            connectIfRequired();
+        }
+
+        if ( unackedFrames.size() >= maxUnackedFrames) {
+            droppedFrameCount.incrementAndGet();
+            limitedLogger.logError("Dropping TCP frame, " + unackedFrames.size() + " frames are waiting for an ack from " +
+                host + ":" + port + ", " + droppedFrameCount.get() + " frames dropped so far");
+        } else {
+            byte[] frame = new byte[length];
+            System.arraycopy(data, 0, frame, 0, length);
+            unackedFrames.add(frame);
+            if ( socket != null) {
+                writeFrame(frame);
+            }
+        }
+    }
+
+    /**
+     * @return number of frames dropped because the server did not acknowledge earlier frames within sendTimeoutMillis
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    public synchronized int getUnackedFrameCount() {
+        return unackedFrames.size();
+    }
+
+    public synchronized void stop() {
+        closeSocket();
+    }
+
+    private void connectIfRequired() {
+        long time = System.currentTimeMillis();
+        if ( socket == null && time - lastConnectAttempt >= RECONNECT_WAIT_MILLIS) {
+            lastConnectAttempt = time;
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                socket = s;
+                outputStream = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), maxFrameBytes + 4));
+                new AckReaderThread(s).start();
+                logMethods.info("Connected to TcpServer at " + host + ":" + port + ", resending " + unackedFrames.size() + " unacknowledged frames");
+                writeHello();
+                for ( byte[] frame : unackedFrames) {
+                    if ( socket == null) {
+                        break;  //failed again, resend after the next connect
+                    }
+                    writeFrame(frame);
+                }
+            } catch (IOException e) {
+                limitedLogger.logError("Failed to connect to TcpServer at " + host + ":" + port, e);
+                try {
+                    s.close();
+                } catch (IOException ioe) {
+                    //the connection was not made
+                }
+                closeSocket();
+            }
+        }
+    }
+
+    private void writeHello() {
+        try {
+            outputStream.writeInt(TcpServer.HELLO_VERSION);
+            outputStream.writeLong(clientId);
+            outputStream.writeLong(firstUnackedSequence);
+            outputStream.flush();
+        } catch (IOException e) {
+            limitedLogger.logError("Failed to send hello to " + host + ":" + port + ", will reconnect", e);
+            closeSocket();
+        }
+    }
+
+    private void writeFrame(byte[] frame) {
+        try {
+            outputStream.writeInt(frame.length);
+            outputStream.write(frame);
+            outputStream.flush();
+        } catch (IOException e) {
+            limitedLogger.logError("Failed to send TCP frame to " + host + ":" + port + ", will reconnect", e);
+            closeSocket();
+        }
+    }
+
+    private synchronized void framesAcked(Socket s, long lastSequenceReceived) {
+        if ( s == socket) {
+            while ( unackedFrames.size() > 0 && firstUnackedSequence <= lastSequenceReceived) {
+                unackedFrames.removeFirst();
+                firstUnackedSequence++;
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void connectionFailed(Socket s, IOException e) {
+        if ( s == socket) {
+            limitedLogger.logError("Lost connection to TcpServer at " + host + ":" + port + ", will reconnect", e);
+            closeSocket();
+            notifyAll();
+        }
+    }
+
+    private void closeSocket() {
+        if ( socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logMethods.warn("Failed to close TcpClient socket", e);
+            }
+            socket = null;
+            outputStream = null;
+        }
+    }
+
+    /**
+     * Reads the acks from a connection, until it is closed
+     */
+    private class AckReaderThread extends Thread {
+
+        private final Socket socket;
+
+        public AckReaderThread(Socket socket) {
+            this.socket = socket;
+            setName("JTimeSeriesTCPClientAckReader");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                DataInputStream is = new DataInputStream(socket.getInputStream());
+                while (true) {
+                    framesAcked(socket, is.readLong());
+                }
+            } catch (IOException e) {
+                connectionFailed(socket, e);
+            }
+        }
+    }
+
+    public String toString() {
+        return "TcpClient{" +
+                "host=" + host +
+                ", port=" + port +
+                ", maxFrameBytes=" + maxFrameBytes +
+                ", maxUnackedFrames=" + maxUnackedFrames +
+                '}';
+    }
+}
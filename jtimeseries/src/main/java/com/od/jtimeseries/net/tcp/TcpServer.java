@@ -0,0 +1,454 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.tcp;
+
+import com.od.jtimeseries.net.udp.UdpServer;
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOFlyweightDecoder;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOValueBatch;
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.util.logging.LimitedErrorLogger;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives JavaIO encoded messages over TCP, for feeds which cannot accept the loss of UDP datagrams, and passes them
+ * to UdpServer.UdpMessageListener and UdpServer.TimeSeriesValueListener in the same way as UdpServer
+ *
+ * A TcpClient starts each connection with a hello of a four byte version, its eight byte client id and the eight byte
+ * sequence number of the first frame it will send. It then sends frames of a four byte length followed by JavaIO
+ * messages, packed as they would be in a datagram. Each frame on the connection has the next sequence number.
+ * A single thread reads from all the connections and calls the listeners, so listeners are called on one thread, in
+ * the order frames are received on each connection. While a listener blocks, for example when the ingestion workers
+ * are full, nothing more is read, and TCP flow control slows the clients down
+ *
+ * Once ackFrameCount frames have been received on a connection, or ACK_INTERVAL_MILLIS after the last ack while
+ * any are unacknowledged, the server writes an ack of eight bytes, the sequence number of the last frame received.
+ * Clients use this to bound the frames they have in flight, and to resend the unacknowledged frames after reconnecting.
+ * The server keeps the last sequence passed to listeners for each recent client, and skips frames it has already
+ * passed on, so a frame resent because its ack was lost is not received twice. This is not kept over a server restart
+ */
+public class TcpServer {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(TcpServer.class);
+
+    private static final int DEFAULT_MAX_FRAME_BYTES = 1024 * 1024;
+    private static final int DEFAULT_ACK_FRAME_COUNT = 16;
+    private static final int ACK_INTERVAL_MILLIS = 100;
+    private static final int INITIAL_READ_BUFFER_BYTES = 65536;
+    private static final int MAX_TRACKED_CLIENTS = 1024;
+
+    static final int HELLO_VERSION = 0x54534331; //TSC1
+    private static final int HELLO_BYTES = 20;
+
+    private final LimitedErrorLogger limitedLogger = new LimitedErrorLogger(logMethods, 10, 100);
+    private final List<UdpServer.UdpMessageListener> udpMessageListeners = Collections.synchronizedList(new ArrayList<UdpServer.UdpMessageListener>());
+    private final List<UdpServer.TimeSeriesValueListener> timeSeriesValueListeners = Collections.synchronizedList(new ArrayList<UdpServer.TimeSeriesValueListener>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private int port;
+    private int maxFrameBytes = DEFAULT_MAX_FRAME_BYTES;
+    private int ackFrameCount = DEFAULT_ACK_FRAME_COUNT;
+    private volatile boolean stopping;
+    private Selector selector;
+    private Counter tcpFramesReceivedCounter = DefaultCounter.NULL_COUNTER;
+
+    //used only by the receive thread
+    private final JavaIOFlyweightDecoder javaIODecoder = new JavaIOFlyweightDecoder();
+    private final JavaIOMessageFactory javaIOMessageFactory = new JavaIOMessageFactory();
+    private final JavaIOValueBatch values = new JavaIOValueBatch();
+    private final List<UdpMessage> messages = new ArrayList<UdpMessage>();
+    private final ClientSequences lastSequenceByClient = new ClientSequences();
+    private byte[] frame = new byte[0];
+
+    public TcpServer(int port) {
+        this.port = port;
+    }
+
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * @param ackFrameCount, send an ack at least once this number of frames are received on a connection
+     */
+    public void setAckFrameCount(int ackFrameCount) {
+        this.ackFrameCount = Math.max(1, ackFrameCount);
+    }
+
+    public synchronized void startReceive() {
+        if ( selector == null) {
+            try {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(new InetSocketAddress(port));
+                serverChannel.configureBlocking(false);
+                selector = Selector.open();
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                new TcpReceiveThread(serverChannel).start();
+            } catch (IOException e) {
+                logMethods.error("Failed to start TcpServer on port " + port, e);
+                selector = null;
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        stopping = true;
+        if ( selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public void addUdpMessageListener(UdpServer.UdpMessageListener l) {
+        udpMessageListeners.add(l);
+    }
+
+    public void removeUdpMessageListener(UdpServer.UdpMessageListener l) {
+        udpMessageListeners.remove(l);
+    }
+
+    public void addTimeSeriesValueListener(UdpServer.TimeSeriesValueListener l) {
+        timeSeriesValueListeners.add(l);
+    }
+
+    public void removeTimeSeriesValueListener(UdpServer.TimeSeriesValueListener l) {
+        timeSeriesValueListeners.remove(l);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public void setTcpFramesReceivedCounter(Counter tcpFramesReceivedCounter) {
+        this.tcpFramesReceivedCounter = tcpFramesReceivedCounter;
+    }
+
+    private void processFrame(byte[] frame, int length, String sourceInetAddress) throws IOException {
+        tcpFramesReceivedCounter.incrementCount();
+        try {
+            if ( timeSeriesValueListeners.size() > 0) {
+                javaIODecoder.decode(frame, length, sourceInetAddress, values, messages);
+            } else {
+                for ( UdpMessage m : javaIOMessageFactory.deserializeFromDatagram(frame, length)) {
+                    m.setSourceInetAddress(sourceInetAddress);
+                    messages.add(m);
+                }
+            }
+            fireUdpMessagesReceived();
+            fireTimeSeriesValuesReceived();
+        } finally {
+            messages.clear();
+            values.clear();
+        }
+    }
+
+    private void fireUdpMessagesReceived() {
+        List<UdpServer.UdpMessageListener> snapshot;
+        synchronized (udpMessageListeners) {
+            snapshot = new ArrayList<UdpServer.UdpMessageListener>(udpMessageListeners);
+        }
+
+        for ( UdpMessage m : messages) {
+            for ( UdpServer.UdpMessageListener l : snapshot) {
+                l.udpMessageReceived(m);
+            }
+        }
+    }
+
+    private void fireTimeSeriesValuesReceived() {
+        List<UdpServer.TimeSeriesValueListener> snapshot;
+        synchronized (timeSeriesValueListeners) {
+            snapshot = new ArrayList<UdpServer.TimeSeriesValueListener>(timeSeriesValueListeners);
+        }
+
+        for ( int index = 0; index < values.size(); index++) {
+            for ( UdpServer.TimeSeriesValueListener l : snapshot) {
+                l.timeSeriesValueReceived(
+                    values.getSourceInetAddress(index),
+                    values.getSourceHostname(index),
+                    values.getPath(index),
+                    values.getTimestamp(index),
+                    values.getValue(index)
+                );
+            }
+        }
+    }
+
+    private class TcpReceiveThread extends Thread {
+
+        private final ServerSocketChannel serverChannel;
+
+        public TcpReceiveThread(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+            setName("JTimeSeriesTCPReceive");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (! stopping) {
+                    selector.select(ACK_INTERVAL_MILLIS);
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while ( i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        processKey(key);
+                    }
+                    sendDueAcks();
+                }
+            } catch (Throwable t) {
+                logMethods.error("TcpServer receive thread failed", t);
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void processKey(SelectionKey key) {
+            Connection c = (Connection)key.attachment();
+            try {
+                if ( key.isValid() && key.isAcceptable()) {
+                    accept();
+                } else {
+                    if ( key.isValid() && key.isReadable()) {
+                        c.read();
+                    }
+                    if ( key.isValid() && key.isWritable()) {
+                        c.writeAck();
+                    }
+                }
+            } catch (Throwable t) {
+                limitedLogger.logError("Error receiving TCP frames from " + c + ", closing connection", t);
+                if ( c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if ( channel != null) {
+                channel.configureBlocking(false);
+                Connection c = new Connection(channel);
+                c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                connectionCount.incrementAndGet();
+                logMethods.info("Accepted TCP connection from " + c);
+            }
+        }
+
+        private void sendDueAcks() {
+            long time = System.currentTimeMillis();
+            for ( SelectionKey key : selector.keys()) {
+                Connection c = (Connection)key.attachment();
+                if ( c != null && key.isValid() && c.isAckDue(time)) {
+                    try {
+                        c.sendAck();
+                    } catch (Throwable t) {
+                        limitedLogger.logError("Error sending TCP ack to " + c + ", closing connection", t);
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        private void closeAll() {
+            for ( SelectionKey key : selector.keys()) {
+                Connection c = (Connection)key.attachment();
+                if ( c != null) {
+                    c.close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                logMethods.warn("Failed to close TcpServer channel", e);
+            }
+            synchronized (TcpServer.this) {
+                selector = null;
+                stopping = false;
+            }
+        }
+    }
+
+    /**
+     * The state of a client connection, used only by the receive thread
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final String sourceInetAddress;
+        private final ByteBuffer ackBuffer = ByteBuffer.allocate(8);
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_BYTES);
+        private SelectionKey key;
+        private boolean helloReceived;
+        private long clientId;
+        private long nextSequence;
+        private long framesReceived;
+        private long framesAcked;
+        private long lastAckTime = System.currentTimeMillis();
+        private boolean writingAck;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.sourceInetAddress = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void read() throws IOException {
+            if ( channel.read(readBuffer) == -1) {
+                logMethods.info("TCP connection closed by " + this);
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            if ( ! helloReceived && readBuffer.remaining() >= HELLO_BYTES) {
+                readHello();
+            }
+            while ( helloReceived && readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if ( length <= 0 || length > maxFrameBytes) {
+                    throw new IOException("Invalid frame length " + length + ", the maximum is " + maxFrameBytes);
+                }
+                if ( readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                readBuffer.getInt();
+                if ( frame.length < length) {
+                    frame = new byte[length];
+                }
+                readBuffer.get(frame, 0, length);
+                long sequence = nextSequence++;
+                if ( sequence > lastSequenceByClient.getLastSequence(clientId)) {
+                    try {
+                        processFrame(frame, length, sourceInetAddress);
+                    } catch (Throwable t) {
+                        //the next frame can still be read, and resending this one would fail again, so ack it anyway
+                        limitedLogger.logError("Discarding invalid TCP frame from " + this, t);
+                    }
+                    lastSequenceByClient.put(clientId, sequence);
+                }
+                framesReceived++;
+                if ( framesReceived - framesAcked >= ackFrameCount) {
+                    sendAck();
+                }
+            }
+            readBuffer.compact();
+
+            //make room for a frame larger than the buffer
+            if ( helloReceived && readBuffer.position() >= 4 && readBuffer.getInt(0) + 4 > readBuffer.capacity()) {
+                ByteBuffer b = ByteBuffer.allocate(readBuffer.getInt(0) + 4);
+                readBuffer.flip();
+                b.put(readBuffer);
+                readBuffer = b;
+            }
+        }
+
+        private void readHello() throws IOException {
+            int version = readBuffer.getInt();
+            if ( version != HELLO_VERSION) {
+                throw new IOException("Unknown TCP client version " + version);
+            }
+            clientId = readBuffer.getLong();
+            nextSequence = readBuffer.getLong();
+            helloReceived = true;
+        }
+
+        boolean isAckDue(long time) {
+            return framesReceived > framesAcked && time - lastAckTime >= ACK_INTERVAL_MILLIS;
+        }
+
+        void sendAck() throws IOException {
+            lastAckTime = System.currentTimeMillis();
+            //if the last ack is still being written the next one will cover these frames
+            if ( ! writingAck) {
+                ackBuffer.clear();
+                ackBuffer.putLong(nextSequence - 1);
+                ackBuffer.flip();
+                framesAcked = framesReceived;
+                writeAck();
+            }
+        }
+
+        void writeAck() throws IOException {
+            channel.write(ackBuffer);
+            boolean incomplete = ackBuffer.hasRemaining();
+            if ( incomplete != writingAck) {
+                key.interestOps(incomplete ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                writingAck = incomplete;
+            }
+        }
+
+        void close() {
+            if ( channel.isOpen()) {
+                connectionCount.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logMethods.warn("Failed to close TCP connection to " + this, e);
+                }
+            }
+        }
+
+        public String toString() {
+            return sourceInetAddress + ":" + channel.socket().getPort();
+        }
+    }
+
+    /**
+     * The last frame sequence passed to listeners for each client, for the most recently active clients
+     */
+    private static class ClientSequences extends LinkedHashMap<Long,Long> {
+
+        private static final long serialVersionUID = 3718620498857761473L;
+
+        ClientSequences() {
+            super(16, 0.75f, true);
+        }
+
+        long getLastSequence(long clientId) {
+            Long result = get(clientId);
+            return result == null ? -1 : result;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<Long,Long> eldest) {
+            return size() > MAX_TRACKED_CLIENTS;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A stream which messages are serialized into directly to build up a datagram, without an intermediate byte array
+ * for each message. If the last message written will not fit, it can be truncated and written again into the next
+ * datagram
+ */
+class DatagramBuffer extends ByteArrayOutputStream {
+
+    DatagramBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * @return the internal buffer, valid up to size()
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Discard bytes written after position
+     */
+    void truncate(int position) {
+        count = position;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of datagrams, offered by any number of receive threads and taken by a single consumer, without
+ * locking. Each slot keeps its buffer, so once the buffers have grown to the size of the datagrams no more are allocated
+ *
+ * When the ring is full the oldest datagram is overwritten, so offering never waits for the consumer. A slot is only
+ * held while a datagram is copied in or out, so a thread which finds a slot busy spins for at most one copy
+ */
+class DatagramRing {
+
+    private static final int EMPTY = 0;
+    private static final int WRITING = 1;
+    private static final int FULL = 2;
+    private static final int READING = 3;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private long nextSequence;  //used only by the consumer
+
+    /**
+     * @param capacity, rounded up to a power of two
+     */
+    DatagramRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for ( int loop=0; loop < size; loop++) {
+            slots[loop] = new Slot();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add a datagram, overwriting the oldest if the ring is full
+     * @return true if a datagram was dropped
+     */
+    boolean offer(byte[] data, int length) {
+        long sequence = head.getAndIncrement();
+        Slot slot = slots[(int)(sequence & mask)];
+        int state = claim(slot, WRITING);
+        boolean dropped = state == FULL;
+        if ( dropped && slot.sequence > sequence) {
+            //another thread lapped this one and already wrote a newer datagram here
+            slot.state.set(FULL);
+        } else {
+            if ( slot.buffer.length < length) {
+                slot.buffer = new byte[length];
+            }
+            System.arraycopy(data, 0, slot.buffer, 0, length);
+            slot.length = length;
+            slot.sequence = sequence;
+            slot.state.set(FULL);
+        }
+
+        if ( dropped) {
+            droppedCount.incrementAndGet();
+        }
+        return dropped;
+    }
+
+    /**
+     * Copy the oldest datagram into buffer, which must be large enough for any datagram offered
+     * Must only be called by the consumer thread
+     *
+     * @return length of the datagram, or -1 if the ring is empty
+     */
+    int poll(byte[] buffer) {
+        while (true) {
+            long h = head.get();
+            nextSequence = Math.max(nextSequence, h - slots.length);
+            if ( nextSequence >= h) {
+                return -1;
+            }
+
+            Slot slot = slots[(int)(nextSequence & mask)];
+            if ( slot.state.get() == FULL && slot.state.compareAndSet(FULL, READING)) {
+                if ( slot.sequence == nextSequence) {
+                    int length = slot.length;
+                    System.arraycopy(slot.buffer, 0, buffer, 0, length);
+                    slot.state.set(EMPTY);
+                    nextSequence++;
+                    return length;
+                } else if ( slot.sequence > nextSequence) {
+                    slot.state.set(FULL);
+                    nextSequence++;  //this datagram was overwritten
+                    continue;
+                }
+                slot.state.set(FULL);
+            }
+            //the datagram for nextSequence is still being written
+            Thread.yield();
+        }
+    }
+
+    boolean isEmpty() {
+        return nextSequence >= head.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private int claim(Slot slot, int newState) {
+        while (true) {
+            int state = slot.state.get();
+            if ( (state == EMPTY || state == FULL) && slot.state.compareAndSet(state, newState)) {
+                return state;
+            }
+            Thread.yield();
+        }
+    }
+
+    private static class Slot {
+        private final AtomicInteger state = new AtomicInteger(EMPTY);
+        private byte[] buffer = new byte[0];
+        private int length;
+        private long sequence = -1;
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts datagrams lost, duplicated and reordered, from the sequence numbers publishers may add to datagrams
+ *
+ * Each source host, port and publisher session is tracked by the highest sequence received and a 64 bit window
+ * recording which of the 64 sequences up to and including it were received. A datagram behind the highest is counted
+ * as reordered if its bit was clear, or duplicated if it was set. A sequence is counted as lost once it passes out of
+ * the window without being received, so a datagram more than 63 behind the highest is counted as reordered but also
+ * stays counted as lost
+ *
+ * Sources not heard from for a while are removed when the number tracked reaches maxSources
+ */
+class DatagramSequenceTracker {
+
+    private static final int DEFAULT_MAX_SOURCES = 4096;
+    private static final long STALE_SOURCE_MILLIS = 600000; //10 mins
+    private static final int WINDOW_SIZE = 64;
+
+    private final ConcurrentHashMap<SourceKey, SourceSequence> sources = new ConcurrentHashMap<SourceKey, SourceSequence>();
+    private final int maxSources;
+
+    private final AtomicLong lostCount = new AtomicLong();
+    private final AtomicLong duplicatedCount = new AtomicLong();
+    private final AtomicLong reorderedCount = new AtomicLong();
+    private volatile Counter lostCounter = DefaultCounter.NULL_COUNTER;
+    private volatile Counter duplicatedCounter = DefaultCounter.NULL_COUNTER;
+    private volatile Counter reorderedCounter = DefaultCounter.NULL_COUNTER;
+
+    DatagramSequenceTracker() {
+        this(DEFAULT_MAX_SOURCES);
+    }
+
+    DatagramSequenceTracker(int maxSources) {
+        this.maxSources = maxSources;
+    }
+
+    void datagramReceived(String sourceHostAddress, int sourcePort, int sessionId, long sequence) {
+        long time = System.currentTimeMillis();
+        SourceKey key = new SourceKey(sourceHostAddress, sourcePort, sessionId);
+        SourceSequence s = sources.get(key);
+        if ( s == null) {
+            if ( sources.size() >= maxSources) {
+                removeStaleSources(time);
+                if ( sources.size() >= maxSources) {
+                    return;  //too many sources, this one is not tracked until others become stale
+                }
+            }
+            SourceSequence newSequence = new SourceSequence(sequence);
+            s = sources.putIfAbsent(key, newSequence);
+            if ( s == null) {
+                newSequence.lastReceivedTime = time;
+                return;
+            }
+        }
+        s.received(sequence, time);
+    }
+
+    private void removeStaleSources(long time) {
+        Iterator<SourceSequence> i = sources.values().iterator();
+        while ( i.hasNext()) {
+            if ( time - i.next().lastReceivedTime > STALE_SOURCE_MILLIS) {
+                i.remove();
+            }
+        }
+    }
+
+    int getSourceCount() {
+        return sources.size();
+    }
+
+    long getLostCount() {
+        return lostCount.get();
+    }
+
+    long getDuplicatedCount() {
+        return duplicatedCount.get();
+    }
+
+    long getReorderedCount() {
+        return reorderedCount.get();
+    }
+
+    void setLostCounter(Counter lostCounter) {
+        this.lostCounter = lostCounter;
+    }
+
+    void setDuplicatedCounter(Counter duplicatedCounter) {
+        this.duplicatedCounter = duplicatedCounter;
+    }
+
+    void setReorderedCounter(Counter reorderedCounter) {
+        this.reorderedCounter = reorderedCounter;
+    }
+
+    private void lost(long count) {
+        if ( count > 0) {
+            lostCount.addAndGet(count);
+            lostCounter.incrementCount(count);
+        }
+    }
+
+    private class SourceSequence {
+
+        private long highestSequence;
+        private long window = -1;  //sequences before the first received are not counted as lost
+        private volatile long lastReceivedTime;
+
+        SourceSequence(long sequence) {
+            this.highestSequence = sequence;
+        }
+
+        synchronized void received(long sequence, long time) {
+            lastReceivedTime = time;
+            long gap = sequence - highestSequence;
+            if ( gap > 0) {
+                if ( gap >= WINDOW_SIZE) {
+                    lost(WINDOW_SIZE - Long.bitCount(window) + gap - WINDOW_SIZE);
+                    window = 1;
+                } else {
+                    long leavingWindow = -1L << (WINDOW_SIZE - gap);
+                    lost(Long.bitCount(~window & leavingWindow));
+                    window = (window << gap) | 1;
+                }
+                highestSequence = sequence;
+            } else if ( -gap >= WINDOW_SIZE) {
+                reorderedCount.incrementAndGet();
+                reorderedCounter.incrementCount();
+            } else {
+                long bit = 1L << -gap;
+                if ( (window & bit) != 0) {
+                    duplicatedCount.incrementAndGet();
+                    duplicatedCounter.incrementCount();
+                } else {
+                    window |= bit;
+                    reorderedCount.incrementAndGet();
+                    reorderedCounter.incrementCount();
+                }
+            }
+        }
+    }
+
+    private static class SourceKey {
+
+        private final String hostAddress;
+        private final int port;
+        private final int sessionId;
+        private final int hashCode;
+
+        SourceKey(String hostAddress, int port, int sessionId) {
+            this.hostAddress = hostAddress;
+            this.port = port;
+            this.sessionId = sessionId;
+            this.hashCode = 31 * (31 * hostAddress.hashCode() + port) + sessionId;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SourceKey that = (SourceKey) o;
+            return port == that.port && sessionId == that.sessionId && hostAddress.equals(that.hostAddress);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+/**
+ * Sends a batch of serialized messages, as a UDP datagram by UdpClient or as a length prefixed frame by TcpClient
+ */
+public interface MessageBatchTransport {
+
+    /**
+     * @return the largest batch which may be sent, in bytes
+     */
+    int getMaxBatchBytes();
+
+    /**
+     * Send a batch of serialized messages, the caller may reuse data once this returns
+     */
+    void sendBatch(byte[] data, int length);
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import com.od.jtimeseries.source.Counter;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import com.od.jtimeseries.util.NetworkUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A destination to which a UdpServer replicates the datagrams it receives
+ *
+ * The receive threads copy each datagram into a DatagramRing and return, and a sender thread for the destination
+ * sends them, so a slow or unreachable destination does not hold up receiving. If the sender falls behind by more
+ * than the capacity of the ring the oldest datagrams are dropped
+ */
+public class ReplicationDestination {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final UdpClientWithSocket clientWithSocket;
+    private final DatagramRing ring;
+    private final AtomicLong sentCount = new AtomicLong();
+    private volatile Counter datagramsSentCounter = DefaultCounter.NULL_COUNTER;
+    private volatile Counter datagramsDroppedCounter = DefaultCounter.NULL_COUNTER;
+    private volatile SenderThread senderThread;
+    private volatile boolean senderWaiting;
+
+    public ReplicationDestination(UdpClientConfig config, int capacity) {
+        this.clientWithSocket = new UdpClientWithSocket(config);
+        this.ring = new DatagramRing(capacity);
+    }
+
+    public UdpClientConfig getUdpClientConfig() {
+        return clientWithSocket.getUdpClientConfig();
+    }
+
+    /**
+     * Queue a datagram to send to this destination, without waiting
+     */
+    public void replicate(byte[] buffer, int length) {
+        if ( ring.offer(buffer, length)) {
+            datagramsDroppedCounter.incrementCount();
+        }
+
+        Thread t = senderThread;
+        if ( senderWaiting && t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public synchronized void start() {
+        if ( senderThread == null) {
+            senderThread = new SenderThread();
+            senderThread.start();
+        }
+    }
+
+    /**
+     * Stop the sender thread and wait for it to exit, so that a sender started afterwards is the only one polling the
+     * ring, which supports a single consumer
+     */
+    public synchronized void stop() {
+        SenderThread t = senderThread;
+        if ( t != null) {
+            senderThread = null;
+            t.stopping = true;
+            LockSupport.unpark(t);
+            boolean interrupted = false;
+            while ( t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return number of datagrams dropped because the sender had fallen too far behind
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    public void setDatagramsSentCounter(Counter datagramsSentCounter) {
+        this.datagramsSentCounter = datagramsSentCounter;
+    }
+
+    public void setDatagramsDroppedCounter(Counter datagramsDroppedCounter) {
+        this.datagramsDroppedCounter = datagramsDroppedCounter;
+    }
+
+    public String toString() {
+        return "ReplicationDestination{" + getUdpClientConfig() + "}";
+    }
+
+    private class SenderThread extends Thread {
+
+        private final byte[] buffer = new byte[NetworkUtils.MAX_ALLOWABLE_PACKET_SIZE_BYTES];
+        private volatile boolean stopping;
+
+        public SenderThread() {
+            setName("JTimeSeriesReplication-" + getUdpClientConfig());
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (! stopping) {
+                int length = ring.poll(buffer);
+                if ( length == -1) {
+                    senderWaiting = true;
+                    //check again in case a datagram was added before we set senderWaiting
+                    if ( ring.isEmpty()) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    senderWaiting = false;
+                } else {
+                    clientWithSocket.sendDatagram(buffer, length);
+                    sentCount.incrementAndGet();
+                    datagramsSentCounter.incrementCount();
+                }
+            }
+            clientWithSocket.closeSocket();
+        }
+    }
+}
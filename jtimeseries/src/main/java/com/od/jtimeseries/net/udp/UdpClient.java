@@ -37,7 +37,7 @@ import java.util.concurrent.TimeUnit;
  * Date: 13-Jan-2009
  * Time: 09:50:55
  */
-public class UdpClient {
+public class UdpClient implements MessageBatchTransport {
 
     private static final LogMethods logMethods = LogUtils.getLogMethods(UdpClient.class);
     
@@ -150,21 +150,21 @@ public class UdpClient {
     }
 
     private void sendMultiple(Queue<UdpMessage> messageQueue, UdpMessage m) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(NetworkUtils.getMaxBytesPerDatagramPacket());
+        DatagramBuffer bos = new DatagramBuffer(NetworkUtils.getMaxBytesPerDatagramPacket());
 
         while(m != null && bos.size() < (NetworkUtils.getMaxBytesPerDatagramPacket() - m.getMaxExpectedSize())) {
-            ByteArrayOutputStream msgOut = new ByteArrayOutputStream(m.getMaxExpectedSize());
-            m.serialize(msgOut);
-            byte[] msgBytes = msgOut.toByteArray();
-            checkMessageSize(m, msgBytes);
-            if ( bos.size() + msgBytes.length < NetworkUtils.getMaxBytesPerDatagramPacket()) {
-                bos.write(msgBytes);
+            //serialize straight into the datagram, and take the message back out if it does not fit
+            int messageStart = bos.size();
+            m.serialize(bos);
+            checkMessageSize(m, bos.size() - messageStart);
+            if ( bos.size() < NetworkUtils.getMaxBytesPerDatagramPacket()) {
                 UdpMessage removed = messageQueue.poll();
                 assert(removed == m); //only not the case if we have multiple queue consumers?
                 m = messageQueue.peek(); //try the next message
             } else {
                 //we can't fit the serialized messages into the packet
                 //so don't remove the message from the incoming message queue, we will try again next time
+                bos.truncate(messageStart);
                 break;
             }
         }
@@ -173,6 +173,23 @@ public class UdpClient {
         scheduledExecutor.execute(new SendUdpDatagramTask(data));
     }
 
+    /**
+     * Send a datagram to each client on the calling thread, so that the caller may reuse data once this returns
+     */
+    public void sendDatagram(byte[] data, int length) {
+        for(UdpClientWithSocket clientConfig : getClientConfigSnapshot()) {
+            clientConfig.sendDatagram(data, length);
+        }
+    }
+
+    public int getMaxBatchBytes() {
+        return NetworkUtils.getMaxBytesPerDatagramPacket();
+    }
+
+    public void sendBatch(byte[] data, int length) {
+        sendDatagram(data, length);
+    }
+
     //get a snapshot of the current configs to iterate over
     private List<UdpClientWithSocket> getClientConfigSnapshot() {
         return new ArrayList<UdpClientWithSocket>(configs);
@@ -202,12 +219,12 @@ public class UdpClient {
         ByteArrayOutputStream bos = new ByteArrayOutputStream(message.getMaxExpectedSize());
         message.serialize(bos);
         byte[] data = bos.toByteArray();
-        checkMessageSize(message, data);
+        checkMessageSize(message, data.length);
         return data;
     }
 
-    private void checkMessageSize(UdpMessage message, byte[] data) throws IOException {
-        if ( data.length > NetworkUtils.getMaxBytesPerDatagramPacket()) {
+    void checkMessageSize(UdpMessage message, int size) throws IOException {
+        if ( size > NetworkUtils.getMaxBytesPerDatagramPacket()) {
             throw new IOException("Cannot send UDP datagram for message " + message + " with size greater than " + NetworkUtils.getMaxBytesPerDatagramPacket() + " bytes of data, consider setting the " + NetworkUtils.MAX_BYTES_PER_DATAGRAM_PROPERTY + " system property to allow larger packets");
         }
     }
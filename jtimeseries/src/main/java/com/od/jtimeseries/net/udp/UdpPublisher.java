@@ -1,63 +1,103 @@
 package com.od.jtimeseries.net.udp;
 
 import com.od.jtimeseries.identifiable.Identifiable;
+import com.od.jtimeseries.net.udp.message.Encoding;
 import com.od.jtimeseries.net.udp.message.SeriesDescriptionMessage;
 import com.od.jtimeseries.net.udp.message.TimeSeriesValueMessage;
 import com.od.jtimeseries.net.udp.message.UdpMessage;
 import com.od.jtimeseries.net.udp.message.UdpMessageFactory;
 import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOSequenceHeader;
+import com.od.jtimeseries.net.udp.message.utf8.Utf8SequenceField;
 import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
 import com.od.jtimeseries.timeseries.TimeSeriesEvent;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
 import com.od.jtimeseries.timeseries.TimeSeriesListenerAdapter;
 import com.od.jtimeseries.util.TimeSeriesExecutorFactory;
+import com.od.jtimeseries.util.logging.LimitedErrorLogger;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 
+import java.io.IOException;
+import java.util.Random;
 import java.util.WeakHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Listen to IdentifiableTimeSeries for append events and send a UDP datagram for each appended value
- * Currently works only for single item appends
+ * Listen to IdentifiableTimeSeries for append events and send a UDP message for each appended value
+ * Messages for all the series are queued together, and as many as will fit are packed into each datagram when the
+ * message type supports streaming
+ *
+ * Messages are sent by a UdpClient by default, a TcpClient may be used instead to send them as frames over TCP
  *
  * The maximum publish rate can be set, to limit the possible network overhead
  * Default max is 25 datagrams / second
  * = 25 * 8192 bytes (assuming max datagram size is 8192 bytes)  == 204800 bytes, so a bit less than 256KB/s worst case
+ *
+ * The rate is controlled by a token bucket. Each time the publisher runs it sends datagrams while there are messages
+ * queued and tokens left, so after a quiet period a burst of up to maxBurstDatagrams can be sent at once, rather than
+ * one datagram each tick while the queue fills up
+ *
+ * If sendSequenceNumbers is set, JavaIO and UTF-8 datagrams carry a session id for this publisher and a sequence number,
+ * from which a UdpServer counts datagrams lost, duplicated and reordered. This is off by default since a JavaIO sequence
+ * header is rejected by servers from before it was added
  */
 public class UdpPublisher extends TimeSeriesListenerAdapter {
 
     private static final LogMethods logMethods = LogUtils.getLogMethods(UdpPublisher.class);
     private static final int DEFAULT_MAX_MESSAGES_PER_SECOND = 25;
+    private static final int DEFAULT_MAX_QUEUE_SIZE = 8192;
+
+    //at high rates send several datagrams each time the publisher runs, rather than scheduling it more often
+    private static final long MIN_DELAY_MICROSECONDS = 10000;
 
     private ScheduledExecutorService rateControllingExecutor = TimeSeriesExecutorFactory.getUdpPublisherScheduledExecutor(this);
-    private UdpClient udpClient;
+    private final LimitedErrorLogger limitedLogger = new LimitedErrorLogger(logMethods, 10, 1000);
+    private MessageBatchTransport transport;
     private int maxDatagramsPerSecond;
     private int maxQueueSize;
     private AppendPublishingListener appendPublishingListener = new AppendPublishingListener();
-    private LinkedBlockingQueue<UdpMessage> messageQueue;
+    private ArrayBlockingQueue<QueuedMessage> messageQueue;
     private AtomicBoolean started = new AtomicBoolean();
     private long delayTimeMicroseconds;
     private UdpMessageFactory udpMessageFactory = new JavaIOMessageFactory();
     private WeakHashMap<Identifiable, Object> seriesWithDescriptionsPublished = new WeakHashMap<Identifiable, Object>();
-    private static final int DEFAULT_MAX_QUEUE_SIZE = 8192;
+    private final int sessionId = new Random().nextInt();
+    private volatile boolean sendSequenceNumbers;
 
-    public UdpPublisher(UdpClient udpClient) {
-        this(udpClient, DEFAULT_MAX_MESSAGES_PER_SECOND, DEFAULT_MAX_QUEUE_SIZE);
+    //the following are only used by the publishing task
+    private volatile int maxBurstDatagrams;
+    private double tokens;
+    private long lastTokenTime;
+    private QueuedMessage nextDatagramMessage;  //a message which did not fit in the last datagram
+    private DatagramBuffer datagramBuffer;
+    private long nextSequence;
+
+    private final AtomicLong droppedMessageCount = new AtomicLong();
+    private final AtomicLong sentMessageCount = new AtomicLong();
+    private final AtomicLong sentDatagramCount = new AtomicLong();
+    private final AtomicLong totalSendLatencyNanos = new AtomicLong();
+    private final AtomicLong maxSendLatencyNanos = new AtomicLong();
+
+    public UdpPublisher(MessageBatchTransport transport) {
+        this(transport, DEFAULT_MAX_MESSAGES_PER_SECOND, DEFAULT_MAX_QUEUE_SIZE);
     }
 
-    public UdpPublisher(UdpClient udpClient, int maxDatagramsPerSecond) {
-        this(udpClient, maxDatagramsPerSecond, DEFAULT_MAX_QUEUE_SIZE);
+    public UdpPublisher(MessageBatchTransport transport, int maxDatagramsPerSecond) {
+        this(transport, maxDatagramsPerSecond, DEFAULT_MAX_QUEUE_SIZE);
     }
 
-    public UdpPublisher(UdpClient udpClient, int maxDatagramsPerSecond, int maxQueueSize) {
-        this.udpClient = udpClient;
+    public UdpPublisher(MessageBatchTransport transport, int maxDatagramsPerSecond, int maxQueueSize) {
+        this.transport = transport;
         this.maxDatagramsPerSecond = maxDatagramsPerSecond;
         this.maxQueueSize = maxQueueSize;
-        messageQueue = new LinkedBlockingQueue<UdpMessage>(maxQueueSize);
-        delayTimeMicroseconds = 1000000 / maxDatagramsPerSecond;
+        messageQueue = new ArrayBlockingQueue<QueuedMessage>(maxQueueSize);
+        delayTimeMicroseconds = Math.max(1000000 / maxDatagramsPerSecond, MIN_DELAY_MICROSECONDS);
+        maxBurstDatagrams = Math.max(1, maxDatagramsPerSecond / 5);
     }
 
     /**
@@ -69,14 +109,29 @@ public class UdpPublisher extends TimeSeriesListenerAdapter {
     }
 
     /**
-     * Publish all single item appends to series s
+     * Set the most datagrams which may be sent at once after the publisher has been idle
+     * The default is a fifth of maxDatagramsPerSecond
+     */
+    public void setMaxBurstDatagrams(int maxBurstDatagrams) {
+        this.maxBurstDatagrams = Math.max(1, maxBurstDatagrams);
+    }
+
+    /**
+     * Add a session id and sequence number to each JavaIO or UTF-8 datagram, so that the server can count datagrams lost
+     */
+    public void setSendSequenceNumbers(boolean sendSequenceNumbers) {
+        this.sendSequenceNumbers = sendSequenceNumbers;
+    }
+
+    /**
+     * Publish all appends to series s
      */
     public void publishAppends(IdentifiableTimeSeries s) {
         s.addTimeSeriesListener(appendPublishingListener);
     }
 
     /**
-     * Stop publishing single items appends for series s
+     * Stop publishing appends for series s
      */
     public void stopPublishing(IdentifiableTimeSeries s) {
         s.removeTimeSeriesListener(appendPublishingListener);
@@ -95,6 +150,40 @@ public class UdpPublisher extends TimeSeriesListenerAdapter {
         safelyAddToQueue(d);
     }
 
+    /**
+     * @return number of messages dropped because the outbound queue was full, or they could not be serialized
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessageCount.get();
+    }
+
+    public long getSentMessageCount() {
+        return sentMessageCount.get();
+    }
+
+    public long getSentDatagramCount() {
+        return sentDatagramCount.get();
+    }
+
+    /**
+     * @return mean time in milliseconds between a message being queued and sent
+     */
+    public double getMeanSendLatencyMillis() {
+        long sent = sentMessageCount.get();
+        return sent == 0 ? 0 : totalSendLatencyNanos.get() / (sent * 1000000d);
+    }
+
+    /**
+     * @return longest time in milliseconds between a message being queued and sent
+     */
+    public double getMaxSendLatencyMillis() {
+        return maxSendLatencyNanos.get() / 1000000d;
+    }
+
+    public int getQueueSize() {
+        return messageQueue.size();
+    }
+
     private class AppendPublishingListener extends TimeSeriesListenerAdapter {
         public void itemsAddedOrInserted(TimeSeriesEvent e) {
             if ( e.isAppend() ) {
@@ -106,16 +195,14 @@ public class UdpPublisher extends TimeSeriesListenerAdapter {
                     publishDescription(i);
                 }
 
-                if (e.getItems().size() == 1) {
-                    TimeSeriesValueMessage m = udpMessageFactory.createTimeSeriesValueMessage(
-                        i.getPath(),
-                        e.getItems().get(0)
-                    );
+                String path = i.getPath();
+                for ( TimeSeriesItem item : e.getItems()) {
+                    TimeSeriesValueMessage m = udpMessageFactory.createTimeSeriesValueMessage(path, item);
                     safelyAddToQueue(m);
+                }
 
-                    if (! started.getAndSet(true)) {
-                        startPublisherQueue();
-                    }
+                if (! started.getAndSet(true)) {
+                    startPublisherQueue();
                 }
             }
         }
@@ -126,19 +213,21 @@ public class UdpPublisher extends TimeSeriesListenerAdapter {
     }
 
     private void safelyAddToQueue(UdpMessage m) {
-        try {
-            messageQueue.add(m);
-        } catch (IllegalStateException ise) {
-            logMethods.warn("Failed to publish UDP message, outbound queue is full," +
-                " max datagrams per second is " + maxDatagramsPerSecond + " is this enough?", ise);
+        if ( ! messageQueue.offer(new QueuedMessage(m))) {
+            droppedMessageCount.incrementAndGet();
+            limitedLogger.logError("Failed to publish UDP message, outbound queue is full," +
+                " max datagrams per second is " + maxDatagramsPerSecond + " is this enough? " +
+                droppedMessageCount.get() + " messages dropped so far");
         }
     }
 
     private void startPublisherQueue() {
+        lastTokenTime = System.nanoTime();
+        tokens = 1;
         rateControllingExecutor.scheduleWithFixedDelay(new Runnable() {
             public void run() {
                 try {
-                    udpClient.sendMessages(messageQueue);
+                    sendQueuedMessages();
                 } catch (Throwable t) {
                     logMethods.error("Failed to send UDP message(s)", t);
                 }
@@ -146,11 +235,148 @@ public class UdpPublisher extends TimeSeriesListenerAdapter {
         }, delayTimeMicroseconds, delayTimeMicroseconds, TimeUnit.MICROSECONDS);
     }
 
+    private void sendQueuedMessages() {
+        long time = System.nanoTime();
+        tokens = Math.min(maxBurstDatagrams, tokens + (time - lastTokenTime) * maxDatagramsPerSecond / 1000000000d);
+        lastTokenTime = time;
+
+        while ( tokens >= 1 && (nextDatagramMessage != null || ! messageQueue.isEmpty())) {
+            if ( fillDatagram() > 0) {
+                transport.sendBatch(datagramBuffer.getBuffer(), datagramBuffer.size());
+                sentDatagramCount.incrementAndGet();
+                tokens--;
+            }
+        }
+    }
+
+    /**
+     * Serialize queued messages into the datagram buffer until the next will not fit
+     * @return number of messages in the datagram
+     */
+    private int fillDatagram() {
+        int maxDatagramSize = transport.getMaxBatchBytes();
+        if ( datagramBuffer == null || datagramBuffer.getBuffer().length < maxDatagramSize) {
+            datagramBuffer = new DatagramBuffer(maxDatagramSize);
+        }
+        datagramBuffer.reset();
+
+        long time = System.nanoTime();
+        int messageCount = 0;
+        Encoding sequenceEncoding = null;
+        QueuedMessage q = pollNextMessage();
+        while ( q != null) {
+            UdpMessage m = q.message;
+            boolean streaming = m.isMessageStreamingSupported();
+            if ( ! streaming && messageCount > 0) {
+                nextDatagramMessage = q;  //needs a datagram of its own
+                break;
+            }
+
+            if ( sequenceEncoding == null && sendSequenceNumbers && m.getEncoding() == Encoding.JAVA_IO && writeSequence(Encoding.JAVA_IO)) {
+                sequenceEncoding = Encoding.JAVA_IO;
+            }
+
+            int messageStart = datagramBuffer.size();
+            try {
+                m.serialize(datagramBuffer);
+                //a message must fit in a datagram with the sequence header, or we would never be able to send it
+                int headerSize = sequenceEncoding == Encoding.JAVA_IO ? JavaIOSequenceHeader.LENGTH : 0;
+                checkMessageSize(m, datagramBuffer.size() - messageStart, maxDatagramSize - headerSize);
+            } catch (Throwable t) {
+                datagramBuffer.truncate(messageStart);
+                droppedMessageCount.incrementAndGet();
+                limitedLogger.logError("Failed to serialize UDP message " + m + ", it will not be sent", t);
+                q = pollNextMessage();
+                continue;
+            }
+
+            if ( datagramBuffer.size() > maxDatagramSize) {
+                datagramBuffer.truncate(messageStart);
+                nextDatagramMessage = q;
+                break;
+            }
+
+            messageCount++;
+            recordSent(time - q.queuedTime);
+            if ( ! streaming) {
+                if ( sendSequenceNumbers && m.getEncoding() == Encoding.UTF8 && writeSequence(Encoding.UTF8)) {
+                    sequenceEncoding = Encoding.UTF8;
+                }
+                break;
+            }
+            q = pollNextMessage();
+        }
+
+        if ( sequenceEncoding != null && messageCount > 0) {
+            nextSequence++;
+        }
+        return messageCount;
+    }
+
+    /**
+     * Write the sequence for the datagram being filled, a JavaIO header goes before the first message, and a UTF-8
+     * field after the message. If a UTF-8 field will not fit the datagram is sent without it
+     * @return true if the sequence was written
+     */
+    private boolean writeSequence(Encoding encoding) {
+        int start = datagramBuffer.size();
+        boolean result = false;
+        try {
+            if ( encoding == Encoding.JAVA_IO) {
+                JavaIOSequenceHeader.write(datagramBuffer, sessionId, nextSequence);
+            } else {
+                Utf8SequenceField.write(datagramBuffer, sessionId, nextSequence);
+            }
+            result = datagramBuffer.size() <= transport.getMaxBatchBytes();
+        } catch (IOException e) {
+            limitedLogger.logError("Failed to write datagram sequence", e);
+        }
+
+        if ( ! result) {
+            datagramBuffer.truncate(start);
+        }
+        return result;
+    }
+
+    private void checkMessageSize(UdpMessage m, int size, int maxDatagramSize) throws IOException {
+        if ( size > maxDatagramSize) {
+            throw new IOException("Cannot send message " + m + " with size greater than " + maxDatagramSize + " bytes");
+        }
+    }
+
+    private QueuedMessage pollNextMessage() {
+        QueuedMessage result = nextDatagramMessage;
+        if ( result != null) {
+            nextDatagramMessage = null;
+        } else {
+            result = messageQueue.poll();
+        }
+        return result;
+    }
+
+    private void recordSent(long latencyNanos) {
+        sentMessageCount.incrementAndGet();
+        totalSendLatencyNanos.addAndGet(latencyNanos);
+        if ( latencyNanos > maxSendLatencyNanos.get()) {
+            maxSendLatencyNanos.set(latencyNanos);  //only the publishing task updates this
+        }
+    }
+
+    private static class QueuedMessage {
+        private final UdpMessage message;
+        private final long queuedTime = System.nanoTime();
+
+        QueuedMessage(UdpMessage message) {
+            this.message = message;
+        }
+    }
+
     @Override
     public String toString() {
         return "UdpPublisher{" +
                 "maxQueueSize=" + maxQueueSize +
                 ", maxDatagramsPerSecond=" + maxDatagramsPerSecond +
+                ", maxBurstDatagrams=" + maxBurstDatagrams +
                 ", started=" + started +
                 ", udpMessageFactory=" + udpMessageFactory +
                 '}';
@@ -14,7 +14,7 @@ import java.util.WeakHashMap;
  * Time: 09:04
  *
  * Listen to a TimeSeriesContext or Identifiable node for IdentifiableTimeSeries added as descendants
- * Publish UDP series append messages via a UdpClient for all the series added
+ * Publish UDP series append messages via a UdpClient, or a TcpClient, for all the series added
  *
  * When descendant IdentifiableTimeSeries are removed from their parent context/identifiable, then
  * publication will stop
@@ -23,16 +23,16 @@ public class UdpPublishingTreeListener extends IdentifiableTreeListenerAdapter {
 
     private UdpPublisher udpPublisher;
 
-    public UdpPublishingTreeListener(UdpClient udpClient) {
-        this.udpPublisher = new UdpPublisher(udpClient);
+    public UdpPublishingTreeListener(MessageBatchTransport transport) {
+        this.udpPublisher = new UdpPublisher(transport);
     }
 
-    public UdpPublishingTreeListener(UdpClient udpClient, int maxDatagramsPerSecond) {
-        this.udpPublisher = new UdpPublisher(udpClient, maxDatagramsPerSecond);
+    public UdpPublishingTreeListener(MessageBatchTransport transport, int maxDatagramsPerSecond) {
+        this.udpPublisher = new UdpPublisher(transport, maxDatagramsPerSecond);
     }
 
-    public UdpPublishingTreeListener(UdpClient udpClient, int maxDatagramsPerSecond, int queueSize) {
-        this.udpPublisher = new UdpPublisher(udpClient, maxDatagramsPerSecond, queueSize);
+    public UdpPublishingTreeListener(MessageBatchTransport transport, int maxDatagramsPerSecond, int queueSize) {
+        this.udpPublisher = new UdpPublisher(transport, maxDatagramsPerSecond, queueSize);
     }
 
     public void descendantAdded(IdentifiableTreeEvent contextTreeEvent) {
@@ -59,4 +59,11 @@ public class UdpPublishingTreeListener extends IdentifiableTreeListenerAdapter {
         udpPublisher.stopPublishing(s);
     }
 
+    /**
+     * @return the publisher, which may be used to set the message factory or read the publishing counts
+     */
+    public UdpPublisher getUdpPublisher() {
+        return udpPublisher;
+    }
+
 }
@@ -20,11 +20,19 @@ package com.od.jtimeseries.net.udp;
 
 import com.od.jtimeseries.net.udp.message.UdpMessage;
 import com.od.jtimeseries.net.udp.message.UdpMessageFactory;
+import com.od.jtimeseries.net.udp.message.dictionary.AbstractDictionaryMessage;
+import com.od.jtimeseries.net.udp.message.dictionary.DictionaryDecoder;
+import com.od.jtimeseries.net.udp.message.dictionary.DictionaryMessageFactory;
+import com.od.jtimeseries.net.udp.message.dictionary.SourceDictionaries;
 import com.od.jtimeseries.net.udp.message.javaio.AbstractJavaIOMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOFlyweightDecoder;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOValueBatch;
 import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOSequenceHeader;
 import com.od.jtimeseries.net.udp.message.properties.PropertiesMessageFactory;
 import com.od.jtimeseries.net.udp.message.utf8.AbstractUtf8Message;
 import com.od.jtimeseries.net.udp.message.utf8.Utf8MessageFactory;
+import com.od.jtimeseries.net.udp.message.utf8.Utf8SequenceField;
 import com.od.jtimeseries.source.Counter;
 import com.od.jtimeseries.source.ValueRecorder;
 import com.od.jtimeseries.source.impl.DefaultCounter;
@@ -35,14 +43,19 @@ import com.od.jtimeseries.util.logging.LimitedErrorLogger;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 
-import java.awt.*;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
-import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by IntelliJ IDEA.
@@ -50,6 +63,32 @@ import java.util.concurrent.Executor;
  * Date: 13-Jan-2009
  * Time: 11:12:18
  *
+ * Receives UdpMessage from datagrams and passes them to UdpMessageListener
+ *
+ * By default a single thread receives from a blocking DatagramSocket. If receiveThreads is set, datagrams are instead
+ * received from a non blocking DatagramChannel shared by that number of threads, each with its own Selector and
+ * direct receive buffer. The receive threads decode the datagrams, so decoding is spread across threads, and each
+ * thread passes the messages from all the datagrams it read on one wake up to the listeners as a single batch.
+ *
+ * Listeners are always called on a single thread. The receive threads hand batches to it through a queue which holds
+ * at most LISTENER_QUEUE_BATCHES, and wait when it is full, so a listener which cannot keep up stops the receiving,
+ * and datagrams then back up in the socket receive buffer rather than on the heap. With a single receive thread they see datagrams in the order they
+ * were received. With more than one, consecutive datagrams from the same source may be read by different threads, and
+ * a later batch may reach the listeners first, so values for a series can arrive out of timestamp order and become
+ * inserts. Use one receive thread unless the sources do not depend on ordering
+ *
+ * If a TimeSeriesValueListener is added, time series values in JavaIO datagrams are decoded by a JavaIOFlyweightDecoder
+ * and passed only to the TimeSeriesValueListener, as primitive values, rather than being passed as UdpMessage to the
+ * UdpMessageListener. Values in other encodings, and all other message types, are still passed to UdpMessageListener
+ *
+ * Dictionary encoded datagrams are decoded using the id to path mappings received from each source host and publisher
+ * session. Their values are passed to the TimeSeriesValueListener if one is added, otherwise to UdpMessageListener
+ *
+ * Datagrams received are replicated to any replication clients by a ReplicationDestination for each, which sends them
+ * on its own thread, so a slow or unreachable replica does not delay receiving
+ *
+ * JavaIO and UTF-8 datagrams may carry a publisher session id and sequence number. These are tracked for each source
+ * host and port to count datagrams lost, duplicated or reordered on the way to this server
  */
 public class UdpServer {
 
@@ -57,20 +96,33 @@ public class UdpServer {
 
     private static final int RESTART_WAIT = 600000; //10 mins
     private static final int DEFAULT_RECEIVE_BUFFER_SIZE = 524288;
+    private static final int SELECT_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_DATAGRAMS_PER_BATCH = 64;
+    private static final int MAX_POOLED_VALUE_BATCHES = 64;
+    private static final int DEFAULT_REPLICATION_QUEUE_DATAGRAMS = 1024;
+    static final int LISTENER_QUEUE_BATCHES = 16;
 
     private LimitedErrorLogger limitedLogger;
     private int port;
     private final List<UdpMessageListener> udpMessageListeners = Collections.synchronizedList(new ArrayList<UdpMessageListener>());
+    private final List<TimeSeriesValueListener> timeSeriesValueListeners = Collections.synchronizedList(new ArrayList<TimeSeriesValueListener>());
+    private final ConcurrentLinkedQueue<JavaIOValueBatch> valueBatchPool = new ConcurrentLinkedQueue<JavaIOValueBatch>();
 
-    private Executor udpMessageExecutor = NamedExecutors.newSingleThreadExecutor("UdpServer");
+    private Executor udpMessageExecutor = NamedExecutors.newBoundedSingleThreadExecutor("UdpServer", LISTENER_QUEUE_BATCHES);
     private Thread receiveThread;
     private volatile boolean stopping;
+    private int receiveThreads;
+    private DatagramChannel receiveChannel;
+    private final AtomicInteger activeChannelReceivers = new AtomicInteger();
 
     private UdpMessageFactory propertiesMessageFactory = new PropertiesMessageFactory();
     private UdpMessageFactory utf8MessageFactory = new Utf8MessageFactory();
     private UdpMessageFactory javaIOMessageFactory = new JavaIOMessageFactory();
+    private UdpMessageFactory dictionaryMessageFactory = new DictionaryMessageFactory();
+    private final SourceDictionaries sourceDictionaries = new SourceDictionaries();
 
-    private List<UdpClientWithSocket> replicationClientsWithSocket = new LinkedList<UdpClientWithSocket>();
+    private final List<ReplicationDestination> replicationDestinations = new ArrayList<ReplicationDestination>();
+    private final DatagramSequenceTracker sequenceTracker = new DatagramSequenceTracker();
 
     private Counter udpDatagramCounter = DefaultCounter.NULL_COUNTER;
     private ValueRecorder messagesPerDatagram = DefaultValueRecorder.NULL_VALUE_RECORDER;
@@ -86,27 +138,115 @@ public class UdpServer {
     }
 
     public UdpServer(int port, int receiveBufferSize, Collection<UdpClientConfig> replicationClients) {
+        this(port, receiveBufferSize, replicationClients, DEFAULT_REPLICATION_QUEUE_DATAGRAMS);
+    }
+
+    /**
+     * @param replicationQueueDatagrams, the number of datagrams which may wait to be sent to each replication client,
+     * before the oldest are dropped
+     */
+    public UdpServer(int port, int receiveBufferSize, Collection<UdpClientConfig> replicationClients, int replicationQueueDatagrams) {
         this.receiveBufferSize = receiveBufferSize;
         limitedLogger = new LimitedErrorLogger(logMethods, 10, 100);
         this.port = port;
-        createReplicationClients(replicationClients);
+        createReplicationDestinations(replicationClients, replicationQueueDatagrams);
     }
 
-    private void createReplicationClients(Collection<UdpClientConfig> replicationClients) {
+    private void createReplicationDestinations(Collection<UdpClientConfig> replicationClients, int replicationQueueDatagrams) {
         for ( UdpClientConfig c : replicationClients) {
-            replicationClientsWithSocket.add(new UdpClientWithSocket(c));
+            replicationDestinations.add(new ReplicationDestination(c, replicationQueueDatagrams));
         }
     }
 
+    /**
+     * @param receiveThreads, number of threads receiving from a DatagramChannel, or zero to receive on a single thread
+     * using a DatagramSocket. More than one thread does not preserve the order of datagrams from a source.
+     * Must be set before startReceive()
+     */
+    public void setReceiveThreads(int receiveThreads) {
+        this.receiveThreads = receiveThreads;
+    }
+
+    public int getReceiveThreads() {
+        return receiveThreads;
+    }
+
     public synchronized void startReceive() {
-        if ( receiveThread == null || ! receiveThread.isAlive()) {
+        for ( ReplicationDestination d : replicationDestinations) {
+            d.start();
+        }
+
+        if ( receiveThreads > 0 ) {
+            startChannelReceive();
+        } else if ( receiveThread == null || ! receiveThread.isAlive()) {
             receiveThread = new UdpReceiveThread();
             receiveThread.start();
         }
     }
 
+    private void startChannelReceive() {
+        if ( receiveChannel == null ) {
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setReceiveBufferSize(receiveBufferSize);
+                channel.socket().bind(new InetSocketAddress(port));
+                addShutdownHook(channel.socket());
+
+                receiveChannel = channel;
+                for ( int loop=0; loop < receiveThreads; loop++) {
+                    //register before starting so that a stop() cannot see zero active receivers while we are starting
+                    activeChannelReceivers.incrementAndGet();
+                    new ChannelReceiveThread(channel, Selector.open(), loop).start();
+                }
+            } catch (IOException e) {
+                limitedLogger.logError("Error creating UdpServer channel, will try again later", e);
+                closeChannel(channel);
+                receiveChannel = null;
+                scheduleRestart();
+            }
+        }
+    }
+
+    private synchronized void channelReceiveStopped(DatagramChannel channel) {
+        if ( activeChannelReceivers.decrementAndGet() == 0) {
+            closeChannel(channel);
+            receiveChannel = null;
+            stopping = false;
+        }
+    }
+
+    private void closeChannel(DatagramChannel channel) {
+        if ( channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logMethods.warn("Failed to close UdpServer channel", e);
+            }
+        }
+    }
+
+    private void scheduleRestart() {
+        Thread t = new Thread("JTimeSeriesUDPRestart") {
+            public void run() {
+                try {
+                    sleep(RESTART_WAIT);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                startReceive();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
     public synchronized void stop() {
         this.stopping = true;
+        for ( ReplicationDestination d : replicationDestinations) {
+            d.stop();
+        }
     }
 
     public void addUdpMessageListener(UdpMessageListener l) {
@@ -117,21 +257,172 @@ public class UdpServer {
         udpMessageListeners.remove(l);
     }
 
-    private void fireUdpMessageReceived(UdpMessage m) {
+    public void addTimeSeriesValueListener(TimeSeriesValueListener l) {
+        timeSeriesValueListeners.add(l);
+    }
+
+    public void removeTimeSeriesValueListener(TimeSeriesValueListener l) {
+        timeSeriesValueListeners.remove(l);
+    }
+
+    private void fireUdpMessagesReceived(List<UdpMessage> messages) {
             List<UdpMessageListener> snapshot;
             synchronized (udpMessageListeners) {
                 snapshot = new ArrayList<UdpMessageListener>(udpMessageListeners);
             }
 
-            for ( UdpMessageListener l : snapshot) {
-                l.udpMessageReceived(m);
+            for ( UdpMessage m : messages) {
+                for ( UdpMessageListener l : snapshot) {
+                    l.udpMessageReceived(m);
+                }
+            }
+    }
+
+    private void fireTimeSeriesValuesReceived(JavaIOValueBatch values) {
+            List<TimeSeriesValueListener> snapshot;
+            synchronized (timeSeriesValueListeners) {
+                snapshot = new ArrayList<TimeSeriesValueListener>(timeSeriesValueListeners);
+            }
+
+            for ( int index = 0; index < values.size(); index++) {
+                for ( TimeSeriesValueListener l : snapshot) {
+                    l.timeSeriesValueReceived(
+                        values.getSourceInetAddress(index),
+                        values.getSourceHostname(index),
+                        values.getPath(index),
+                        values.getTimestamp(index),
+                        values.getValue(index)
+                    );
+                }
+            }
+    }
+
+    //waits while LISTENER_QUEUE_BATCHES are queued for the listeners
+    private void fireMessagesToListeners(final List<UdpMessage> messages, final JavaIOValueBatch values) {
+        udpMessageExecutor.execute(
+            new Runnable() {
+                public void run() {
+                    try {
+                        fireUdpMessagesReceived(messages);
+                        fireTimeSeriesValuesReceived(values);
+                    } finally {
+                        releaseValueBatch(values);
+                    }
+                }
+            }
+        );
+    }
+
+    private JavaIOValueBatch acquireValueBatch() {
+        JavaIOValueBatch result = valueBatchPool.poll();
+        return result == null ? new JavaIOValueBatch() : result;
+    }
+
+    private void releaseValueBatch(JavaIOValueBatch b) {
+        b.clear();
+        if ( valueBatchPool.size() < MAX_POOLED_VALUE_BATCHES) {
+            valueBatchPool.offer(b);
+        }
+    }
+
+    /**
+     * Decode the messages in a datagram, adding them to messages or values, and replicate the datagram
+     */
+    private void processDatagram(byte[] buffer, int length, String sourceHostAddress, int sourcePort, Decoders decoders, List<UdpMessage> messages, JavaIOValueBatch values) throws IOException {
+        udpDatagramCounter.incrementCount();
+        UdpMessageFactory f = getMessageFactory(buffer);
+        trackSequence(f, buffer, length, sourceHostAddress, sourcePort);
+
+        if ( f == javaIOMessageFactory && timeSeriesValueListeners.size() > 0) {
+            messagesPerDatagram.newValue(decoders.javaIODecoder.decode(buffer, length, sourceHostAddress, values, messages));
+        } else if ( f == dictionaryMessageFactory) {
+            JavaIOValueBatch valueBatch = timeSeriesValueListeners.size() > 0 ? values : null;
+            messagesPerDatagram.newValue(decoders.dictionaryDecoder.decode(buffer, length, sourceHostAddress, valueBatch, messages));
+        } else {
+            List<UdpMessage> datagramMessages = f.deserializeFromDatagram(buffer, length);
+            messagesPerDatagram.newValue(datagramMessages.size());
+            //logMethods.logInfo("Received packet with " + messages.size() + " messages");
+            for (UdpMessage m : datagramMessages) {
+                m.setSourceInetAddress(sourceHostAddress);
             }
+            messages.addAll(datagramMessages);
+        }
+
+        sendForReplication(buffer, length);
+    }
+
+    private void trackSequence(UdpMessageFactory f, byte[] buffer, int length, String sourceHostAddress, int sourcePort) {
+        if ( f == javaIOMessageFactory) {
+            if ( JavaIOSequenceHeader.isPresent(buffer, length)) {
+                sequenceTracker.datagramReceived(
+                    sourceHostAddress,
+                    sourcePort,
+                    JavaIOSequenceHeader.readSessionId(buffer),
+                    JavaIOSequenceHeader.readSequence(buffer)
+                );
+            }
+        } else if ( f == utf8MessageFactory) {
+            int index = Utf8SequenceField.indexOf(buffer, length);
+            if ( index != -1) {
+                sequenceTracker.datagramReceived(
+                    sourceHostAddress,
+                    sourcePort,
+                    Utf8SequenceField.readSessionId(buffer, index, length),
+                    Utf8SequenceField.readSequence(buffer, index, length)
+                );
+            }
+        }
+    }
+
+    //now queue the packet to send to replication destinations, if configured
+    private void sendForReplication(byte[] buffer, int length) {
+        for (ReplicationDestination d : replicationDestinations) {
+            d.replicate(buffer, length);
+        }
+    }
+
+    /**
+     * @return a message factory based on the message encoding by analyzing the datagram header
+     */
+    private UdpMessageFactory getMessageFactory(byte[] buffer) {
+        //default to legacy properties message which did not have header bytes defined, if no other type found
+        UdpMessageFactory result = propertiesMessageFactory;
+        if ( startsWithBytes(buffer, AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER)) {
+            result = javaIOMessageFactory;
+        } else if ( startsWithBytes(buffer, AbstractDictionaryMessage.DICTIONARY_MESSAGE_HEADER)) {
+            result = dictionaryMessageFactory;
+        } else if (startsWithBytes(buffer, AbstractUtf8Message.UTF8_ENCODING_HEADER_CHARS)) {
+            result = utf8MessageFactory;
+        }
+        return result;
+    }
+
+    private boolean startsWithBytes(byte[] buffer, byte[] chars) {
+        boolean result = true;
+        for ( int loop=0; loop < chars.length; loop++) {
+            if ( buffer[loop] != chars[loop]) {
+                result = false;
+                break;
+            }
+        }
+        return result;
     }
 
     public int getPort() {
         return port;
     }
 
+    public List<ReplicationDestination> getReplicationDestinations() {
+        return Collections.unmodifiableList(replicationDestinations);
+    }
+
+    /**
+     * @return number of dictionary encoded values discarded because the mapping for their id had not been received
+     */
+    public long getUnresolvedDictionaryValueCount() {
+        return sourceDictionaries.getUnresolvedValueCount();
+    }
+
     public void setUdpDatagramsReceivedCounter(Counter udpDatagramCounter) {
         this.udpDatagramCounter = udpDatagramCounter;
     }
@@ -140,10 +431,51 @@ public class UdpServer {
         this.messagesPerDatagram = messagesPerDatagram;
     }
 
+    /**
+     * @return number of sequence numbered datagrams which were never received
+     */
+    public long getLostDatagramCount() {
+        return sequenceTracker.getLostCount();
+    }
+
+    /**
+     * @return number of sequence numbered datagrams received more than once
+     */
+    public long getDuplicatedDatagramCount() {
+        return sequenceTracker.getDuplicatedCount();
+    }
+
+    /**
+     * @return number of sequence numbered datagrams received after a datagram with a higher sequence from the same source
+     */
+    public long getReorderedDatagramCount() {
+        return sequenceTracker.getReorderedCount();
+    }
+
+    public void setDatagramsLostCounter(Counter datagramsLostCounter) {
+        sequenceTracker.setLostCounter(datagramsLostCounter);
+    }
+
+    public void setDatagramsDuplicatedCounter(Counter datagramsDuplicatedCounter) {
+        sequenceTracker.setDuplicatedCounter(datagramsDuplicatedCounter);
+    }
+
+    public void setDatagramsReorderedCounter(Counter datagramsReorderedCounter) {
+        sequenceTracker.setReorderedCounter(datagramsReorderedCounter);
+    }
+
     public static interface UdpMessageListener {
         void udpMessageReceived(UdpMessage m);
     }
 
+    /**
+     * Receives time series values without a UdpMessage or TimeSeriesItem being created for each value
+     * The strings are interned, so the same instance is passed for each value from a series
+     */
+    public static interface TimeSeriesValueListener {
+        void timeSeriesValueReceived(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value);
+    }
+
     public class UdpReceiveThread extends Thread {
 
         public UdpReceiveThread() {
@@ -165,22 +497,18 @@ public class UdpServer {
         }
 
         private void processMessages(byte[] buffer, DatagramSocket server) {
+            Decoders decoders = new Decoders();
             while (! stopping) {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 try {
                     server.receive(packet);
-                    udpDatagramCounter.incrementCount();
-                    UdpMessageFactory f = getMessageFactory(buffer);
-
-                    List<UdpMessage> messages = f.deserializeFromDatagram(buffer, packet.getLength());
-                    messagesPerDatagram.newValue(messages.size());
-                    //logMethods.logInfo("Received packet with " + messages.size() + " messages");
-                    for (UdpMessage m : messages) {
-                        m.setSourceInetAddress(packet.getAddress().getHostAddress());
-                        fireMessageToListeners(m);
+                    List<UdpMessage> messages = new ArrayList<UdpMessage>();
+                    JavaIOValueBatch values = acquireValueBatch();
+                    try {
+                        processDatagram(buffer, packet.getLength(), packet.getAddress().getHostAddress(), packet.getPort(), decoders, messages, values);
+                    } finally {
+                        fireMessagesToListeners(messages, values);
                     }
-
-                    sendForReplication(buffer, packet);
                 }
                 catch (Throwable t) {
                     if ( ! shuttingDown ) {
@@ -191,62 +519,98 @@ public class UdpServer {
             stopping = false;
         }
 
-        //now replicate the packet to replication destinations, if configured
-        private void sendForReplication(byte[] buffer, DatagramPacket packet) {
-            for (UdpClientWithSocket s : replicationClientsWithSocket) {
-                s.sendDatagram(buffer, packet.getLength());
-            }
-        }
-
-        /**
-         * @return a message factory based on the message encoding by analyzing the datagram header
-         */
-        private UdpMessageFactory getMessageFactory(byte[] buffer) {
-            //default to legacy properties message which did not have header bytes defined, if no other type found
-            UdpMessageFactory result = propertiesMessageFactory;
+        private void restartUdpReceive() {
             try {
-                if ( startsWithBytes(buffer, AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER)) {
-                    result = javaIOMessageFactory;
-                } else if (startsWithBytes(buffer, AbstractUtf8Message.UTF8_ENCODING_HEADER_CHARS)) {
-                    result = utf8MessageFactory;
-                }
-            } catch (UnsupportedEncodingException e) {
+                sleep(RESTART_WAIT);
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-            return result;
+            startReceive();
         }
+    }
 
-        private boolean startsWithBytes(byte[] buffer, byte[] chars) throws UnsupportedEncodingException {
-            boolean result = true;
-            for ( int loop=0; loop < chars.length; loop++) {
-                if ( buffer[loop] != chars[loop]) {
-                    result = false;
-                    break;
-                }
-            }
-            return result;
+    /**
+     * One of the threads receiving from a shared non blocking DatagramChannel
+     */
+    private class ChannelReceiveThread extends Thread {
+
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(NetworkUtils.MAX_ALLOWABLE_PACKET_SIZE_BYTES);
+        private final byte[] buffer = new byte[NetworkUtils.MAX_ALLOWABLE_PACKET_SIZE_BYTES];
+        private final Decoders decoders = new Decoders();
+
+        public ChannelReceiveThread(DatagramChannel channel, Selector selector, int index) {
+            this.channel = channel;
+            this.selector = selector;
+            setName("JTimeSeriesUDPChannelReceive-" + index);
+            setDaemon(true);
         }
 
-        private void fireMessageToListeners(final UdpMessage m) {
-            udpMessageExecutor.execute(
-                new Runnable() {
-                    public void run() {
-                        fireUdpMessageReceived(m);
+        public void run() {
+            try {
+                channel.register(selector, SelectionKey.OP_READ);
+                while (! stopping && channel.isOpen()) {
+                    try {
+                        selector.select(SELECT_TIMEOUT_MILLIS);
+                        selector.selectedKeys().clear();
+                        receiveBatch();
+                    } catch (Throwable t) {
+                        if ( ! shuttingDown ) {
+                            limitedLogger.logError("Error receiving UDP message", t);
+                        }
                     }
                 }
-            );
+            } catch (IOException e) {
+                limitedLogger.logError("Error registering UdpServer channel", e);
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logMethods.warn("Failed to close UdpServer selector", e);
+                }
+                channelReceiveStopped(channel);
+            }
         }
 
-        private void restartUdpReceive() {
-            try {
-                sleep(RESTART_WAIT);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        //read datagrams until none are waiting, or the batch is full, and pass all the messages to listeners together
+        private void receiveBatch() throws IOException {
+            List<UdpMessage> messages = new ArrayList<UdpMessage>();
+            JavaIOValueBatch values = acquireValueBatch();
+            for ( int datagrams = 0; datagrams < MAX_DATAGRAMS_PER_BATCH; datagrams++) {
+                receiveBuffer.clear();
+                InetSocketAddress source = (InetSocketAddress)channel.receive(receiveBuffer);
+                if ( source == null) {
+                    break; //another receive thread may have taken it
+                }
+                receiveBuffer.flip();
+                int length = receiveBuffer.remaining();
+                receiveBuffer.get(buffer, 0, length);
+                try {
+                    processDatagram(buffer, length, source.getAddress().getHostAddress(), source.getPort(), decoders, messages, values);
+                } catch (Throwable t) {
+                    //don't lose messages already decoded in this batch
+                    if ( ! shuttingDown ) {
+                        limitedLogger.logError("Error decoding UDP message", t);
+                    }
+                }
+            }
+            if ( messages.size() > 0 || values.size() > 0) {
+                fireMessagesToListeners(messages, values);
+            } else {
+                releaseValueBatch(values);
             }
-            startReceive();
         }
     }
 
+    /**
+     * The decoders used by one receive thread
+     */
+    private class Decoders {
+        private final JavaIOFlyweightDecoder javaIODecoder = new JavaIOFlyweightDecoder();
+        private final DictionaryDecoder dictionaryDecoder = new DictionaryDecoder(sourceDictionaries);
+    }
+
     private void addShutdownHook(final DatagramSocket server) {
         //getting errors in tests on win2007 if not explicitly closing socket
         Runtime.getRuntime().addShutdownHook(new Thread("Shutdown " + getClass().getSimpleName()) {
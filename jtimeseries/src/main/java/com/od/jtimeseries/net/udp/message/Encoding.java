@@ -10,5 +10,6 @@ package com.od.jtimeseries.net.udp.message;
 public enum Encoding {
     PROPERTIES_XML,
     JAVA_IO,
-    UTF8
+    UTF8,
+    DICTIONARY
 }
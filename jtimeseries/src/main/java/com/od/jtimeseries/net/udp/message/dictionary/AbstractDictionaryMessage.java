@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.Encoding;
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Dictionary encoded messages are sent as records, each starting with the two byte header, a type acronym, a version
+ * and the two byte session of the publishing DictionaryMessageFactory:
+ *
+ * A (mapping)      header, id, epoch, base timestamp, source hostname, path
+ * V (value)        header, id, epoch, timestamp - base timestamp, value
+ * D (description)  header, id, epoch, base timestamp, source hostname, path, description
+ *
+ * id and the timestamp delta are variable length, the delta zig zag encoded so small negative deltas are also short
+ */
+public abstract class AbstractDictionaryMessage implements UdpMessage {
+
+    public static final byte[] DICTIONARY_MESSAGE_HEADER = new byte[] { 'J', 'D' };
+    public static final int RECORD_HEADER_LENGTH = 6;
+
+    static final byte MAPPING_ACRONYM = 'A';
+    static final byte VALUE_ACRONYM = 'V';
+    static final byte DESCRIPTION_ACRONYM = 'D';
+    static final byte VERSION = '0';
+
+    private String sourceInetAddress;
+    private String sourceHostname;
+
+    protected AbstractDictionaryMessage(String sourceHostname) {
+        this.sourceHostname = sourceHostname;
+    }
+
+    public String getSourceInetAddress() {
+        return sourceInetAddress;
+    }
+
+    public void setSourceInetAddress(String sourceInetAddress) {
+        this.sourceInetAddress = sourceInetAddress;
+    }
+
+    public String getSourceHostname() {
+        return this.sourceHostname == null ? sourceInetAddress : sourceHostname;
+    }
+
+    public Encoding getEncoding() {
+        return Encoding.DICTIONARY;
+    }
+
+    public boolean isMessageStreamingSupported() {
+        return true;
+    }
+
+    /**
+     * Write the mapping of a path to its id, the fields shared by mapping and description records
+     */
+    protected void writeMapping(DataOutputStream d, byte acronym, DictionaryMapping m) throws IOException {
+        writeRecordHeader(d, acronym, m.getSession());
+        writeVarLong(d, m.getId());
+        d.writeByte(m.getEpoch());
+        d.writeLong(m.getBaseTimestamp());
+        d.writeUTF(getSourceHostname());
+        d.writeUTF(m.getPath());
+    }
+
+    protected void writeRecordHeader(DataOutputStream d, byte acronym, int session) throws IOException {
+        d.write(DICTIONARY_MESSAGE_HEADER);
+        d.writeByte(acronym);
+        d.writeByte(VERSION);
+        d.writeShort(session);
+    }
+
+    protected static void writeVarLong(DataOutputStream d, long value) throws IOException {
+        while ( (value & ~0x7fL) != 0) {
+            d.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        d.writeByte((int)value);
+    }
+
+    static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //source hostname and ip are not considered in equals comparison
+    //this would be unhelpful for testing, since only set on server side on receipt
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || ! (o instanceof UdpMessage)) return false;
+        return true;
+    }
+
+    public String toString() {
+        return "sourceInetAddress='" + getSourceInetAddress() + '\'' +
+                ", sourceHostname='" + getSourceHostname() + '\'';
+    }
+}
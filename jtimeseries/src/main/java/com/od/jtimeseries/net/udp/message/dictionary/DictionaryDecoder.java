@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOValueBatch;
+import com.od.jtimeseries.timeseries.Item;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes dictionary encoded datagrams, using the mappings received from the source host and session of each record
+ *
+ * Not thread safe, each receive thread should have its own decoder, sharing a SourceDictionaries
+ */
+public class DictionaryDecoder {
+
+    private final SourceDictionaries sourceDictionaries;
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    public DictionaryDecoder(SourceDictionaries sourceDictionaries) {
+        this.sourceDictionaries = sourceDictionaries;
+    }
+
+    /**
+     * Decode a datagram, adding values to valueBatch and descriptions to messages. If valueBatch is null values are
+     * also added to messages
+     *
+     * @return the number of records decoded
+     * @throws IOException if the datagram is not a valid dictionary encoded datagram, records decoded before the
+     * invalid record are still added
+     */
+    public int decode(byte[] buffer, int length, String sourceInetAddress, JavaIOValueBatch valueBatch, List<UdpMessage> messages) throws IOException {
+        this.buffer = buffer;
+        this.length = length;
+        this.offset = 0;
+        try {
+            int count = 0;
+            int session = -1;
+            SourceDictionaries.SourceDictionary dictionary = null;
+            while ( offset < length) {
+                checkAvailable(AbstractDictionaryMessage.RECORD_HEADER_LENGTH);
+                checkHeader();
+                byte acronym = buffer[offset + 2];
+                int recordSession = readUnsignedShort(offset + 4);
+                offset += AbstractDictionaryMessage.RECORD_HEADER_LENGTH;
+
+                //records in a datagram are usually all from one session
+                if ( recordSession != session) {
+                    dictionary = sourceDictionaries.getDictionary(sourceInetAddress, recordSession);
+                    session = recordSession;
+                }
+
+                switch (acronym) {
+                    case AbstractDictionaryMessage.VALUE_ACRONYM :
+                        decodeValue(dictionary, sourceInetAddress, valueBatch, messages);
+                        break;
+                    case AbstractDictionaryMessage.MAPPING_ACRONYM :
+                        decodeMapping(dictionary);
+                        break;
+                    case AbstractDictionaryMessage.DESCRIPTION_ACRONYM :
+                        decodeDescription(dictionary, sourceInetAddress, messages);
+                        break;
+                    default :
+                        throw new IOException("Unidentified dictionary record type with acronym " + acronym);
+                }
+                count++;
+            }
+            return count;
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    private void decodeValue(SourceDictionaries.SourceDictionary dictionary, String sourceInetAddress, JavaIOValueBatch valueBatch, List<UdpMessage> messages) throws IOException {
+        int id = readId();
+        checkAvailable(1);
+        int epoch = buffer[offset++] & 0xff;
+        long delta = AbstractDictionaryMessage.zigZagDecode(readVarLong());
+        checkAvailable(8);
+        double value = Double.longBitsToDouble(readLong());
+
+        SourceDictionaries.Mapping m = dictionary.getMapping(id);
+        if ( m == null || m.epoch != epoch) {
+            sourceDictionaries.valueUnresolved(sourceInetAddress, id);
+        } else if ( valueBatch != null) {
+            valueBatch.add(sourceInetAddress, m.sourceHostname, m.path, m.baseTimestamp + delta, value);
+        } else {
+            DictionaryTimeSeriesValueMessage message = new DictionaryTimeSeriesValueMessage(m.sourceHostname, m.path, new Item(m.baseTimestamp + delta, value));
+            message.setSourceInetAddress(sourceInetAddress);
+            messages.add(message);
+        }
+    }
+
+    private SourceDictionaries.Mapping decodeMapping(SourceDictionaries.SourceDictionary dictionary) throws IOException {
+        int id = readId();
+        checkAvailable(9);
+        int epoch = buffer[offset++] & 0xff;
+        long baseTimestamp = readLong();
+        String sourceHostname = readUTF().intern();
+        String path = readUTF().intern();
+        SourceDictionaries.Mapping m = new SourceDictionaries.Mapping(sourceHostname, path, epoch, baseTimestamp);
+        dictionary.putMapping(id, m);
+        return m;
+    }
+
+    private void decodeDescription(SourceDictionaries.SourceDictionary dictionary, String sourceInetAddress, List<UdpMessage> messages) throws IOException {
+        SourceDictionaries.Mapping m = decodeMapping(dictionary);
+        String description = readUTF();
+        DictionaryDescriptionMessage message = new DictionaryDescriptionMessage(m.sourceHostname, m.path, description);
+        message.setSourceInetAddress(sourceInetAddress);
+        messages.add(message);
+    }
+
+    private int readId() throws IOException {
+        long id = readVarLong();
+        if ( id < 0 || id > Integer.MAX_VALUE) {
+            throw new IOException("Invalid dictionary id " + id);
+        }
+        return (int)id;
+    }
+
+    private String readUTF() throws IOException {
+        checkAvailable(2);
+        int utfLength = readUnsignedShort(offset);
+        checkAvailable(2 + utfLength);
+        String result = DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(buffer, offset, 2 + utfLength)));
+        offset += 2 + utfLength;
+        return result;
+    }
+
+    private long readVarLong() throws IOException {
+        long result = 0;
+        for ( int shift = 0; shift < 64; shift += 7) {
+            checkAvailable(1);
+            byte b = buffer[offset++];
+            result |= (long)(b & 0x7f) << shift;
+            if ( (b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length value in dictionary record");
+    }
+
+    private long readLong() {
+        long result = 0;
+        for ( int loop=0; loop < 8; loop++) {
+            result = (result << 8) | (buffer[offset + loop] & 0xff);
+        }
+        offset += 8;
+        return result;
+    }
+
+    private int readUnsignedShort(int position) {
+        return ((buffer[position] & 0xff) << 8) | (buffer[position + 1] & 0xff);
+    }
+
+    private void checkHeader() throws IOException {
+        byte[] header = AbstractDictionaryMessage.DICTIONARY_MESSAGE_HEADER;
+        for ( int loop=0; loop < header.length; loop++) {
+            if ( buffer[offset + loop] != header[loop]) {
+                throw new IOException("Record does not start with DICTIONARY_MESSAGE_HEADER");
+            }
+        }
+    }
+
+    private void checkAvailable(int required) throws IOException {
+        if ( offset + required > length) {
+            throw new IOException("Truncated dictionary record, required " + required + " bytes at offset " + offset + " of " + length);
+        }
+    }
+}
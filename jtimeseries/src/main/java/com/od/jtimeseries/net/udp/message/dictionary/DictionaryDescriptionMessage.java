@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.MessageType;
+import com.od.jtimeseries.net.udp.message.SeriesDescriptionMessage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A series description, which also announces the mapping of the series path to its id
+ *
+ * Messages created by the receiver from a decoded description have no mapping, and cannot be serialized
+ */
+public class DictionaryDescriptionMessage extends AbstractDictionaryMessage implements SeriesDescriptionMessage {
+
+    private final String path;
+    private final String description;
+    private final DictionaryMapping mapping;
+
+    public DictionaryDescriptionMessage(String sourceHostname, String description, DictionaryMapping mapping) {
+        this(sourceHostname, mapping.getPath(), description, mapping);
+    }
+
+    /**
+     * Create a message for a description received and decoded
+     */
+    DictionaryDescriptionMessage(String sourceHostname, String path, String description) {
+        this(sourceHostname, path, description, null);
+    }
+
+    private DictionaryDescriptionMessage(String sourceHostname, String path, String description, DictionaryMapping mapping) {
+        super(sourceHostname);
+        this.path = path;
+        this.description = description;
+        this.mapping = mapping;
+    }
+
+    public MessageType getMessageType() {
+        return MessageType.SERIES_DESCRIPTION;
+    }
+
+    public String getSeriesDescription() {
+        return description;
+    }
+
+    public String getSeriesPath() {
+        return path;
+    }
+
+    public void serialize(OutputStream outputStream) throws IOException {
+        if ( mapping == null) {
+            throw new IOException("Cannot serialize a received " + getClass().getSimpleName() + ", it has no dictionary mapping");
+        }
+        DataOutputStream d = new DataOutputStream(outputStream);
+        writeMapping(d, DESCRIPTION_ACRONYM, mapping);
+        d.writeUTF(description);
+        d.flush();
+    }
+
+    public int getMaxExpectedSize() {
+        return 32 + 3 * (path.length() + description.length() + getSourceHostname().length());
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || ! ( o instanceof SeriesDescriptionMessage)) return false;
+        if (!super.equals(o)) return false;
+
+        SeriesDescriptionMessage that = (SeriesDescriptionMessage) o;
+
+        if (getSeriesDescription() != null ? !getSeriesDescription().equals(that.getSeriesDescription()) : that.getSeriesDescription() != null) return false;
+        if (getSeriesPath() != null ? !getSeriesPath().equals(that.getSeriesPath()) : that.getSeriesPath() != null) return false;
+
+        return true;
+    }
+
+    public int hashCode() {
+        int result = getSeriesDescription() != null ? getSeriesDescription().hashCode() : 0;
+        result = 31 * result + (getSeriesPath() != null ? getSeriesPath().hashCode() : 0);
+        return result;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "description='" + getSeriesDescription() + '\'' +
+                ", path='" + getSeriesPath() + '\'' +
+                ", mapping=" + mapping +
+                super.toString() +
+                "} ";
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+/**
+ * The id a DictionaryMessageFactory assigned to a path, and the base timestamp from which value timestamps are sent
+ * as deltas. The epoch changes whenever the base timestamp changes, so a receiver which missed the new mapping
+ * can tell its base timestamp is out of date
+ */
+public class DictionaryMapping {
+
+    private final int session;
+    private final String path;
+    private final int id;
+    private final int epoch;
+    private final long baseTimestamp;
+
+    public DictionaryMapping(int session, String path, int id, int epoch, long baseTimestamp) {
+        this.session = session;
+        this.path = path;
+        this.id = id;
+        this.epoch = epoch;
+        this.baseTimestamp = baseTimestamp;
+    }
+
+    public int getSession() {
+        return session;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public long getBaseTimestamp() {
+        return baseTimestamp;
+    }
+
+    public String toString() {
+        return "DictionaryMapping{" +
+            "session=" + session +
+            ", path='" + path + '\'' +
+            ", id=" + id +
+            ", epoch=" + epoch +
+            ", baseTimestamp=" + baseTimestamp +
+            '}';
+    }
+}
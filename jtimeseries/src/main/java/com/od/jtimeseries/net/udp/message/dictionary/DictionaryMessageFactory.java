@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.*;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.util.NetworkUtils;
+import com.od.jtimeseries.util.time.Time;
+import com.od.jtimeseries.util.time.TimePeriod;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends time series values using a small integer id in place of the series path, with the timestamp as a delta from a
+ * base timestamp, so many more values fit in a datagram than with the JavaIO encoding
+ *
+ * The factory assigns an id to each path the first time it creates a message for it, and the mapping is announced
+ * with the first value and re-announced with a value or description every reannouncePeriod, so a receiver which
+ * missed it or restarted will pick it up. Values which arrive before the receiver knows their mapping are discarded
+ *
+ * Each factory has a random session id which is sent with every record. A receiver keeps a dictionary for each source
+ * host and session, so publishers sharing a host, or replicated through one server, do not share ids
+ *
+ * Unlike the other factories this one holds state, a publisher should use one instance for all its messages.
+ * Server and client announcements are sent as JavaIO messages
+ */
+public class DictionaryMessageFactory implements UdpMessageFactory {
+
+    private static final TimePeriod DEFAULT_REANNOUNCE_PERIOD = Time.minutes(1);
+
+    //start a new base timestamp if a delta would be larger than this, keeping deltas to four bytes
+    private static final long MAX_TIMESTAMP_DELTA = 1L << 26;
+
+    private final int session = new Random().nextInt(0x10000);
+    private final ConcurrentHashMap<String, PathEntry> pathEntries = new ConcurrentHashMap<String, PathEntry>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final long reannounceMillis;
+    private final JavaIOMessageFactory javaIOMessageFactory = new JavaIOMessageFactory();
+    private DictionaryDecoder decoder;
+
+    public DictionaryMessageFactory() {
+        this(DEFAULT_REANNOUNCE_PERIOD);
+    }
+
+    public DictionaryMessageFactory(TimePeriod reannouncePeriod) {
+        this.reannounceMillis = reannouncePeriod.getLengthInMillis();
+    }
+
+    public TimeSeriesValueMessage createTimeSeriesValueMessage(String path, TimeSeriesItem timeSeriesItem) {
+        PathEntry e = getPathEntry(path, timeSeriesItem.getTimestamp());
+        synchronized (e) {
+            long delta = timeSeriesItem.getTimestamp() - e.baseTimestamp;
+            boolean rebase = delta > MAX_TIMESTAMP_DELTA || delta < -MAX_TIMESTAMP_DELTA;
+            if ( rebase ) {
+                e.epoch = (e.epoch + 1) & 0xff;
+                e.baseTimestamp = timeSeriesItem.getTimestamp();
+            }
+            boolean announce = rebase || isReannounceDue(e);
+            return new DictionaryTimeSeriesValueMessage(
+                NetworkUtils.getLocalHostname(),
+                timeSeriesItem,
+                e.createMapping(path),
+                announce
+            );
+        }
+    }
+
+    public SeriesDescriptionMessage createTimeSeriesDescriptionMessage(String path, String description) {
+        PathEntry e = getPathEntry(path, System.currentTimeMillis());
+        synchronized (e) {
+            e.lastAnnounceTime = System.currentTimeMillis();
+            return new DictionaryDescriptionMessage(NetworkUtils.getLocalHostname(), description, e.createMapping(path));
+        }
+    }
+
+    public HttpServerAnnouncementMessage createHttpServerAnnouncementMessage(int httpdPort, String serverName) {
+        return javaIOMessageFactory.createHttpServerAnnouncementMessage(httpdPort, serverName);
+    }
+
+    public ClientAnnouncementMessage createClientAnnouncementMessage(int port, String description) {
+        return javaIOMessageFactory.createClientAnnouncementMessage(port, description);
+    }
+
+    /**
+     * Decode a datagram using a dictionary held by this factory for all sources, UdpServer instead uses a
+     * DictionaryDecoder with a dictionary for each source
+     */
+    public synchronized List<UdpMessage> deserializeFromDatagram(byte[] buffer, int length) throws IOException {
+        if ( decoder == null) {
+            decoder = new DictionaryDecoder(new SourceDictionaries());
+        }
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        decoder.decode(buffer, length, "", null, messages);
+        return messages;
+    }
+
+    private boolean isReannounceDue(PathEntry e) {
+        long time = System.currentTimeMillis();
+        boolean result = time - e.lastAnnounceTime >= reannounceMillis;
+        if ( result ) {
+            e.lastAnnounceTime = time;
+        }
+        return result;
+    }
+
+    private PathEntry getPathEntry(String path, long baseTimestamp) {
+        PathEntry e = pathEntries.get(path);
+        if ( e == null) {
+            e = new PathEntry(nextId.getAndIncrement(), baseTimestamp);
+            PathEntry existing = pathEntries.putIfAbsent(path, e);
+            if ( existing != null) {
+                e = existing; //the id we took is not used, that is harmless
+            }
+        }
+        return e;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + System.identityHashCode(this);
+    }
+
+    private class PathEntry {
+        private final int id;
+        private int epoch;
+        private long baseTimestamp;
+        private long lastAnnounceTime = Long.MIN_VALUE / 2; //announce at first use
+
+        PathEntry(int id, long baseTimestamp) {
+            this.id = id;
+            this.baseTimestamp = baseTimestamp;
+        }
+
+        DictionaryMapping createMapping(String path) {
+            return new DictionaryMapping(session, path, id, epoch, baseTimestamp);
+        }
+    }
+}
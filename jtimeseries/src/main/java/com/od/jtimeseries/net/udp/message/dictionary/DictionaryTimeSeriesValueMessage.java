@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.MessageType;
+import com.od.jtimeseries.net.udp.message.TimeSeriesValueMessage;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A value sent as the id of its path. If the mapping of the path to its id needs to be announced, a mapping record
+ * is written before the value record
+ *
+ * Messages created by the receiver from a decoded value have no mapping, and cannot be serialized
+ */
+public class DictionaryTimeSeriesValueMessage extends AbstractDictionaryMessage implements TimeSeriesValueMessage {
+
+    private final String path;
+    private final TimeSeriesItem item;
+    private final DictionaryMapping mapping;
+    private final boolean announceMapping;
+
+    /**
+     * @param announceMapping, true to write the mapping of the path to its id before the value
+     */
+    public DictionaryTimeSeriesValueMessage(String sourceHostname, TimeSeriesItem item, DictionaryMapping mapping, boolean announceMapping) {
+        this(sourceHostname, mapping.getPath(), item, mapping, announceMapping);
+    }
+
+    /**
+     * Create a message for a value received and decoded
+     */
+    DictionaryTimeSeriesValueMessage(String sourceHostname, String path, TimeSeriesItem item) {
+        this(sourceHostname, path, item, null, false);
+    }
+
+    private DictionaryTimeSeriesValueMessage(String sourceHostname, String path, TimeSeriesItem item, DictionaryMapping mapping, boolean announceMapping) {
+        super(sourceHostname);
+        this.path = path;
+        this.item = item;
+        this.mapping = mapping;
+        this.announceMapping = announceMapping;
+    }
+
+    public MessageType getMessageType() {
+        return MessageType.TS_VALUE;
+    }
+
+    public String getSeriesPath() {
+        return path;
+    }
+
+    @Deprecated //send in a description message
+    public String getDescription() {
+        return null;
+    }
+
+    public TimeSeriesItem getTimeSeriesItem() {
+        return item;
+    }
+
+    public boolean isAnnounceMapping() {
+        return announceMapping;
+    }
+
+    public void serialize(OutputStream outputStream) throws IOException {
+        if ( mapping == null) {
+            throw new IOException("Cannot serialize a received " + getClass().getSimpleName() + ", it has no dictionary mapping");
+        }
+        DataOutputStream d = new DataOutputStream(outputStream);
+        if ( announceMapping) {
+            writeMapping(d, MAPPING_ACRONYM, mapping);
+        }
+        writeRecordHeader(d, VALUE_ACRONYM, mapping.getSession());
+        writeVarLong(d, mapping.getId());
+        d.writeByte(mapping.getEpoch());
+        writeVarLong(d, zigZagEncode(item.getTimestamp() - mapping.getBaseTimestamp()));
+        d.writeDouble(item.getValue().doubleValue());
+        d.flush();
+    }
+
+    public int getMaxExpectedSize() {
+        int size = 32;
+        if ( announceMapping) {
+            size += 32 + 3 * (path.length() + getSourceHostname().length());
+        }
+        return size;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || ! ( o instanceof TimeSeriesValueMessage)) return false;
+        if (!super.equals(o)) return false;
+
+        TimeSeriesValueMessage that = (TimeSeriesValueMessage) o;
+
+        if (getTimeSeriesItem() != null ? !getTimeSeriesItem().equals(that.getTimeSeriesItem()) : that.getTimeSeriesItem() != null) return false;
+        if (getSeriesPath() != null ? !getSeriesPath().equals(that.getSeriesPath()) : that.getSeriesPath() != null) return false;
+
+        return true;
+    }
+
+    public int hashCode() {
+        int result = getSeriesPath() != null ? getSeriesPath().hashCode() : 0;
+        result = 31 * result + (getTimeSeriesItem() != null ? getTimeSeriesItem().hashCode() : 0);
+        return result;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "path='" + getSeriesPath() + '\'' +
+                ", item=" + getTimeSeriesItem() +
+                ", mapping=" + mapping +
+                super.toString() +
+                "} ";
+    }
+}
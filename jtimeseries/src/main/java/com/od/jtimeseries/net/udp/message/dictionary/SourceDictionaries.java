@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.util.logging.LimitedErrorLogger;
+import com.od.jtimeseries.util.logging.LogMethods;
+import com.od.jtimeseries.util.logging.LogUtils;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The mappings of ids to paths received from each source host and publisher session
+ *
+ * Shared by the DictionaryDecoder of each receive thread, since datagrams from one source may be received by any
+ * of them. Looking up a mapping does not lock
+ */
+public class SourceDictionaries {
+
+    private static final LogMethods logMethods = LogUtils.getLogMethods(SourceDictionaries.class);
+
+    private static final int MAX_SOURCES = 4096;
+    private static final int MAX_ID = 1 << 20;
+
+    private final LimitedErrorLogger limitedLogger = new LimitedErrorLogger(logMethods, 10, 100);
+    private final ConcurrentHashMap<String, SourceDictionary> dictionaries = new ConcurrentHashMap<String, SourceDictionary>();
+    private final AtomicLong unresolvedValueCount = new AtomicLong();
+
+    public SourceDictionary getDictionary(String sourceInetAddress, int session) {
+        String key = sourceInetAddress + "/" + session;
+        SourceDictionary result = dictionaries.get(key);
+        if ( result == null) {
+            //sources which stopped publishing are only removed when there are too many
+            if ( dictionaries.size() >= MAX_SOURCES) {
+                dictionaries.clear();
+            }
+            result = new SourceDictionary();
+            SourceDictionary existing = dictionaries.putIfAbsent(key, result);
+            if ( existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called when a value is received for an id whose mapping is not known, or whose base timestamp has changed
+     */
+    void valueUnresolved(String sourceInetAddress, int id) {
+        unresolvedValueCount.incrementAndGet();
+        limitedLogger.logError("Discarding dictionary encoded value from " + sourceInetAddress + " for id " + id +
+            ", the mapping for this id has not been received yet");
+    }
+
+    /**
+     * @return number of values discarded since their mapping was not known
+     */
+    public long getUnresolvedValueCount() {
+        return unresolvedValueCount.get();
+    }
+
+    public static class SourceDictionary {
+
+        private volatile AtomicReferenceArray<Mapping> mappings = new AtomicReferenceArray<Mapping>(64);
+
+        Mapping getMapping(int id) {
+            AtomicReferenceArray<Mapping> m = mappings;
+            return id < m.length() ? m.get(id) : null;
+        }
+
+        //mappings are only put when announced, so lock to keep it simple
+        synchronized void putMapping(int id, Mapping mapping) throws IOException {
+            if ( id >= MAX_ID) {
+                throw new IOException("Dictionary id " + id + " is greater than the maximum " + MAX_ID);
+            }
+            AtomicReferenceArray<Mapping> m = mappings;
+            if ( id >= m.length()) {
+                int newLength = m.length();
+                while ( newLength <= id) {
+                    newLength *= 2;
+                }
+                AtomicReferenceArray<Mapping> newMappings = new AtomicReferenceArray<Mapping>(newLength);
+                for ( int loop=0; loop < m.length(); loop++) {
+                    newMappings.set(loop, m.get(loop));
+                }
+                m = newMappings;
+                mappings = newMappings;
+            }
+            m.set(id, mapping);
+        }
+    }
+
+    static class Mapping {
+        final String sourceHostname;
+        final String path;
+        final int epoch;
+        final long baseTimestamp;
+
+        Mapping(String sourceHostname, String path, int epoch, long baseTimestamp) {
+            this.sourceHostname = sourceHostname;
+            this.path = path;
+            this.epoch = epoch;
+            this.baseTimestamp = baseTimestamp;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.javaio;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes JavaIO datagrams directly from the receive buffer, without the DataInputStream, Strings, TimeSeriesItem and
+ * message instances which JavaIOMessageFactory creates for each value message
+ *
+ * Time series value messages are added to a JavaIOValueBatch, with the source hostname and path resolved to interned
+ * strings by a JavaIOPathTable. Other message types are comparatively rare, these are deserialized to UdpMessage
+ * in the usual way
+ *
+ * Not thread safe, each receive thread should have its own decoder
+ */
+public class JavaIOFlyweightDecoder {
+
+    private final JavaIOPathTable pathTable = new JavaIOPathTable();
+
+    /**
+     * Decode a datagram, adding time series values to valueBatch and any other messages to messages
+     *
+     * @return the number of messages decoded
+     * @throws IOException if the datagram is not a valid JavaIO datagram, messages decoded before the invalid message
+     * are still added
+     */
+    public int decode(byte[] buffer, int length, String sourceInetAddress, JavaIOValueBatch valueBatch, List<UdpMessage> messages) throws IOException {
+        int count = 0;
+        int offset = 0;
+        while ( offset < length) {
+            checkAvailable(offset, 5, length);
+            checkHeader(buffer, offset);
+            byte acronym = buffer[offset + 3];
+            char version = (char)buffer[offset + 4];
+            offset += 5;
+            if ( acronym == JavaIOSequenceHeader.ACRONYM) {
+                checkAvailable(offset, JavaIOSequenceHeader.BODY_LENGTH, length);
+                offset += JavaIOSequenceHeader.BODY_LENGTH;  //read by the server before decoding, not a message
+                continue;
+            } else if ( acronym == 'V') {
+                offset = decodeValue(buffer, offset, length, sourceInetAddress, valueBatch);
+            } else {
+                offset = decodeMessage(buffer, offset, length, acronym, version, sourceInetAddress, messages);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private int decodeValue(byte[] buffer, int offset, int length, String sourceInetAddress, JavaIOValueBatch valueBatch) throws IOException {
+        checkAvailable(offset, 2, length);
+        int hostnameLength = readUnsignedShort(buffer, offset);
+        checkAvailable(offset, 2 + hostnameLength + 2, length);
+        String sourceHostname = pathTable.resolve(buffer, offset, hostnameLength);
+        offset += 2 + hostnameLength;
+
+        int pathLength = readUnsignedShort(buffer, offset);
+        checkAvailable(offset, 2 + pathLength + 16, length);
+        String path = pathTable.resolve(buffer, offset, pathLength);
+        offset += 2 + pathLength;
+
+        long timestamp = readLong(buffer, offset);
+        double value = Double.longBitsToDouble(readLong(buffer, offset + 8));
+        valueBatch.add(sourceInetAddress, sourceHostname, path, timestamp, value);
+        return offset + 16;
+    }
+
+    private int decodeMessage(byte[] buffer, int offset, int length, byte acronym, char version, String sourceInetAddress, List<UdpMessage> messages) throws IOException {
+        AbstractJavaIOMessage message = JavaIOMessageFactory.createMessage(acronym);
+        ByteArrayInputStream bis = new ByteArrayInputStream(buffer, offset, length - offset);
+        message.deserialize(new DataInputStream(bis), version);
+        message.setSourceInetAddress(sourceInetAddress);
+        messages.add(message);
+        return length - bis.available();
+    }
+
+    private void checkHeader(byte[] buffer, int offset) throws IOException {
+        byte[] header = AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER;
+        for ( int loop=0; loop < header.length; loop++) {
+            if ( buffer[offset + loop] != header[loop]) {
+                throw new IOException("Message does not start with JAVA_IO_MESSAGE_HEADER");
+            }
+        }
+    }
+
+    private void checkAvailable(int offset, int required, int length) throws IOException {
+        if ( offset + required > length) {
+            throw new IOException("Truncated JavaIO message, required " + required + " bytes at offset " + offset + " of " + length);
+        }
+    }
+
+    private int readUnsignedShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+    }
+
+    private long readLong(byte[] buffer, int offset) {
+        long result = 0;
+        for ( int loop=0; loop < 8; loop++) {
+            result = (result << 8) | (buffer[offset + loop] & 0xff);
+        }
+        return result;
+    }
+}
@@ -46,29 +46,48 @@ public class JavaIOMessageFactory implements UdpMessageFactory {
             //the first byte is a ASCII character which indicates message type
             //the second is a ASCII number which may in the future be used to indicate version
 
-            AbstractJavaIOMessage message;
-            switch(messageAcronym[0]) {
-                case 'V' :
-                    message = new JavaIOTimeSeriesValueMessage();
-                    break;
-                case 'S' :
-                    message = new JavaIOHttpServerAnnouncementMessage();
-                    break;
-                case 'C' :
-                    message = new JavaIOClientAnnouncementMessage();
-                    break;
-                case 'D' :
-                    message  = new JavaIODescriptionMessage();
-                    break;
-                default :
-                    throw new IOException("Unidentified Java IO Message type with acronym " + messageAcronym);
+            if ( messageAcronym[0] == JavaIOSequenceHeader.ACRONYM) {
+                skipSequenceHeader(is);
+                continue;
             }
+
+            AbstractJavaIOMessage message = createMessage(messageAcronym[0]);
             message.deserialize(is, (char) messageAcronym[1]);
             messages.add(message);
         }
         return messages;
     }
 
+    private void skipSequenceHeader(DataInputStream is) throws IOException {
+        if ( is.skipBytes(JavaIOSequenceHeader.BODY_LENGTH) < JavaIOSequenceHeader.BODY_LENGTH) {
+            throw new IOException("Truncated JavaIO sequence header");
+        }
+    }
+
+    /**
+     * @return a message instance to deserialize, for the message type indicated by the first acronym byte
+     */
+    static AbstractJavaIOMessage createMessage(byte acronym) throws IOException {
+        AbstractJavaIOMessage message;
+        switch(acronym) {
+            case 'V' :
+                message = new JavaIOTimeSeriesValueMessage();
+                break;
+            case 'S' :
+                message = new JavaIOHttpServerAnnouncementMessage();
+                break;
+            case 'C' :
+                message = new JavaIOClientAnnouncementMessage();
+                break;
+            case 'D' :
+                message  = new JavaIODescriptionMessage();
+                break;
+            default :
+                throw new IOException("Unidentified Java IO Message type with acronym " + acronym);
+        }
+        return message;
+    }
+
     public ClientAnnouncementMessage createClientAnnouncementMessage(int port, String description) {
         return new JavaIOClientAnnouncementMessage(NetworkUtils.getLocalHostname(), port, description);
     }
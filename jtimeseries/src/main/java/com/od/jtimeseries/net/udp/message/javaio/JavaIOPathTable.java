@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.javaio;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Resolves strings written with DataOutput.writeUTF to interned String instances, by looking up the encoded bytes, so
+ * that a String is only created the first time a path or hostname is seen
+ *
+ * Open addressing on the hash of the encoded bytes. When the table is full it is cleared, rather than tracking which
+ * entries are least used, since the number of distinct paths sent to a server is normally much smaller than the table
+ *
+ * Not thread safe, each receive thread has its own table
+ */
+class JavaIOPathTable {
+
+    private static final int DEFAULT_MAX_ENTRIES = 65536;
+
+    private final int maxEntries;
+    private final byte[][] keys;
+    private final String[] values;
+    private final int[] hashes;
+    private final int mask;
+    private int size;
+
+    JavaIOPathTable() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    JavaIOPathTable(int maxEntries) {
+        int tableSize = 1;
+        while ( tableSize < maxEntries * 2) {
+            tableSize <<= 1;
+        }
+        this.maxEntries = maxEntries;
+        this.keys = new byte[tableSize][];
+        this.values = new String[tableSize];
+        this.hashes = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * @param lengthOffset, offset of the two byte length which precedes the encoded string
+     * @return the interned string written at lengthOffset
+     */
+    String resolve(byte[] buffer, int lengthOffset, int length) throws IOException {
+        int start = lengthOffset + 2;
+        int hash = hash(buffer, start, length);
+        int index = hash & mask;
+        byte[] key;
+        while ( (key = keys[index]) != null) {
+            if ( hashes[index] == hash && matches(key, buffer, start, length)) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        if ( size == maxEntries) {
+            clear();
+            index = hash & mask;
+        }
+
+        //decode with readUTF, which handles the modified UTF-8 encoding, only the first time we see these bytes
+        String value = new DataInputStream(new ByteArrayInputStream(buffer, lengthOffset, length + 2)).readUTF().intern();
+        key = new byte[length];
+        System.arraycopy(buffer, start, key, 0, length);
+        keys[index] = key;
+        values[index] = value;
+        hashes[index] = hash;
+        size++;
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void clear() {
+        for ( int loop=0; loop < keys.length; loop++) {
+            keys[loop] = null;
+            values[loop] = null;
+        }
+        size = 0;
+    }
+
+    private static boolean matches(byte[] key, byte[] buffer, int start, int length) {
+        if ( key.length != length) {
+            return false;
+        }
+        for ( int loop=0; loop < length; loop++) {
+            if ( key[loop] != buffer[start + loop]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int start, int length) {
+        int h = 1;
+        for ( int loop=start; loop < start + length; loop++) {
+            h = 31 * h + buffer[loop];
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.javaio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An optional record at the start of a JavaIO datagram, carrying a publisher session id and the sequence number of the
+ * datagram within that session, so that a server can count datagrams which were lost, duplicated or reordered
+ *
+ * The record has the usual JavaIO message header and acronym 'N', followed by the session id as an int and the
+ * sequence as a long. It is not a UdpMessage, decoders skip it. Servers from before the record was added reject
+ * datagrams which contain it, so publishers only write it when configured to
+ */
+public class JavaIOSequenceHeader {
+
+    public static final byte ACRONYM = 'N';
+    public static final int LENGTH = AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER.length + 2 + 12;
+
+    //length of the session id and sequence which follow the message header and acronym
+    static final int BODY_LENGTH = 12;
+
+    private JavaIOSequenceHeader() {}
+
+    public static void write(OutputStream outputStream, int sessionId, long sequence) throws IOException {
+        byte[] record = new byte[LENGTH];
+        byte[] header = AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER;
+        System.arraycopy(header, 0, record, 0, header.length);
+        record[header.length] = ACRONYM;
+        record[header.length + 1] = '0';
+        writeBytes(record, header.length + 2, sessionId, 4);
+        writeBytes(record, header.length + 6, sequence, 8);
+        outputStream.write(record);
+    }
+
+    /**
+     * @return true if the datagram in buffer starts with a sequence record
+     */
+    public static boolean isPresent(byte[] buffer, int length) {
+        byte[] header = AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER;
+        boolean result = length >= LENGTH && buffer[header.length] == ACRONYM;
+        for ( int loop=0; loop < header.length && result; loop++) {
+            result = buffer[loop] == header[loop];
+        }
+        return result;
+    }
+
+    public static int readSessionId(byte[] buffer) {
+        return (int)readBytes(buffer, AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER.length + 2, 4);
+    }
+
+    public static long readSequence(byte[] buffer) {
+        return readBytes(buffer, AbstractJavaIOMessage.JAVA_IO_MESSAGE_HEADER.length + 6, 8);
+    }
+
+    private static void writeBytes(byte[] buffer, int offset, long value, int byteCount) {
+        for ( int loop=byteCount - 1; loop >= 0; loop--) {
+            buffer[offset + loop] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readBytes(byte[] buffer, int offset, int byteCount) {
+        long result = 0;
+        for ( int loop=0; loop < byteCount; loop++) {
+            result = (result << 8) | (buffer[offset + loop] & 0xff);
+        }
+        return result;
+    }
+}
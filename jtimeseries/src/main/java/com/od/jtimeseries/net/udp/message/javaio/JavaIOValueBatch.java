@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.javaio;
+
+/**
+ * Values decoded from JavaIO time series value messages, held in arrays so that no object is created per value
+ *
+ * A batch is filled by a receive thread and read by the thread which calls the listeners, it can then be cleared and
+ * reused. The strings are interned instances from a JavaIOPathTable
+ */
+public class JavaIOValueBatch {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private String[] sourceInetAddresses = new String[INITIAL_CAPACITY];
+    private String[] sourceHostnames = new String[INITIAL_CAPACITY];
+    private String[] paths = new String[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int size;
+
+    public void add(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+        if ( size == paths.length) {
+            grow();
+        }
+        sourceInetAddresses[size] = sourceInetAddress;
+        sourceHostnames[size] = sourceHostname;
+        paths[size] = path;
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getSourceInetAddress(int index) {
+        return sourceInetAddresses[index];
+    }
+
+    public String getSourceHostname(int index) {
+        return sourceHostnames[index];
+    }
+
+    public String getPath(int index) {
+        return paths[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public void clear() {
+        //the strings are interned so holding on to them does not retain much, but the source address strings are not
+        for ( int loop=0; loop < size; loop++) {
+            sourceInetAddresses[loop] = null;
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        int newCapacity = paths.length * 2;
+        sourceInetAddresses = copyOf(sourceInetAddresses, newCapacity);
+        sourceHostnames = copyOf(sourceHostnames, newCapacity);
+        paths = copyOf(paths, newCapacity);
+
+        long[] newTimestamps = new long[newCapacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+
+        double[] newValues = new double[newCapacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+    }
+
+    private String[] copyOf(String[] s, int newCapacity) {
+        String[] result = new String[newCapacity];
+        System.arraycopy(s, 0, result, 0, size);
+        return result;
+    }
+}
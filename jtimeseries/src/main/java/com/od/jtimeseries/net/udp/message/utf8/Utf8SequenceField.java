@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.utf8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An optional field in a UTF-8 datagram, carrying a publisher session id and the sequence number of the datagram within
+ * that session, so that a server can count datagrams which were lost, duplicated or reordered
+ *
+ * SEQUENCE=${sessionId}:${sequence}
+ *
+ * Publishers append the field after the message, since only the ENCODING and MSGTYPE lines must come first. Message
+ * classes ignore fields they do not recognise, so the field is harmless to servers which do not read it
+ */
+public class Utf8SequenceField {
+
+    public static final String SEQUENCE_FIELD_KEY = "SEQUENCE";
+
+    private static final byte[] FIELD_PREFIX = (SEQUENCE_FIELD_KEY + "=").getBytes();
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    private Utf8SequenceField() {}
+
+    public static void write(OutputStream outputStream, int sessionId, long sequence) throws IOException {
+        String field = SEQUENCE_FIELD_KEY + "=" + sessionId + ":" + sequence + NEW_LINE;
+        outputStream.write(field.getBytes(AbstractUtf8Message.UTF8_ENCODING));
+    }
+
+    /**
+     * Find the sequence field in a datagram
+     *
+     * @return the index of the session id in buffer, or -1 if the datagram has no valid sequence field
+     */
+    public static int indexOf(byte[] buffer, int length) {
+        int result = -1;
+        for ( int index = 0; index <= length - FIELD_PREFIX.length; index++) {
+            if ( (index == 0 || buffer[index - 1] == '\n') && startsWithPrefix(buffer, index)) {
+                int valueIndex = index + FIELD_PREFIX.length;
+                int colonIndex = indexOfColon(buffer, valueIndex, length);
+                if ( colonIndex > valueIndex && colonIndex + 1 < length && isDigit(buffer[colonIndex + 1])) {
+                    result = valueIndex;
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param index, as returned by indexOf
+     */
+    public static int readSessionId(byte[] buffer, int index, int length) {
+        return (int)readNumber(buffer, index, length);
+    }
+
+    /**
+     * @param index, as returned by indexOf
+     */
+    public static long readSequence(byte[] buffer, int index, int length) {
+        return readNumber(buffer, indexOfColon(buffer, index, length) + 1, length);
+    }
+
+    private static boolean startsWithPrefix(byte[] buffer, int index) {
+        boolean result = true;
+        for ( int loop=0; loop < FIELD_PREFIX.length && result; loop++) {
+            result = buffer[index + loop] == FIELD_PREFIX[loop];
+        }
+        return result;
+    }
+
+    private static int indexOfColon(byte[] buffer, int index, int length) {
+        int result = -1;
+        for ( int loop=index; loop < length && buffer[loop] != '\n'; loop++) {
+            if ( buffer[loop] == ':') {
+                result = loop;
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static long readNumber(byte[] buffer, int index, int length) {
+        boolean negative = index < length && buffer[index] == '-';
+        if ( negative ) {
+            index++;
+        }
+        long result = 0;
+        while ( index < length && isDigit(buffer[index])) {
+            result = result * 10 + (buffer[index] - '0');
+            index++;
+        }
+        return negative ? -result : result;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries;
+
+import java.util.List;
+
+/**
+ * A TimeSeries which also maintains rolled up tiers of its items at coarser resolutions, so that long time ranges
+ * can be read without reading every item
+ *
+ * The items of a rolled up tier are RollupItem, one per period, timestamped at the start of the period
+ */
+public interface MultiResolutionTimeSeries extends TimeSeries {
+
+    /**
+     * @return the period in milliseconds of each rolled up tier, finest first
+     */
+    long[] getResolutions();
+
+    /**
+     * @return the timestamp of the earliest item in the coarsest tier, which covers the longest time, or -1 if there
+     * are no rolled up items. This is read from the tier without reading its items
+     */
+    long getEarliestRollupTimestamp();
+
+    /**
+     * Read items from the coarsest tier with a period no greater than resolution, or the raw items if there is no
+     * such tier
+     *
+     * @param resolution, the largest interval between points in milliseconds which the caller can accept
+     */
+    List<TimeSeriesItem> getItemsInRange(long startTime, long endTime, long resolution);
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries;
+
+import com.od.jtimeseries.util.numeric.DoubleNumeric;
+import com.od.jtimeseries.util.numeric.LongNumeric;
+import com.od.jtimeseries.util.numeric.Numeric;
+
+/**
+ * A TimeSeriesItem summarising the items in a period of time, the timestamp is the start of the period
+ *
+ * The first value is the mean, so the RollupItem can be used anywhere an Item can, followed by the minimum, maximum
+ * and count of the items
+ */
+public class RollupItem implements TimeSeriesItem {
+
+    public static final int MEAN_INDEX = 0;
+    public static final int MIN_INDEX = 1;
+    public static final int MAX_INDEX = 2;
+    public static final int COUNT_INDEX = 3;
+
+    private final long timestamp;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final long count;
+
+    public RollupItem(long timestamp, double min, double max, double sum, long count) {
+        this.timestamp = timestamp;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Numeric getValue() {
+        return DoubleNumeric.valueOf(getMean());
+    }
+
+    public double doubleValue() {
+        return getMean();
+    }
+
+    public long longValue() {
+        return (long)getMean();
+    }
+
+    public int getValueCount() {
+        return 4;
+    }
+
+    public Numeric getValue(int valueIndex) {
+        Numeric result = null;
+        switch (valueIndex) {
+            case MEAN_INDEX :
+                result = getValue();
+                break;
+            case MIN_INDEX :
+                result = DoubleNumeric.valueOf(min);
+                break;
+            case MAX_INDEX :
+                result = DoubleNumeric.valueOf(max);
+                break;
+            case COUNT_INDEX :
+                result = LongNumeric.valueOf(count);
+                break;
+        }
+        return result;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RollupItem that = (RollupItem) o;
+        return timestamp == that.timestamp && count == that.count &&
+            Double.compare(that.min, min) == 0 &&
+            Double.compare(that.max, max) == 0 &&
+            Double.compare(that.sum, sum) == 0;
+    }
+
+    public int hashCode() {
+        int result = (int) (timestamp ^ (timestamp >>> 32));
+        long temp = Double.doubleToLongBits(sum);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = 31 * result + (int) (count ^ (count >>> 32));
+        return result;
+    }
+
+    public String toString() {
+        return "RollupItem timestamp: " + timestamp + " mean:" + getMean() + " min:" + min + " max:" + max + " count:" + count;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.downsample;
+
+/**
+ * How Downsampler reduces a series to a maximum number of points
+ *
+ * lttb - Largest-Triangle-Three-Buckets, one item from each bucket, the one which best keeps the shape of the line
+ * minMax - the items with the lowest and highest values in each bucket, so peaks and troughs are never lost
+ * mean - one RollupItem per bucket, with the mean as its value along with the min, max and count
+ */
+public enum DownsampleMode {
+
+    lttb,
+    minMax,
+    mean;
+
+    /**
+     * @return the mode with this name, ignoring case, or null if there is no such mode
+     */
+    public static DownsampleMode getMode(String name) {
+        DownsampleMode result = null;
+        for ( DownsampleMode m : values()) {
+            if ( m.name().equalsIgnoreCase(name)) {
+                result = m;
+                break;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.downsample;
+
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reduces a range of items, such as the List from getItemsInRange, to at most maxPoints items, so that a client
+ * charting a long series at a few hundred pixels wide need not receive or draw every item
+ *
+ * The items are divided into buckets of equal count and read in a single pass, in timestamp order. Only the items
+ * of the current bucket (and for lttb, the following bucket) are held while they are read, alongside the result.
+ * Items are returned unchanged if there are no more than maxPoints
+ *
+ * NaN values are ignored when choosing or combining items, unless a bucket holds only NaN, in which case its first
+ * item is kept so that the gap still shows
+ */
+public class Downsampler {
+
+    public static final int MIN_POINTS = 3;
+
+    public static List<TimeSeriesItem> downsample(Collection<TimeSeriesItem> items, int maxPoints, DownsampleMode mode) {
+        if ( maxPoints < MIN_POINTS) {
+            throw new IllegalArgumentException("maxPoints must be at least " + MIN_POINTS + ", was " + maxPoints);
+        }
+
+        List<TimeSeriesItem> result;
+        if ( items.size() <= maxPoints) {
+            result = new ArrayList<TimeSeriesItem>(items);
+        } else {
+            switch (mode) {
+                case minMax :
+                    result = minMax(items, maxPoints / 2);
+                    break;
+                case mean :
+                    result = mean(items, maxPoints);
+                    break;
+                default :
+                    result = largestTriangleThreeBuckets(items, maxPoints);
+            }
+        }
+        return result;
+    }
+
+    private static int getBucket(int index, int itemCount, int bucketCount) {
+        return (int)((long)index * bucketCount / itemCount);
+    }
+
+    /**
+     * The first and last items are kept, the others are divided into maxPoints - 2 buckets. From each bucket we keep
+     * the item forming the largest triangle with the item kept from the previous bucket and the average of the next,
+     * so a bucket is chosen from once the following bucket has been read
+     */
+    private static List<TimeSeriesItem> largestTriangleThreeBuckets(Collection<TimeSeriesItem> items, int maxPoints) {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>(maxPoints);
+        int innerCount = items.size() - 2;
+        int bucketCount = maxPoints - 2;
+        List<TimeSeriesItem> candidates = new ArrayList<TimeSeriesItem>();
+        List<TimeSeriesItem> following = new ArrayList<TimeSeriesItem>();
+        int followingBucket = 0;
+
+        int index = 0;
+        for ( TimeSeriesItem i : items) {
+            if ( index == 0) {
+                result.add(i);
+            } else if ( index <= innerCount) {
+                int bucket = getBucket(index - 1, innerCount, bucketCount);
+                if ( bucket != followingBucket) {
+                    if ( candidates.size() > 0) {
+                        result.add(getLargestTriangle(result.get(result.size() - 1), candidates, following));
+                    }
+                    List<TimeSeriesItem> emptied = candidates;
+                    candidates = following;
+                    following = emptied;
+                    following.clear();
+                    followingBucket = bucket;
+                }
+                following.add(i);
+            } else {
+                if ( candidates.size() > 0) {
+                    result.add(getLargestTriangle(result.get(result.size() - 1), candidates, following));
+                }
+                //the last item is the third point for the last bucket
+                List<TimeSeriesItem> last = new ArrayList<TimeSeriesItem>(1);
+                last.add(i);
+                result.add(getLargestTriangle(result.get(result.size() - 1), following, last));
+                result.add(i);
+            }
+            index++;
+        }
+        return result;
+    }
+
+    private static TimeSeriesItem getLargestTriangle(TimeSeriesItem a, List<TimeSeriesItem> candidates, List<TimeSeriesItem> nextBucket) {
+        //timestamps relative to a, to keep precision as doubles
+        long origin = a.getTimestamp();
+        double timeSum = 0;
+        double valueSum = 0;
+        int valueCount = 0;
+        for ( TimeSeriesItem i : nextBucket) {
+            timeSum += i.getTimestamp() - origin;
+            if ( ! Double.isNaN(i.doubleValue())) {
+                valueSum += i.doubleValue();
+                valueCount++;
+            }
+        }
+        double cx = timeSum / nextBucket.size();
+        double cy = valueCount == 0 ? Double.NaN : valueSum / valueCount;
+        double ay = a.doubleValue();
+
+        TimeSeriesItem result = candidates.get(0);
+        double largestArea = -1;
+        for ( TimeSeriesItem b : candidates) {
+            double by = b.doubleValue();
+            if ( ! Double.isNaN(by)) {
+                double bx = b.getTimestamp() - origin;
+                double area = Math.abs(bx * (cy - ay) - cx * (by - ay));  //twice the area, which is enough to compare
+                if ( Double.isNaN(area)) {
+                    area = 0;
+                }
+                if ( area > largestArea) {
+                    largestArea = area;
+                    result = b;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<TimeSeriesItem> minMax(Collection<TimeSeriesItem> items, int bucketCount) {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>(bucketCount * 2);
+        int itemCount = items.size();
+        int currentBucket = 0;
+        TimeSeriesItem first = null;
+        TimeSeriesItem min = null;
+        TimeSeriesItem max = null;
+
+        int index = 0;
+        for ( TimeSeriesItem i : items) {
+            int bucket = getBucket(index, itemCount, bucketCount);
+            if ( bucket != currentBucket) {
+                addMinMax(result, first, min, max);
+                first = min = max = null;
+                currentBucket = bucket;
+            }
+
+            if ( first == null) {
+                first = i;
+            }
+            double value = i.doubleValue();
+            if ( ! Double.isNaN(value)) {
+                if ( min == null || value < min.doubleValue()) {
+                    min = i;
+                }
+                if ( max == null || value > max.doubleValue()) {
+                    max = i;
+                }
+            }
+            index++;
+        }
+        addMinMax(result, first, min, max);
+        return result;
+    }
+
+    private static void addMinMax(List<TimeSeriesItem> result, TimeSeriesItem first, TimeSeriesItem min, TimeSeriesItem max) {
+        if ( min == null) {
+            result.add(first);
+        } else if ( min == max) {
+            result.add(min);
+        } else if ( min.getTimestamp() <= max.getTimestamp()) {
+            result.add(min);
+            result.add(max);
+        } else {
+            result.add(max);
+            result.add(min);
+        }
+    }
+
+    /**
+     * Each bucket becomes a RollupItem at the timestamp of its first item. Items which are already rolled up are
+     * combined using their min, max, sum and count, so the mean is weighted correctly
+     */
+    private static List<TimeSeriesItem> mean(Collection<TimeSeriesItem> items, int bucketCount) {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>(bucketCount);
+        int itemCount = items.size();
+        int currentBucket = 0;
+        long timestamp = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        double sum = 0;
+        long count = 0;
+
+        int index = 0;
+        for ( TimeSeriesItem i : items) {
+            int bucket = getBucket(index, itemCount, bucketCount);
+            if ( bucket != currentBucket) {
+                result.add(new RollupItem(timestamp, min, max, sum, count));
+                min = max = Double.NaN;
+                sum = 0;
+                count = 0;
+                currentBucket = bucket;
+                timestamp = i.getTimestamp();
+            } else if ( index == 0) {
+                timestamp = i.getTimestamp();
+            }
+
+            if ( i instanceof RollupItem) {
+                RollupItem r = (RollupItem) i;
+                if ( r.getCount() > 0) {
+                    min = count == 0 ? r.getMin() : Math.min(min, r.getMin());
+                    max = count == 0 ? r.getMax() : Math.max(max, r.getMax());
+                    sum += r.getSum();
+                    count += r.getCount();
+                }
+            } else {
+                double value = i.doubleValue();
+                if ( ! Double.isNaN(value)) {
+                    min = count == 0 ? value : Math.min(min, value);
+                    max = count == 0 ? value : Math.max(max, value);
+                    sum += value;
+                    count++;
+                }
+            }
+            index++;
+        }
+        result.add(new RollupItem(timestamp, min, max, sum, count));
+        return result;
+    }
+}
@@ -35,12 +35,15 @@ import java.util.concurrent.Executor;
  *
  * Abstract superclass for IndexedTimeSeries based around an array datastructure
  * Provides a mechanism to queue up change events and notify listeners in a separate thread
+ *
+ * The items are held in an ItemDeque, the SeriesStorage determines whether this holds TimeSeriesItem instances
+ * or primitive timestamps and values
  */
 abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implements IndexedTimeSeries {
 
     private static final LogMethods logMethods = LogUtils.getLogMethods(AbstractIndexedTimeSeries.class);
     
-    private final RandomAccessDeque<TimeSeriesItem> series;
+    private final ItemDeque series;
     private final TimeSeriesListenerSupport timeSeriesListenerSupport = new TimeSeriesListenerSupport();
 
     private long modCountOnLastHashcode = -1;
@@ -50,11 +53,43 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
     private boolean listenerAdded;
 
     protected AbstractIndexedTimeSeries() {
-        series =new RandomAccessDeque<TimeSeriesItem>();
+        this(SeriesStorage.OBJECTS);
     }
 
     protected AbstractIndexedTimeSeries(Collection<TimeSeriesItem> items) {
-        series = new RandomAccessDeque<TimeSeriesItem>(items);
+        this(items, SeriesStorage.OBJECTS);
+    }
+
+    protected AbstractIndexedTimeSeries(SeriesStorage storage) {
+        series = storage.createItemDeque();
+    }
+
+    protected AbstractIndexedTimeSeries(Collection<TimeSeriesItem> items, SeriesStorage storage) {
+        series = storage.createItemDeque(items);
+    }
+
+    /**
+     * @return the timestamp of the item at index, without creating a TimeSeriesItem if the storage is columnar
+     */
+    public long getTimestamp(int index) {
+        try {
+            this.readLock().lock();
+            return series.getTimestamp(index);
+        } finally {
+            this.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the value of the item at index as a double, without creating a TimeSeriesItem if the storage is columnar
+     */
+    public double getDoubleValue(int index) {
+        try {
+            this.readLock().lock();
+            return series.getDoubleValue(index);
+        } finally {
+            this.readLock().unlock();
+        }
     }
 
     protected TimeSeriesItem locked_getLatestItem() {
@@ -66,11 +101,11 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
     }
 
     protected long locked_getEarliestTimestamp() {
-        return size() == 0 ? -1 : getEarliestItem().getTimestamp();
+        return series.size() == 0 ? -1 : series.getTimestamp(0);
     }
 
     protected long locked_getLatestTimestamp() {
-        return size() == 0 ? -1 : getLatestItem().getTimestamp();
+        return series.size() == 0 ? -1 : series.getTimestamp(series.size() - 1);
     }
 
     protected int locked_size() {
@@ -96,13 +131,18 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
     }
 
     protected void removeEarliestItems(int itemsToRemove) {
-        List<TimeSeriesItem> removed = new ArrayList<TimeSeriesItem>(itemsToRemove);
-        for ( int loop=0; loop < itemsToRemove; loop++) {
-            if ( series.size() > 0) {
-                removed.add(series.removeFirst());
+        if ( listenerAdded ) {
+            List<TimeSeriesItem> removed = new ArrayList<TimeSeriesItem>(itemsToRemove);
+            for ( int loop=0; loop < itemsToRemove; loop++) {
+                if ( series.size() > 0) {
+                    removed.add(series.removeFirst());
+                }
             }
+            queueItemsRemovedEvent(TimeSeriesEvent.createItemsRemovedEvent(this, removed, getModCount()));
+        } else {
+            //nobody to tell, so no need to create the removed items
+            series.discardFirst(Math.min(itemsToRemove, series.size()));
         }
-        queueItemsRemovedEvent(TimeSeriesEvent.createItemsRemovedEvent(this, removed, getModCount()));
     }
 
     protected void locked_removeAll(Iterable<TimeSeriesItem> items) {
@@ -119,22 +159,15 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
 
     private boolean doRemove(TimeSeriesItem o) {
         boolean result = false;
-        if ( size() > 0) {
-            int firstPossibleIndex = SeriesUtils.getIndexOfFirstItemAtOrAfter(o.getTimestamp(), this);
-            if ( firstPossibleIndex > -1 ) {
-                int index = firstPossibleIndex;
-                TimeSeriesItem i = series.get(index);
-                //only worth comparing while timestamp is the same
-                while ( i.getTimestamp() == o.getTimestamp()) {
-                    if (o.equals(i)) {
-                        series.remove(index);
-                        result = true;
-                        break;
-                    }
-                    index++;
-                    i = series.get(index);
-                }
+        //only worth comparing while timestamp is the same
+        int index = getIndexOfFirstTimestampAtOrAfter(o.getTimestamp());
+        while ( index < series.size() && series.getTimestamp(index) == o.getTimestamp()) {
+            if ( series.isItemAt(index, o)) {
+                series.remove(index);
+                result = true;
+                break;
             }
+            index++;
         }
         return result;
     }
@@ -159,13 +192,13 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
 
     private boolean doAddItem(TimeSeriesItem timeSeriesItem) {
         boolean isAppend;
-        if ( size() == 0 || timeSeriesItem.getTimestamp() >= getLatestTimestamp()) {
+        if ( series.size() == 0 || timeSeriesItem.getTimestamp() >= locked_getLatestTimestamp()) {
             series.add(timeSeriesItem);
             isAppend = true;
         } else {
             //if there are already items with this timestamp, add to appear after those items
             //this will mean that this item is the last one before any item at timestamp + 1
-            int indexToAdd = SeriesUtils.getIndexOfFirstItemAtOrAfter(timeSeriesItem.getTimestamp() + 1, this);
+            int indexToAdd = getIndexOfFirstTimestampAfter(timeSeriesItem.getTimestamp());
             series.add(indexToAdd, timeSeriesItem);
             isAppend = false;
         }
@@ -193,15 +226,42 @@ abstract class AbstractIndexedTimeSeries extends AbstractLockedTimeSeries implem
     }
 
     protected TimeSeriesItem locked_getFirstItemAtOrBefore(long timestamp) {
-        return SeriesUtils.getFirstItemAtOrBefore(timestamp, this);
+        int index = getIndexOfFirstTimestampAfter(timestamp) - 1;
+        return index > -1 ? series.get(index) : null;
     }
 
     protected TimeSeriesItem locked_getFirstItemAtOrAfter(long timestamp) {
-        return SeriesUtils.getFirstItemAtOrAfter(timestamp, this);
+        int index = getIndexOfFirstTimestampAtOrAfter(timestamp);
+        return index < series.size() ? series.get(index) : null;
     }
 
     protected List<TimeSeriesItem> locked_getItemsInRange(long startTime, long endTime) {
-        return SeriesUtils.getItemsInRange(startTime, endTime, this);
+        int startIndex = getIndexOfFirstTimestampAtOrAfter(startTime);
+        int endIndex = getIndexOfFirstTimestampAfter(endTime);
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>(Math.max(0, endIndex - startIndex));
+        for ( int loop=startIndex; loop < endIndex; loop++) {
+            result.add(series.get(loop));
+        }
+        return result;
+    }
+
+    //binary search on the stored timestamps, returns size() if there is no such item
+    private int getIndexOfFirstTimestampAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = series.size();
+        while ( low < high) {
+            int mid = (low + high) >>> 1;
+            if ( series.getTimestamp(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int getIndexOfFirstTimestampAfter(long timestamp) {
+        return timestamp == Long.MAX_VALUE ? series.size() : getIndexOfFirstTimestampAtOrAfter(timestamp + 1);
     }
 
     protected void locked_addTimeSeriesListener(final TimeSeriesListener l) {
@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.impl;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * An ItemDeque which stores timestamps and values in two primitive ring buffers rather than holding TimeSeriesItem
+ * references. This takes 16 bytes per item, rather than an Item and a Numeric instance, and leaves nothing
+ * for the garbage collector to trace. Items are created when they are requested
+ *
+ * Only the first value of each item is stored, as a double, so items read back are always Item with a DoubleNumeric
+ * value. Long values with a magnitude greater than 2^53 cannot be held exactly as a double, and are rounded to the
+ * nearest double. Two items are considered to match on removal if their timestamps and double values are equal.
+ *
+ * The buffers may be allocated outside the heap as direct buffers, in which case they are released when the
+ * deque is garbage collected
+ */
+class ColumnarItemDeque extends AbstractCollection<TimeSeriesItem> implements ItemDeque, RandomAccess {
+
+    private static final int MIN_INITIAL_CAPACITY = 8;
+
+    private final boolean direct;
+    private LongBuffer timestamps;
+    private DoubleBuffer values;
+    private int capacity;  //always a power of two
+    private int head;
+    private int size;
+    private volatile int modCount;
+
+    ColumnarItemDeque(boolean direct) {
+        this(MIN_INITIAL_CAPACITY, direct);
+    }
+
+    ColumnarItemDeque(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        allocate(getCapacityFor(initialCapacity));
+    }
+
+    ColumnarItemDeque(Collection<? extends TimeSeriesItem> c, boolean direct) {
+        this(c.size(), direct);
+        addAll(c);
+    }
+
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return timestamps.get(getArrayIndex(index));
+    }
+
+    public double getDoubleValue(int index) {
+        checkIndex(index);
+        return values.get(getArrayIndex(index));
+    }
+
+    public TimeSeriesItem get(int index) {
+        checkIndex(index);
+        int i = getArrayIndex(index);
+        return new Item(timestamps.get(i), values.get(i));
+    }
+
+    public boolean isItemAt(int index, TimeSeriesItem item) {
+        return getTimestamp(index) == item.getTimestamp() &&
+                Double.compare(getDoubleValue(index), item.doubleValue()) == 0;
+    }
+
+    public TimeSeriesItem getFirst() {
+        if ( size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(0);
+    }
+
+    public TimeSeriesItem getLast() {
+        if ( size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(size - 1);
+    }
+
+    public boolean add(TimeSeriesItem item) {
+        ensureCapacity(size + 1);
+        put(size, item.getTimestamp(), item.doubleValue());
+        size++;
+        modCount++;
+        return true;
+    }
+
+    public void add(int index, TimeSeriesItem item) {
+        if ( index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds, current size " + size);
+        }
+        ensureCapacity(size + 1);
+        if ( index == 0) {
+            head = (head - 1) & (capacity - 1);
+        } else {
+            //move the later items forward by one slot
+            for ( int loop=size; loop > index; loop--) {
+                int from = getArrayIndex(loop - 1);
+                put(loop, timestamps.get(from), values.get(from));
+            }
+        }
+        put(index, item.getTimestamp(), item.doubleValue());
+        size++;
+        modCount++;
+    }
+
+    public TimeSeriesItem removeFirst() {
+        TimeSeriesItem result = getFirst();
+        head = (head + 1) & (capacity - 1);
+        size--;
+        modCount++;
+        return result;
+    }
+
+    public void discardFirst(int count) {
+        if ( count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("Cannot remove " + count + " items, current size " + size);
+        }
+        head = (head + count) & (capacity - 1);
+        size -= count;
+        modCount++;
+    }
+
+    public TimeSeriesItem remove(int index) {
+        TimeSeriesItem result = get(index);
+        for ( int loop=index + 1; loop < size; loop++) {
+            int from = getArrayIndex(loop);
+            put(loop - 1, timestamps.get(from), values.get(from));
+        }
+        size--;
+        modCount++;
+        return result;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getModCount() {
+        return modCount;
+    }
+
+    public Iterator<TimeSeriesItem> iterator() {
+        return new ColumnarIterator();
+    }
+
+    private void put(int index, long timestamp, double value) {
+        int i = getArrayIndex(index);
+        timestamps.put(i, timestamp);
+        values.put(i, value);
+    }
+
+    private int getArrayIndex(int index) {
+        //same as (head + index) % capacity since capacity is a power of 2
+        return (head + index) & (capacity - 1);
+    }
+
+    private void checkIndex(int index) {
+        if ( index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("ColumnarItemDeque get index " + index + " out of range");
+        }
+    }
+
+    private void ensureCapacity(int requiredSize) {
+        if ( requiredSize > capacity) {
+            LongBuffer oldTimestamps = timestamps;
+            DoubleBuffer oldValues = values;
+            int oldCapacity = capacity;
+            allocate(getCapacityFor(requiredSize));
+            for ( int loop=0; loop < size; loop++) {
+                int i = (head + loop) & (oldCapacity - 1);
+                timestamps.put(loop, oldTimestamps.get(i));
+                values.put(loop, oldValues.get(i));
+            }
+            head = 0;
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        if ( direct) {
+            timestamps = ByteBuffer.allocateDirect(newCapacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            values = ByteBuffer.allocateDirect(newCapacity * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        } else {
+            timestamps = LongBuffer.wrap(new long[newCapacity]);
+            values = DoubleBuffer.wrap(new double[newCapacity]);
+        }
+    }
+
+    private static int getCapacityFor(int requiredSize) {
+        int result = MIN_INITIAL_CAPACITY;
+        while ( result < requiredSize) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private class ColumnarIterator implements Iterator<TimeSeriesItem> {
+
+        private int index;
+        private final long expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        public TimeSeriesItem next() {
+            if ( modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if ( index >= size) {
+                throw new NoSuchElementException();
+            }
+            return get(index++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("ColumnarItemDeque iterator does not support removal");
+        }
+    }
+}
@@ -44,6 +44,14 @@ public class DefaultTimeSeries extends AbstractIndexedTimeSeries {
         super(items);
     }
 
+    public DefaultTimeSeries(SeriesStorage storage) {
+        super(storage);
+    }
+
+    public DefaultTimeSeries(Collection<TimeSeriesItem> items, SeriesStorage storage) {
+        super(items, storage);
+    }
+
      public DefaultTimeSeries(TimeSeries series) {
         super(series.getSnapshot());
     }
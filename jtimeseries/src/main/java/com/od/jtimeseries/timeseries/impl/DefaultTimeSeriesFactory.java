@@ -31,14 +31,32 @@ import com.od.jtimeseries.timeseries.TimeSeriesFactory;
  */
 public class DefaultTimeSeriesFactory extends IdentifiableBase implements TimeSeriesFactory {
 
+    private volatile SeriesStorage seriesStorage = SeriesStorage.OBJECTS;
+
     public DefaultTimeSeriesFactory() {
         super(ID, ID);
         setDescription(getClass().getName());
     }
 
+    public DefaultTimeSeriesFactory(SeriesStorage seriesStorage) {
+        this();
+        this.seriesStorage = seriesStorage;
+    }
+
+    /**
+     * Set how the series created by this factory hold their items in memory
+     */
+    public void setSeriesStorage(SeriesStorage seriesStorage) {
+        this.seriesStorage = seriesStorage;
+    }
+
+    public SeriesStorage getSeriesStorage() {
+        return seriesStorage;
+    }
+
     public IdentifiableTimeSeries createTimeSeries(Identifiable parent, String path, String id, String description, Class classType, Object... parameters) {
         if ( classType.isAssignableFrom(DefaultIdentifiableTimeSeries.class)) {
-            return new DefaultIdentifiableTimeSeries(id, description);
+            return new DefaultIdentifiableTimeSeries(id, description, new DefaultTimeSeries(seriesStorage));
         }
         throw new UnsupportedOperationException("Cannot create time series of class " + classType);
     }
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.impl;
+
+import com.od.jtimeseries.timeseries.ModCount;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.util.Collection;
+
+/**
+ * The storage for the items of an AbstractIndexedTimeSeries, items are held in timestamp order and accessed by index
+ *
+ * As well as access to the items, timestamps and values can be read by index, which for columnar storage
+ * avoids creating a TimeSeriesItem
+ */
+interface ItemDeque extends Collection<TimeSeriesItem>, ModCount {
+
+    TimeSeriesItem get(int index);
+
+    TimeSeriesItem getFirst();
+
+    TimeSeriesItem getLast();
+
+    TimeSeriesItem removeFirst();
+
+    /**
+     * Remove the first count items
+     */
+    void discardFirst(int count);
+
+    TimeSeriesItem remove(int index);
+
+    void add(int index, TimeSeriesItem item);
+
+    long getTimestamp(int index);
+
+    double getDoubleValue(int index);
+
+    /**
+     * @return true if the item at index is equal to item
+     */
+    boolean isItemAt(int index, TimeSeriesItem item);
+}
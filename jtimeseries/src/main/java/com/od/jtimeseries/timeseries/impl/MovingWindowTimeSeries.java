@@ -209,6 +209,37 @@ public class MovingWindowTimeSeries extends AbstractIndexedTimeSeries {
         return size() == 0 ? null : wrappedTimeSeries.getItem(endIndex);
     }
 
+    //the superclass searches its own storage for the following, but our items are held in the wrapped series
+    //so we search the visible window instead
+
+    protected long locked_getEarliestTimestamp() {
+        return size() == 0 ? -1 : getEarliestItem().getTimestamp();
+    }
+
+    protected long locked_getLatestTimestamp() {
+        return size() == 0 ? -1 : getLatestItem().getTimestamp();
+    }
+
+    protected TimeSeriesItem locked_getFirstItemAtOrBefore(long timestamp) {
+        return SeriesUtils.getFirstItemAtOrBefore(timestamp, this);
+    }
+
+    protected TimeSeriesItem locked_getFirstItemAtOrAfter(long timestamp) {
+        return SeriesUtils.getFirstItemAtOrAfter(timestamp, this);
+    }
+
+    protected List<TimeSeriesItem> locked_getItemsInRange(long startTime, long endTime) {
+        return SeriesUtils.getItemsInRange(startTime, endTime, this);
+    }
+
+    public long getTimestamp(int index) {
+        return getItem(index).getTimestamp();
+    }
+
+    public double getDoubleValue(int index) {
+        return getItem(index).doubleValue();
+    }
+
     public void locked_addTimeSeriesListener(TimeSeriesListener l) {
         //we manage our own listeners and events, don't delegate this
         //to the wrapped series
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.impl;
+
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.util.Collection;
+
+/**
+ * An ItemDeque which holds references to the TimeSeriesItem which were added
+ */
+class ObjectItemDeque extends RandomAccessDeque<TimeSeriesItem> implements ItemDeque {
+
+    private static final long serialVersionUID = 6041237935581716420L;
+
+    ObjectItemDeque() {
+    }
+
+    ObjectItemDeque(Collection<? extends TimeSeriesItem> c) {
+        super(c);
+    }
+
+    public void discardFirst(int count) {
+        for ( int loop=0; loop < count; loop++) {
+            removeFirst();
+        }
+    }
+
+    public long getTimestamp(int index) {
+        return get(index).getTimestamp();
+    }
+
+    public double getDoubleValue(int index) {
+        return get(index).doubleValue();
+    }
+
+    public boolean isItemAt(int index, TimeSeriesItem item) {
+        return item.equals(get(index));
+    }
+}
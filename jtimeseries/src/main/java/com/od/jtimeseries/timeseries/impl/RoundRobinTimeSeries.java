@@ -34,6 +34,8 @@ import java.util.Collection;
  *
  * When the maximum size is reached, subsequent additions will cause the earliest
  * items to drop off.
+ *
+ * Series created without a SeriesStorage hold their items as OBJECTS
  */
 public class RoundRobinTimeSeries extends DefaultTimeSeries {
 
@@ -43,11 +45,20 @@ public class RoundRobinTimeSeries extends DefaultTimeSeries {
     private int maxSize;
 
     public RoundRobinTimeSeries(int maxSize) {
+        this(maxSize, SeriesStorage.OBJECTS);
+    }
+
+    public RoundRobinTimeSeries(int maxSize, SeriesStorage storage) {
+        super(storage);
         this.maxSize = maxSize;
     }
 
     public RoundRobinTimeSeries(Collection<TimeSeriesItem> items, int maxSize) {
-        super(items);
+        this(items, maxSize, SeriesStorage.OBJECTS);
+    }
+
+    public RoundRobinTimeSeries(Collection<TimeSeriesItem> items, int maxSize, SeriesStorage storage) {
+        super(items, storage);
         this.maxSize = maxSize;
         checkSize();
     }
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.impl;
+
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+
+import java.util.Collection;
+
+/**
+ * The way in which DefaultTimeSeries and RoundRobinTimeSeries hold their items in memory
+ */
+public enum SeriesStorage {
+
+    /**
+     * Hold the TimeSeriesItem instances added to the series
+     */
+    OBJECTS,
+
+    /**
+     * Hold timestamps and values in primitive arrays, creating TimeSeriesItem only when they are read
+     * Only the first value of each item is stored, as a double, so long values beyond 2^53 lose precision.
+     * Use OBJECTS for series holding such values, e.g. nanosecond timings or ids
+     */
+    COLUMNAR,
+
+    /**
+     * As COLUMNAR, but the arrays are held outside the java heap in direct buffers
+     */
+    COLUMNAR_OFF_HEAP;
+
+    ItemDeque createItemDeque() {
+        switch(this) {
+            case COLUMNAR :
+                return new ColumnarItemDeque(false);
+            case COLUMNAR_OFF_HEAP :
+                return new ColumnarItemDeque(true);
+            default :
+                return new ObjectItemDeque();
+        }
+    }
+
+    ItemDeque createItemDeque(Collection<TimeSeriesItem> items) {
+        switch(this) {
+            case COLUMNAR :
+                return new ColumnarItemDeque(items, false);
+            case COLUMNAR_OFF_HEAP :
+                return new ColumnarItemDeque(items, true);
+            default :
+                return new ObjectItemDeque(items);
+        }
+    }
+}
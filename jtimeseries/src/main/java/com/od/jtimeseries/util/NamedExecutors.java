@@ -28,10 +28,15 @@ package com.od.jtimeseries.util;
 import com.od.jtimeseries.util.logging.LogMethods;
 import com.od.jtimeseries.util.logging.LogUtils;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -80,6 +85,33 @@ public class NamedExecutors {
         return Executors.newSingleThreadExecutor(new NamedThreadFactory(executorName + "-SingleThreadExecutor", DEFAULT_THREAD_CONFIGURER));
     }
 
+    /**
+     * A single thread executor whose queue holds at most queueCapacity tasks. When the queue is full execute() waits
+     * for space, so a thread submitting faster than tasks are run is held back rather than the queue growing
+     */
+    public static ExecutorService newBoundedSingleThreadExecutor(String executorName, int queueCapacity) {
+        return new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            new NamedThreadFactory(executorName + "-BoundedSingleThreadExecutor", DEFAULT_THREAD_CONFIGURER),
+            WAIT_FOR_QUEUE_SPACE
+        );
+    }
+
+    private static final RejectedExecutionHandler WAIT_FOR_QUEUE_SPACE = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if ( executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+            }
+        }
+    };
+
     public static ExecutorService newCachedThreadPool(String executorName) {
         return Executors.newCachedThreadPool(new NamedThreadFactory(executorName + "-CachedThreadPool", DEFAULT_THREAD_CONFIGURER));
     }
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd;
+
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.handler.HttpHandler;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.net.httpd.response.TextResponse;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestJTimeSeriesHttpd extends TestCase {
+
+    private static AtomicInteger serverPort = new AtomicInteger(25515);
+
+    private JTimeSeriesHttpd httpd;
+    private RecordingRequestMonitor requestMonitor;
+    private Socket socket;
+
+    public void setUp() throws IOException {
+        httpd = new JTimeSeriesHttpd(serverPort.incrementAndGet(), new SeriesContext());
+        httpd.setMaxRequestBytes(1024);
+        httpd.setIdleTimeoutMillis(500);
+        requestMonitor = new RecordingRequestMonitor();
+        httpd.setRequestMonitor(requestMonitor);
+        httpd.setHandlerFactory(new HandlerFactory() {
+            public HttpHandler getHandler(String uri, String method, Properties header, Properties parms) {
+                return new EchoHandler();
+            }
+        });
+        httpd.start();
+        socket = new Socket("localhost", httpd.getPort());
+        socket.setSoTimeout(5000);
+    }
+
+    public void tearDown() throws IOException {
+        socket.close();
+        httpd.stop();
+    }
+
+    public void testRequestsAreServedOnAKeepAliveConnection() throws IOException {
+        send("GET /first?name=a%20b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response r = readResponse();
+        assertEquals("HTTP/1.1 200 OK", r.statusLine);
+        assertEquals("chunked", r.headers.getProperty("transfer-encoding"));
+        assertEquals("keep-alive", r.headers.getProperty("connection"));
+        assertEquals("/first a b", r.body);
+
+        send("GET /second HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("/second null", readResponse().body);
+        assertEquals(1, httpd.getConnectionCount());
+        assertEquals(1, requestMonitor.reusedConnectionRequests.get());
+    }
+
+    public void testPipelinedRequestsAreAnsweredInOrder() throws IOException {
+        send(
+            "GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+            "POST /2 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 6\r\n\r\nname=b" +
+            "GET /3 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+        );
+        assertEquals("/1 null", readResponse().body);
+        assertEquals("/2 b", readResponse().body);
+        Response r = readResponse();
+        assertEquals("/3 null", r.body);
+        assertEquals("close", r.headers.getProperty("connection"));
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    public void testHttp10ConnectionIsClosedAfterResponse() throws IOException {
+        send("GET /old HTTP/1.0\r\n\r\n");
+        Response r = readResponse();
+        assertEquals("/old null", r.body);
+        assertNull(r.headers.getProperty("transfer-encoding"));
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    public void testServerCanBeRestartedOnTheSamePort() throws IOException {
+        send("GET /before HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("/before null", readResponse().body);
+
+        //stop waits for the server channel to be closed, so start can bind the port straight away
+        httpd.stop();
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+        httpd.start();
+
+        socket = new Socket("localhost", httpd.getPort());
+        socket.setSoTimeout(5000);
+        send("GET /after HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("/after null", readResponse().body);
+    }
+
+    public void testRequestLargerThanLimitIsRejected() throws IOException {
+        StringBuilder sb = new StringBuilder("GET /large HTTP/1.1\r\nHost: localhost\r\n");
+        while ( sb.length() < 1024) {
+            sb.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+        }
+        send(sb.substring(0, 1024));  //exactly the limit, so the server reads everything before closing
+        Response r = readResponse();
+        assertEquals("HTTP/1.1 " + NanoHTTPD.HTTP_REQUEST_TOO_LARGE, r.statusLine);
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(1, requestMonitor.invalidRequests.get());
+    }
+
+    public void testIdleConnectionIsClosed() throws IOException, InterruptedException {
+        send("GET /idle HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        readResponse();
+        Thread.sleep(2000);
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(0, httpd.getConnectionCount());
+    }
+
+    public void testNotModifiedResponseHasNoBody() throws IOException {
+        send("GET /notModified HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        Response r = readResponse();
+        assertEquals("HTTP/1.1 304 Not Modified", r.statusLine);
+        assertNull(r.headers.getProperty("transfer-encoding"));
+        assertEquals("keep-alive", r.headers.getProperty("connection"));
+
+        send("GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals("/next null", readResponse().body);
+        assertEquals(0, requestMonitor.invalidRequests.get());
+    }
+
+    private void send(String request) throws IOException {
+        OutputStream os = socket.getOutputStream();
+        os.write(request.getBytes("ISO-8859-1"));
+        os.flush();
+    }
+
+    private Response readResponse() throws IOException {
+        InputStream is = socket.getInputStream();
+        Response r = new Response();
+        r.statusLine = readLine(is);
+        String line;
+        while ( (line = readLine(is)).length() > 0) {
+            int p = line.indexOf(':');
+            r.headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ( r.statusLine.endsWith(NanoHTTPD.HTTP_NOT_MODIFIED)) {
+            //no body
+        } else if ( "chunked".equals(r.headers.getProperty("transfer-encoding"))) {
+            int chunkLength;
+            while ( (chunkLength = Integer.parseInt(readLine(is), 16)) > 0) {
+                readBytes(is, body, chunkLength);
+                readLine(is);
+            }
+            readLine(is);
+        } else if ( r.headers.getProperty("content-length") != null) {
+            readBytes(is, body, Integer.parseInt(r.headers.getProperty("content-length")));
+        } else {
+            int b;
+            while ( (b = is.read()) != -1) {
+                body.write(b);
+            }
+        }
+        r.body = body.toString("ISO-8859-1");
+        return r;
+    }
+
+    private String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ( (b = is.read()) != '\n') {
+            if ( b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if ( b != '\r') {
+                sb.append((char)b);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void readBytes(InputStream is, OutputStream os, int length) throws IOException {
+        for ( int loop=0; loop < length; loop++) {
+            int b = is.read();
+            if ( b == -1) {
+                throw new IOException("Connection closed");
+            }
+            os.write(b);
+        }
+    }
+
+    private static class Response {
+        private String statusLine;
+        private Properties headers = new Properties();
+        private String body;
+    }
+
+    private static class EchoHandler implements HttpHandler {
+        public NanoHttpResponse createResponse(String uri, String method, Properties header, Properties parms) {
+            return "/notModified".equals(uri) ?
+                new NanoHttpResponse(NanoHTTPD.HTTP_NOT_MODIFIED, null) :
+                new TextResponse(NanoHTTPD.HTTP_OK, NanoHTTPD.MIME_PLAINTEXT, uri + " " + parms.getProperty("name"));
+        }
+    }
+
+    private static class RecordingRequestMonitor implements HttpRequestMonitor {
+
+        private AtomicInteger reusedConnectionRequests = new AtomicInteger();
+        private AtomicInteger invalidRequests = new AtomicInteger();
+
+        public void requestDispatched(long requestId, Socket mySocket, int requestsOnConnection, long queueTimeMillis) {
+            if ( requestsOnConnection > 1) {
+                reusedConnectionRequests.incrementAndGet();
+            }
+        }
+
+        public void requestStarting(long requestId, Socket mySocket) {}
+
+        public void servingRequest(long requestId, Socket mySocket, String uri, String method, Properties header, Properties params) {}
+
+        public void finishedRequest(long requestId, Socket mySocket) {}
+
+        public void exceptionDuringProcessing(long requestId, Socket mySocket, Throwable t) {}
+
+        public void invalidRequest(long requestId, Socket mySocket, String httpErrorType) {
+            invalidRequests.incrementAndGet();
+        }
+    }
+}
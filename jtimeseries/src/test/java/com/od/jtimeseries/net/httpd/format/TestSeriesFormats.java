@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.format;
+
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.NanoHTTPD;
+import com.od.jtimeseries.net.httpd.handler.SeriesHandler;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+public class TestSeriesFormats extends TestCase {
+
+    private TimeSeriesContext rootContext;
+
+    public void setUp() {
+        rootContext = new SeriesContext();
+        IdentifiableTimeSeries s = rootContext.createTimeSeries("test.series", "test series");
+        s.addItem(new Item(1000, 1.5));
+        s.addItem(new Item(2000, Double.NaN));
+        s.addItem(new Item(3000, 3d));
+    }
+
+    public void testBinaryItemsAreReadBack() throws IOException {
+        List<TimeSeriesItem> items = new ArrayList<TimeSeriesItem>();
+        items.add(new Item(1340000000000L, 1.5));
+        items.add(new Item(1340000001000L, Double.NaN));
+        items.add(new Item(1339999999000L, -2d));  //timestamps may go backwards
+        items.add(new RollupItem(1340000060000L, 1, 5, 12, 4));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinarySeriesWriter writer = new BinarySeriesWriter(bos);
+        writer.writeHeader("mean=2;");
+        for ( TimeSeriesItem i : items) {
+            writer.writeItem(i);
+        }
+        writer.writeEnd();
+
+        BinarySeriesReader reader = new BinarySeriesReader(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals("mean=2;", reader.readHeader());
+        for ( TimeSeriesItem i : items) {
+            assertEquals(i, reader.readItem());
+        }
+        assertNull(reader.readItem());
+    }
+
+    public void testFormatIsChosenFromParameterThenAcceptHeader() {
+        Properties header = new Properties();
+        Properties parms = new Properties();
+        assertEquals(SeriesFormat.xml, SeriesFormat.getRequestedFormat(header, parms));
+
+        header.put("accept", "application/json, application/x-jtimeseries-series;q=0.9");
+        assertEquals(SeriesFormat.json, SeriesFormat.getRequestedFormat(header, parms));
+
+        parms.put("format", "CSV");
+        assertEquals(SeriesFormat.csv, SeriesFormat.getRequestedFormat(header, parms));
+
+        parms.put("format", "yaml");
+        assertNull(SeriesFormat.getRequestedFormat(header, parms));
+    }
+
+    public void testBinaryGzipSeriesResponse() throws IOException {
+        Properties header = new Properties();
+        header.put("accept", SeriesFormat.binary.getMimeType());
+        header.put("accept-encoding", "gzip, deflate");
+        NanoHttpResponse response = getSeries(header, new Properties());
+        assertEquals(SeriesFormat.binary.getMimeType(), response.mimeType);
+        assertEquals("gzip", response.header.getProperty("Content-Encoding"));
+
+        BinarySeriesReader reader = new BinarySeriesReader(new GZIPInputStream(getBody(response)));
+        reader.readHeader();
+        assertEquals(new Item(1000, 1.5), reader.readItem());
+        assertEquals(new Item(2000, Double.NaN), reader.readItem());
+        assertEquals(new Item(3000, 3d), reader.readItem());
+        assertNull(reader.readItem());
+    }
+
+    public void testCsvAndJsonSeriesResponses() throws IOException {
+        Properties parms = new Properties();
+        parms.put("format", "csv");
+        assertEquals("timestamp,value\n1000,1.5\n2000,NaN\n3000,3\n", readString(getBody(getSeries(new Properties(), parms))));
+
+        parms.put("format", "json");
+        parms.put("moreRecentThanTimestamp", "1000");
+        assertEquals(
+            "{\"parentPath\":\"test\",\"id\":\"series\",\"description\":\"test series\",\"summaryStats\":{}," +
+            "\"seriesItems\":[\n[2000,null],\n[3000,3]\n]}",
+            readString(getBody(getSeries(new Properties(), parms)))
+        );
+    }
+
+    public void testSeriesIsDownsampledToMaxPoints() throws IOException {
+        Properties parms = new Properties();
+        parms.put("format", "csv");
+        parms.put("maxPoints", "3");
+        parms.put("bucketMode", "mean");
+        IdentifiableTimeSeries s = rootContext.getTimeSeries("test.series");
+        s.addItem(new Item(4000, 4d));
+        assertEquals(
+            "timestamp,value,min,max,count\n1000,1.5,1.5,1.5,1\n3000,3,3,3,1\n4000,4,4,4,1\n",
+            readString(getBody(getSeries(new Properties(), parms)))
+        );
+
+        parms.put("bucketMode", "median");
+        assertEquals(NanoHTTPD.HTTP_BADREQUEST, getSeries(new Properties(), parms).status);
+    }
+
+    private NanoHttpResponse getSeries(Properties header, Properties parms) {
+        return new SeriesHandler(rootContext).createResponse("/test/series" + SeriesHandler.SERIES_POSTFIX, "GET", header, parms);
+    }
+
+    private InputStream getBody(NanoHttpResponse response) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(bos);
+        response.writeResponseBody(bos, pw);
+        pw.flush();
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
+
+    private String readString(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int b;
+        while ( (b = is.read()) != -1) {
+            bos.write(b);
+        }
+        return bos.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.handler;
+
+
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.Item;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Properties;
+
+public class TestSeriesHandler extends TestCase {
+
+    private Locale defaultLocale;
+
+    public void setUp() {
+        defaultLocale = Locale.getDefault();
+        //uses a comma as the decimal separator
+        Locale.setDefault(Locale.GERMANY);
+    }
+
+    public void tearDown() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    public void testCsvAndJsonValuesDoNotDependOnLocale() {
+        TimeSeriesContext rootContext = new SeriesContext();
+        IdentifiableTimeSeries series = rootContext.createTimeSeries("test.series", "test series");
+        series.addItem(new Item(1000, 1.5));
+        series.addItem(new Item(2000, Double.POSITIVE_INFINITY));
+
+        assertEquals("timestamp,value\n1000,1.5\n2000,Infinity\n", getSeries(rootContext, "csv"));
+
+        String json = getSeries(rootContext, "json");
+        assertTrue(json, json.contains("1.5"));
+        assertFalse(json, json.contains("1,5"));
+    }
+
+    private String getSeries(TimeSeriesContext rootContext, String format) {
+        Properties parms = new Properties();
+        parms.put("format", format);
+        NanoHttpResponse response = new SeriesHandler(rootContext).createResponse(
+            "/test/series" + SeriesHandler.SERIES_POSTFIX, "GET", new Properties(), parms
+        );
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(bos);
+        response.writeResponseBody(bos, pw);
+        pw.flush();
+        return bos.toString();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.handler;
+
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class TestSeriesTreeWalker extends TestCase {
+
+    private TimeSeriesContext rootContext;
+
+    public void setUp() {
+        rootContext = new SeriesContext();
+        rootContext.createTimeSeries("b.series2", "");
+        rootContext.createTimeSeries("a.series1", "");
+        rootContext.createTimeSeries("a.series2", "");
+        rootContext.createTimeSeries("a.sub.series1", "");
+        rootContext.createTimeSeries("ab.series1", "");
+    }
+
+    public void testSeriesAreVisitedInPathOrder() {
+        assertEquals(
+            "[a.series1, a.series2, a.sub.series1, ab.series1, b.series2]",
+            walk(new SeriesTreeWalker("", SeriesTreeWalker.FIND_ALL_SERIES, 0, 0)).toString()
+        );
+    }
+
+    public void testPathPrefix() {
+        assertEquals(
+            "[a.sub.series1]",
+            walk(new SeriesTreeWalker("a.sub", SeriesTreeWalker.FIND_ALL_SERIES, 0, 0)).toString()
+        );
+        assertEquals(
+            "[a.series1, a.series2, a.sub.series1, ab.series1]",
+            walk(new SeriesTreeWalker("a", SeriesTreeWalker.FIND_ALL_SERIES, 0, 0)).toString()
+        );
+        assertEquals(
+            "[a.series2]",
+            walk(new SeriesTreeWalker("a.series2", SeriesTreeWalker.FIND_ALL_SERIES, 0, 0)).toString()
+        );
+    }
+
+    public void testPaging() {
+        SeriesTreeWalker walker = new SeriesTreeWalker("", SeriesTreeWalker.FIND_ALL_SERIES, 0, 2);
+        assertEquals("[a.series1, a.series2]", walk(walker).toString());
+        assertEquals(2, walker.getNextPageOffset());
+
+        walker = new SeriesTreeWalker("", SeriesTreeWalker.FIND_ALL_SERIES, 2, 2);
+        assertEquals("[a.sub.series1, ab.series1]", walk(walker).toString());
+        assertEquals(4, walker.getNextPageOffset());
+
+        walker = new SeriesTreeWalker("", SeriesTreeWalker.FIND_ALL_SERIES, 4, 2);
+        assertEquals("[b.series2]", walk(walker).toString());
+        assertEquals(-1, walker.getNextPageOffset());
+    }
+
+    public void testIndexResponseIsPaged() {
+        Properties params = new Properties();
+        params.put("pathPrefix", "a.");
+        params.put("pageSize", "2");
+        NanoHttpResponse response = new TimeSeriesIndexHandler(rootContext).createResponse("/", "GET", new Properties(), params);
+        String body = getBody(response);
+        assertTrue(body.contains("id=\"series1\""));
+        assertFalse(body.contains("parentPath=\"a.sub\""));
+        assertTrue(body.endsWith("\n<nextPage nextPageOffset=\"2\"/>\n</timeSeries>"));
+    }
+
+    public void testSnapshotSubstringSearchIsNotRetainedBetweenRequests() {
+        SnapshotHandler handler = new SnapshotHandler(rootContext);
+        Properties params = new Properties();
+        params.put("substringSearch", "sub");
+        assertEquals(1, countSeries(getBody(handler.createResponse("/", "GET", new Properties(), params))));
+        assertEquals(5, countSeries(getBody(handler.createResponse("/", "GET", new Properties(), new Properties()))));
+    }
+
+    private List<String> walk(SeriesTreeWalker walker) {
+        final List<String> paths = new ArrayList<String>();
+        walker.walk(rootContext, new SeriesTreeWalker.SeriesVisitor() {
+            public void visit(IdentifiableTimeSeries s) {
+                paths.add(s.getPath());
+            }
+        });
+        return paths;
+    }
+
+    private int countSeries(String body) {
+        return body.split("<series ").length - 1;
+    }
+
+    private String getBody(NanoHttpResponse response) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(bos);
+        response.writeResponseBody(bos, pw);
+        pw.flush();
+        return bos.toString();
+    }
+}
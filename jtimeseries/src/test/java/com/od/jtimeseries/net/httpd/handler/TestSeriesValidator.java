@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.httpd.handler;
+
+import com.od.jtimeseries.context.TimeSeriesContext;
+import com.od.jtimeseries.context.impl.SeriesContext;
+import com.od.jtimeseries.net.httpd.NanoHTTPD;
+import com.od.jtimeseries.net.httpd.response.NanoHttpResponse;
+import com.od.jtimeseries.timeseries.IdentifiableTimeSeries;
+import com.od.jtimeseries.timeseries.Item;
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class TestSeriesValidator extends TestCase {
+
+    private TimeSeriesContext rootContext;
+    private IdentifiableTimeSeries series;
+
+    public void setUp() {
+        rootContext = new SeriesContext();
+        series = rootContext.createTimeSeries("test.series", "test series");
+        series.addItem(new Item(1000, 1));
+    }
+
+    public void testUnchangedSeriesIsNotModified() {
+        NanoHttpResponse response = getSeries(new Properties(), new Properties());
+        assertEquals(NanoHTTPD.HTTP_OK, response.status);
+        String eTag = response.header.getProperty("ETag");
+        assertNotNull(eTag);
+        assertEquals("Thu, 1 Jan 1970 00:00:01 GMT", response.header.getProperty("Last-Modified"));
+
+        response = getSeries(createIfNoneMatch("\"other\", W/" + eTag), new Properties());
+        assertEquals(NanoHTTPD.HTTP_NOT_MODIFIED, response.status);
+        assertEquals(eTag, response.header.getProperty("ETag"));
+
+        series.addItem(new Item(2000, 2));
+        response = getSeries(createIfNoneMatch(eTag), new Properties());
+        assertEquals(NanoHTTPD.HTTP_OK, response.status);
+        assertFalse(eTag.equals(response.header.getProperty("ETag")));
+    }
+
+    public void testETagDiffersByFormatAndEncoding() {
+        String xmlTag = getSeries(new Properties(), new Properties()).header.getProperty("ETag");
+
+        Properties parms = new Properties();
+        parms.put("format", "csv");
+        String csvTag = getSeries(new Properties(), parms).header.getProperty("ETag");
+
+        Properties header = new Properties();
+        header.put("accept-encoding", "gzip");
+        String gzipTag = getSeries(header, new Properties()).header.getProperty("ETag");
+
+        assertFalse(xmlTag.equals(csvTag));
+        assertFalse(xmlTag.equals(gzipTag));
+    }
+
+    public void testChartIsNotRedrawnIfNotModified() {
+        ChartPngHandler handler = new ChartPngHandler(rootContext);
+        String uri = "/test/series" + ChartPngHandler.CHART_PNG_POSTFIX;
+        NanoHttpResponse response = handler.createResponse(uri, "GET", new Properties(), new Properties());
+        assertEquals(NanoHTTPD.HTTP_OK, response.status);
+
+        response = handler.createResponse(uri, "GET", createIfNoneMatch(response.header.getProperty("ETag")), new Properties());
+        assertEquals(NanoHTTPD.HTTP_NOT_MODIFIED, response.status);
+    }
+
+    private Properties createIfNoneMatch(String tags) {
+        Properties header = new Properties();
+        header.put("if-none-match", tags);
+        return header;
+    }
+
+    private NanoHttpResponse getSeries(Properties header, Properties parms) {
+        return new SeriesHandler(rootContext).createResponse("/test/series" + SeriesHandler.SERIES_POSTFIX, "GET", header, parms);
+    }
+}
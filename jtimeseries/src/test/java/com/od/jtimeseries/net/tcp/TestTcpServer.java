@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.tcp;
+
+import com.od.jtimeseries.net.udp.UdpPublisher;
+import com.od.jtimeseries.net.udp.UdpServer;
+import com.od.jtimeseries.net.udp.message.SeriesDescriptionMessage;
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.timeseries.impl.DefaultIdentifiableTimeSeries;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestTcpServer extends TestCase {
+
+    private static AtomicInteger serverPort = new AtomicInteger(25415);
+
+    private int port;
+    private TcpServer server;
+    private TcpClient client;
+    private RecordingListener listener;
+
+    public void setUp() {
+        port = serverPort.incrementAndGet();
+        server = new TcpServer(port);
+        server.setAckFrameCount(4);
+        listener = new RecordingListener();
+        server.addTimeSeriesValueListener(listener);
+        server.addUdpMessageListener(listener);
+        client = new TcpClient("localhost", port, 4096, 8);
+    }
+
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    public void testValuesPublishedOverTcpAreReceivedAndAcked() throws Exception {
+        server.startReceive();
+        UdpPublisher publisher = new UdpPublisher(client, 1000);
+        DefaultIdentifiableTimeSeries series = new DefaultIdentifiableTimeSeries("test", "test series");
+        publisher.publishAppends(series);
+        series.addAll(createItems(0, 5000));
+
+        waitForValues(5000);
+        assertEquals(5000, listener.timestamps.size());
+        for ( int loop=0; loop < 5000; loop++) {
+            assertEquals(loop, (long)listener.timestamps.get(loop));
+        }
+        assertEquals(1, listener.descriptions.size());
+
+        //frames are acked at least every 100ms
+        long endTime = System.currentTimeMillis() + 5000;
+        while ( client.getUnackedFrameCount() > 0 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, client.getUnackedFrameCount());
+        assertEquals(0, client.getDroppedFrameCount());
+    }
+
+    public void testFramesAreResentWhenServerStarts() throws Exception {
+        client.setSendTimeoutMillis(0);
+        for ( int loop=0; loop < 10; loop++) {
+            sendFrame(loop);
+        }
+        //the frames beyond maxUnackedFrames are dropped, the rest are kept to send
+        assertEquals(8, client.getUnackedFrameCount());
+        assertEquals(2, client.getDroppedFrameCount());
+
+        server.startReceive();
+        Thread.sleep(1100); //the client waits before trying to connect again
+        client.setSendTimeoutMillis(5000);
+        sendFrame(10);
+
+        waitForValues(9);
+        List<Long> expected = new ArrayList<Long>();
+        for ( long loop=0; loop < 8; loop++) {
+            expected.add(loop);
+        }
+        expected.add(10L);
+        assertEquals(expected, listener.timestamps);
+    }
+
+    public void testInvalidFrameIsDiscarded() throws Exception {
+        server.startReceive();
+        client.sendBatch(new byte[] { 1, 2, 3, 4, 5, 6 }, 6);
+        sendFrame(1);
+        waitForValues(1);
+        assertEquals(Collections.singletonList(1L), listener.timestamps);
+    }
+
+    public void testFramesResentAfterLostAckAreSkipped() throws Exception {
+        server.startReceive();
+        Socket s = connect(99, 0);
+        DataOutputStream os = new DataOutputStream(s.getOutputStream());
+        for ( int loop=0; loop < 4; loop++) {
+            writeFrame(os, loop);
+        }
+        //four frames is the ack frame count
+        assertEquals(3, new DataInputStream(s.getInputStream()).readLong());
+        s.close();
+
+        //reconnect as though the ack for frames 2 and 3 was lost
+        s = connect(99, 2);
+        os = new DataOutputStream(s.getOutputStream());
+        for ( int loop=2; loop < 6; loop++) {
+            writeFrame(os, loop);
+        }
+        assertEquals(5, new DataInputStream(s.getInputStream()).readLong());
+        s.close();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L), listener.timestamps);
+    }
+
+    private Socket connect(long clientId, long firstSequence) throws Exception {
+        Socket s = new Socket("localhost", port);
+        DataOutputStream os = new DataOutputStream(s.getOutputStream());
+        os.writeInt(TcpServer.HELLO_VERSION);
+        os.writeLong(clientId);
+        os.writeLong(firstSequence);
+        return s;
+    }
+
+    private void writeFrame(DataOutputStream os, long timestamp) throws Exception {
+        byte[] frame = createFrame(timestamp);
+        os.writeInt(frame.length);
+        os.write(frame);
+        os.flush();
+    }
+
+    private void sendFrame(long timestamp) throws Exception {
+        byte[] frame = createFrame(timestamp);
+        client.sendBatch(frame, frame.length);
+    }
+
+    private byte[] createFrame(long timestamp) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new JavaIOMessageFactory().createTimeSeriesValueMessage(
+            "test.path", new Item(timestamp, timestamp)
+        ).serialize(bos);
+        return bos.toByteArray();
+    }
+
+    private List<TimeSeriesItem> createItems(int start, int end) {
+        List<TimeSeriesItem> items = new ArrayList<TimeSeriesItem>();
+        for ( int loop=start; loop < end; loop++) {
+            items.add(new Item(loop, loop));
+        }
+        return items;
+    }
+
+    private void waitForValues(int count) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( listener.timestamps.size() < count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingListener implements UdpServer.TimeSeriesValueListener, UdpServer.UdpMessageListener {
+
+        private final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+        private final List<UdpMessage> descriptions = Collections.synchronizedList(new ArrayList<UdpMessage>());
+
+        public void timeSeriesValueReceived(String sourceInetAddress, String sourceHostname, String path, long timestamp, double value) {
+            timestamps.add(timestamp);
+        }
+
+        public void udpMessageReceived(UdpMessage m) {
+            if ( m instanceof SeriesDescriptionMessage) {
+                descriptions.add(m);
+            }
+        }
+    }
+}
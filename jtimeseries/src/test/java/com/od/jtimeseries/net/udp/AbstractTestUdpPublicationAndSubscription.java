@@ -40,7 +40,7 @@ public abstract class AbstractTestUdpPublicationAndSubscription extends TestCase
 
     public void setUp() throws UnknownHostException {
         int port = serverPort.addAndGet(1);
-        server = new UdpServer(port);
+        server = createServer(port);
         server.startReceive();
         client = new UdpClient(new UdpClientConfig("localhost", port));
         mockListener = mockery.mock(UdpServer.UdpMessageListener.class);
@@ -51,6 +51,10 @@ public abstract class AbstractTestUdpPublicationAndSubscription extends TestCase
 
     protected abstract UdpMessageFactory createMessageFactory();
 
+    protected UdpServer createServer(int port) {
+        return new UdpServer(port);
+    }
+
     public void tearDown() {
         server.stop();
         server = null;
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import junit.framework.TestCase;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+
+public class TestDatagramRing extends TestCase {
+
+    private byte[] buffer = new byte[64];
+
+    public void testDatagramsArePolledInOrder() {
+        DatagramRing ring = new DatagramRing(8);
+        for ( int loop=0; loop < 5; loop++) {
+            assertFalse(ring.offer(createDatagram(loop), loop + 1));
+        }
+        for ( int loop=0; loop < 5; loop++) {
+            assertEquals(loop + 1, ring.poll(buffer));
+            assertEquals(loop, buffer[0]);
+        }
+        assertEquals(-1, ring.poll(buffer));
+        assertTrue(ring.isEmpty());
+    }
+
+    public void testOldestAreDroppedWhenFull() {
+        DatagramRing ring = new DatagramRing(4);
+        for ( int loop=0; loop < 10; loop++) {
+            assertEquals(loop >= 4, ring.offer(createDatagram(loop), 1));
+        }
+        assertEquals(6, ring.getDroppedCount());
+        for ( int loop=6; loop < 10; loop++) {
+            assertEquals(1, ring.poll(buffer));
+            assertEquals(loop, buffer[0]);
+        }
+        assertEquals(-1, ring.poll(buffer));
+    }
+
+    public void testConcurrentOffersAreAllPolledOrDropped() throws Exception {
+        final DatagramRing ring = new DatagramRing(64);
+        final int threads = 4;
+        final int datagramsPerThread = 20000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for ( int loop=0; loop < threads; loop++) {
+            new Thread() {
+                public void run() {
+                    byte[] datagram = new byte[8];
+                    for ( int d=0; d < datagramsPerThread; d++) {
+                        ring.offer(datagram, 8);
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+
+        int polled = 0;
+        while ( latch.getCount() > 0 || ! ring.isEmpty()) {
+            if ( ring.poll(buffer) == 8) {
+                polled++;
+            }
+        }
+        assertEquals(threads * datagramsPerThread, polled + ring.getDroppedCount());
+    }
+
+    public void testReplicationDestinationSendsDatagrams() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0);
+        socket.setSoTimeout(5000);
+        ReplicationDestination d = new ReplicationDestination(new UdpClientConfig("localhost", socket.getLocalPort()), 16);
+        try {
+            d.start();
+            d.replicate(new byte[] { 1, 2, 3 }, 2);
+            DatagramPacket p = new DatagramPacket(new byte[64], 64);
+            socket.receive(p);
+            assertEquals(2, p.getLength());
+            assertEquals(2, p.getData()[1]);
+            assertEquals(0, d.getDroppedCount());
+        } finally {
+            d.stop();
+            socket.close();
+        }
+    }
+
+    public void testRestartedReplicationDestinationSendsEachDatagramOnce() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0);
+        socket.setSoTimeout(500);
+        ReplicationDestination d = new ReplicationDestination(new UdpClientConfig("localhost", socket.getLocalPort()), 64);
+        try {
+            //restart within the time the sender parks while idle
+            d.start();
+            d.stop();
+            d.start();
+            for ( int loop=0; loop < 20; loop++) {
+                d.replicate(createDatagram(loop), loop + 1);
+            }
+
+            DatagramPacket p = new DatagramPacket(new byte[64], 64);
+            for ( int loop=0; loop < 20; loop++) {
+                socket.receive(p);
+                assertEquals(loop, p.getData()[0]);
+            }
+            try {
+                socket.receive(p);
+                fail("Datagram " + p.getData()[0] + " was sent twice");
+            } catch (SocketTimeoutException e) {
+                //expected
+            }
+            assertEquals(20, d.getSentCount());
+        } finally {
+            d.stop();
+            socket.close();
+        }
+    }
+
+    private byte[] createDatagram(int value) {
+        byte[] result = new byte[value + 1];
+        result[0] = (byte)value;
+        return result;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOFlyweightDecoder;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOSequenceHeader;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOValueBatch;
+import com.od.jtimeseries.net.udp.message.utf8.Utf8MessageFactory;
+import com.od.jtimeseries.net.udp.message.utf8.Utf8SequenceField;
+import com.od.jtimeseries.timeseries.Item;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestDatagramSequenceTracker extends TestCase {
+
+    private DatagramSequenceTracker tracker = new DatagramSequenceTracker();
+
+    public void testInOrderDatagramsAreNotCounted() {
+        receive(1, 0, 100);
+        assertCounts(0, 0, 0);
+    }
+
+    public void testGapIsCountedLostOnceOutOfWindow() {
+        receive(1, 0, 10);
+        receive(1, 12, 20);
+        assertCounts(0, 0, 0);
+        receive(1, 20, 80);
+        assertCounts(2, 0, 0);
+    }
+
+    public void testLargeGapIsCountedLost() {
+        receive(1, 0, 10);
+        receive(1, 1010, 1100);
+        assertCounts(1000, 0, 0);
+    }
+
+    public void testLateDatagramIsCountedReorderedAndNotLost() {
+        receive(1, 0, 5);
+        receive(1, 6, 10);
+        receive(1, 5, 6);
+        receive(1, 10, 100);
+        assertCounts(0, 0, 1);
+    }
+
+    public void testRepeatedDatagramIsCountedDuplicated() {
+        receive(1, 0, 5);
+        receive(1, 4, 5);
+        receive(1, 2, 3);
+        assertCounts(0, 2, 0);
+    }
+
+    public void testSourcesAreTrackedSeparately() {
+        receive(1, 0, 5);
+        tracker.datagramReceived("127.0.0.1", 2000, 1, 0);
+        tracker.datagramReceived("127.0.0.1", 1000, 2, 0);
+        assertCounts(0, 0, 0);
+        assertEquals(3, tracker.getSourceCount());
+    }
+
+    public void testSourcesAreNotTrackedBeyondMax() {
+        tracker = new DatagramSequenceTracker(2);
+        for ( int loop=0; loop < 3; loop++) {
+            tracker.datagramReceived("127.0.0.1", 1000, loop, 0);
+            tracker.datagramReceived("127.0.0.1", 1000, loop, 0);
+        }
+        assertEquals(2, tracker.getSourceCount());
+        assertEquals(2, tracker.getDuplicatedCount());
+    }
+
+    public void testJavaIOSequenceHeaderIsReadAndSkippedByDecoders() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        JavaIOSequenceHeader.write(bos, -5, 1234567890123L);
+        new JavaIOMessageFactory().createTimeSeriesValueMessage("test.path", new Item(1, 2)).serialize(bos);
+        byte[] datagram = bos.toByteArray();
+
+        assertTrue(JavaIOSequenceHeader.isPresent(datagram, datagram.length));
+        assertEquals(-5, JavaIOSequenceHeader.readSessionId(datagram));
+        assertEquals(1234567890123L, JavaIOSequenceHeader.readSequence(datagram));
+
+        assertEquals(1, new JavaIOMessageFactory().deserializeFromDatagram(datagram, datagram.length).size());
+
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        assertEquals(1, new JavaIOFlyweightDecoder().decode(datagram, datagram.length, "127.0.0.1", values, messages));
+        assertEquals(1, values.size());
+        assertEquals("test.path", values.getPath(0));
+    }
+
+    public void testUtf8SequenceFieldIsReadAndIgnoredByFactory() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new Utf8MessageFactory().createTimeSeriesValueMessage("test.path", new Item(1, 2)).serialize(bos);
+        assertEquals(-1, Utf8SequenceField.indexOf(bos.toByteArray(), bos.size()));
+
+        Utf8SequenceField.write(bos, -5, 1234567890123L);
+        byte[] datagram = bos.toByteArray();
+        int index = Utf8SequenceField.indexOf(datagram, datagram.length);
+        assertTrue(index > 0);
+        assertEquals(-5, Utf8SequenceField.readSessionId(datagram, index, datagram.length));
+        assertEquals(1234567890123L, Utf8SequenceField.readSequence(datagram, index, datagram.length));
+
+        assertEquals(1, new Utf8MessageFactory().deserializeFromDatagram(datagram, datagram.length).size());
+    }
+
+    private void receive(int sessionId, long startSequence, long endSequence) {
+        for ( long sequence = startSequence; sequence < endSequence; sequence++) {
+            tracker.datagramReceived("127.0.0.1", 1000, sessionId, sequence);
+        }
+    }
+
+    private void assertCounts(long lost, long duplicated, long reordered) {
+        assertEquals(lost, tracker.getLostCount());
+        assertEquals(duplicated, tracker.getDuplicatedCount());
+        assertEquals(reordered, tracker.getReorderedCount());
+    }
+}
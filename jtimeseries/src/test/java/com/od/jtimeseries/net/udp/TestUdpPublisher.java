@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import com.od.jtimeseries.net.udp.message.TimeSeriesValueMessage;
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOSequenceHeader;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import com.od.jtimeseries.timeseries.impl.DefaultIdentifiableTimeSeries;
+import com.od.jtimeseries.util.NetworkUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestUdpPublisher extends TestCase {
+
+    private RecordingUdpClient client;
+    private DefaultIdentifiableTimeSeries series;
+
+    public void setUp() {
+        client = new RecordingUdpClient();
+        series = new DefaultIdentifiableTimeSeries("test", "test series");
+    }
+
+    public void testMultiItemAppendIsPublishedInFullDatagrams() throws Exception {
+        UdpPublisher publisher = new UdpPublisher(client, 100);
+        publisher.publishAppends(series);
+        series.addAll(createItems(0, 1000));
+
+        List<TimeSeriesValueMessage> values = waitForValues(1000);
+        assertEquals(1000, values.size());
+        for ( int loop=0; loop < 1000; loop++) {
+            assertEquals(loop, values.get(loop).getTimeSeriesItem().getTimestamp());
+        }
+
+        //the description and 1000 values coalesce into a few datagrams, all but the last filled
+        assertEquals(1001, publisher.getSentMessageCount());
+        assertEquals(client.datagrams.size(), publisher.getSentDatagramCount());
+        assertTrue(client.datagrams.size() < 100);
+        for ( int loop=0; loop < client.datagrams.size() - 1; loop++) {
+            assertTrue(client.datagrams.get(loop).length > NetworkUtils.getMaxBytesPerDatagramPacket() - 64);
+        }
+        assertEquals(0, publisher.getDroppedMessageCount());
+        assertTrue(publisher.getMaxSendLatencyMillis() >= publisher.getMeanSendLatencyMillis());
+    }
+
+    public void testDatagramsAreRateLimited() throws Exception {
+        UdpPublisher publisher = new UdpPublisher(client, 10);
+        publisher.setMaxBurstDatagrams(2);
+        publisher.publishAppends(series);
+        long startTime = System.currentTimeMillis();
+        series.addAll(createItems(0, 200));
+
+        assertEquals(200, waitForValues(200).size());
+        //first datagram sent at the first tick, up to 2 more straight away from the burst, then 10 a second
+        int datagrams = client.datagrams.size();
+        long minTime = Math.max(0, (datagrams - 3) * 100 - 50);
+        assertTrue(datagrams > 3);
+        assertTrue(System.currentTimeMillis() - startTime >= minTime);
+    }
+
+    public void testMessagesAreDroppedWhenQueueIsFull() throws Exception {
+        UdpPublisher publisher = new UdpPublisher(client, 1, 10);
+        publisher.publishAppends(series);
+        series.addAll(createItems(0, 100));
+
+        //description and 9 values are queued, series events are fired asynchronously
+        long endTime = System.currentTimeMillis() + 5000;
+        while ( publisher.getDroppedMessageCount() < 91 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(91, publisher.getDroppedMessageCount());
+        waitForValues(9);
+        assertEquals(91, publisher.getDroppedMessageCount());
+    }
+
+    public void testSequenceNumbersAreWrittenToEachDatagram() throws Exception {
+        UdpPublisher publisher = new UdpPublisher(client, 100);
+        publisher.setSendSequenceNumbers(true);
+        publisher.publishAppends(series);
+        series.addAll(createItems(0, 200));
+
+        assertEquals(200, waitForValues(200).size());
+        int sessionId = JavaIOSequenceHeader.readSessionId(client.datagrams.get(0));
+        for ( int loop=0; loop < client.datagrams.size(); loop++) {
+            byte[] datagram = client.datagrams.get(loop);
+            assertTrue(JavaIOSequenceHeader.isPresent(datagram, datagram.length));
+            assertTrue(datagram.length <= NetworkUtils.getMaxBytesPerDatagramPacket());
+            assertEquals(sessionId, JavaIOSequenceHeader.readSessionId(datagram));
+            assertEquals(loop, JavaIOSequenceHeader.readSequence(datagram));
+        }
+    }
+
+    private List<TimeSeriesItem> createItems(int start, int end) {
+        List<TimeSeriesItem> items = new ArrayList<TimeSeriesItem>();
+        for ( int loop=start; loop < end; loop++) {
+            items.add(new Item(loop, loop));
+        }
+        return items;
+    }
+
+    private List<TimeSeriesValueMessage> waitForValues(int count) throws Exception {
+        long endTime = System.currentTimeMillis() + 10000;
+        List<TimeSeriesValueMessage> values = client.getValues();
+        while ( values.size() < count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(20);
+            values = client.getValues();
+        }
+        return values;
+    }
+
+    private static class RecordingUdpClient extends UdpClient {
+
+        private final List<byte[]> datagrams = new ArrayList<byte[]>();
+
+        public synchronized void sendDatagram(byte[] data, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, 0, copy, 0, length);
+            datagrams.add(copy);
+        }
+
+        synchronized List<TimeSeriesValueMessage> getValues() throws Exception {
+            List<TimeSeriesValueMessage> result = new ArrayList<TimeSeriesValueMessage>();
+            JavaIOMessageFactory f = new JavaIOMessageFactory();
+            for ( byte[] d : datagrams) {
+                for ( UdpMessage m : f.deserializeFromDatagram(d, d.length)) {
+                    if ( m instanceof TimeSeriesValueMessage) {
+                        result.add((TimeSeriesValueMessage)m);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
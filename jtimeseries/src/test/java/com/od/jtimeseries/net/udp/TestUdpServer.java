@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.source.impl.DefaultCounter;
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+public class TestUdpServer extends TestCase {
+
+    private static final int PORT = 25090;
+    private static final int DATAGRAMS = 100;
+
+    public void testReceiveStopsWhileListenerQueueIsFull() throws Exception {
+        UdpServer server = new UdpServer(PORT);
+        DefaultCounter datagramsReceived = new DefaultCounter("datagramsReceived");
+        server.setUdpDatagramsReceivedCounter(datagramsReceived);
+
+        //stands in for an ingestion worker whose partition is full
+        final CountDownLatch release = new CountDownLatch(1);
+        server.addUdpMessageListener(new UdpServer.UdpMessageListener() {
+            public void udpMessageReceived(UdpMessage m) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.startReceive();
+
+        UdpClient client = new UdpClient(new UdpClientConfig("localhost", PORT));
+        try {
+            Thread.sleep(200);
+            JavaIOMessageFactory f = new JavaIOMessageFactory();
+            for ( int loop=0; loop < DATAGRAMS; loop++) {
+                client.sendMessage(f.createClientAnnouncementMessage(loop, "test"));
+            }
+            Thread.sleep(500);
+
+            //one batch with the listener, a full queue and one waiting to be queued, the rest stay in the socket buffer
+            long maxHeldBatches = UdpServer.LISTENER_QUEUE_BATCHES + 2;
+            assertTrue(datagramsReceived.getCount() <= maxHeldBatches);
+
+            release.countDown();
+            long timeout = System.currentTimeMillis() + 5000;
+            while ( datagramsReceived.getCount() <= maxHeldBatches && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertTrue(datagramsReceived.getCount() > maxHeldBatches);
+        } finally {
+            release.countDown();
+            server.stop();
+            client.stop();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.dictionary;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOMessageFactory;
+import com.od.jtimeseries.net.udp.message.javaio.JavaIOValueBatch;
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.util.time.Time;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestDictionaryDecoder extends TestCase {
+
+    private static final String LONG_PATH = "server.production.london.trading.pricing.engine.instances.engine01.metrics.latency";
+
+    private DictionaryMessageFactory factory = new DictionaryMessageFactory();
+    private SourceDictionaries sourceDictionaries = new SourceDictionaries();
+    private DictionaryDecoder decoder = new DictionaryDecoder(sourceDictionaries);
+
+    public void testMappingIsAnnouncedWithFirstValue() throws IOException {
+        long time = System.currentTimeMillis();
+        List<UdpMessage> sent = new ArrayList<UdpMessage>();
+        sent.add(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(time, 1.5d)));
+        sent.add(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(time + 1000, 2.5d)));
+        sent.add(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(time - 1000, -3.5d)));
+        assertTrue(((DictionaryTimeSeriesValueMessage)sent.get(0)).isAnnounceMapping());
+        assertFalse(((DictionaryTimeSeriesValueMessage)sent.get(1)).isAnnounceMapping());
+
+        byte[] datagram = serialize(sent);
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        assertEquals(4, decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages));
+        assertEquals(0, messages.size());
+        assertEquals(3, values.size());
+        assertEquals(LONG_PATH, values.getPath(0));
+        assertSame(values.getPath(0), values.getPath(2));
+        assertEquals("1.2.3.4", values.getSourceInetAddress(0));
+        assertEquals(time + 1000, values.getTimestamp(1));
+        assertEquals(2.5d, values.getValue(1));
+        assertEquals(time - 1000, values.getTimestamp(2));
+        assertEquals(-3.5d, values.getValue(2));
+    }
+
+    public void testValuesAreCompact() throws IOException {
+        factory.createTimeSeriesValueMessage(LONG_PATH, new Item(System.currentTimeMillis(), 1d)).serialize(new ByteArrayOutputStream());
+        byte[] value = serialize(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(System.currentTimeMillis(), 1d)));
+        byte[] javaIOValue = serialize(new JavaIOMessageFactory().createTimeSeriesValueMessage(LONG_PATH, new Item(System.currentTimeMillis(), 1d)));
+        assertTrue("size " + value.length, value.length <= 22);
+        assertTrue(javaIOValue.length > 4 * value.length);
+    }
+
+    public void testValuesWithUnknownMappingAreDiscarded() throws IOException {
+        factory.createTimeSeriesValueMessage(LONG_PATH, new Item(1000, 1d));  //the announcement is lost
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(2000, 2d)));
+
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        decoder.decode(datagram, datagram.length, "1.2.3.4", values, new ArrayList<UdpMessage>());
+        assertEquals(0, values.size());
+        assertEquals(1, sourceDictionaries.getUnresolvedValueCount());
+
+        //a description announces the mapping
+        datagram = serialize(factory.createTimeSeriesDescriptionMessage(LONG_PATH, "description"));
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages);
+        assertEquals(1, messages.size());
+        assertEquals(factory.createTimeSeriesDescriptionMessage(LONG_PATH, "description"), messages.get(0));
+
+        datagram = serialize(factory.createTimeSeriesValueMessage(LONG_PATH, new Item(3000, 3d)));
+        decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages);
+        assertEquals(1, values.size());
+        assertEquals(3000, values.getTimestamp(0));
+    }
+
+    public void testDictionariesAreKeptForEachSource() throws IOException {
+        DictionaryMessageFactory otherFactory = new DictionaryMessageFactory();
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage("test.path1", new Item(1000, 1d)));
+        byte[] otherDatagram = serialize(otherFactory.createTimeSeriesValueMessage("test.path2", new Item(1000, 2d)));
+
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages);
+        decoder.decode(otherDatagram, otherDatagram.length, "1.2.3.4", values, messages);
+
+        //the same id, but not the same source
+        datagram = serialize(factory.createTimeSeriesValueMessage("test.path1", new Item(2000, 3d)));
+        decoder.decode(datagram, datagram.length, "5.6.7.8", values, messages);
+        decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages);
+
+        assertEquals(3, values.size());
+        assertEquals("test.path1", values.getPath(0));
+        assertEquals("test.path2", values.getPath(1));
+        assertEquals("test.path1", values.getPath(2));
+        assertEquals(1, sourceDictionaries.getUnresolvedValueCount());
+    }
+
+    public void testMappingIsReannounced() throws IOException, InterruptedException {
+        DictionaryMessageFactory f = new DictionaryMessageFactory(Time.milliseconds(10));
+        assertTrue(((DictionaryTimeSeriesValueMessage)f.createTimeSeriesValueMessage("test.path", new Item(1000, 1d))).isAnnounceMapping());
+        assertFalse(((DictionaryTimeSeriesValueMessage)f.createTimeSeriesValueMessage("test.path", new Item(1000, 1d))).isAnnounceMapping());
+        Thread.sleep(20);
+        assertTrue(((DictionaryTimeSeriesValueMessage)f.createTimeSeriesValueMessage("test.path", new Item(1000, 1d))).isAnnounceMapping());
+    }
+
+    public void testLargeTimestampChangeStartsNewBase() throws IOException {
+        long time = System.currentTimeMillis();
+        byte[] first = serialize(factory.createTimeSeriesValueMessage("test.path", new Item(time, 1d)));
+        DictionaryTimeSeriesValueMessage later = (DictionaryTimeSeriesValueMessage)factory.createTimeSeriesValueMessage("test.path", new Item(time + Time.days(7).getLengthInMillis(), 2d));
+        assertTrue(later.isAnnounceMapping());
+
+        //a value sent with the old base after the new mapping is received cannot be decoded
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        byte[] second = serialize(later);
+        decoder.decode(second, second.length, "1.2.3.4", values, messages);
+        decoder.decode(first, first.length, "1.2.3.4", values, messages);
+        assertEquals(2, values.size());
+        assertEquals(time + Time.days(7).getLengthInMillis(), values.getTimestamp(0));
+        assertEquals(time, values.getTimestamp(1)); //this one carried its own mapping
+    }
+
+    public void testValuesAreMessagesWithoutValueBatch() throws IOException {
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage("test.path", new Item(1000, 1d)));
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        decoder.decode(datagram, datagram.length, "1.2.3.4", null, messages);
+        assertEquals(1, messages.size());
+        assertEquals(factory.createTimeSeriesValueMessage("test.path", new Item(1000, 1d)), messages.get(0));
+        assertEquals("1.2.3.4", messages.get(0).getSourceInetAddress());
+
+        assertEquals(messages, new DictionaryMessageFactory().deserializeFromDatagram(datagram, datagram.length));
+    }
+
+    public void testTruncatedDatagram() throws IOException {
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage("test.path", new Item(1, 1d)));
+        try {
+            decoder.decode(datagram, datagram.length - 1, "1.2.3.4", new JavaIOValueBatch(), new ArrayList<UdpMessage>());
+            fail("Should fail for truncated message");
+        } catch (IOException e) {
+        }
+    }
+
+    private byte[] serialize(UdpMessage m) throws IOException {
+        List<UdpMessage> l = new ArrayList<UdpMessage>();
+        l.add(m);
+        return serialize(l);
+    }
+
+    private byte[] serialize(List<UdpMessage> messages) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for ( UdpMessage m : messages) {
+            m.serialize(bos);
+        }
+        return bos.toByteArray();
+    }
+}
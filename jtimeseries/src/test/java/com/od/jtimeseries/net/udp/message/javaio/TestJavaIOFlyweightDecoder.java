@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.net.udp.message.javaio;
+
+import com.od.jtimeseries.net.udp.message.UdpMessage;
+import com.od.jtimeseries.timeseries.Item;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestJavaIOFlyweightDecoder extends TestCase {
+
+    private JavaIOMessageFactory factory = new JavaIOMessageFactory();
+    private JavaIOFlyweightDecoder decoder = new JavaIOFlyweightDecoder();
+
+    public void testDecodeValuesAndMessages() throws IOException {
+        List<UdpMessage> sent = new ArrayList<UdpMessage>();
+        sent.add(factory.createTimeSeriesValueMessage("test.path", new Item(1000, 1.5d)));
+        sent.add(factory.createTimeSeriesDescriptionMessage("test.path", "My Description"));
+        sent.add(factory.createTimeSeriesValueMessage("test.caf\u00e9.\u0000path", new Item(Long.MAX_VALUE, -2.25d)));
+        sent.add(factory.createClientAnnouncementMessage(1234, "Test Client"));
+        byte[] datagram = serialize(sent);
+
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        assertEquals(4, decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages));
+
+        assertEquals(2, values.size());
+        assertEquals("test.path", values.getPath(0));
+        assertEquals(1000, values.getTimestamp(0));
+        assertEquals(1.5d, values.getValue(0));
+        assertEquals("1.2.3.4", values.getSourceInetAddress(0));
+        assertEquals("test.caf\u00e9.\u0000path", values.getPath(1));
+        assertEquals(Long.MAX_VALUE, values.getTimestamp(1));
+        assertEquals(-2.25d, values.getValue(1));
+
+        assertEquals(2, messages.size());
+        assertEquals(sent.get(1), messages.get(0));
+        assertEquals(sent.get(3), messages.get(1));
+        assertEquals("1.2.3.4", messages.get(1).getSourceInetAddress());
+
+        //the factory gives the same values
+        List<UdpMessage> factoryMessages = factory.deserializeFromDatagram(datagram, datagram.length);
+        assertEquals(sent, factoryMessages);
+    }
+
+    public void testPathsAreInterned() throws IOException {
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage("test.path", new Item(1, 1d)));
+        JavaIOValueBatch values = new JavaIOValueBatch();
+        List<UdpMessage> messages = new ArrayList<UdpMessage>();
+        for ( int loop=0; loop < 1000; loop++) {
+            decoder.decode(datagram, datagram.length, "1.2.3.4", values, messages);
+        }
+        assertEquals(1000, values.size());
+        assertSame(values.getPath(0), values.getPath(999));
+        assertSame("test.path", values.getPath(0));
+        assertSame(values.getSourceHostname(0), values.getSourceHostname(999));
+    }
+
+    public void testTruncatedDatagram() throws IOException {
+        byte[] datagram = serialize(factory.createTimeSeriesValueMessage("test.path", new Item(1, 1d)));
+        try {
+            decoder.decode(datagram, datagram.length - 1, "1.2.3.4", new JavaIOValueBatch(), new ArrayList<UdpMessage>());
+            fail("Should fail for truncated message");
+        } catch (IOException e) {
+        }
+    }
+
+    private byte[] serialize(UdpMessage m) throws IOException {
+        List<UdpMessage> l = new ArrayList<UdpMessage>();
+        l.add(m);
+        return serialize(l);
+    }
+
+    private byte[] serialize(List<UdpMessage> messages) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for ( UdpMessage m : messages) {
+            m.serialize(bos);
+        }
+        return bos.toByteArray();
+    }
+}
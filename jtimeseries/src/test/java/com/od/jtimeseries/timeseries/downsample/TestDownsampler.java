@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.downsample;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.RollupItem;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestDownsampler extends TestCase {
+
+    public void testItemsAreUnchangedIfNoMoreThanMaxPoints() {
+        List<TimeSeriesItem> items = createItems(1, 2, 3);
+        assertEquals(items, Downsampler.downsample(items, 3, DownsampleMode.lttb));
+        assertEquals(items, Downsampler.downsample(items, 5, DownsampleMode.mean));
+    }
+
+    public void testLttbKeepsEndsAndPeaks() {
+        List<TimeSeriesItem> items = createItems(0, 1, 0, 1, 9, 1, 0, 1, 0, 1, -7, 1, 0);
+        List<TimeSeriesItem> result = Downsampler.downsample(items, 5, DownsampleMode.lttb);
+        assertEquals(5, result.size());
+        assertEquals(items.get(0), result.get(0));
+        assertEquals(items.get(12), result.get(4));
+        assertTrue(result.contains(items.get(4)));
+        assertTrue(result.contains(items.get(10)));
+    }
+
+    public void testLttbHasOnePointPerBucket() {
+        List<TimeSeriesItem> items = new ArrayList<TimeSeriesItem>();
+        for ( int loop=0; loop < 50000; loop++) {
+            items.add(new Item(loop * 1000L, Math.sin(loop / 100d)));
+        }
+        List<TimeSeriesItem> result = Downsampler.downsample(items, 800, DownsampleMode.lttb);
+        assertEquals(800, result.size());
+        for ( int loop=1; loop < result.size(); loop++) {
+            assertTrue(result.get(loop).getTimestamp() > result.get(loop - 1).getTimestamp());
+        }
+    }
+
+    public void testMinMaxKeepsExtremesInTimeOrder() {
+        List<TimeSeriesItem> items = createItems(5, 9, 2, 4, Double.NaN, Double.NaN, 3, 3);
+        List<TimeSeriesItem> result = Downsampler.downsample(items, 7, DownsampleMode.minMax);
+        //three buckets of 3, 3 and 2 items
+        assertEquals(4, result.size());
+        assertEquals(items.get(1), result.get(0));
+        assertEquals(items.get(2), result.get(1));
+        assertEquals(items.get(3), result.get(2));
+        assertEquals(items.get(6), result.get(3));
+    }
+
+    public void testMeanRollsUpBuckets() {
+        List<TimeSeriesItem> items = createItems(1, 3, Double.NaN, 5, Double.NaN, Double.NaN);
+        List<TimeSeriesItem> result = Downsampler.downsample(items, 3, DownsampleMode.mean);
+        assertEquals(new RollupItem(0, 1, 3, 4, 2), result.get(0));
+        assertEquals(new RollupItem(2000, 5, 5, 5, 1), result.get(1));
+        assertTrue(Double.isNaN(result.get(2).doubleValue()));
+
+        //items which are already rolled up are weighted by their counts
+        items = new ArrayList<TimeSeriesItem>();
+        items.add(new RollupItem(0, 1, 2, 3, 2));
+        items.add(new RollupItem(1000, 0, 10, 30, 4));
+        items.add(new Item(2000, 1d));
+        items.add(new Item(3000, 1d));
+        result = Downsampler.downsample(items, 3, DownsampleMode.mean);
+        assertEquals(new RollupItem(0, 0, 10, 33, 6), result.get(0));
+    }
+
+    private List<TimeSeriesItem> createItems(double... values) {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>();
+        for ( int loop=0; loop < values.length; loop++) {
+            result.add(new Item(loop * 1000L, values[loop]));
+        }
+        return result;
+    }
+}
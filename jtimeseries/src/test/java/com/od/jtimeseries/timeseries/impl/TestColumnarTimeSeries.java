@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2011 (nick @ objectdefinitions.com)
+ *
+ * This file is part of JTimeseries.
+ *
+ * JTimeseries is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JTimeseries is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with JTimeseries.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.od.jtimeseries.timeseries.impl;
+
+import com.od.jtimeseries.timeseries.Item;
+import com.od.jtimeseries.timeseries.TimeSeriesItem;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar storage should give the same results as object storage, for items with double values
+ */
+public class TestColumnarTimeSeries extends TestCase {
+
+    public void testInsertAndRemove() {
+        for ( SeriesStorage s : SeriesStorage.values()) {
+            DefaultTimeSeries series = new DefaultTimeSeries(s);
+            series.addItem(new Item(5, 5d));
+            series.addItem(new Item(1, 1d));
+            series.addItem(new Item(3, 3d));
+            series.addItem(new Item(3, 4d));
+            series.addItem(new Item(0, 0d));
+            series.addItem(new Item(9, 9d));
+
+            List<TimeSeriesItem> expected = createItems(0, 1, 3, 3, 5, 9);
+            expected.set(3, new Item(3, 4d));
+            assertEquals(s.name(), expected, series.getSnapshot());
+            assertEquals(4d, series.getItem(3).doubleValue());
+            assertEquals(4d, series.getDoubleValue(3));
+            assertEquals(9, series.getTimestamp(5));
+            assertEquals(0, series.getEarliestTimestamp());
+            assertEquals(9, series.getLatestTimestamp());
+
+            assertFalse(series.removeItem(new Item(3, 5d)));
+            assertTrue(series.removeItem(new Item(3, 4d)));
+            assertTrue(series.removeItem(new Item(0, 0d)));
+            assertTrue(series.removeItem(new Item(9, 9d)));
+            assertEquals(s.name(), createItems(1, 3, 5), series.getSnapshot());
+        }
+    }
+
+    public void testRangeQueries() {
+        for ( SeriesStorage s : SeriesStorage.values()) {
+            DefaultTimeSeries series = new DefaultTimeSeries(createItems(2, 4, 4, 6, 8), s);
+            assertEquals(s.name(), createItems(4, 4, 6), series.getItemsInRange(3, 6));
+            assertEquals(s.name(), createItems(2, 4, 4, 6, 8), series.getItemsInRange(0, Long.MAX_VALUE));
+            assertEquals(s.name(), 0, series.getItemsInRange(9, 20).size());
+            assertEquals(new Item(4, 4d), series.getFirstItemAtOrBefore(5));
+            assertEquals(new Item(6, 6d), series.getFirstItemAtOrAfter(5));
+            assertNull(series.getFirstItemAtOrBefore(1));
+            assertNull(series.getFirstItemAtOrAfter(9));
+        }
+    }
+
+    public void testRoundRobinWrapsAndGrows() {
+        for ( SeriesStorage s : SeriesStorage.values()) {
+            RoundRobinTimeSeries series = new RoundRobinTimeSeries(100, s);
+            for ( int loop=0; loop < 1000; loop++) {
+                series.addItem(new Item(loop, (double)loop));
+            }
+            assertEquals(100, series.size());
+            assertEquals(900, series.getEarliestTimestamp());
+            assertEquals(999d, series.getLatestItem().doubleValue());
+
+            //an item earlier than the rest is inserted at the head and immediately drops off
+            series.addItem(new Item(850, 850d));
+            assertEquals(100, series.size());
+            assertEquals(900, series.getEarliestTimestamp());
+
+            //inserted after the existing item with the same timestamp
+            series.addItem(new Item(950, -1d));
+            assertEquals(Arrays.asList(new Item(950, 950d), new Item(950, -1d)), series.getItemsInRange(950, 950));
+            assertEquals(901, series.getEarliestTimestamp());
+        }
+    }
+
+    public void testEqualsObjectStorage() {
+        List<TimeSeriesItem> items = createItems(1, 2, 3, 4, 5, 6, 7, 8);
+        DefaultTimeSeries objects = new DefaultTimeSeries(items);
+        DefaultTimeSeries columnar = new DefaultTimeSeries(items, SeriesStorage.COLUMNAR_OFF_HEAP);
+        assertEquals(objects, columnar);
+        assertEquals(objects.hashCode(), columnar.hashCode());
+    }
+
+    private List<TimeSeriesItem> createItems(long... timestamps) {
+        List<TimeSeriesItem> result = new ArrayList<TimeSeriesItem>();
+        for ( long t : timestamps) {
+            result.add(new Item(t, (double)t));
+        }
+        return result;
+    }
+}